@@ -207,6 +207,49 @@ junitAll = new JUnitRule("test-all").setDescription("Run unit tests including Ca
 if (saw.getProperty("jacoco", "false").equals("true"))
 	junitAll.addJvmArgument("-javaagent:lib_test/jacocoagent.jar=destfile=build/jacoco.exec")
 
+//------------------------------------------------------------------------------
+//Run JMH benchmarks
+benchmarkDir = "build/jmh"
+new SimpleRule("benchmark").setDescription("Run JMH benchmarks with allocation profiling, results are written to ${benchmarkDir}." +
+		"\n\t-D bench <regex> to select benchmarks, all are run if not specified." +
+		"\n\t-D label <name> to name the result file, defaults to the git revision.")
+		.addDepends(testCompileRule)
+		.addDepends(ivyTestResolve)
+		.setMakeAction("doBenchmark")
+
+new SimpleRule("benchmark-compare").setDescription("Compare the results of two benchmark runs." +
+		"\n\t-D base <label> -D head <label> the labels of the two runs.")
+		.addDepends(testCompileRule)
+		.setMakeAction("doBenchmarkCompare")
+
+def getBenchmarkClasspath()
+{
+	benchmarkClasspath = new Classpath(junitClasspath)
+	benchmarkClasspath.addPath(testCompileRule.getBuildDirectory())
+	return benchmarkClasspath
+}
+
+def doBenchmark(Rule rule)
+{
+	bench = saw.getProperty("bench", "")
+	label = saw.getProperty("label", revision)
+	if (label == "")
+		label = "current"
+
+	new File(benchmarkDir).mkdirs()
+	saw.exec("java -cp ${getBenchmarkClasspath()} org.openjdk.jmh.Main ${bench} -prof gc -rf json -rff ${benchmarkDir}/${label}.json")
+}
+
+def doBenchmarkCompare(Rule rule)
+{
+	base = saw.getProperty("base")
+	head = saw.getProperty("head")
+	if (base == null || head == null)
+		throw new TablesawException("Specify the runs to compare with -D base <label> -D head <label>")
+
+	saw.exec("java -cp ${getBenchmarkClasspath()} org.kairosdb.testing.BenchmarkComparison ${benchmarkDir}/${base}.json ${benchmarkDir}/${head}.json")
+}
+
 //------------------------------------------------------------------------------
 //Build zip deployable application
 rpmFile = "$programName-$version-${release}.rpm"
@@ -33,10 +33,14 @@ import com.typesafe.config.ConfigValueType;
 import org.kairosdb.core.aggregator.*;
 import org.kairosdb.core.configuration.ConfigurationTypeListener;
 import org.kairosdb.core.datapoints.*;
+import org.kairosdb.core.datastore.BulkDeleteManager;
 import org.kairosdb.core.datastore.GuiceQueryPluginFactory;
 import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.datastore.QueryPluginFactory;
+import org.kairosdb.core.datastore.QueryAdmissionScheduler;
+import org.kairosdb.core.datastore.QueryMemoryBudget;
 import org.kairosdb.core.datastore.QueryQueuingManager;
+import org.kairosdb.core.datastore.QueryResultCache;
 import org.kairosdb.core.groupby.*;
 import org.kairosdb.core.http.rest.GuiceQueryPreProcessor;
 import org.kairosdb.core.http.rest.QueryPreProcessorContainer;
@@ -52,6 +56,7 @@ import org.kairosdb.eventbus.EventBusConfiguration;
 import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.plugin.Aggregator;
 import org.kairosdb.plugin.GroupBy;
+import org.kairosdb.util.HistogramRegistry;
 import org.kairosdb.util.IngestExecutorService;
 import org.kairosdb.util.MemoryMonitor;
 import org.kairosdb.util.SimpleStatsReporter;
@@ -183,8 +188,12 @@ public class CoreModule extends AbstractModule
 		bindConfiguration(binder());
 		bind(KairosRootConfig.class).toInstance(m_config);
 
+		bind(QueryAdmissionScheduler.class).in(Singleton.class);
 		bind(QueryQueuingManager.class).in(Singleton.class);
 		bind(KairosDatastore.class).in(Singleton.class);
+		bind(QueryResultCache.class).in(Singleton.class);
+		bind(QueryMemoryBudget.class).in(Singleton.class);
+		bind(BulkDeleteManager.class).in(Singleton.class);
 
 		bind(new TypeLiteral<FeatureProcessingFactory<Aggregator>>() {}).to(AggregatorFactory.class).in(Singleton.class);
 		bind(new TypeLiteral<FeatureProcessingFactory<GroupBy>>() {}).to(GroupByFactory.class).in(Singleton.class);
@@ -199,6 +208,7 @@ public class CoreModule extends AbstractModule
 		bind(MemoryMonitor.class).in(Singleton.class);
 		bind(DataPointEventSerializer.class).in(Singleton.class);
 		bind(SimpleStatsReporter.class);
+		bind(HistogramRegistry.class).in(Singleton.class);
 
 		bind(SumAggregator.class);
 		bind(MinAggregator.class);
@@ -219,7 +229,17 @@ public class CoreModule extends AbstractModule
 		bind(SaveAsAggregator.class);
 		bind(TrimAggregator.class);
 		bind(SmaAggregator.class);
+		bind(MovingAverageAggregator.class);
+		bind(MovingSumAggregator.class);
+		bind(MovingMinAggregator.class);
+		bind(MovingMaxAggregator.class);
+		bind(MovingStdAggregator.class);
+		bind(EwmaAggregator.class);
 		bind(FilterAggregator.class);
+		bind(DistinctAggregator.class);
+		bind(HyperLogLogAggregator.class);
+		bind(M4Aggregator.class);
+		bind(LttbAggregator.class);
 
 		bind(ValueGroupBy.class);
 		bind(TimeGroupBy.class);
@@ -249,6 +269,8 @@ public class CoreModule extends AbstractModule
 		bind(LegacyDataPointFactory.class).in(Singleton.class);
 
 		bind(StringDataPointFactory.class).in(Singleton.class);
+		bind(DictionaryStringDataPointFactory.class).in(Singleton.class);
+		bind(HyperLogLogDataPointFactory.class).in(Singleton.class);
 
 		bind(NullDataPointFactory.class).in(Singleton.class);
 
@@ -276,7 +298,8 @@ public class CoreModule extends AbstractModule
 	@Provides @Named(QUEUE_PROCESSOR) @Singleton
 	public ExecutorService getQueueExecutor()
 	{
-		return Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("QueueProcessor-%s").build());
+		//Helper delivery threads are started on this executor when the queue backs up
+		return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("QueueProcessor-%s").build());
 	}
 
 	@Provides
@@ -36,6 +36,7 @@ import org.json.JSONWriter;
 import org.kairosdb.core.datastore.DatastoreQuery;
 import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.datastore.QueryCallback;
+import org.kairosdb.core.datastore.QueryClass;
 import org.kairosdb.core.datastore.QueryMetric;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.exception.KairosDBException;
@@ -496,6 +497,7 @@ public class Main
 				{
 					logger.info("Exporting: " + metric);
 					QueryMetric qm = new QueryMetric(1L, 0, metric);
+					qm.setQueryClass(QueryClass.EXPORT);
 					ExportQueryCallback callback = new ExportQueryCallback(metric, out);
 					ds.export(qm, callback);
 
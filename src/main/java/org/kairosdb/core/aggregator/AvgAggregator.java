@@ -42,6 +42,12 @@ public class AvgAggregator extends RangeAggregator
 		m_dataPointFactory = dataPointFactory;
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new AvgPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -82,4 +88,32 @@ public class AvgAggregator extends RangeAggregator
 		}
 	}
 
-}
\ No newline at end of file
+	private class AvgPartial implements RangePartial
+	{
+		private int m_count = 0;
+		private double m_sum = 0;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			if (dataPoint.isDouble())
+			{
+				m_sum += dataPoint.getDoubleValue();
+				m_count++;
+			}
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			m_sum += ((AvgPartial) other).m_sum;
+			m_count += ((AvgPartial) other).m_count;
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, m_sum / m_count));
+		}
+	}
+}
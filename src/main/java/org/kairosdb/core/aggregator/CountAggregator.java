@@ -37,6 +37,12 @@ public class CountAggregator extends RangeAggregator
 		m_dataPointFactory = dataPointFactory;
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new CountPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -71,4 +77,27 @@ public class CountAggregator extends RangeAggregator
 			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, count));
 		}
 	}
-}
\ No newline at end of file
+
+	private class CountPartial implements RangePartial
+	{
+		private long m_count = 0;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			m_count++;
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			m_count += ((CountPartial) other).m_count;
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, m_count));
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import com.google.inject.Inject;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.annotation.FeatureComponent;
+import org.kairosdb.core.datapoints.LongDataPointFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+@FeatureComponent(
+		name = "distinct",
+		description = "Estimates the number of distinct values, merges hll sketches or counts raw values."
+)
+public class DistinctAggregator extends RangeAggregator
+{
+	private LongDataPointFactory m_dataPointFactory;
+
+	@Inject
+	public DistinctAggregator(LongDataPointFactory dataPointFactory)
+	{
+		m_dataPointFactory = dataPointFactory;
+	}
+
+	@Override
+	public boolean canAggregate(String groupType)
+	{
+		return true;
+	}
+
+	@Override
+	public String getAggregatedGroupType(String groupType)
+	{
+		return m_dataPointFactory.getGroupType();
+	}
+
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new DistinctPartial());
+	}
+
+	@Override
+	protected RangeSubAggregator getSubAggregator()
+	{
+		return (new DistinctDataPointAggregator());
+	}
+
+	private class DistinctDataPointAggregator implements RangeSubAggregator
+	{
+		@Override
+		public Iterable<DataPoint> getNextDataPoints(long returnTime, Iterator<DataPoint> dataPointRange)
+		{
+			DistinctPartial partial = new DistinctPartial();
+			partial.addAll(dataPointRange);
+
+			return partial.getDataPoints(returnTime);
+		}
+	}
+
+	private class DistinctPartial extends HyperLogLogPartial
+	{
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, getSketch().estimate()));
+		}
+	}
+}
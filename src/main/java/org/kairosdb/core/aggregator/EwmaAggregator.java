@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import com.google.inject.Inject;
+import org.joda.time.DateTimeZone;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.annotation.FeatureComponent;
+import org.kairosdb.core.annotation.FeatureCompoundProperty;
+import org.kairosdb.core.annotation.FeatureProperty;
+import org.kairosdb.core.annotation.ValidationProperty;
+import org.kairosdb.core.datapoints.DoubleDataPointFactory;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.groupby.GroupByResult;
+import org.kairosdb.plugin.Aggregator;
+import org.kairosdb.util.Util;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Exponentially weighted moving average.  Each data point is blended into the
+ average with a weight of alpha.  Alpha can be set directly or derived from a
+ span of size data points (alpha = 2 / (size + 1)).  When window is set the
+ weight depends on the time since the previous data point,
+ alpha = 1 - e^(-elapsed / window), so unevenly spaced data is weighted by time.
+ */
+@FeatureComponent(
+		name = "ewma",
+		label = "EWMA",
+		description = "Exponentially weighted moving average."
+)
+public class EwmaAggregator implements Aggregator
+{
+	private final DoubleDataPointFactory m_dataPointFactory;
+
+	@FeatureProperty(
+			label = "Alpha",
+			description = "The weight given to each new data point, between 0 and 1. When not set it is derived from the size.",
+			optional = true,
+			default_value = "0",
+			validations = {
+					@ValidationProperty(
+							expression = "value >= 0 && value <= 1",
+							message = "Alpha must be between 0 and 1."
+					)
+			}
+	)
+	private double m_alpha;
+
+	@FeatureProperty(
+			label = "Size",
+			description = "The span of the average in data points, used when alpha is not set.",
+			default_value = "10",
+			validations = {
+					@ValidationProperty(
+							expression = "value > 0",
+							message = "Size must be greater than 0."
+					)
+			}
+	)
+	private int m_size = 10;
+
+	@FeatureCompoundProperty(
+			name = "window",
+			label = "Window",
+			order = {"Value", "Unit"}
+	)
+	private Sampling m_window;
+
+	@Inject
+	public EwmaAggregator(DoubleDataPointFactory dataPointFactory)
+	{
+		m_dataPointFactory = dataPointFactory;
+	}
+
+	@Override
+	public boolean canAggregate(String groupType)
+	{
+		return DataPoint.GROUP_NUMBER.equals(groupType);
+	}
+
+	@Override
+	public String getAggregatedGroupType(String groupType)
+	{
+		return m_dataPointFactory.getGroupType();
+	}
+
+	@Override
+	public DataPointGroup aggregate(DataPointGroup dataPointGroup)
+	{
+		checkNotNull(dataPointGroup);
+
+		if (m_window != null)
+			return (new EwmaDataPointGroup(dataPointGroup, 0,
+					Util.getSamplingDuration(0, m_window, DateTimeZone.UTC)));
+		else if (m_alpha != 0)
+			return (new EwmaDataPointGroup(dataPointGroup, m_alpha, 0));
+		else
+			return (new EwmaDataPointGroup(dataPointGroup, 2.0 / (m_size + 1), 0));
+	}
+
+	public void setAlpha(double alpha)
+	{
+		m_alpha = alpha;
+	}
+
+	public void setSize(int size)
+	{
+		m_size = size;
+	}
+
+	public void setWindow(Sampling window)
+	{
+		m_window = window;
+	}
+
+	private class EwmaDataPointGroup implements DataPointGroup
+	{
+		private final DataPointGroup m_innerDataPointGroup;
+		private final double m_fixedAlpha;
+		private final double m_timeConstant;
+		private boolean m_first = true;
+		private long m_lastTimestamp;
+		private double m_average;
+
+		/**
+		 @param fixedAlpha   alpha to use for every data point
+		 @param timeConstant when not 0 alpha is computed from the time between data points
+		 */
+		public EwmaDataPointGroup(DataPointGroup innerDataPointGroup, double fixedAlpha, long timeConstant)
+		{
+			m_innerDataPointGroup = innerDataPointGroup;
+			m_fixedAlpha = fixedAlpha;
+			m_timeConstant = timeConstant;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return (m_innerDataPointGroup.hasNext());
+		}
+
+		@Override
+		public DataPoint next()
+		{
+			DataPoint dp = m_innerDataPointGroup.next();
+			double value = dp.getDoubleValue();
+
+			if (m_first)
+			{
+				m_average = value;
+				m_first = false;
+			}
+			else
+			{
+				double alpha = m_fixedAlpha;
+				if (m_timeConstant != 0)
+					alpha = 1 - Math.exp(-Math.abs(dp.getTimestamp() - m_lastTimestamp) / m_timeConstant);
+
+				m_average += alpha * (value - m_average);
+			}
+
+			m_lastTimestamp = dp.getTimestamp();
+
+			return (m_dataPointFactory.createDataPoint(dp.getTimestamp(), m_average));
+		}
+
+		@Override
+		public void remove()
+		{
+			m_innerDataPointGroup.remove();
+		}
+
+		@Override
+		public String getName()
+		{
+			return (m_innerDataPointGroup.getName());
+		}
+
+		@Override
+		public List<GroupByResult> getGroupByResult()
+		{
+			return (m_innerDataPointGroup.getGroupByResult());
+		}
+
+		@Override
+		public void close()
+		{
+			m_innerDataPointGroup.close();
+		}
+
+		@Override
+		public Set<String> getTagNames()
+		{
+			return (m_innerDataPointGroup.getTagNames());
+		}
+
+		@Override
+		public Set<String> getTagValues(String tag)
+		{
+			return (m_innerDataPointGroup.getTagValues(tag));
+		}
+	}
+}
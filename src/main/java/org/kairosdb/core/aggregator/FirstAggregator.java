@@ -52,6 +52,12 @@ public class FirstAggregator extends RangeAggregator
 		return m_dataPointFactory.getGroupType();
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new FirstPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -82,4 +88,40 @@ public class FirstAggregator extends RangeAggregator
 			return ret;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 Keeps the earliest data point.  Ties go to the smaller value, the same
+	 order the data points are sorted in when the series are merged.
+	 */
+	private class FirstPartial implements RangePartial
+	{
+		private DataPoint m_first;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			if (m_first == null || dataPoint.getTimestamp() < m_first.getTimestamp() ||
+					(dataPoint.getTimestamp() == m_first.getTimestamp() &&
+							Double.compare(dataPoint.getDoubleValue(), m_first.getDoubleValue()) < 0))
+				m_first = dataPoint;
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			DataPoint otherFirst = ((FirstPartial) other).m_first;
+			if (otherFirst != null)
+				add(otherFirst);
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			if (m_first == null)
+				return Collections.emptyList();
+
+			m_first.setTimestamp(returnTime);
+			return Collections.singletonList(m_first);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import com.google.inject.Inject;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.annotation.FeatureComponent;
+import org.kairosdb.core.datapoints.HyperLogLogDataPointFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ Returns one merged sketch per range instead of the estimate.  Followed by
+ save_as it rolls up sketches per hour or day, distinct over the roll up then
+ reads one sketch per period.
+ */
+@FeatureComponent(
+		name = "hll",
+		description = "Merges the values of the range into a HyperLogLog sketch, for roll ups of distinct counts."
+)
+public class HyperLogLogAggregator extends RangeAggregator
+{
+	private HyperLogLogDataPointFactory m_dataPointFactory;
+
+	@Inject
+	public HyperLogLogAggregator(HyperLogLogDataPointFactory dataPointFactory)
+	{
+		m_dataPointFactory = dataPointFactory;
+	}
+
+	@Override
+	public boolean canAggregate(String groupType)
+	{
+		return true;
+	}
+
+	@Override
+	public String getAggregatedGroupType(String groupType)
+	{
+		return m_dataPointFactory.getGroupType();
+	}
+
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new SketchPartial());
+	}
+
+	@Override
+	protected RangeSubAggregator getSubAggregator()
+	{
+		return (new SketchDataPointAggregator());
+	}
+
+	private class SketchDataPointAggregator implements RangeSubAggregator
+	{
+		@Override
+		public Iterable<DataPoint> getNextDataPoints(long returnTime, Iterator<DataPoint> dataPointRange)
+		{
+			SketchPartial partial = new SketchPartial();
+			partial.addAll(dataPointRange);
+
+			return partial.getDataPoints(returnTime);
+		}
+	}
+
+	private class SketchPartial extends HyperLogLogPartial
+	{
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, getSketch()));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.HyperLogLogDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.util.HyperLogLog;
+
+import java.util.Iterator;
+
+/**
+ Merges the sketches of a range, values that are not sketches are added to
+ the sketch by their string form the same as raw values sent to an hll data
+ point.  Used by both the distinct and hll aggregators.
+ */
+abstract class HyperLogLogPartial implements RangePartial
+{
+	private HyperLogLog m_sketch;
+
+	@Override
+	public void add(DataPoint dataPoint)
+	{
+		if (dataPoint instanceof HyperLogLogDataPoint)
+		{
+			HyperLogLog sketch = ((HyperLogLogDataPoint) dataPoint).getSketch();
+			//Copied so the data point isn't changed by later merges
+			if (m_sketch == null)
+				m_sketch = sketch.copy();
+			else
+				m_sketch.merge(sketch);
+
+			return;
+		}
+
+		String value;
+		if (dataPoint instanceof StringDataPoint)
+			value = ((StringDataPoint) dataPoint).getValue();
+		else if (dataPoint.isLong())
+			value = Long.toString(dataPoint.getLongValue());
+		else if (dataPoint.isDouble())
+			value = Double.toString(dataPoint.getDoubleValue());
+		else
+			return;
+
+		getSketch().offer(value);
+	}
+
+	public void addAll(Iterator<DataPoint> dataPoints)
+	{
+		while (dataPoints.hasNext())
+			add(dataPoints.next());
+	}
+
+	@Override
+	public void merge(RangePartial other)
+	{
+		HyperLogLog otherSketch = ((HyperLogLogPartial) other).m_sketch;
+		if (otherSketch == null)
+			return;
+
+		if (m_sketch == null)
+			m_sketch = otherSketch.copy();
+		else
+			m_sketch.merge(otherSketch);
+	}
+
+	protected HyperLogLog getSketch()
+	{
+		if (m_sketch == null)
+			m_sketch = new HyperLogLog();
+
+		return m_sketch;
+	}
+}
@@ -52,6 +52,12 @@ public class LastAggregator extends RangeAggregator
 		return m_dataPointFactory.getGroupType();
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new LastPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -81,4 +87,41 @@ public class LastAggregator extends RangeAggregator
 			return Collections.emptyList();
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 Keeps the latest data point.  Ties go to the larger value, the same
+	 order the data points are sorted in when the series are merged.
+	 */
+	private class LastPartial implements RangePartial
+	{
+		private DataPoint m_last;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			if (m_last == null || dataPoint.getTimestamp() > m_last.getTimestamp() ||
+					(dataPoint.getTimestamp() == m_last.getTimestamp() &&
+							Double.compare(dataPoint.getDoubleValue(), m_last.getDoubleValue()) >= 0))
+				m_last = dataPoint;
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			DataPoint otherLast = ((LastPartial) other).m_last;
+			if (otherLast != null)
+				add(otherLast);
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			if (m_last == null)
+				return Collections.emptyList();
+
+			if (m_alignStartTime || m_alignEndTime)
+				m_last.setTimestamp(returnTime);
+			return Collections.singletonList(m_last);
+		}
+	}
+}
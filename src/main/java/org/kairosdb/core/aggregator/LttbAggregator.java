@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import com.google.inject.Inject;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.annotation.FeatureComponent;
+import org.kairosdb.core.datapoints.DoubleDataPointFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ Largest triangle three buckets downsampling.  Each range is a bucket and one
+ data point is kept from it, the one that makes the largest triangle with the
+ point kept from the range before and the average of the range after.  The
+ first and last data points of the series are always kept, they stand in for
+ the first and last range.
+
+ The data points are returned with their own timestamps.  A range is only
+ picked from once the range after it has been read, so the data points of two
+ ranges are held at a time and never the whole series.
+ */
+@FeatureComponent(
+		name = "lttb",
+		description = "Returns the data point of the time range that best keeps the shape of the series for charting."
+)
+public class LttbAggregator extends RangeAggregator
+{
+	private DoubleDataPointFactory m_dataPointFactory;
+
+	@Inject
+	public LttbAggregator(DoubleDataPointFactory dataPointFactory)
+	{
+		m_dataPointFactory = dataPointFactory;
+	}
+
+	@Override
+	public boolean canAggregate(String groupType)
+	{
+		return DataPoint.GROUP_NUMBER.equals(groupType);
+	}
+
+	@Override
+	public String getAggregatedGroupType(String groupType)
+	{
+		return m_dataPointFactory.getGroupType();
+	}
+
+	@Override
+	public boolean isRangeIndependent()
+	{
+		return false;
+	}
+
+	@Override
+	protected RangeSubAggregator getSubAggregator()
+	{
+		return (new LttbDataPointAggregator());
+	}
+
+	private class LttbDataPointAggregator implements RangeSubAggregator
+	{
+		private int m_rangeCount;
+		private Bucket m_previous = new Bucket();
+		private Bucket m_current = new Bucket();
+		private long m_selectedTime;
+		private double m_selectedValue;
+
+		@Override
+		public Iterable<DataPoint> getNextDataPoints(long returnTime, Iterator<DataPoint> dataPointRange)
+		{
+			m_current.clear();
+			while (dataPointRange.hasNext())
+				m_current.add(dataPointRange.next());
+
+			if (m_current.m_size == 0)
+				return Collections.emptyList();
+
+			Iterable<DataPoint> ret;
+			if (m_rangeCount == 0)
+			{
+				m_selectedTime = m_current.m_times[0];
+				m_selectedValue = m_current.m_values[0];
+				ret = Collections.singletonList(m_dataPointFactory.createDataPoint(m_selectedTime, m_selectedValue));
+			}
+			else if (m_rangeCount == 1)
+				ret = Collections.emptyList();
+			else
+				ret = Collections.singletonList(select(m_previous, m_current));
+
+			m_rangeCount++;
+			Bucket previous = m_previous;
+			m_previous = m_current;
+			m_current = previous;
+
+			return ret;
+		}
+
+		@Override
+		public Iterable<DataPoint> getLastDataPoints()
+		{
+			if (m_rangeCount < 2)
+				return Collections.emptyList();
+
+			int last = m_previous.m_size - 1;
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(
+					m_previous.m_times[last], m_previous.m_values[last]));
+		}
+
+		/**
+		 Picks the data point of bucket with the largest triangle between the
+		 point picked before and the average of next.
+		 */
+		private DataPoint select(Bucket bucket, Bucket next)
+		{
+			//Times are taken relative to the point picked before so they fit a double
+			double nextTime = next.getAverageTime() - m_selectedTime;
+			double nextValue = next.getAverageValue() - m_selectedValue;
+
+			int selected = 0;
+			double largestArea = -1;
+			for (int I = 0; I < bucket.m_size; I++)
+			{
+				double time = bucket.m_times[I] - m_selectedTime;
+				double value = bucket.m_values[I] - m_selectedValue;
+
+				//Twice the area, which picks the same point
+				double area = Math.abs(nextTime * value - time * nextValue);
+				if (area > largestArea)
+				{
+					largestArea = area;
+					selected = I;
+				}
+			}
+
+			m_selectedTime = bucket.m_times[selected];
+			m_selectedValue = bucket.m_values[selected];
+			return m_dataPointFactory.createDataPoint(m_selectedTime, m_selectedValue);
+		}
+	}
+
+	/**
+	 Data points of one range
+	 */
+	private static class Bucket
+	{
+		private long[] m_times = new long[16];
+		private double[] m_values = new double[16];
+		private int m_size;
+		private double m_timeSum;
+		private double m_valueSum;
+
+		private void clear()
+		{
+			m_size = 0;
+			m_timeSum = 0;
+			m_valueSum = 0;
+		}
+
+		private void add(DataPoint dataPoint)
+		{
+			if (m_size == m_times.length)
+			{
+				m_times = Arrays.copyOf(m_times, m_size * 2);
+				m_values = Arrays.copyOf(m_values, m_size * 2);
+			}
+
+			m_times[m_size] = dataPoint.getTimestamp();
+			m_values[m_size] = dataPoint.getDoubleValue();
+			//Summed relative to the first time so the sum doesn't lose precision
+			m_timeSum += m_times[m_size] - m_times[0];
+			m_valueSum += m_values[m_size];
+			m_size++;
+		}
+
+		private double getAverageTime()
+		{
+			return m_times[0] + m_timeSum / m_size;
+		}
+
+		private double getAverageValue()
+		{
+			return m_valueSum / m_size;
+		}
+	}
+}
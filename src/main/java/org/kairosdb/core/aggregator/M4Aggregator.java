@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import com.google.inject.Inject;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.annotation.FeatureComponent;
+import org.kairosdb.core.datapoints.DoubleDataPointFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ Returns the first, smallest, largest and last data point of each range with
+ their own timestamps.  Drawn as a line these four points give the same pixels
+ as every data point of the range when a range is one pixel wide, so a chart
+ only needs four points per pixel column whatever the density of the data.
+ Each range is reduced as it is read, nothing but the four points is kept.
+ */
+@FeatureComponent(
+		name = "m4",
+		description = "Returns the first, min, max and last data points of the time range for charting."
+)
+public class M4Aggregator extends RangeAggregator
+{
+	private DoubleDataPointFactory m_dataPointFactory;
+
+	@Inject
+	public M4Aggregator(DoubleDataPointFactory dataPointFactory)
+	{
+		m_dataPointFactory = dataPointFactory;
+	}
+
+	@Override
+	public boolean canAggregate(String groupType)
+	{
+		return DataPoint.GROUP_NUMBER.equals(groupType);
+	}
+
+	@Override
+	public String getAggregatedGroupType(String groupType)
+	{
+		return m_dataPointFactory.getGroupType();
+	}
+
+	@Override
+	public int getDataPointsPerRange()
+	{
+		return 4;
+	}
+
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new M4Partial());
+	}
+
+	@Override
+	protected RangeSubAggregator getSubAggregator()
+	{
+		return (new M4DataPointAggregator());
+	}
+
+	private class M4DataPointAggregator implements RangeSubAggregator
+	{
+		@Override
+		public Iterable<DataPoint> getNextDataPoints(long returnTime, Iterator<DataPoint> dataPointRange)
+		{
+			M4Partial partial = new M4Partial();
+			while (dataPointRange.hasNext())
+				partial.add(dataPointRange.next());
+
+			return partial.getDataPoints(returnTime);
+		}
+	}
+
+	/**
+	 The four points of a range.  Timestamp ties are broken by value the same
+	 way the data points of a group are sorted.
+	 */
+	private class M4Partial implements RangePartial
+	{
+		private boolean m_empty = true;
+		private long m_firstTime;
+		private double m_first;
+		private long m_lastTime;
+		private double m_last;
+		private long m_minTime;
+		private double m_min;
+		private long m_maxTime;
+		private double m_max;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			add(dataPoint.getTimestamp(), dataPoint.getDoubleValue());
+		}
+
+		private void add(long timestamp, double value)
+		{
+			if (m_empty)
+			{
+				m_empty = false;
+				m_firstTime = m_lastTime = m_minTime = m_maxTime = timestamp;
+				m_first = m_last = m_min = m_max = value;
+				return;
+			}
+
+			if (compare(timestamp, value, m_firstTime, m_first) < 0)
+			{
+				m_firstTime = timestamp;
+				m_first = value;
+			}
+
+			if (compare(timestamp, value, m_lastTime, m_last) > 0)
+			{
+				m_lastTime = timestamp;
+				m_last = value;
+			}
+
+			int minCompare = Double.compare(value, m_min);
+			if (minCompare < 0 || (minCompare == 0 && timestamp < m_minTime))
+			{
+				m_minTime = timestamp;
+				m_min = value;
+			}
+
+			int maxCompare = Double.compare(value, m_max);
+			if (maxCompare > 0 || (maxCompare == 0 && timestamp < m_maxTime))
+			{
+				m_maxTime = timestamp;
+				m_max = value;
+			}
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			M4Partial otherPartial = (M4Partial) other;
+			if (otherPartial.m_empty)
+				return;
+
+			add(otherPartial.m_firstTime, otherPartial.m_first);
+			add(otherPartial.m_minTime, otherPartial.m_min);
+			add(otherPartial.m_maxTime, otherPartial.m_max);
+			add(otherPartial.m_lastTime, otherPartial.m_last);
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			List<DataPoint> ret = new ArrayList<DataPoint>(4);
+			if (m_empty)
+				return ret;
+
+			long[] times = {m_firstTime, m_minTime, m_maxTime, m_lastTime};
+			double[] values = {m_first, m_min, m_max, m_last};
+
+			//Insertion sort in place, the sorted points never grow past the one
+			//being read.  Equal points are only returned once.
+			int count = 0;
+			for (int I = 0; I < times.length; I++)
+			{
+				long timestamp = times[I];
+				double value = values[I];
+
+				int position = count;
+				while (position > 0 && compare(timestamp, value, times[position - 1], values[position - 1]) < 0)
+					position--;
+
+				if (position > 0 && compare(timestamp, value, times[position - 1], values[position - 1]) == 0)
+					continue;
+
+				System.arraycopy(times, position, times, position + 1, count - position);
+				System.arraycopy(values, position, values, position + 1, count - position);
+				times[position] = timestamp;
+				values[position] = value;
+				count++;
+			}
+
+			for (int I = 0; I < count; I++)
+				ret.add(m_dataPointFactory.createDataPoint(times[I], values[I]));
+
+			return ret;
+		}
+	}
+
+	private static int compare(long time1, double value1, long time2, double value2)
+	{
+		int ret = Long.compare(time1, time2);
+		if (ret == 0)
+			ret = Double.compare(value1, value2);
+		return ret;
+	}
+}
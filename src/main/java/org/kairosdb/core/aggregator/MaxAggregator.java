@@ -52,6 +52,12 @@ public class MaxAggregator extends RangeAggregator
 		return m_dataPointFactory.getGroupType();
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new MaxPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -72,4 +78,27 @@ public class MaxAggregator extends RangeAggregator
 			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, max));
 		}
 	}
-}
\ No newline at end of file
+
+	private class MaxPartial implements RangePartial
+	{
+		private double m_max = -Double.MAX_VALUE;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			m_max = Math.max(m_max, dataPoint.getDoubleValue());
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			m_max = Math.max(m_max, ((MaxPartial) other).m_max);
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, m_max));
+		}
+	}
+}
@@ -52,6 +52,12 @@ public class MinAggregator extends RangeAggregator
 		return m_dataPointFactory.getGroupType();
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new MinPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -75,4 +81,27 @@ public class MinAggregator extends RangeAggregator
 			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, min));
 		}
 	}
-}
\ No newline at end of file
+
+	private class MinPartial implements RangePartial
+	{
+		private double m_min = Double.MAX_VALUE;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			m_min = Math.min(m_min, dataPoint.getDoubleValue());
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			m_min = Math.min(m_min, ((MinPartial) other).m_min);
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, m_min));
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import com.google.inject.Inject;
+import org.kairosdb.core.annotation.FeatureComponent;
+import org.kairosdb.core.datapoints.DoubleDataPointFactory;
+
+@FeatureComponent(
+		name = "moving_min",
+		label = "Moving Min",
+		description = "Smallest data point in a window that moves with each data point."
+)
+public class MovingMinAggregator extends MovingWindowAggregator
+{
+	@Inject
+	public MovingMinAggregator(DoubleDataPointFactory dataPointFactory)
+	{
+		super(dataPointFactory, true);
+	}
+
+	@Override
+	protected double getWindowValue(SlidingWindow window)
+	{
+		return window.getMin();
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.joda.time.DateTimeZone;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.annotation.FeatureCompoundProperty;
+import org.kairosdb.core.annotation.FeatureProperty;
+import org.kairosdb.core.annotation.ValidationProperty;
+import org.kairosdb.core.datapoints.DoubleDataPointFactory;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.groupby.GroupByResult;
+import org.kairosdb.plugin.Aggregator;
+import org.kairosdb.util.Util;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ Base for aggregators that return one data point for every input data point,
+ computed over a window that slides along the series.  The window is either
+ the last size data points or, when window is set, the data points within
+ that amount of time of the current one.  The work is done by a
+ SlidingWindow so the cost per data point doesn't depend on the window size.
+ */
+public abstract class MovingWindowAggregator implements Aggregator, TimezoneAware
+{
+	protected final DoubleDataPointFactory m_dataPointFactory;
+	private final boolean m_trackMinMax;
+
+	@FeatureProperty(
+			label = "Size",
+			description = "The number of data points in the window. Not used when a window time is set.",
+			default_value = "10",
+			validations = {
+					@ValidationProperty(
+							expression = "value > 0",
+							message = "Size must be greater than 0."
+					)
+			}
+	)
+	private int m_size = 10;
+
+	@FeatureCompoundProperty(
+			name = "window",
+			label = "Window",
+			order = {"Value", "Unit"}
+	)
+	private Sampling m_window;
+
+	private DateTimeZone m_timeZone = DateTimeZone.UTC;
+
+	/**
+	 @param dataPointFactory factory for the returned data points
+	 @param trackMinMax      true if the aggregator needs the min or max of the window
+	 */
+	protected MovingWindowAggregator(DoubleDataPointFactory dataPointFactory, boolean trackMinMax)
+	{
+		m_dataPointFactory = dataPointFactory;
+		m_trackMinMax = trackMinMax;
+	}
+
+	/**
+	 Returns the value for the window, called after each data point is added.
+	 */
+	protected abstract double getWindowValue(SlidingWindow window);
+
+	/**
+	 When true and the window is count based no data points are returned until
+	 the window has filled up.
+	 */
+	protected boolean isFullWindowsOnly()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean canAggregate(String groupType)
+	{
+		return DataPoint.GROUP_NUMBER.equals(groupType);
+	}
+
+	@Override
+	public String getAggregatedGroupType(String groupType)
+	{
+		return m_dataPointFactory.getGroupType();
+	}
+
+	@Override
+	public DataPointGroup aggregate(DataPointGroup dataPointGroup)
+	{
+		checkNotNull(dataPointGroup);
+		checkState(m_window != null || m_size > 0);
+
+		return (new MovingWindowDataPointGroup(dataPointGroup));
+	}
+
+	public void setSize(int size)
+	{
+		m_size = size;
+	}
+
+	public int getSize()
+	{
+		return m_size;
+	}
+
+	public void setWindow(Sampling window)
+	{
+		m_window = window;
+	}
+
+	public Sampling getWindow()
+	{
+		return m_window;
+	}
+
+	@Override
+	public void setTimeZone(DateTimeZone timeZone)
+	{
+		m_timeZone = timeZone;
+	}
+
+	/**
+	 Length of the time window ending at timestamp in milliseconds.
+	 */
+	protected long getWindowDuration(long timestamp)
+	{
+		switch (m_window.getUnit())
+		{
+			case MONTHS:
+			case YEARS:
+				//Month lengths vary so measure back from the timestamp
+				return Util.getSamplingDuration(timestamp, new Sampling((int) -m_window.getValue(), m_window.getUnit()), m_timeZone) * -1;
+			default:
+				return Util.getSamplingDuration(timestamp, m_window, m_timeZone);
+		}
+	}
+
+	private class MovingWindowDataPointGroup implements DataPointGroup
+	{
+		private final DataPointGroup m_innerDataPointGroup;
+		private final SlidingWindow m_slidingWindow;
+		private final long m_fixedDuration;
+		private long m_lastTimestamp;
+		private boolean m_descending;
+
+		public MovingWindowDataPointGroup(DataPointGroup innerDataPointGroup)
+		{
+			m_innerDataPointGroup = innerDataPointGroup;
+
+			if (m_window == null)
+			{
+				m_slidingWindow = new SlidingWindow(m_size, m_trackMinMax);
+				m_fixedDuration = 0;
+
+				if (isFullWindowsOnly())
+				{
+					for (int I = 0; I < m_size - 1 && innerDataPointGroup.hasNext(); I++)
+						addToWindow(innerDataPointGroup.next());
+				}
+			}
+			else
+			{
+				m_slidingWindow = new SlidingWindow(m_trackMinMax);
+				switch (m_window.getUnit())
+				{
+					case MONTHS:
+					case YEARS:
+						m_fixedDuration = -1;
+						break;
+					default:
+						m_fixedDuration = getWindowDuration(0);
+				}
+			}
+		}
+
+		private void addToWindow(DataPoint dataPoint)
+		{
+			long timestamp = dataPoint.getTimestamp();
+
+			if (m_window == null)
+			{
+				m_slidingWindow.add(timestamp, dataPoint.getDoubleValue());
+				m_slidingWindow.trimToSize(m_size);
+			}
+			else
+			{
+				if (!m_slidingWindow.isEmpty() && timestamp < m_lastTimestamp)
+					m_descending = true;
+				m_lastTimestamp = timestamp;
+
+				long duration = m_fixedDuration != -1 ? m_fixedDuration : getWindowDuration(timestamp);
+				if (m_descending)
+					m_slidingWindow.removeFrom(timestamp + duration);
+				else
+					m_slidingWindow.removeUpTo(timestamp - duration);
+
+				m_slidingWindow.add(timestamp, dataPoint.getDoubleValue());
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return (m_innerDataPointGroup.hasNext());
+		}
+
+		@Override
+		public DataPoint next()
+		{
+			DataPoint dp = m_innerDataPointGroup.next();
+			addToWindow(dp);
+
+			return (m_dataPointFactory.createDataPoint(dp.getTimestamp(), getWindowValue(m_slidingWindow)));
+		}
+
+		@Override
+		public void remove()
+		{
+			m_innerDataPointGroup.remove();
+		}
+
+		@Override
+		public String getName()
+		{
+			return (m_innerDataPointGroup.getName());
+		}
+
+		@Override
+		public List<GroupByResult> getGroupByResult()
+		{
+			return (m_innerDataPointGroup.getGroupByResult());
+		}
+
+		@Override
+		public void close()
+		{
+			m_innerDataPointGroup.close();
+		}
+
+		@Override
+		public Set<String> getTagNames()
+		{
+			return (m_innerDataPointGroup.getTagNames());
+		}
+
+		@Override
+		public Set<String> getTagValues(String tag)
+		{
+			return (m_innerDataPointGroup.getTagValues(tag));
+		}
+	}
+}
@@ -14,6 +14,7 @@
 
 package org.kairosdb.core.aggregator;
 
+import com.google.common.collect.Iterators;
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeField;
@@ -23,20 +24,57 @@ import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.annotation.FeatureCompoundProperty;
 import org.kairosdb.core.annotation.FeatureProperty;
 import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.QueryMemoryTracker;
+import org.kairosdb.core.datastore.SortingDataPointGroup;
 import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.core.groupby.GroupByResult;
 import org.kairosdb.plugin.Aggregator;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TimeZone;
-
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public abstract class RangeAggregator implements Aggregator, TimezoneAware
 {
+    //Sampling sizes setMaxRanges picks from, shortest first
+    private static final Sampling[] MAX_RANGES_SAMPLINGS = {
+            new Sampling(1, TimeUnit.MILLISECONDS), new Sampling(2, TimeUnit.MILLISECONDS),
+            new Sampling(5, TimeUnit.MILLISECONDS), new Sampling(10, TimeUnit.MILLISECONDS),
+            new Sampling(20, TimeUnit.MILLISECONDS), new Sampling(50, TimeUnit.MILLISECONDS),
+            new Sampling(100, TimeUnit.MILLISECONDS), new Sampling(200, TimeUnit.MILLISECONDS),
+            new Sampling(500, TimeUnit.MILLISECONDS),
+            new Sampling(1, TimeUnit.SECONDS), new Sampling(2, TimeUnit.SECONDS),
+            new Sampling(5, TimeUnit.SECONDS), new Sampling(10, TimeUnit.SECONDS),
+            new Sampling(15, TimeUnit.SECONDS), new Sampling(30, TimeUnit.SECONDS),
+            new Sampling(1, TimeUnit.MINUTES), new Sampling(2, TimeUnit.MINUTES),
+            new Sampling(5, TimeUnit.MINUTES), new Sampling(10, TimeUnit.MINUTES),
+            new Sampling(15, TimeUnit.MINUTES), new Sampling(30, TimeUnit.MINUTES),
+            new Sampling(1, TimeUnit.HOURS), new Sampling(2, TimeUnit.HOURS),
+            new Sampling(3, TimeUnit.HOURS), new Sampling(6, TimeUnit.HOURS),
+            new Sampling(12, TimeUnit.HOURS),
+            new Sampling(1, TimeUnit.DAYS), new Sampling(1, TimeUnit.WEEKS),
+            new Sampling(1, TimeUnit.MONTHS), new Sampling(3, TimeUnit.MONTHS),
+            new Sampling(6, TimeUnit.MONTHS)
+    };
+
     private long m_startTime = 0L;
     private long m_queryStartTime = 0L;
     private long m_queryEndTime = 0L;
@@ -116,6 +154,48 @@ public abstract class RangeAggregator implements Aggregator, TimezoneAware
             return (new RangeDataPointAggregator(dataPointGroup, getSubAggregator()));
     }
 
+    /**
+     * Returns an empty partial for a single range if this aggregator can be
+     * computed by merging partial results of each series, null if it can't.
+     *
+     * @return
+     */
+    protected RangePartial createPartial()
+    {
+        return null;
+    }
+
+    /**
+     * @return true if aggregatePartials can be used in place of aggregate
+     */
+    public boolean canAggregatePartials()
+    {
+        return !m_exhaustive && createPartial() != null;
+    }
+
+    /**
+     * Aggregates each series of the group into range partials in parallel and
+     * merges the partials per range.  This gives the same results as
+     * aggregate without first merging every data point of the group into time
+     * order.  Only valid when canAggregatePartials returns true and the group
+     * is in ascending order.
+     *
+     * @param dataPointGroup group to aggregate, it must not have been read
+     * @param executor       runs the series aggregation
+     * @param parallelism    number of tasks to split the series into
+     * @return
+     */
+    public DataPointGroup aggregatePartials(SortingDataPointGroup dataPointGroup,
+            ExecutorService executor, int parallelism)
+    {
+        checkNotNull(dataPointGroup);
+
+        if (m_alignSampling)
+            m_startTime = alignRangeBoundary(m_startTime);
+
+        return (new PartialRangeDataPointGroup(dataPointGroup, executor, parallelism));
+    }
+
     /**
      * For YEARS, MONTHS, WEEKS, DAYS:
      * Computes the timestamp of the first millisecond of the day
@@ -170,6 +250,80 @@ public abstract class RangeAggregator implements Aggregator, TimezoneAware
         m_sampling = sampling;
     }
 
+    public boolean isAlignSampling()
+    {
+        return m_alignSampling;
+    }
+
+    public boolean isAlignEndTime()
+    {
+        return m_alignEndTime;
+    }
+
+    /**
+     * @return true if the aggregator returns a data point for ranges without data
+     */
+    public boolean isExhaustive()
+    {
+        return m_exhaustive;
+    }
+
+    /**
+     * @return the most data points returned for a single range
+     */
+    public int getDataPointsPerRange()
+    {
+        return 1;
+    }
+
+    /**
+     * @return true if the data points returned for a range only depend on the
+     * data points within that range
+     */
+    public boolean isRangeIndependent()
+    {
+        return true;
+    }
+
+    /**
+     * Sets the sampling to the shortest of a fixed set of sizes that splits
+     * the query from its start time to endTime into no more than maxRanges
+     * ranges.  The sizes divide the next larger unit evenly so ranges fall on
+     * the same boundaries as the query time moves when align_sampling is set.
+     * Call after the start time, time zone and alignment are set.
+     *
+     * @param endTime   end of the query, inclusive
+     * @param maxRanges most ranges the query may be split into
+     */
+    public void setMaxRanges(long endTime, int maxRanges)
+    {
+        checkArgument(maxRanges > 0, "maxRanges must be greater than 0");
+
+        for (Sampling sampling : MAX_RANGES_SAMPLINGS)
+        {
+            m_sampling = new Sampling((int) sampling.getValue(), sampling.getUnit());
+            if (countRanges(endTime) <= maxRanges)
+                return;
+        }
+
+        m_sampling = new Sampling(1, TimeUnit.YEARS);
+        int years = (int) Math.max(1, (countRanges(endTime) + maxRanges - 1) / maxRanges);
+        do
+        {
+            m_sampling = new Sampling(years++, TimeUnit.YEARS);
+        } while (countRanges(endTime) > maxRanges);
+    }
+
+    private long countRanges(long endTime)
+    {
+        DateTimeField unitField = getUnitField();
+        long origin = getRangeOrigin(m_startTime);
+        long samplingValue = m_sampling.getValue();
+
+        return (unitField.getDifferenceAsLong(endTime, origin) / samplingValue) -
+                (unitField.getDifferenceAsLong(m_startTime, origin) / samplingValue) + 1;
+    }
+
     /**
      * When set to true the time for the aggregated data point for each range will
      * fall on the start of the range instead of being the value for the first
@@ -283,62 +437,29 @@ public abstract class RangeAggregator implements Aggregator, TimezoneAware
             super(innerDataPointGroup);
             m_subAggregator = subAggregator;
             m_dpIterator = new ArrayList<DataPoint>().iterator();
-
-            Chronology chronology = GregorianChronology.getInstance(m_timeZone);
-
-            TimeUnit tu = m_sampling.getUnit();
-            switch (tu)
-            {
-                case YEARS:
-                    m_unitField = chronology.year();
-                    break;
-                case MONTHS:
-                    m_unitField = chronology.monthOfYear();
-                    break;
-                case WEEKS:
-                    m_unitField = chronology.weekOfWeekyear();
-                    break;
-                case DAYS:
-                    m_unitField = chronology.dayOfMonth();
-                    break;
-                case HOURS:
-                    m_unitField = chronology.hourOfDay();
-                    break;
-                case MINUTES:
-                    m_unitField = chronology.minuteOfHour();
-                    break;
-                case SECONDS:
-                    m_unitField = chronology.secondOfDay();
-                    break;
-                default:
-                    m_unitField = chronology.millisOfSecond();
-                    break;
-            }
+            m_unitField = getUnitField();
         }
 
 
         protected long getStartRange(long timestamp)
         {
-            long samplingValue = m_sampling.getValue();
-            long numberOfPastPeriods = m_unitField.getDifferenceAsLong(timestamp/*getDataPointTime()*/, m_startTime) / samplingValue;
-            return m_unitField.add(m_startTime, numberOfPastPeriods * samplingValue);
+            return RangeAggregator.this.getStartRange(m_unitField, timestamp);
         }
 
         protected long getEndRange(long timestamp)
         {
-            long samplingValue = m_sampling.getValue();
-            long numberOfPastPeriods = m_unitField.getDifferenceAsLong(timestamp/*getDataPointTime()*/, m_startTime) / samplingValue;
-            return m_unitField.add(m_startTime, (numberOfPastPeriods + 1) * samplingValue);
+            return RangeAggregator.this.getEndRange(m_unitField, timestamp);
         }
 
         @Override
         public DataPoint next()
         {
-            if (!m_dpIterator.hasNext())
+            //Sub aggregators may hold the data points of a range back until
+            //they have seen the ranges after it.
+            while (!m_dpIterator.hasNext() && currentDataPoint != null)
             {
                 //We calculate start and end ranges as the ranges may not be
                 //consecutive if data does not show up in each range.
-                long startRange = getStartRange(currentDataPoint.getTimestamp());
                 long endRange = getEndRange(currentDataPoint.getTimestamp());
 
                 SubRangeIterator subIterator = new SubRangeIterator(
@@ -346,6 +467,9 @@ public abstract class RangeAggregator implements Aggregator, TimezoneAware
 
                 m_dpIterator = m_subAggregator.getNextDataPoints(getDataPointTime(),
                         subIterator).iterator();
+
+                if (currentDataPoint == null)
+                    m_dpIterator = Iterators.concat(m_dpIterator, m_subAggregator.getLastDataPoints().iterator());
             }
 
             return (m_dpIterator.next());
@@ -480,6 +604,331 @@ public abstract class RangeAggregator implements Aggregator, TimezoneAware
 
     //===========================================================================
 
+    private DateTimeField getUnitField()
+    {
+        Chronology chronology = GregorianChronology.getInstance(m_timeZone);
+
+        TimeUnit tu = m_sampling.getUnit();
+        switch (tu)
+        {
+            case YEARS:
+                return chronology.year();
+            case MONTHS:
+                return chronology.monthOfYear();
+            case WEEKS:
+                return chronology.weekOfWeekyear();
+            case DAYS:
+                return chronology.dayOfMonth();
+            case HOURS:
+                return chronology.hourOfDay();
+            case MINUTES:
+                return chronology.minuteOfHour();
+            case SECONDS:
+                return chronology.secondOfDay();
+            default:
+                return chronology.millisOfSecond();
+        }
+    }
+
+    private long getStartRange(DateTimeField unitField, long timestamp)
+    {
+        return getStartRange(unitField, m_startTime, timestamp);
+    }
+
+    private long getEndRange(DateTimeField unitField, long timestamp)
+    {
+        return getEndRange(unitField, m_startTime, timestamp);
+    }
+
+    private long getStartRange(DateTimeField unitField, long startTime, long timestamp)
+    {
+        long samplingValue = m_sampling.getValue();
+        long numberOfPastPeriods = unitField.getDifferenceAsLong(timestamp/*getDataPointTime()*/, startTime) / samplingValue;
+        return unitField.add(startTime, numberOfPastPeriods * samplingValue);
+    }
+
+    private long getEndRange(DateTimeField unitField, long startTime, long timestamp)
+    {
+        long samplingValue = m_sampling.getValue();
+        long numberOfPastPeriods = unitField.getDifferenceAsLong(timestamp/*getDataPointTime()*/, startTime) / samplingValue;
+        return unitField.add(startTime, (numberOfPastPeriods + 1) * samplingValue);
+    }
+
+    /**
+     * Start of the first range of a query starting at queryStartTime.  Two
+     * queries with the same origin have the same ranges.
+     *
+     * @param queryStartTime
+     * @return
+     */
+    public long getRangeOrigin(long queryStartTime)
+    {
+        if (m_alignSampling)
+            return alignRangeBoundary(queryStartTime);
+        else
+            return queryStartTime;
+    }
+
+    /**
+     * Start of the range the timestamp falls in, timestamps must not be
+     * before the start of the query.
+     *
+     * @param timestamp
+     * @return
+     */
+    public long getRangeStart(long timestamp)
+    {
+        return getStartRange(getUnitField(), getRangeOrigin(m_startTime), timestamp);
+    }
+
+    /**
+     * End of the range the timestamp falls in, which is also the start of
+     * the next range.
+     *
+     * @param timestamp
+     * @return
+     */
+    public long getRangeEnd(long timestamp)
+    {
+        return getEndRange(getUnitField(), getRangeOrigin(m_startTime), timestamp);
+    }
+
+    /**
+     * Partial for one range along with the range bounds and the time of the
+     * first data point in it.
+     */
+    private static class PartialRange
+    {
+        private final long m_start;
+        private final long m_end;
+        private long m_firstTimestamp;
+        private final RangePartial m_partial;
+
+        private PartialRange(long start, long end, long firstTimestamp, RangePartial partial)
+        {
+            m_start = start;
+            m_end = end;
+            m_firstTimestamp = firstTimestamp;
+            m_partial = partial;
+        }
+
+        private void merge(PartialRange other)
+        {
+            m_firstTimestamp = Math.min(m_firstTimestamp, other.m_firstTimestamp);
+            m_partial.merge(other.m_partial);
+        }
+    }
+
+    /**
+     * Aggregates the series of a SortingDataPointGroup the first time it is read.
+     */
+    private class PartialRangeDataPointGroup implements DataPointGroup
+    {
+        //Rough heap size of a range, its partial and the map entry holding it
+        private static final int PARTIAL_RANGE_MEMORY = 128;
+
+        private final SortingDataPointGroup m_innerDataPointGroup;
+        private final ExecutorService m_executor;
+        private final int m_parallelism;
+        private final QueryMemoryTracker m_memoryTracker;
+        private final AtomicLong m_reservedMemory = new AtomicLong();
+        private Iterator<PartialRange> m_rangeIterator;
+        private Iterator<DataPoint> m_dpIterator = Collections.emptyIterator();
+
+        public PartialRangeDataPointGroup(SortingDataPointGroup innerDataPointGroup,
+                ExecutorService executor, int parallelism)
+        {
+            m_innerDataPointGroup = innerDataPointGroup;
+            m_executor = executor;
+            m_parallelism = parallelism;
+            m_memoryTracker = QueryMemoryTracker.current();
+        }
+
+        private Map<Long, PartialRange> aggregateSeries(List<DataPointGroup> series)
+        {
+            DateTimeField unitField = getUnitField();
+            Map<Long, PartialRange> ranges = new HashMap<Long, PartialRange>();
+
+            for (DataPointGroup group : series)
+            {
+                PartialRange current = null;
+                while (group.hasNext())
+                {
+                    DataPoint dataPoint = group.next();
+                    long timestamp = dataPoint.getTimestamp();
+
+                    //Each series is in time order so the range only has to be
+                    //looked up when the data point leaves the current one.
+                    if (current == null || timestamp >= current.m_end || timestamp < current.m_start)
+                    {
+                        long start = getStartRange(unitField, timestamp);
+                        current = ranges.get(start);
+                        if (current == null)
+                        {
+                            if (m_memoryTracker != null)
+                            {
+                                m_memoryTracker.reserve(PARTIAL_RANGE_MEMORY);
+                                m_reservedMemory.addAndGet(PARTIAL_RANGE_MEMORY);
+                            }
+
+                            current = new PartialRange(start, getEndRange(unitField, timestamp),
+                                    timestamp, createPartial());
+                            ranges.put(start, current);
+                        }
+                    }
+
+                    if (timestamp < current.m_firstTimestamp)
+                        current.m_firstTimestamp = timestamp;
+
+                    current.m_partial.add(dataPoint);
+                }
+            }
+
+            return ranges;
+        }
+
+        private void aggregate()
+        {
+            final List<DataPointGroup> series = m_innerDataPointGroup.getDataPointGroups();
+            int taskCount = Math.max(1, Math.min(m_parallelism, series.size()));
+
+            List<Map<Long, PartialRange>> results = new ArrayList<Map<Long, PartialRange>>();
+            if (m_executor == null || taskCount == 1)
+            {
+                results.add(aggregateSeries(series));
+            }
+            else
+            {
+                List<Future<Map<Long, PartialRange>>> futures = new ArrayList<Future<Map<Long, PartialRange>>>();
+                for (int I = 0; I < taskCount; I++)
+                {
+                    final List<DataPointGroup> subList = series.subList(I * series.size() / taskCount,
+                            (I + 1) * series.size() / taskCount);
+
+                    futures.add(m_executor.submit(new Callable<Map<Long, PartialRange>>()
+                    {
+                        @Override
+                        public Map<Long, PartialRange> call()
+                        {
+                            return aggregateSeries(subList);
+                        }
+                    }));
+                }
+
+                try
+                {
+                    for (Future<Map<Long, PartialRange>> future : futures)
+                        results.add(future.get());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while aggregating", e);
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+                finally
+                {
+                    for (Future<Map<Long, PartialRange>> future : futures)
+                        future.cancel(true);
+                }
+            }
+
+            TreeMap<Long, PartialRange> merged = new TreeMap<Long, PartialRange>();
+            for (Map<Long, PartialRange> result : results)
+            {
+                for (PartialRange range : result.values())
+                {
+                    PartialRange existing = merged.get(range.m_start);
+                    if (existing == null)
+                        merged.put(range.m_start, range);
+                    else
+                        existing.merge(range);
+                }
+            }
+
+            m_rangeIterator = merged.values().iterator();
+        }
+
+        private long getReturnTime(PartialRange range)
+        {
+            if (m_alignStartTime)
+                return range.m_start;
+            else if (m_alignEndTime)
+                return range.m_end;
+            else
+                return range.m_firstTimestamp;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (m_rangeIterator == null)
+                aggregate();
+
+            while (!m_dpIterator.hasNext() && m_rangeIterator.hasNext())
+            {
+                PartialRange range = m_rangeIterator.next();
+                m_dpIterator = range.m_partial.getDataPoints(getReturnTime(range)).iterator();
+            }
+
+            return m_dpIterator.hasNext();
+        }
+
+        @Override
+        public DataPoint next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            return m_dpIterator.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getName()
+        {
+            return (m_innerDataPointGroup.getName());
+        }
+
+        @Override
+        public List<GroupByResult> getGroupByResult()
+        {
+            return (m_innerDataPointGroup.getGroupByResult());
+        }
+
+        @Override
+        public void close()
+        {
+            m_innerDataPointGroup.close();
+            if (m_memoryTracker != null)
+                m_memoryTracker.release(m_reservedMemory.getAndSet(0));
+        }
+
+        @Override
+        public Set<String> getTagNames()
+        {
+            return (m_innerDataPointGroup.getTagNames());
+        }
+
+        @Override
+        public Set<String> getTagValues(String tag)
+        {
+            return (m_innerDataPointGroup.getTagValues(tag));
+        }
+    }
+
+    //===========================================================================
+
     /**
      * Instances of this object are created once per grouped data series.
      */
@@ -495,5 +944,16 @@ public abstract class RangeAggregator implements Aggregator, TimezoneAware
          * @return
          */
         public Iterable<DataPoint> getNextDataPoints(long returnTime, Iterator<DataPoint> dataPointRange);
+
+        /**
+         * Returns the data points still held back once the last range of the
+         * series has been passed to getNextDataPoints.
+         *
+         * @return
+         */
+        default Iterable<DataPoint> getLastDataPoints()
+        {
+            return Collections.emptyList();
+        }
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.kairosdb.core.DataPoint;
+
+/**
+ Partial result of a range aggregator for one range.  Each series is
+ aggregated into its own partials which are then merged, so the result must
+ not depend on the order the data points were added in.
+ */
+public interface RangePartial
+{
+	void add(DataPoint dataPoint);
+
+	/**
+	 Merges the partial of another series for the same range into this one.
+	 */
+	void merge(RangePartial other);
+
+	/**
+	 Returns the aggregated data points for the range, same as
+	 {@link RangeAggregator.RangeSubAggregator#getNextDataPoints}.
+	 */
+	Iterable<DataPoint> getDataPoints(long returnTime);
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import java.util.NoSuchElementException;
+
+/**
+ A window of data points that slides forward over a series.  Points are added
+ at the newest end and removed from the oldest end, every statistic is kept up
+ to date as points move through so each one costs O(1) no matter how large the
+ window is.
+
+ Timestamps and values are kept in primitive ring buffers that grow as needed.
+ The sum uses Kahan compensation and the variance uses Welford's method so
+ they don't drift as points leave the window.  Min and max are tracked with
+ monotonic deques, they are only kept when asked for in the constructor.
+
+ NaN and infinite values are kept out of the running sums, while one is in the
+ window the sum is computed from the buffer instead.
+ */
+public class SlidingWindow
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] m_timestamps;
+	private double[] m_values;
+	private int m_head; //Index of the oldest point
+	private int m_size;
+	private long m_sequence; //Number of points ever added
+
+	private double m_sum;
+	private double m_sumCompensation;
+	private double m_mean;
+	private double m_m2;
+	private int m_nonFiniteCount;
+
+	private final MonotonicDeque m_minDeque;
+	private final MonotonicDeque m_maxDeque;
+
+	public SlidingWindow(boolean trackMinMax)
+	{
+		this(INITIAL_CAPACITY, trackMinMax);
+	}
+
+	/**
+	 @param capacity    initial capacity, use the window size for count based windows
+	 @param trackMinMax true to keep the min and max of the window
+	 */
+	public SlidingWindow(int capacity, boolean trackMinMax)
+	{
+		capacity = Math.max(1, capacity);
+		m_timestamps = new long[capacity];
+		m_values = new double[capacity];
+
+		if (trackMinMax)
+		{
+			m_minDeque = new MonotonicDeque(capacity, true);
+			m_maxDeque = new MonotonicDeque(capacity, false);
+		}
+		else
+		{
+			m_minDeque = null;
+			m_maxDeque = null;
+		}
+	}
+
+	public void add(long timestamp, double value)
+	{
+		if (m_size == m_values.length)
+			grow();
+
+		int tail = (m_head + m_size) % m_values.length;
+		m_timestamps[tail] = timestamp;
+		m_values[tail] = value;
+		m_size++;
+
+		if (isFinite(value))
+		{
+			addToSum(value);
+			double delta = value - m_mean;
+			m_mean += delta / (m_size - m_nonFiniteCount);
+			m_m2 += delta * (value - m_mean);
+		}
+		else
+			m_nonFiniteCount++;
+
+		if (m_minDeque != null)
+		{
+			m_minDeque.push(m_sequence, value);
+			m_maxDeque.push(m_sequence, value);
+		}
+
+		m_sequence++;
+	}
+
+	/**
+	 Removes the oldest point from the window.
+	 */
+	public void removeOldest()
+	{
+		if (m_size == 0)
+			throw new NoSuchElementException();
+
+		double value = m_values[m_head];
+		m_head = (m_head + 1) % m_values.length;
+		m_size--;
+
+		if (!isFinite(value))
+			m_nonFiniteCount--;
+		else if (m_size == m_nonFiniteCount)
+		{
+			m_sum = 0;
+			m_sumCompensation = 0;
+			m_mean = 0;
+			m_m2 = 0;
+		}
+		else
+		{
+			addToSum(-value);
+			double delta = value - m_mean;
+			m_mean -= delta / (m_size - m_nonFiniteCount);
+			m_m2 -= delta * (value - m_mean);
+		}
+
+		if (m_minDeque != null)
+		{
+			long oldestSequence = m_sequence - m_size;
+			m_minDeque.expire(oldestSequence);
+			m_maxDeque.expire(oldestSequence);
+		}
+	}
+
+	/**
+	 Removes points from the oldest end until the window holds at most
+	 maxSize points.
+	 */
+	public void trimToSize(int maxSize)
+	{
+		while (m_size > maxSize)
+			removeOldest();
+	}
+
+	/**
+	 Removes every point with a timestamp at or before the given time.
+	 */
+	public void removeUpTo(long timestamp)
+	{
+		while (m_size != 0 && m_timestamps[m_head] <= timestamp)
+			removeOldest();
+	}
+
+	/**
+	 Removes every point with a timestamp at or after the given time, used when
+	 the series is in descending order.
+	 */
+	public void removeFrom(long timestamp)
+	{
+		while (m_size != 0 && m_timestamps[m_head] >= timestamp)
+			removeOldest();
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	public boolean isEmpty()
+	{
+		return m_size == 0;
+	}
+
+	public double getSum()
+	{
+		if (m_nonFiniteCount == 0)
+			return m_sum;
+
+		double sum = 0;
+		for (int I = 0; I < m_size; I++)
+			sum += m_values[(m_head + I) % m_values.length];
+
+		return sum;
+	}
+
+	public double getAverage()
+	{
+		return getSum() / m_size;
+	}
+
+	/**
+	 Sample variance of the points in the window, 0 if there are less than two.
+	 */
+	public double getVariance()
+	{
+		if (m_nonFiniteCount != 0)
+			return Double.NaN;
+
+		if (m_size < 2)
+			return 0;
+
+		//Rounding can take m2 slightly negative when all values are the same
+		return Math.max(0, m_m2 / (m_size - 1));
+	}
+
+	public double getStandardDeviation()
+	{
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMin()
+	{
+		if (m_minDeque == null)
+			throw new IllegalStateException("Window does not track min and max");
+
+		return m_minDeque.peek();
+	}
+
+	public double getMax()
+	{
+		if (m_maxDeque == null)
+			throw new IllegalStateException("Window does not track min and max");
+
+		return m_maxDeque.peek();
+	}
+
+	private static boolean isFinite(double value)
+	{
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	private void addToSum(double value)
+	{
+		double y = value - m_sumCompensation;
+		double t = m_sum + y;
+		m_sumCompensation = (t - m_sum) - y;
+		m_sum = t;
+	}
+
+	private void grow()
+	{
+		int capacity = m_values.length * 2;
+		long[] timestamps = new long[capacity];
+		double[] values = new double[capacity];
+
+		for (int I = 0; I < m_size; I++)
+		{
+			int index = (m_head + I) % m_values.length;
+			timestamps[I] = m_timestamps[index];
+			values[I] = m_values[index];
+		}
+
+		m_timestamps = timestamps;
+		m_values = values;
+		m_head = 0;
+	}
+
+	/**
+	 Deque of candidate min (or max) values ordered by age.  A value that can
+	 never be the answer again because a newer value beats it is dropped when
+	 the newer one arrives, so the front is always the answer for the window.
+	 */
+	private static class MonotonicDeque
+	{
+		private final boolean m_min;
+		private long[] m_sequences;
+		private double[] m_values;
+		private int m_head;
+		private int m_size;
+
+		private MonotonicDeque(int capacity, boolean min)
+		{
+			m_min = min;
+			m_sequences = new long[capacity];
+			m_values = new double[capacity];
+		}
+
+		private void push(long sequence, double value)
+		{
+			while (m_size != 0)
+			{
+				double last = m_values[(m_head + m_size - 1) % m_values.length];
+				if (m_min ? last > value : last < value)
+					m_size--;
+				else
+					break;
+			}
+
+			if (m_size == m_values.length)
+				grow();
+
+			int tail = (m_head + m_size) % m_values.length;
+			m_sequences[tail] = sequence;
+			m_values[tail] = value;
+			m_size++;
+		}
+
+		/**
+		 Drops values that have left the window.
+		 */
+		private void expire(long oldestSequence)
+		{
+			while (m_size != 0 && m_sequences[m_head] < oldestSequence)
+			{
+				m_head = (m_head + 1) % m_values.length;
+				m_size--;
+			}
+		}
+
+		private double peek()
+		{
+			if (m_size == 0)
+				throw new NoSuchElementException();
+
+			return m_values[m_head];
+		}
+
+		private void grow()
+		{
+			int capacity = m_values.length * 2;
+			long[] sequences = new long[capacity];
+			double[] values = new double[capacity];
+
+			for (int I = 0; I < m_size; I++)
+			{
+				int index = (m_head + I) % m_values.length;
+				sequences[I] = m_sequences[index];
+				values[I] = m_values[index];
+			}
+
+			m_sequences = sequences;
+			m_values = values;
+			m_head = 0;
+		}
+	}
+}
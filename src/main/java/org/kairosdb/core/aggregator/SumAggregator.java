@@ -56,6 +56,12 @@ public class SumAggregator extends RangeAggregator
 		return m_dataPointFactory.getGroupType();
 	}
 
+	@Override
+	protected RangePartial createPartial()
+	{
+		return (new SumPartial());
+	}
+
 	@Override
 	protected RangeSubAggregator getSubAggregator()
 	{
@@ -84,4 +90,27 @@ public class SumAggregator extends RangeAggregator
 			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, sum));
 		}
 	}
+
+	private class SumPartial implements RangePartial
+	{
+		private double m_sum = 0;
+
+		@Override
+		public void add(DataPoint dataPoint)
+		{
+			m_sum += dataPoint.getDoubleValue();
+		}
+
+		@Override
+		public void merge(RangePartial other)
+		{
+			m_sum += ((SumPartial) other).m_sum;
+		}
+
+		@Override
+		public Iterable<DataPoint> getDataPoints(long returnTime)
+		{
+			return Collections.singletonList(m_dataPointFactory.createDataPoint(returnTime, m_sum));
+		}
+	}
 }
@@ -19,5 +19,7 @@ public class BlastModule extends AbstractModule
 		logger.info("Configuring module BlastModule");
 
 		bind(BlastServer.class).in(Singleton.class);
+		bind(WorkloadGenerator.class);
+		bind(QueryReplayer.class).in(Singleton.class);
 	}
 }
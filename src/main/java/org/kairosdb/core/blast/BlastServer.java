@@ -2,28 +2,37 @@ package org.kairosdb.core.blast;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSortedMap;
-import org.apache.commons.lang3.RandomUtils;
-import org.kairosdb.core.DataPoint;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.KairosDBService;
 import org.kairosdb.core.datapoints.LongDataPointFactory;
 import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
 import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.core.queue.QueueProcessor;
 import org.kairosdb.core.reporting.KairosMetricReporter;
 import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.eventbus.Publisher;
 import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.util.LogLinearHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
  Created by bhawkins on 5/16/14.
+
+ Sends data points made by WorkloadGenerator for the duration specified,
+ optionally while QueryReplayer runs queries.  When the duration is up it
+ waits for the queue to drain and logs ingest throughput, queue depth and
+ query latency percentiles.
  */
 public class BlastServer implements KairosDBService, Runnable, KairosMetricReporter
 {
@@ -33,16 +42,20 @@ public class BlastServer implements KairosDBService, Runnable, KairosMetricRepor
 	public static final String DURATION_SECONDS = "kairosdb.blast.duration_seconds";
 	public static final String METRIC_NAME = "kairosdb.blast.metric_name";
 	public static final String TTL = "kairosdb.blast.ttl";
+	public static final String POINTS_PER_SECOND = "kairosdb.blast.points_per_second";
 	private Thread m_serverThread;
 	private final Publisher<DataPointEvent> m_publisher;
-	private final LongDataPointFactory m_longDataPointFactory;
-	private boolean m_keepRunning = true;
-	private final int m_ttl;
-	private final int m_numberOfRows;
+	private final WorkloadGenerator m_workloadGenerator;
+	private final QueryReplayer m_queryReplayer;
+	private final QueueProcessor m_queueProcessor;
+	private volatile boolean m_keepRunning = true;
+	private volatile boolean m_stopped = false;
 	private final long m_durration;  //in seconds
-	private final String m_metricName;
+	private final RateLimiter m_rateLimiter;
 
-	private long m_counter = 0L;
+	private final LogLinearHistogram m_queueSize = new LogLinearHistogram();
+	private ScheduledExecutorService m_sampler;
+	private volatile long m_counter = 0L;
 
 	@Inject
 	@Named("HOSTNAME")
@@ -53,23 +66,37 @@ public class BlastServer implements KairosDBService, Runnable, KairosMetricRepor
 
 	@Inject
 	public BlastServer(FilterEventBus evenBus,
-			LongDataPointFactory longDataPointFactory,
-			@Named(NUMBER_OF_ROWS) int numberOfRows,
+			WorkloadGenerator workloadGenerator,
+			QueryReplayer queryReplayer,
+			QueueProcessor queueProcessor,
 			@Named(DURATION_SECONDS) long durration,
-			@Named(METRIC_NAME) String metricName,
-			@Named(TTL) int ttl)
+			@Named(POINTS_PER_SECOND) double pointsPerSecond)
 	{
 		m_publisher = evenBus.createPublisher(DataPointEvent.class);
-		m_longDataPointFactory = longDataPointFactory;
-		m_ttl = ttl;
-		m_numberOfRows = numberOfRows;
+		m_workloadGenerator = workloadGenerator;
+		m_queryReplayer = queryReplayer;
+		m_queueProcessor = queueProcessor;
 		m_durration = durration;
-		m_metricName = metricName;
+		m_rateLimiter = (pointsPerSecond > 0) ? RateLimiter.create(pointsPerSecond) : null;
 	}
 
 	@Override
 	public void start() throws KairosDBException
 	{
+		m_sampler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("blast-sampler").setDaemon(true).build());
+		m_sampler.scheduleAtFixedRate(() -> m_queueSize.addValue(m_queueProcessor.getQueueSize()),
+				1, 1, TimeUnit.SECONDS);
+
+		try
+		{
+			m_queryReplayer.start();
+		}
+		catch (IOException e)
+		{
+			throw new KairosDBException("Unable to read blast queries", e);
+		}
+
 		m_serverThread = new Thread(this);
 		m_serverThread.start();
 	}
@@ -77,32 +104,95 @@ public class BlastServer implements KairosDBService, Runnable, KairosMetricRepor
 	@Override
 	public void stop()
 	{
+		m_stopped = true;
 		m_keepRunning = false;
+
+		try
+		{
+			m_queryReplayer.stop();
+		}
+		catch (InterruptedException e)
+		{
+			logger.warn("Interrupted stopping query replay", e);
+		}
+
+		if (m_sampler != null)
+			m_sampler.shutdown();
 	}
 
 
 	@Override
 	public void run()
 	{
-		logger.info("Blast Server Running");
+		logger.info("Blast Server Running, " + m_workloadGenerator.getSeriesCount() + " series");
 		Stopwatch timer = Stopwatch.createStarted();
 
 		while (m_keepRunning)
 		{
-			long now = System.currentTimeMillis();
-			DataPoint dataPoint = m_longDataPointFactory.createDataPoint(now, 42);
-			int row = RandomUtils.nextInt(0, m_numberOfRows);
-			ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("row",
-					String.valueOf(row), "host", "blast_server");
-
-			DataPointEvent dataPointEvent = new DataPointEvent(m_metricName, tags, dataPoint, m_ttl);
-			m_publisher.post(dataPointEvent);
+			if (m_rateLimiter != null)
+				m_rateLimiter.acquire();
+
+			m_publisher.post(m_workloadGenerator.next(System.currentTimeMillis()));
 			m_counter ++;
 
-			if ((m_counter % 100000 == 0) && (timer.elapsed(TimeUnit.SECONDS) > m_durration))
+			if ((m_counter % 100000 == 0 || m_rateLimiter != null) && (timer.elapsed(TimeUnit.SECONDS) > m_durration))
 				m_keepRunning = false;
 
 		}
+
+		long sendMillis = timer.elapsed(TimeUnit.MILLISECONDS);
+
+		//Wait for the queue to drain so the throughput is what was written
+		try
+		{
+			while (!m_stopped && m_queueProcessor.getQueueSize() > 0)
+				Thread.sleep(100);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		long writeMillis = timer.elapsed(TimeUnit.MILLISECONDS);
+		m_sampler.shutdown();
+
+		try
+		{
+			m_queryReplayer.stop();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		logReport(sendMillis, writeMillis);
+	}
+
+	private void logReport(long sendMillis, long writeMillis)
+	{
+		StringBuilder report = new StringBuilder("Blast results\n");
+		report.append(String.format("  sent %d data points in %.1fs, %.0f per second%n",
+				m_counter, sendMillis / 1000.0, m_counter * 1000.0 / Math.max(1, sendMillis)));
+		report.append(String.format("  written in %.1fs, %.0f per second%n",
+				writeMillis / 1000.0, m_counter * 1000.0 / Math.max(1, writeMillis)));
+
+		LogLinearHistogram.Data queueSize = m_queueSize.getAndClear();
+		report.append(String.format("  queue size p50=%d p99=%d max=%d%n",
+				queueSize.getValueAtPercentile(50), queueSize.getValueAtPercentile(99), queueSize.getMax()));
+
+		if (m_queryReplayer.isEnabled())
+		{
+			//Latency is recorded in microseconds
+			LogLinearHistogram.Data latency = m_queryReplayer.getAndClearLatency();
+			report.append(String.format("  %d queries, %d errors, %d data points returned%n",
+					latency.getCount(), m_queryReplayer.getErrorCount(), m_queryReplayer.getDataPointCount()));
+			report.append(String.format("  query ms p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f",
+					latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(90) / 1000.0,
+					latency.getValueAtPercentile(99) / 1000.0, latency.getValueAtPercentile(99.9) / 1000.0,
+					latency.getMax() / 1000.0));
+		}
+
+		logger.info(report.toString());
 	}
 
 	@Override
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.blast;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.DatastoreQuery;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.datastore.QueryMetric;
+import org.kairosdb.core.http.rest.json.QueryParser;
+import org.kairosdb.util.LogLinearHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Runs recorded queries against the datastore while BlastServer is sending
+ data.  query_file is either a file with one query JSON per line or a
+ directory of .json files with one query each.  Queries go through the same
+ parser and datastore the REST API uses, relative start and end times make
+ them follow the data being written.  Every data point returned is read so
+ the latency includes aggregation.
+ */
+public class QueryReplayer
+{
+	public static final Logger logger = LoggerFactory.getLogger(QueryReplayer.class);
+
+	public static final String QUERY_FILE = "kairosdb.blast.query_file";
+	public static final String QUERY_THREADS = "kairosdb.blast.query_threads";
+	public static final String QUERY_DELAY = "kairosdb.blast.query_delay_ms";
+
+	private final KairosDatastore m_datastore;
+	private final QueryParser m_queryParser;
+	private final String m_queryFile;
+	private final int m_queryThreads;
+	private final long m_queryDelay;
+
+	private final LogLinearHistogram m_latency = new LogLinearHistogram();
+	private final AtomicInteger m_nextQuery = new AtomicInteger();
+	private final AtomicLong m_dataPointCount = new AtomicLong();
+	private final AtomicLong m_errorCount = new AtomicLong();
+	private List<String> m_queries = new ArrayList<>();
+	private ExecutorService m_executor;
+	private volatile boolean m_keepRunning;
+
+	@Inject
+	public QueryReplayer(KairosDatastore datastore, QueryParser queryParser,
+			@Named(QUERY_FILE) String queryFile,
+			@Named(QUERY_THREADS) int queryThreads,
+			@Named(QUERY_DELAY) long queryDelay)
+	{
+		m_datastore = datastore;
+		m_queryParser = queryParser;
+		m_queryFile = queryFile;
+		m_queryThreads = queryThreads;
+		m_queryDelay = queryDelay;
+	}
+
+	static List<String> loadQueries(File source) throws IOException
+	{
+		List<String> queries = new ArrayList<>();
+
+		if (source.isDirectory())
+		{
+			File[] files = source.listFiles((dir, name) -> name.endsWith(".json"));
+			if (files != null)
+			{
+				Arrays.sort(files);
+				for (File file : files)
+					queries.add(Files.toString(file, Charsets.UTF_8));
+			}
+		}
+		else
+		{
+			for (String line : Files.readLines(source, Charsets.UTF_8))
+			{
+				if (!line.trim().isEmpty())
+					queries.add(line);
+			}
+		}
+
+		return queries;
+	}
+
+	public boolean isEnabled()
+	{
+		return !m_queryFile.isEmpty() && m_queryThreads > 0;
+	}
+
+	public void start() throws IOException
+	{
+		if (!isEnabled())
+			return;
+
+		m_queries = loadQueries(new File(m_queryFile));
+		if (m_queries.isEmpty())
+		{
+			logger.warn("No queries found in " + m_queryFile);
+			return;
+		}
+
+		logger.info("Replaying " + m_queries.size() + " queries on " + m_queryThreads + " threads");
+		m_keepRunning = true;
+		m_executor = Executors.newFixedThreadPool(m_queryThreads);
+		for (int I = 0; I < m_queryThreads; I++)
+			m_executor.execute(this::replay);
+	}
+
+	public void stop() throws InterruptedException
+	{
+		m_keepRunning = false;
+		if (m_executor != null)
+		{
+			m_executor.shutdown();
+			m_executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private void replay()
+	{
+		while (m_keepRunning)
+		{
+			String query = m_queries.get(Math.abs(m_nextQuery.getAndIncrement() % m_queries.size()));
+
+			long start = System.nanoTime();
+			try
+			{
+				runQuery(query);
+				m_latency.addValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			}
+			catch (Exception e)
+			{
+				m_errorCount.incrementAndGet();
+				logger.error("Replayed query failed", e);
+			}
+
+			if (m_queryDelay > 0)
+			{
+				try
+				{
+					Thread.sleep(m_queryDelay);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	private void runQuery(String json) throws Exception
+	{
+		for (QueryMetric queryMetric : m_queryParser.parseQueryMetric(json).getQueryMetrics())
+		{
+			DatastoreQuery query = m_datastore.createQuery(queryMetric);
+			try
+			{
+				for (DataPointGroup group : query.execute())
+				{
+					try
+					{
+						long count = 0;
+						while (group.hasNext())
+						{
+							group.next();
+							count++;
+						}
+						m_dataPointCount.addAndGet(count);
+					}
+					finally
+					{
+						group.close();
+					}
+				}
+			}
+			finally
+			{
+				query.close();
+			}
+		}
+	}
+
+	/**
+	 Query latencies in microseconds since the last call
+	 */
+	public LogLinearHistogram.Data getAndClearLatency()
+	{
+		return m_latency.getAndClear();
+	}
+
+	public long getDataPointCount()
+	{
+		return m_dataPointCount.get();
+	}
+
+	public long getErrorCount()
+	{
+		return m_errorCount.get();
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.blast;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactory;
+import org.kairosdb.core.datapoints.LongDataPointFactory;
+import org.kairosdb.events.DataPointEvent;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Creates the data points BlastServer sends.  A series is a metric name plus a
+ row tag, there are metric_count x number_of_rows of them.  The row is picked
+ either uniformly or from a zipf distribution so a few rows get most of the
+ data like a real cluster.  Extra tags are derived from the row so they add
+ tag values without adding series.
+
+ Not thread safe, each sending thread needs its own generator.
+ */
+public class WorkloadGenerator
+{
+	public static final String METRIC_COUNT = "kairosdb.blast.metric_count";
+	public static final String TAG_COUNT = "kairosdb.blast.tag_count";
+	public static final String TAG_DISTRIBUTION = "kairosdb.blast.tag_distribution";
+	public static final String ZIPF_EXPONENT = "kairosdb.blast.zipf_exponent";
+	public static final String VALUE_PATTERN = "kairosdb.blast.value_pattern";
+	public static final String TIMESTAMP_SKEW = "kairosdb.blast.timestamp_skew_ms";
+	public static final String LATE_PERCENT = "kairosdb.blast.late_percent";
+	public static final String LATE_MAX = "kairosdb.blast.late_max_ms";
+	public static final String SEED = "kairosdb.blast.seed";
+
+	private static final long SINE_PERIOD = 60L * 60L * 1000L;
+
+	public enum TagDistribution
+	{
+		UNIFORM, ZIPF
+	}
+
+	public enum ValuePattern
+	{
+		CONSTANT,   //long 42
+		COUNTER,    //long that goes up by one each second
+		RANDOM,     //double between 0 and 1000
+		SINE        //double wave between 0 and 1000 with a one hour period
+	}
+
+	private final LongDataPointFactory m_longDataPointFactory;
+	private final DoubleDataPointFactory m_doubleDataPointFactory;
+	private final String m_metricName;
+	private final int m_metricCount;
+	private final int m_numberOfRows;
+	private final int m_tagCount;
+	private final ValuePattern m_valuePattern;
+	private final long m_timestampSkew;
+	private final double m_latePercent;
+	private final long m_lateMax;
+	private final int m_ttl;
+	private final Random m_random;
+
+	//Cumulative probability of each row when the distribution is zipf
+	private final double[] m_zipfTable;
+
+	@Inject
+	public WorkloadGenerator(LongDataPointFactory longDataPointFactory,
+			DoubleDataPointFactory doubleDataPointFactory,
+			@Named(BlastServer.METRIC_NAME) String metricName,
+			@Named(METRIC_COUNT) int metricCount,
+			@Named(BlastServer.NUMBER_OF_ROWS) int numberOfRows,
+			@Named(TAG_COUNT) int tagCount,
+			@Named(TAG_DISTRIBUTION) String tagDistribution,
+			@Named(ZIPF_EXPONENT) double zipfExponent,
+			@Named(VALUE_PATTERN) String valuePattern,
+			@Named(TIMESTAMP_SKEW) long timestampSkew,
+			@Named(LATE_PERCENT) double latePercent,
+			@Named(LATE_MAX) long lateMax,
+			@Named(BlastServer.TTL) int ttl,
+			@Named(SEED) long seed)
+	{
+		checkArgument(metricCount > 0, METRIC_COUNT + " must be greater than 0");
+		checkArgument(numberOfRows > 0, BlastServer.NUMBER_OF_ROWS + " must be greater than 0");
+		checkArgument(latePercent >= 0 && latePercent <= 100, LATE_PERCENT + " must be between 0 and 100");
+
+		m_longDataPointFactory = longDataPointFactory;
+		m_doubleDataPointFactory = doubleDataPointFactory;
+		m_metricName = metricName;
+		m_metricCount = metricCount;
+		m_numberOfRows = numberOfRows;
+		m_tagCount = tagCount;
+		m_valuePattern = ValuePattern.valueOf(valuePattern.toUpperCase());
+		m_timestampSkew = timestampSkew;
+		m_latePercent = latePercent;
+		m_lateMax = lateMax;
+		m_ttl = ttl;
+		m_random = (seed == 0) ? new Random() : new Random(seed);
+
+		if (TagDistribution.valueOf(tagDistribution.toUpperCase()) == TagDistribution.ZIPF)
+			m_zipfTable = createZipfTable(numberOfRows, zipfExponent);
+		else
+			m_zipfTable = null;
+	}
+
+	private static double[] createZipfTable(int size, double exponent)
+	{
+		double[] table = new double[size];
+		double sum = 0.0;
+		for (int I = 0; I < size; I++)
+		{
+			sum += 1.0 / Math.pow(I + 1, exponent);
+			table[I] = sum;
+		}
+
+		for (int I = 0; I < size; I++)
+			table[I] /= sum;
+
+		return table;
+	}
+
+	/**
+	 Number of series this generator can produce
+	 */
+	public long getSeriesCount()
+	{
+		return (long)m_metricCount * m_numberOfRows;
+	}
+
+	public String getMetricName(int metricIndex)
+	{
+		if (m_metricCount == 1)
+			return m_metricName;
+		else
+			return m_metricName + "." + metricIndex;
+	}
+
+	int nextRow()
+	{
+		if (m_zipfTable == null)
+			return m_random.nextInt(m_numberOfRows);
+
+		int index = Arrays.binarySearch(m_zipfTable, m_random.nextDouble());
+		if (index < 0)
+			index = -index - 1;
+
+		return Math.min(index, m_numberOfRows - 1);
+	}
+
+	long nextTimestamp(long now)
+	{
+		long timestamp = now;
+		if (m_timestampSkew > 0)
+			timestamp += (long)((m_random.nextDouble() * 2.0 - 1.0) * m_timestampSkew);
+
+		if (m_latePercent > 0 && m_random.nextDouble() * 100.0 < m_latePercent)
+			timestamp -= (long)(m_random.nextDouble() * m_lateMax);
+
+		return timestamp;
+	}
+
+	DataPoint createDataPoint(long timestamp, int metricIndex, int row)
+	{
+		switch (m_valuePattern)
+		{
+			case COUNTER:
+				return m_longDataPointFactory.createDataPoint(timestamp,
+						timestamp / 1000 + (long)metricIndex * m_numberOfRows + row);
+			case RANDOM:
+				return m_doubleDataPointFactory.createDataPoint(timestamp, m_random.nextDouble() * 1000.0);
+			case SINE:
+				double angle = 2.0 * Math.PI * (timestamp % SINE_PERIOD) / SINE_PERIOD;
+				return m_doubleDataPointFactory.createDataPoint(timestamp, 500.0 + 500.0 * Math.sin(angle + row));
+			default:
+				return m_longDataPointFactory.createDataPoint(timestamp, 42);
+		}
+	}
+
+	public DataPointEvent next(long now)
+	{
+		int metricIndex = (m_metricCount == 1) ? 0 : m_random.nextInt(m_metricCount);
+		int row = nextRow();
+		long timestamp = nextTimestamp(now);
+
+		ImmutableSortedMap.Builder<String, String> tags = ImmutableSortedMap.naturalOrder();
+		tags.put("row", String.valueOf(row));
+		tags.put("host", "blast_server");
+		for (int I = 0; I < m_tagCount; I++)
+			tags.put("tag" + I, String.valueOf(row % ((I + 1) * 10)));
+
+		return new DataPointEvent(getMetricName(metricIndex), tags.build(),
+				createDataPoint(timestamp, metricIndex, row), m_ttl);
+	}
+}
@@ -0,0 +1,20 @@
+package org.kairosdb.core.datapoints;
+
+/**
+ String data point of a metric whose values are stored with a dictionary
+ in each row.  It reads and writes the same as StringDataPoint, only the data
+ store type differs so the datastore knows to encode the value as an id.
+ */
+public class DictionaryStringDataPoint extends StringDataPoint
+{
+	public DictionaryStringDataPoint(long timestamp, String value)
+	{
+		super(timestamp, value);
+	}
+
+	@Override
+	public String getDataStoreDataType()
+	{
+		return DictionaryStringDataPointFactory.DST_DICTIONARY_STRING;
+	}
+}
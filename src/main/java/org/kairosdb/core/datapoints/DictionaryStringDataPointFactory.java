@@ -0,0 +1,61 @@
+package org.kairosdb.core.datapoints;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gson.JsonElement;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.util.KDataInput;
+
+import java.io.IOException;
+
+/**
+ Factory for string data points that are stored with a per row dictionary,
+ see StringDictionary in the cassandra datastore.  Metrics are chosen for
+ this type in the datastore configuration, on the api they are ordinary
+ string data points.  Values are interned as they are read so the handful of
+ distinct values of a status like metric share their String objects.
+ */
+public class DictionaryStringDataPointFactory implements DataPointFactory
+{
+	public static final String DST_DICTIONARY_STRING = "kairos_string_dict";
+	public static final String GROUP_TYPE = StringDataPointFactory.GROUP_TYPE;
+
+	private static final Interner<String> s_interner = Interners.newWeakInterner();
+
+	/**
+	 Returns the shared instance of a string value
+	 */
+	public static String intern(String value)
+	{
+		return s_interner.intern(value);
+	}
+
+	@Override
+	public String getDataStoreType()
+	{
+		return DST_DICTIONARY_STRING;
+	}
+
+	@Override
+	public String getGroupType()
+	{
+		return GROUP_TYPE;
+	}
+
+	@Override
+	public DataPoint getDataPoint(long timestamp, JsonElement json) throws IOException
+	{
+		return new DictionaryStringDataPoint(timestamp, json.getAsString());
+	}
+
+	@Override
+	public DataPoint getDataPoint(long timestamp, KDataInput buffer) throws IOException
+	{
+		return new DictionaryStringDataPoint(timestamp, intern(buffer.readUTF()));
+	}
+
+	public DataPoint createDataPoint(long timestamp, String value)
+	{
+		return new DictionaryStringDataPoint(timestamp, value);
+	}
+}
@@ -0,0 +1,115 @@
+package org.kairosdb.core.datapoints;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.kairosdb.util.HyperLogLog;
+import org.kairosdb.util.KDataOutput;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ HyperLogLog sketch of the distinct values seen in a period of time.  The
+ json value is the estimate along with the serialized sketch so query results
+ can be fed back in or merged by the client.
+ */
+public class HyperLogLogDataPoint extends DataPointHelper
+{
+	public static final String API_TYPE = "hll";
+
+	private final HyperLogLog m_sketch;
+
+	public HyperLogLogDataPoint(long timestamp, HyperLogLog sketch)
+	{
+		super(timestamp);
+		m_sketch = sketch;
+	}
+
+	public HyperLogLog getSketch()
+	{
+		return m_sketch;
+	}
+
+	@Override
+	public void writeValueToBuffer(DataOutput buffer) throws IOException
+	{
+		m_sketch.write(buffer);
+	}
+
+	@Override
+	public void writeValueToJson(JSONWriter writer) throws JSONException
+	{
+		byte[] sketch;
+		try
+		{
+			KDataOutput output = new KDataOutput();
+			m_sketch.write(output);
+			sketch = output.getBytes();
+		}
+		catch (IOException e)
+		{
+			throw new JSONException(e);
+		}
+
+		writer.object();
+
+		writer.key("estimate").value(m_sketch.estimate());
+		writer.key("sketch").value(Base64.getEncoder().encodeToString(sketch));
+
+		writer.endObject();
+	}
+
+	@Override
+	public String getApiDataType()
+	{
+		return API_TYPE;
+	}
+
+	@Override
+	public String getDataStoreDataType()
+	{
+		return HyperLogLogDataPointFactory.DST_HLL;
+	}
+
+	@Override
+	public boolean isLong()
+	{
+		return false;
+	}
+
+	@Override
+	public long getLongValue()
+	{
+		return 0;
+	}
+
+	@Override
+	public boolean isDouble()
+	{
+		return false;
+	}
+
+	@Override
+	public double getDoubleValue()
+	{
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		if (!super.equals(o)) return false;
+		HyperLogLogDataPoint that = (HyperLogLogDataPoint) o;
+		return Objects.equals(m_sketch, that.m_sketch);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(super.hashCode(), m_sketch);
+	}
+}
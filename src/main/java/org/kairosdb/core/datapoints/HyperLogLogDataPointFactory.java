@@ -0,0 +1,118 @@
+package org.kairosdb.core.datapoints;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.util.HyperLogLog;
+import org.kairosdb.util.KDataInput;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ Factory for HyperLogLog sketch data points.  The json value can be a base64
+ serialized sketch, an array of raw values to build the sketch from or an
+ object with a "sketch" and/or "values" and an optional "precision" for the
+ sketch built from the values.
+ */
+public class HyperLogLogDataPointFactory implements DataPointFactory
+{
+	public static final String DST_HLL = "kairos_hll";
+	public static final String GROUP_TYPE = "hll";
+
+	@Override
+	public String getDataStoreType()
+	{
+		return DST_HLL;
+	}
+
+	@Override
+	public String getGroupType()
+	{
+		return GROUP_TYPE;
+	}
+
+	@Override
+	public DataPoint getDataPoint(long timestamp, JsonElement json) throws IOException
+	{
+		HyperLogLog sketch;
+		if (json.isJsonPrimitive())
+			sketch = decodeSketch(json.getAsString());
+		else if (json.isJsonArray())
+		{
+			sketch = new HyperLogLog();
+			addValues(sketch, json.getAsJsonArray());
+		}
+		else if (json.isJsonObject())
+		{
+			JsonObject object = json.getAsJsonObject();
+			int precision = HyperLogLog.DEFAULT_PRECISION;
+			if (object.has("precision"))
+				precision = object.get("precision").getAsInt();
+
+			if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION)
+				throw new IOException("HyperLogLog precision must be between " + HyperLogLog.MIN_PRECISION +
+						" and " + HyperLogLog.MAX_PRECISION);
+
+			sketch = new HyperLogLog(precision);
+			if (object.has("sketch"))
+				sketch.merge(decodeSketch(object.get("sketch").getAsString()));
+
+			if (object.has("values"))
+			{
+				JsonElement values = object.get("values");
+				if (!values.isJsonArray())
+					throw new IOException("HyperLogLog values must be an array");
+				addValues(sketch, values.getAsJsonArray());
+			}
+		}
+		else
+			throw new IOException("JSON value is not a valid HyperLogLog data point");
+
+		return new HyperLogLogDataPoint(timestamp, sketch);
+	}
+
+	@Override
+	public DataPoint getDataPoint(long timestamp, KDataInput buffer) throws IOException
+	{
+		return new HyperLogLogDataPoint(timestamp, HyperLogLog.read(buffer));
+	}
+
+	public DataPoint createDataPoint(long timestamp, HyperLogLog sketch)
+	{
+		return new HyperLogLogDataPoint(timestamp, sketch);
+	}
+
+	private static HyperLogLog decodeSketch(String sketch) throws IOException
+	{
+		byte[] bytes;
+		try
+		{
+			bytes = Base64.getDecoder().decode(sketch);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("HyperLogLog sketch is not valid base64", e);
+		}
+
+		return HyperLogLog.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 Raw values are added by their string form so 42 and "42" count as the
+	 same value.
+	 */
+	private static void addValues(HyperLogLog sketch, JsonArray values) throws IOException
+	{
+		for (JsonElement value : values)
+		{
+			if (!value.isJsonPrimitive())
+				throw new IOException("HyperLogLog values must be strings or numbers");
+
+			sketch.offer(value.getAsString());
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+/**
+ State of a delete run in the background by BulkDeleteManager.  Stored as
+ json in the service key store and returned by the status endpoint.
+ Progress is updated from the datastore's callback threads.
+ */
+public class BulkDeleteJob
+{
+	public enum Status
+	{
+		QUEUED, RUNNING, COMPLETE, FAILED
+	}
+
+	private final String id;
+	private final String query;
+	private final String host;
+	private final int metricCount;
+	private final long[] startTimes;
+	private final long[] endTimes;
+	private final long created;
+	private Status status;
+	private int metricsDeleted;
+	private long rowsDeleted;
+	private long partialRowsDeleted;
+	private long updated;
+	private String error;
+
+	/**
+	 @param startTimes start time of each metric in the query resolved when the
+	 job was submitted
+	 @param endTimes end time of each metric in the query resolved when the
+	 job was submitted
+	 */
+	public BulkDeleteJob(String id, String query, String host, long[] startTimes, long[] endTimes, long now)
+	{
+		this.id = id;
+		this.query = query;
+		this.host = host;
+		this.metricCount = startTimes.length;
+		this.startTimes = startTimes.clone();
+		this.endTimes = endTimes.clone();
+		this.created = now;
+		this.updated = now;
+		this.status = Status.QUEUED;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	/**
+	 The json body of the delete request
+	 */
+	public String getQuery()
+	{
+		return query;
+	}
+
+	/**
+	 Host running the job, only that host resumes it after a restart
+	 */
+	public String getHost()
+	{
+		return host;
+	}
+
+	public int getMetricCount()
+	{
+		return metricCount;
+	}
+
+	/**
+	 True if the job has the absolute times of its metrics, jobs saved by
+	 older versions only have the query
+	 */
+	public boolean hasTimes()
+	{
+		return startTimes != null && endTimes != null;
+	}
+
+	public long getStartTime(int metric)
+	{
+		return startTimes[metric];
+	}
+
+	public long getEndTime(int metric)
+	{
+		return endTimes[metric];
+	}
+
+	public long getCreated()
+	{
+		return created;
+	}
+
+	public synchronized Status getStatus()
+	{
+		return status;
+	}
+
+	public synchronized boolean isFinished()
+	{
+		return status == Status.COMPLETE || status == Status.FAILED;
+	}
+
+	/**
+	 Number of metrics in the query that are completely deleted, a resumed
+	 job starts with the next one
+	 */
+	public synchronized int getMetricsDeleted()
+	{
+		return metricsDeleted;
+	}
+
+	public synchronized long getRowsDeleted()
+	{
+		return rowsDeleted;
+	}
+
+	public synchronized long getPartialRowsDeleted()
+	{
+		return partialRowsDeleted;
+	}
+
+	public synchronized long getUpdated()
+	{
+		return updated;
+	}
+
+	public synchronized String getError()
+	{
+		return error;
+	}
+
+	public synchronized void start(long now)
+	{
+		status = Status.RUNNING;
+		updated = now;
+	}
+
+	public synchronized void rowDeleted(boolean partial)
+	{
+		if (partial)
+			partialRowsDeleted++;
+		else
+			rowsDeleted++;
+	}
+
+	public synchronized void metricDeleted(long now)
+	{
+		metricsDeleted++;
+		updated = now;
+	}
+
+	public synchronized void complete(long now)
+	{
+		status = Status.COMPLETE;
+		updated = now;
+	}
+
+	public synchronized void fail(String message, long now)
+	{
+		status = Status.FAILED;
+		error = message;
+		updated = now;
+	}
+}
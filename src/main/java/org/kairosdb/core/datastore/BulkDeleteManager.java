@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.core.http.rest.BeanValidationException;
+import org.kairosdb.core.http.rest.QueryException;
+import org.kairosdb.core.http.rest.json.QueryParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Runs deletes in the background so a delete of a large metric doesn't tie
+ up a http request.  Jobs are kept in the service key store and their
+ progress is saved every checkpoint_interval_ms.  A job records each metric
+ of the query once it is deleted, when the node restarts it picks its
+ unfinished jobs up again from the next metric.  Deleting is idempotent and
+ rows already dropped are no longer in the index, so the metric that was
+ being deleted only has its remaining rows deleted.
+ */
+public class BulkDeleteManager implements KairosDBService
+{
+	public static final Logger logger = LoggerFactory.getLogger(BulkDeleteManager.class);
+
+	public static final String CONCURRENT_JOBS = "kairosdb.datastore.bulk_delete.concurrent_jobs";
+	public static final String CHECKPOINT_INTERVAL = "kairosdb.datastore.bulk_delete.checkpoint_interval_ms";
+
+	static final String SERVICE = "_BulkDelete";
+	static final String SERVICE_KEY_JOBS = "Jobs";
+
+	private final KairosDatastore m_datastore;
+	private final QueryParser m_queryParser;
+	private final ServiceKeyStore m_keyStore;
+	private final String m_hostName;
+	private final Gson m_gson = new Gson();
+	private final Map<String, BulkDeleteJob> m_activeJobs = new ConcurrentHashMap<>();
+
+	@Inject(optional = true)
+	@Named(CONCURRENT_JOBS)
+	private int m_concurrentJobs = 1;
+
+	@Inject(optional = true)
+	@Named(CHECKPOINT_INTERVAL)
+	private long m_checkpointInterval = 5000;
+
+	private ExecutorService m_executor;
+	private ScheduledExecutorService m_checkpointExecutor;
+	private volatile boolean m_shutdown = false;
+
+	@Inject
+	public BulkDeleteManager(KairosDatastore datastore, QueryParser queryParser,
+			ServiceKeyStore keyStore, @Named("HOSTNAME") String hostName)
+	{
+		m_datastore = checkNotNull(datastore);
+		m_queryParser = checkNotNull(queryParser);
+		m_keyStore = checkNotNull(keyStore);
+		m_hostName = hostName;
+	}
+
+	@Override
+	public void start() throws KairosDBException
+	{
+		m_executor = Executors.newFixedThreadPool(Math.max(1, m_concurrentJobs),
+				new ThreadFactoryBuilder().setNameFormat("bulk-delete-%d").setDaemon(true).build());
+		m_checkpointExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("bulk-delete-checkpoint").setDaemon(true).build());
+		m_checkpointExecutor.scheduleWithFixedDelay(this::checkpoint, m_checkpointInterval,
+				m_checkpointInterval, TimeUnit.MILLISECONDS);
+
+		try
+		{
+			for (String id : m_keyStore.listKeys(SERVICE, SERVICE_KEY_JOBS))
+			{
+				BulkDeleteJob job = read(id);
+				if (job != null && !job.isFinished() && m_hostName.equals(job.getHost()))
+				{
+					logger.info("Resuming delete job " + id + " at metric " + job.getMetricsDeleted() +
+							" of " + job.getMetricCount());
+					execute(job);
+				}
+			}
+		}
+		catch (DatastoreException e)
+		{
+			//Some datastores don't have a service key store
+			logger.warn("Unable to read delete jobs, unfinished jobs will not be resumed", e);
+		}
+	}
+
+	/**
+	 Running jobs are left as they are and resume on the next start
+	 */
+	@Override
+	public void stop()
+	{
+		m_shutdown = true;
+		if (m_executor == null)
+			return;
+
+		m_executor.shutdownNow();
+		m_checkpointExecutor.shutdownNow();
+		checkpoint();
+	}
+
+	/**
+	 Creates a job for the delete request and queues it
+	 @param json same body as /api/v1/datapoints/delete
+	 */
+	public BulkDeleteJob submit(String json) throws QueryException, BeanValidationException, DatastoreException
+	{
+		List<QueryMetric> metrics = m_queryParser.parseQueryMetric(json).getQueryMetrics();
+		long now = System.currentTimeMillis();
+
+		//Relative and open times are resolved now so a job that is queued or
+		//resumed later deletes what was asked for when it was submitted
+		long[] startTimes = new long[metrics.size()];
+		long[] endTimes = new long[metrics.size()];
+		for (int I = 0; I < metrics.size(); I++)
+		{
+			startTimes[I] = metrics.get(I).getStartTime();
+			endTimes[I] = Math.min(metrics.get(I).getEndTime(), now);
+		}
+
+		BulkDeleteJob job = new BulkDeleteJob(UUID.randomUUID().toString(), json, m_hostName,
+				startTimes, endTimes, now);
+		write(job);
+		execute(job);
+
+		return job;
+	}
+
+	/**
+	 @return the job or null if there is no job with that id
+	 */
+	public BulkDeleteJob getJob(String id) throws DatastoreException
+	{
+		BulkDeleteJob job = m_activeJobs.get(id);
+		if (job != null)
+			return job;
+
+		return read(id);
+	}
+
+	public List<BulkDeleteJob> getJobs() throws DatastoreException
+	{
+		List<BulkDeleteJob> ret = new ArrayList<>();
+		for (String id : m_keyStore.listKeys(SERVICE, SERVICE_KEY_JOBS))
+		{
+			BulkDeleteJob job = getJob(id);
+			if (job != null)
+				ret.add(job);
+		}
+
+		return ret;
+	}
+
+	/**
+	 Removes a finished job from the store
+	 @return false if the job is still running
+	 */
+	public boolean removeJob(String id) throws DatastoreException
+	{
+		if (m_activeJobs.containsKey(id))
+			return false;
+
+		m_keyStore.deleteKey(SERVICE, SERVICE_KEY_JOBS, id);
+		return true;
+	}
+
+	public String toJson(BulkDeleteJob job)
+	{
+		synchronized (job)
+		{
+			return m_gson.toJson(job);
+		}
+	}
+
+	private void execute(BulkDeleteJob job)
+	{
+		m_activeJobs.put(job.getId(), job);
+		m_executor.execute(() -> run(job));
+	}
+
+	private void run(BulkDeleteJob job)
+	{
+		try
+		{
+			List<QueryMetric> metrics = m_queryParser.parseQueryMetric(job.getQuery()).getQueryMetrics();
+
+			job.start(System.currentTimeMillis());
+			write(job);
+
+			for (int I = job.getMetricsDeleted(); I < metrics.size() && !m_shutdown; I++)
+			{
+				QueryMetric metric = metrics.get(I);
+				if (job.hasTimes())
+				{
+					metric.setStartTime(job.getStartTime(I));
+					metric.setEndTime(job.getEndTime(I));
+				}
+
+				m_datastore.delete(metric, job::rowDeleted);
+				job.metricDeleted(System.currentTimeMillis());
+				write(job);
+			}
+
+			if (!m_shutdown)
+			{
+				job.complete(System.currentTimeMillis());
+				logger.info("Delete job " + job.getId() + " removed " + job.getRowsDeleted() +
+						" rows and part of " + job.getPartialRowsDeleted() + " rows");
+			}
+		}
+		catch (Exception e)
+		{
+			if (!m_shutdown)
+			{
+				logger.error("Delete job " + job.getId() + " failed", e);
+				job.fail(e.getMessage(), System.currentTimeMillis());
+			}
+		}
+		finally
+		{
+			try
+			{
+				write(job);
+			}
+			catch (DatastoreException e)
+			{
+				logger.error("Unable to save delete job " + job.getId(), e);
+			}
+
+			m_activeJobs.remove(job.getId());
+		}
+	}
+
+	private void checkpoint()
+	{
+		for (BulkDeleteJob job : m_activeJobs.values())
+		{
+			try
+			{
+				write(job);
+			}
+			catch (DatastoreException e)
+			{
+				logger.error("Unable to save progress of delete job " + job.getId(), e);
+			}
+		}
+	}
+
+	private void write(BulkDeleteJob job) throws DatastoreException
+	{
+		m_keyStore.setValue(SERVICE, SERVICE_KEY_JOBS, job.getId(), toJson(job));
+	}
+
+	private BulkDeleteJob read(String id) throws DatastoreException
+	{
+		ServiceKeyValue value = m_keyStore.getValue(SERVICE, SERVICE_KEY_JOBS, id);
+		if (value == null)
+			return null;
+
+		try
+		{
+			return m_gson.fromJson(value.getValue(), BulkDeleteJob.class);
+		}
+		catch (JsonSyntaxException e)
+		{
+			logger.error("Unable to read delete job " + id, e);
+			return null;
+		}
+	}
+}
@@ -18,6 +18,7 @@ package org.kairosdb.core.datastore;
 
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.reporting.QueryProfile;
 import org.kairosdb.util.BufferedDataInputStream;
 import org.kairosdb.util.BufferedDataOutputStream;
 import org.kairosdb.util.KDataInputStream;
@@ -56,6 +57,9 @@ public class CachedSearchResult implements SearchResult
 	public static final byte LONG_FLAG = 0x1;
 	public static final byte DOUBLE_FLAG = 0x2;
 
+	//Writers reserve memory for this many data points at a time
+	private static final int RESERVE_POINTS = 1024;
+
 	private final String m_metricName;
 	private final List<FilePositionMarker> m_dataPointSets;
 	private final MemoryMonitor m_memoryMonitor;
@@ -72,6 +76,8 @@ public class CachedSearchResult implements SearchResult
 	private int m_maxReadBufferSize = 8192;  //Default value in BufferedInputStream
 	private boolean m_keepCacheFiles;
 	private final ReentrantReadWriteLock m_lock = new ReentrantReadWriteLock();
+	private final QueryProfile m_profile;
+	private final QueryMemoryTracker m_memoryTracker;
 
 
 	private static File getIndexFile(String baseFileName)
@@ -100,6 +106,8 @@ public class CachedSearchResult implements SearchResult
 		m_stringPool = new StringPool();
 		m_keepCacheFiles = keepCacheFiles;
 		m_memoryMonitor = new MemoryMonitor(1000);
+		m_profile = QueryProfile.current();
+		m_memoryTracker = QueryMemoryTracker.current();
 	}
 
 	private void openCacheFile() throws FileNotFoundException
@@ -247,6 +255,41 @@ public class CachedSearchResult implements SearchResult
 			close();
 	}
 
+	@Override
+	public void retain()
+	{
+		m_closeCounter.incrementAndGet();
+	}
+
+	@Override
+	public void release()
+	{
+		decrementClose();
+	}
+
+	@Override
+	public void discard()
+	{
+		try
+		{
+			m_lock.writeLock().lock();
+
+			if (m_randomAccessFile != null)
+				m_randomAccessFile.close();
+		}
+		catch (IOException e)
+		{
+			logger.error("Failure closing cache file", e);
+		}
+		finally
+		{
+			m_dataPointSets.clear();
+			m_dataFile.delete();
+			m_indexFile.delete();
+			m_lock.writeLock().unlock();
+		}
+	}
+
 	@Override
 	public List<DataPointRow> getRows()
 	{
@@ -275,11 +318,45 @@ public class CachedSearchResult implements SearchResult
 	}
 
 
+	/**
+	 Appends a row that is already encoded the way the data file stores it,
+	 each data point is its timestamp followed by its value.  Used by
+	 HybridSearchResult to move rows it held in memory to the file.
+	 */
+	void addEncodedRow(String type, Map<String, String> tags, byte[] data,
+			int dataPointCount) throws IOException
+	{
+		try
+		{
+			m_lock.writeLock().lock();
+
+			if (m_randomAccessFile == null)
+				openCacheFile();
+
+			FilePositionMarker marker = new FilePositionMarker(m_dataOutputStream.getPosition(), tags, type);
+			m_dataPointSets.add(marker);
+
+			m_dataOutputStream.write(data);
+			m_dataOutputStream.flush();
+
+			marker.setDataPointCount(dataPointCount);
+			marker.setEndPosition(m_dataOutputStream.getPosition());
+
+			calculateMaxReadBufferSize();
+		}
+		finally
+		{
+			m_lock.writeLock().unlock();
+		}
+	}
+
+
 	private class CachedDatapointWriter implements DataPointWriter
 	{
 		private final String m_dataType;
 		private final Map<String, String> m_tags;
 		private final List<DataPoint> m_dataPoints;
+		private int m_reservedPoints = 0;
 
 		public CachedDatapointWriter(String type, Map<String, String> tags)
 		{
@@ -292,6 +369,11 @@ public class CachedSearchResult implements SearchResult
 		public void addDataPoint(DataPoint datapoint) throws IOException
 		{
 			m_dataPoints.add(datapoint);
+			if (m_memoryTracker != null && m_dataPoints.size() > m_reservedPoints)
+			{
+				m_memoryTracker.reserve((long) RESERVE_POINTS * QueryMemoryTracker.DATA_POINT_MEMORY);
+				m_reservedPoints += RESERVE_POINTS;
+			}
 			m_memoryMonitor.checkMemoryAndThrowException();
 		}
 
@@ -301,6 +383,9 @@ public class CachedSearchResult implements SearchResult
 		@Override
 		public void close() throws IOException
 		{
+			long writeStartTime = System.nanoTime();
+			long startPosition = 0;
+			long endPosition = 0;
 			try
 			{
 				m_lock.writeLock().lock();
@@ -309,6 +394,7 @@ public class CachedSearchResult implements SearchResult
 					openCacheFile();
 
 				long curPosition = m_dataOutputStream.getPosition();
+				startPosition = curPosition;
 				m_currentFilePositionMarker = new FilePositionMarker(curPosition, m_tags, m_dataType);
 				m_dataPointSets.add(m_currentFilePositionMarker);
 
@@ -326,6 +412,7 @@ public class CachedSearchResult implements SearchResult
 				m_dataOutputStream.flush();
 
 				curPosition = m_dataOutputStream.getPosition();
+				endPosition = curPosition;
 				if (m_dataPointSets.size() != 0)
 					m_dataPointSets.get(m_dataPointSets.size() - 1).setEndPosition(curPosition);
 
@@ -334,6 +421,18 @@ public class CachedSearchResult implements SearchResult
 			finally
 			{
 				m_lock.writeLock().unlock();
+
+				//The list is dropped once it is written, the unused part of the last chunk goes too
+				if (m_memoryTracker != null)
+					m_memoryTracker.release((long) m_reservedPoints * QueryMemoryTracker.DATA_POINT_MEMORY);
+			}
+
+			if (m_profile != null)
+			{
+				m_profile.addTime(QueryProfile.Phase.CACHE_WRITE, System.nanoTime() - writeStartTime);
+				m_profile.addBytes(QueryProfile.Phase.CACHE_WRITE, endPosition - startPosition);
+				m_profile.addDataPoints(QueryProfile.Phase.CACHE_WRITE, m_dataPoints.size());
+				m_profile.addRows(QueryProfile.Phase.CACHE_WRITE, 1);
 			}
 		}
 
@@ -381,6 +480,11 @@ public class CachedSearchResult implements SearchResult
 			m_dataPointCount ++;
 		}
 
+		public void setDataPointCount(int dataPointCount)
+		{
+			m_dataPointCount = dataPointCount;
+		}
+
 		public int getDataPointCount()
 		{
 			return m_dataPointCount;
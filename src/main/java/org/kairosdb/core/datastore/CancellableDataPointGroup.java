@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.groupby.GroupByResult;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ Stops pulling data points through the aggregators once the query is
+ cancelled.  The check is done every CHECK_INTERVAL data points so it
+ doesn't show up in the cost of iterating.
+ */
+public class CancellableDataPointGroup implements DataPointGroup
+{
+	private static final int CHECK_INTERVAL = 1024;
+
+	private final DataPointGroup m_innerGroup;
+	private final QueryCancellation m_cancellation;
+	private int m_count = 0;
+
+	public CancellableDataPointGroup(DataPointGroup innerGroup, QueryCancellation cancellation)
+	{
+		m_innerGroup = innerGroup;
+		m_cancellation = cancellation;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return m_innerGroup.hasNext();
+	}
+
+	@Override
+	public DataPoint next()
+	{
+		if ((m_count++ % CHECK_INTERVAL) == 0)
+			m_cancellation.checkCancelled();
+
+		return m_innerGroup.next();
+	}
+
+	@Override
+	public void remove()
+	{
+		m_innerGroup.remove();
+	}
+
+	@Override
+	public String getName()
+	{
+		return m_innerGroup.getName();
+	}
+
+	@Override
+	public List<GroupByResult> getGroupByResult()
+	{
+		return m_innerGroup.getGroupByResult();
+	}
+
+	@Override
+	public Set<String> getTagNames()
+	{
+		return m_innerGroup.getTagNames();
+	}
+
+	@Override
+	public Set<String> getTagValues(String tag)
+	{
+		return m_innerGroup.getTagValues(tag);
+	}
+
+	@Override
+	public void close()
+	{
+		m_innerGroup.close();
+	}
+}
@@ -24,5 +24,15 @@ public interface Datastore
 
 	void deleteDataPoints(DatastoreMetricQuery deleteQuery) throws DatastoreException;
 
+	/**
+	 Same as deleteDataPoints, the listener is told about each row as it is
+	 removed so long running deletes can report progress.
+	 */
+	default void deleteDataPoints(DatastoreMetricQuery deleteQuery, DeleteProgressListener listener)
+			throws DatastoreException
+	{
+		deleteDataPoints(deleteQuery);
+	}
+
 	TagSet queryMetricTags(DatastoreMetricQuery query) throws DatastoreException;
 }
@@ -17,6 +17,7 @@
 package org.kairosdb.core.datastore;
 
 import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.reporting.QueryProfile;
 
 import java.util.List;
 
@@ -32,5 +33,10 @@ public interface DatastoreQuery extends AutoCloseable
 	 */
 	public int getSampleSize();
 
+	/**
+	 Returns the profile of where the query spent its time
+	 */
+	public QueryProfile getProfile();
+
 	public void close();
 }
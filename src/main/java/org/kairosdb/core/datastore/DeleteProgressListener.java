@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+/**
+ Told about rows removed by Datastore.deleteDataPoints.  Can be called from
+ several threads at once.
+ */
+public interface DeleteProgressListener
+{
+	/**
+	 @param partial true if only part of the row was in the delete range
+	 */
+	void rowDeleted(boolean partial);
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.reporting.QueryProfile;
+import org.kairosdb.util.KDataInput;
+import org.kairosdb.util.KDataOutput;
+import org.kairosdb.util.MemoryMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ Search result for queries that are not cached.  Rows are kept in memory
+ encoded the same way CachedSearchResult writes them to disk, a timestamp
+ followed by the value of each data point.  Once the rows of a query take
+ more than the threshold in bytes everything is moved to a CachedSearchResult
+ and later rows go straight to the file.  A threshold of 0 always uses the
+ file.  The rows also move to the file when the query's memory budget can't
+ take any more of them.
+ */
+public class HybridSearchResult implements SearchResult
+{
+	public static final Logger logger = LoggerFactory.getLogger(HybridSearchResult.class);
+
+	//Timestamp and an 8 byte value, writers reserve memory for this many points at a time
+	private static final int ENCODED_DATA_POINT_SIZE = 16;
+	private static final int RESERVE_POINTS = 1024;
+
+	private final String m_metricName;
+	private final String m_baseFileName;
+	private final KairosDataPointFactory m_dataPointFactory;
+	private final long m_threshold;
+	private final MemoryMonitor m_memoryMonitor;
+	private final QueryProfile m_profile;
+	private final QueryMemoryTracker m_memoryTracker;
+
+	private final Object m_lock = new Object();
+	private final List<EncodedRow> m_memoryRows = new ArrayList<>();
+	private long m_memoryBytes = 0;
+	private int m_retainCount = 0;
+	private CachedSearchResult m_spilledResult = null;
+
+	public HybridSearchResult(String metricName, String baseFileName,
+			KairosDataPointFactory dataPointFactory, long threshold)
+	{
+		m_metricName = metricName;
+		m_baseFileName = baseFileName;
+		m_dataPointFactory = dataPointFactory;
+		m_threshold = threshold;
+		m_memoryMonitor = new MemoryMonitor(1000);
+		m_profile = QueryProfile.current();
+		m_memoryTracker = QueryMemoryTracker.current();
+	}
+
+	/**
+	 True once the rows have been moved to the cache file
+	 */
+	public boolean isSpilled()
+	{
+		synchronized (m_lock)
+		{
+			return m_spilledResult != null;
+		}
+	}
+
+	/**
+	 Bytes of encoded data points held in memory
+	 */
+	public long getMemoryBytes()
+	{
+		synchronized (m_lock)
+		{
+			return m_memoryBytes;
+		}
+	}
+
+	private void addRow(EncodedRow row) throws IOException
+	{
+		synchronized (m_lock)
+		{
+			if (m_spilledResult == null)
+			{
+				if (m_memoryBytes + row.m_data.length <= m_threshold &&
+						(m_memoryTracker == null || m_memoryTracker.tryReserve(row.m_data.length)))
+				{
+					m_memoryRows.add(row);
+					m_memoryBytes += row.m_data.length;
+					return;
+				}
+
+				spill();
+			}
+
+			m_spilledResult.addEncodedRow(row.m_dataType, row.m_tags, row.m_data, row.m_dataPointCount);
+		}
+	}
+
+	/**
+	 Moves the rows held in memory to the cache file, called with m_lock held
+	 */
+	private void spill() throws IOException
+	{
+		logger.debug("Query for {} exceeded {} bytes, moving results to {}",
+				m_metricName, m_threshold, m_baseFileName);
+
+		m_spilledResult = CachedSearchResult.createCachedSearchResult(m_metricName,
+				m_baseFileName, m_dataPointFactory, false);
+
+		for (EncodedRow row : m_memoryRows)
+			m_spilledResult.addEncodedRow(row.m_dataType, row.m_tags, row.m_data, row.m_dataPointCount);
+
+		for (int I = 0; I < m_retainCount; I++)
+			m_spilledResult.retain();
+
+		releaseMemoryRows();
+	}
+
+	/**
+	 Called with m_lock held
+	 */
+	private void releaseMemoryRows()
+	{
+		if (m_memoryTracker != null)
+			m_memoryTracker.release(m_memoryBytes);
+
+		m_memoryRows.clear();
+		m_memoryBytes = 0;
+	}
+
+	@Override
+	public List<DataPointRow> getRows()
+	{
+		synchronized (m_lock)
+		{
+			if (m_spilledResult != null)
+				return m_spilledResult.getRows();
+
+			List<DataPointRow> ret = new ArrayList<>(m_memoryRows.size());
+			for (EncodedRow row : m_memoryRows)
+				ret.add(new EncodedDataPointRow(row));
+
+			return ret;
+		}
+	}
+
+	@Override
+	public void discard()
+	{
+		synchronized (m_lock)
+		{
+			if (m_spilledResult != null)
+				m_spilledResult.discard();
+
+			releaseMemoryRows();
+		}
+	}
+
+	@Override
+	public DataPointWriter startDataPointSet(String dataType, SortedMap<String, String> tags) throws IOException
+	{
+		return new HybridDataPointWriter(dataType, tags);
+	}
+
+	@Override
+	public void retain()
+	{
+		synchronized (m_lock)
+		{
+			if (m_spilledResult != null)
+				m_spilledResult.retain();
+			else
+				m_retainCount++;
+		}
+	}
+
+	@Override
+	public void release()
+	{
+		synchronized (m_lock)
+		{
+			if (m_spilledResult != null)
+				m_spilledResult.release();
+			else
+				m_retainCount--;
+		}
+	}
+
+	//===========================================================================
+	private static class EncodedRow
+	{
+		private final String m_dataType;
+		private final Map<String, String> m_tags;
+		private final byte[] m_data;
+		private final int m_dataPointCount;
+
+		private EncodedRow(String dataType, Map<String, String> tags, byte[] data, int dataPointCount)
+		{
+			m_dataType = dataType;
+			m_tags = tags;
+			m_data = data;
+			m_dataPointCount = dataPointCount;
+		}
+	}
+
+	//===========================================================================
+	private class HybridDataPointWriter implements DataPointWriter
+	{
+		private final String m_dataType;
+		private final Map<String, String> m_tags;
+		private final KDataOutput m_output = new KDataOutput();
+		private int m_dataPointCount = 0;
+		private int m_reservedPoints = 0;
+
+		public HybridDataPointWriter(String dataType, Map<String, String> tags)
+		{
+			m_dataType = dataType;
+			m_tags = tags;
+		}
+
+		@Override
+		public void addDataPoint(DataPoint datapoint) throws IOException
+		{
+			m_output.writeLong(datapoint.getTimestamp());
+			datapoint.writeValueToBuffer(m_output);
+			m_dataPointCount++;
+
+			if (m_memoryTracker != null && m_dataPointCount > m_reservedPoints)
+			{
+				//Make room by moving the finished rows to the file before failing the query
+				if (!m_memoryTracker.tryReserve(RESERVE_POINTS * ENCODED_DATA_POINT_SIZE))
+				{
+					synchronized (m_lock)
+					{
+						if (m_spilledResult == null)
+							spill();
+					}
+
+					m_memoryTracker.reserve(RESERVE_POINTS * ENCODED_DATA_POINT_SIZE);
+				}
+				m_reservedPoints += RESERVE_POINTS;
+			}
+
+			m_memoryMonitor.checkMemoryAndThrowException();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			long writeStartTime = System.nanoTime();
+			byte[] data = m_output.getBytes();
+
+			//The row reserves its own memory if it stays in memory
+			if (m_memoryTracker != null)
+				m_memoryTracker.release((long) m_reservedPoints * ENCODED_DATA_POINT_SIZE);
+
+			addRow(new EncodedRow(m_dataType, m_tags, data, m_dataPointCount));
+
+			if (m_profile != null)
+			{
+				m_profile.addTime(QueryProfile.Phase.CACHE_WRITE, System.nanoTime() - writeStartTime);
+				m_profile.addBytes(QueryProfile.Phase.CACHE_WRITE, data.length);
+				m_profile.addDataPoints(QueryProfile.Phase.CACHE_WRITE, m_dataPointCount);
+				m_profile.addRows(QueryProfile.Phase.CACHE_WRITE, 1);
+			}
+		}
+	}
+
+	//===========================================================================
+	private class EncodedDataPointRow implements DataPointRow
+	{
+		private final EncodedRow m_row;
+		private KDataInput m_input = null;
+		private int m_dataPointsRead = 0;
+
+		public EncodedDataPointRow(EncodedRow row)
+		{
+			m_row = row;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return (m_dataPointsRead < m_row.m_dataPointCount);
+		}
+
+		@Override
+		public DataPoint next()
+		{
+			DataPoint ret = null;
+
+			try
+			{
+				if (m_input == null)
+					m_input = KDataInput.createInput(m_row.m_data);
+
+				long timestamp = m_input.readLong();
+
+				ret = m_dataPointFactory.createDataPoint(m_row.m_dataType, timestamp, m_input);
+			}
+			catch (IOException ioe)
+			{
+				logger.error("Error reading next data point.", ioe);
+			}
+
+			m_dataPointsRead++;
+
+			//Drop the reader once the row is finished
+			if (m_dataPointsRead == m_row.m_dataPointCount)
+				m_input = null;
+
+			return (ret);
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getName()
+		{
+			return (m_metricName);
+		}
+
+		@Override
+		public String getDatastoreType()
+		{
+			return m_row.m_dataType;
+		}
+
+		@Override
+		public Set<String> getTagNames()
+		{
+			return (m_row.m_tags.keySet());
+		}
+
+		@Override
+		public String getTagValue(String tag)
+		{
+			return (m_row.m_tags.get(tag));
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public int getDataPointCount()
+		{
+			return m_row.m_dataPointCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "EncodedDataPointRow{" +
+					"m_metricName='" + m_metricName + '\'' +
+					", m_tags=" + m_row.m_tags +
+					'}';
+		}
+	}
+}
@@ -18,18 +18,21 @@ package org.kairosdb.core.datastore;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.KairosDataPointFactory;
 import org.kairosdb.core.KairosPostConstructInit;
 import org.kairosdb.core.aggregator.LimitAggregator;
+import org.kairosdb.core.aggregator.RangeAggregator;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.groupby.GroupByResult;
 import org.kairosdb.core.groupby.Grouper;
 import org.kairosdb.core.groupby.TagGroupBy;
 import org.kairosdb.core.groupby.TagGroupByResult;
 import org.kairosdb.core.groupby.TypeGroupByResult;
+import org.kairosdb.core.reporting.QueryProfile;
 import org.kairosdb.core.reporting.ThreadReporter;
 import org.kairosdb.plugin.Aggregator;
 import org.kairosdb.plugin.GroupBy;
@@ -51,6 +54,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -60,18 +66,28 @@ public class KairosDatastore implements KairosPostConstructInit
 	public static final Logger logger = LoggerFactory.getLogger(KairosDatastore.class);
 	public static final String QUERY_CACHE_DIR = "kairosdb.query_cache.cache_dir";
 	public static final String KEEP_CACHE_FILES = "kairosdb.query_cache.keep_cache_files";
+	public static final String MEMORY_THRESHOLD = "kairosdb.query_cache.memory_threshold";
 	public static final String QUERY_METRIC_TIME = "kairosdb.datastore.query_time";
 	public static final String QUERIES_WAITING_METRIC_NAME = "kairosdb.datastore.queries_waiting";
 	public static final String QUERY_SAMPLE_SIZE = "kairosdb.datastore.query_sample_size";
 	public static final String QUERY_ROW_COUNT = "kairosdb.datastore.query_row_count";
+	public static final String PARTIAL_AGGREGATION_THREADS = "kairosdb.datastore.partial_aggregation_threads";
+	public static final String LOG_SLOW_QUERIES = "kairosdb.log.slow_queries.enable";
 
 	private final Datastore m_datastore;
 	private final QueryQueuingManager m_queuingManager;
 	private final KairosDataPointFactory m_dataPointFactory;
+	private final QueryCostEstimator m_costEstimator = new QueryCostEstimator();
 
 	private String m_baseCacheDir;
 	private volatile String m_cacheDir;
 	private final boolean m_keepCacheFiles;
+	private QueryResultCache m_resultCache;
+	private QueryMemoryBudget m_memoryBudget = new QueryMemoryBudget("localhost", 0L, 0L);
+	private long m_memoryThreshold = 1024 * 1024;
+	private int m_partialAggregationThreads;
+	private ExecutorService m_partialAggregationExecutor;
+	private boolean m_logSlowQueries = false;
 
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	@Inject
@@ -86,6 +102,7 @@ public class KairosDatastore implements KairosPostConstructInit
 
 		m_baseCacheDir = System.getProperty("java.io.tmpdir") + "/kairos_cache/";
 		m_keepCacheFiles = keepCacheFiles;
+		setPartialAggregationThreads(Runtime.getRuntime().availableProcessors());
 	}
 
 	@Override
@@ -104,6 +121,67 @@ public class KairosDatastore implements KairosPostConstructInit
 		}
 	}
 
+	@SuppressWarnings("UnusedDeclaration")
+	@Inject(optional = true)
+	public void setResultCache(QueryResultCache resultCache)
+	{
+		m_resultCache = resultCache;
+	}
+
+	@SuppressWarnings("UnusedDeclaration")
+	@Inject(optional = true)
+	public void setMemoryBudget(QueryMemoryBudget memoryBudget)
+	{
+		m_memoryBudget = memoryBudget;
+	}
+
+	/**
+	 Budgets the memory of running queries, queries that don't bring a
+	 tracker with them get one from here.
+	 */
+	public QueryMemoryBudget getMemoryBudget()
+	{
+		return m_memoryBudget;
+	}
+
+	/**
+	 Bytes of results an uncached query keeps in memory before they are
+	 written to a file in the cache directory, 0 always uses the file.
+	 */
+	@Inject(optional = true)
+	public void setMemoryThreshold(@Named(MEMORY_THRESHOLD) long memoryThreshold)
+	{
+		m_memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 The time spent in the aggregators is only measured for queries that
+	 ask for their profile or when the slow query log needs it.
+	 */
+	@Inject(optional = true)
+	public void setLogSlowQueries(@Named(LOG_SLOW_QUERIES) boolean logSlowQueries)
+	{
+		m_logSlowQueries = logSlowQueries;
+	}
+
+	/**
+	 Number of threads used to aggregate series separately before they are
+	 merged, 0 turns partial aggregation off.
+	 */
+	@Inject(optional = true)
+	public void setPartialAggregationThreads(@Named(PARTIAL_AGGREGATION_THREADS) int threads)
+	{
+		if (m_partialAggregationExecutor != null)
+			m_partialAggregationExecutor.shutdown();
+
+		m_partialAggregationThreads = threads;
+		if (threads > 0)
+			m_partialAggregationExecutor = Executors.newFixedThreadPool(threads,
+					new ThreadFactoryBuilder().setNameFormat("partial-aggregation-%d").setDaemon(true).build());
+		else
+			m_partialAggregationExecutor = null;
+	}
+
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private void setupCacheDirectory()
 	{
@@ -195,6 +273,9 @@ public class KairosDatastore implements KairosPostConstructInit
 	 */
 	public void close() throws InterruptedException, DatastoreException
 	{
+		if (m_partialAggregationExecutor != null)
+			m_partialAggregationExecutor.shutdown();
+
 		m_datastore.close();
 	}
 
@@ -239,7 +320,25 @@ public class KairosDatastore implements KairosPostConstructInit
 	{
 		checkNotNull(metric);
 
-		m_datastore.queryDatabase(metric, callback);
+		QueryAdmissionScheduler.Ticket ticket;
+		try
+		{
+			ticket = m_queuingManager.getScheduler().acquire(metric.getQueryClass(),
+					metric.getClientId(), m_costEstimator.estimate(metric));
+		}
+		catch (InterruptedException e)
+		{
+			throw new DatastoreException(e);
+		}
+
+		try
+		{
+			m_datastore.queryDatabase(metric, callback);
+		}
+		finally
+		{
+			m_queuingManager.getScheduler().release(ticket);
+		}
 	}
 
 
@@ -279,12 +378,25 @@ public class KairosDatastore implements KairosPostConstructInit
 
 
 	public void delete(QueryMetric metric) throws DatastoreException
+	{
+		delete(metric, null);
+	}
+
+	/**
+	 @param listener told about each row removed, may be null
+	 */
+	public void delete(QueryMetric metric, DeleteProgressListener listener) throws DatastoreException
 	{
 		checkNotNull(metric);
 
 		try
 		{
-			m_datastore.deleteDataPoints(metric);
+			if (listener == null)
+				m_datastore.deleteDataPoints(metric);
+			else
+				m_datastore.deleteDataPoints(metric, listener);
+			if (m_resultCache != null)
+				m_resultCache.invalidate(metric.getName());
 		}
 		catch (Exception e)
 		{
@@ -418,12 +530,22 @@ public class KairosDatastore implements KairosPostConstructInit
 	}
 
 
-	private static String calculateFilenameHash(QueryMetric metric) throws NoSuchAlgorithmException, UnsupportedEncodingException
+	/**
+	 Queries with the same hash share a cache file and join the same running
+	 read, so everything that changes the rows read is part of the hash.
+	 Plugins can't be compared, queries with plugins get a hash of their own.
+	 */
+	static String calculateFilenameHash(QueryMetric metric) throws NoSuchAlgorithmException, UnsupportedEncodingException
 	{
 		String hashString = metric.getCacheString();
 		if (hashString == null)
 			hashString = String.valueOf(System.currentTimeMillis());
 
+		hashString += "limit=" + metric.getLimit() + ":order=" + metric.getOrder() +
+				":exclude_tags=" + metric.isExcludeTags() + ":";
+		if (!metric.getPlugins().isEmpty())
+			hashString += "plugins=" + UUID.randomUUID() + ":";
+
 		MessageDigest messageDigest = MessageDigest.getInstance("MD5");
 		byte[] digest = messageDigest.digest(hashString.getBytes("UTF-8"));
 
@@ -434,11 +556,17 @@ public class KairosDatastore implements KairosPostConstructInit
 	private class DatastoreQueryImpl implements DatastoreQuery
 	{
 		private String m_cacheFilename;
+		private QueryQueuingManager.SharedQuery m_sharedQuery;
 		private QueryMetric m_metric;
 		private List<DataPointGroup> m_results;
 		private int m_dataPointCount;
 		private int m_rowCount;
-		
+		private final QueryProfile m_profile;
+		private final QueryMemoryTracker m_memoryTracker;
+		private final boolean m_ownsMemoryTracker;
+		//Holds the memory of the result this query read as the leader
+		private QueryMemoryTracker m_resultTracker;
+
 		public DatastoreQueryImpl(QueryMetric metric)
 				throws UnsupportedEncodingException, NoSuchAlgorithmException,
 				InterruptedException, DatastoreException
@@ -451,8 +579,13 @@ public class KairosDatastore implements KairosPostConstructInit
 			}
 
 			m_metric = metric;
+			m_profile = new QueryProfile(metric.getName(), metric.isProfile());
 			m_cacheFilename = calculateFilenameHash(metric);
-			m_queuingManager.waitForTimeToRun(m_cacheFilename);
+			m_sharedQuery = m_queuingManager.joinOrRun(m_cacheFilename, metric.getQueryClass(),
+					metric.getClientId(), m_costEstimator.estimate(metric));
+			m_ownsMemoryTracker = (metric.getMemoryTracker() == null);
+			m_memoryTracker = m_ownsMemoryTracker ? m_memoryBudget.newTracker(metric.getName()) :
+					metric.getMemoryTracker();
 		}
 
 		public int getSampleSize()
@@ -462,44 +595,144 @@ public class KairosDatastore implements KairosPostConstructInit
 		public int getRowCount() { return m_rowCount; }
 
 		@Override
-		public List<DataPointGroup> execute() throws DatastoreException
+		public QueryProfile getProfile()
 		{
-			long queryStartTime = System.currentTimeMillis();
-			
+			return m_profile;
+		}
+
+		private SearchResult readSearchResult(long now) throws Exception
+		{
+			String tempFile = m_cacheDir + m_cacheFilename;
+
+			/*searchResult = new MemorySearchResult(m_metric.getName());
+			m_datastore.queryDatabase(m_metric, searchResult);
+			returnedRows = searchResult.getRows();*/
+
 			SearchResult searchResult = null;
+			if (m_metric.getCacheTime() > 0)
+			{
+				searchResult = CachedSearchResult.openCachedSearchResult(m_metric.getName(),
+						tempFile, m_metric.getCacheTime(), m_dataPointFactory, m_keepCacheFiles);
+				if (searchResult != null)
+				{
+					logger.debug("Cache HIT!");
+					return searchResult;
+				}
+			}
 
-			List<DataPointRow> returnedRows = null;
+			if (m_resultCache != null && m_resultCache.canCache(m_metric, now))
+			{
+				searchResult = m_resultCache.query(m_datastore, m_metric, m_dataPointFactory, now);
+				if (searchResult != null)
+					return searchResult;
+			}
+
+			logger.debug("Cache MISS!");
+			//The file is only needed when a later query may read it back
+			if (m_metric.getCacheTime() > 0 || m_keepCacheFiles)
+				searchResult = CachedSearchResult.createCachedSearchResult(m_metric.getName(),
+						tempFile, m_dataPointFactory, m_keepCacheFiles);
+			else
+				searchResult = new HybridSearchResult(m_metric.getName(), tempFile,
+						m_dataPointFactory, m_memoryThreshold);
 
 			try
 			{
-				String tempFile = m_cacheDir + m_cacheFilename;
-
-				/*searchResult = new MemorySearchResult(m_metric.getName());
 				m_datastore.queryDatabase(m_metric, searchResult);
-				returnedRows = searchResult.getRows();*/
+				if (m_metric.getCancellation() != null)
+					m_metric.getCancellation().checkCancelled();
+			}
+			catch (Exception e)
+			{
+				//Don't leave a partial result behind for the cache
+				searchResult.discard();
+				throw e;
+			}
+
+			return searchResult;
+		}
+
+		@Override
+		public List<DataPointGroup> execute() throws DatastoreException
+		{
+			//Buffers created while reading, grouping and setting up the
+			//aggregators reserve their memory from the tracker
+			QueryMemoryTracker.setCurrent(m_memoryTracker);
+			try
+			{
+				return runQuery();
+			}
+			finally
+			{
+				QueryMemoryTracker.setCurrent(null);
+			}
+		}
+
+		private List<DataPointGroup> runQuery() throws DatastoreException
+		{
+			long queryStartTime = System.currentTimeMillis();
+			
+			SearchResult searchResult;
+
+			List<DataPointRow> returnedRows;
 
-				if (m_metric.getCacheTime() > 0)
+			try
+			{
+				while (true)
 				{
-					searchResult = CachedSearchResult.openCachedSearchResult(m_metric.getName(),
-							tempFile, m_metric.getCacheTime(), m_dataPointFactory, m_keepCacheFiles);
+					if (m_sharedQuery.isLeader())
+					{
+						//Attached queries can keep reading the result after this
+						//query is closed, its memory is released with the result
+						m_resultTracker = m_memoryBudget.newTracker(m_metric.getName());
+						QueryMemoryTracker.setCurrent(m_resultTracker);
+						QueryProfile.setCurrent(m_profile);
+						QueryCancellation.setCurrent(m_metric.getCancellation());
+						try
+						{
+							searchResult = readSearchResult(queryStartTime);
+						}
+						catch (Exception e)
+						{
+							m_resultTracker.close();
+							throw e;
+						}
+						finally
+						{
+							QueryProfile.setCurrent(null);
+							QueryCancellation.setCurrent(null);
+							QueryMemoryTracker.setCurrent(m_memoryTracker);
+						}
+						m_sharedQuery.setResult(searchResult, m_resultTracker);
+						break;
+					}
+
+					//An identical query is already running, use its result
+					searchResult = m_sharedQuery.getResult(m_metric.getCancellation());
 					if (searchResult != null)
 					{
-						returnedRows = searchResult.getRows();
-						logger.debug("Cache HIT!");
+						logger.debug("Query coalesced");
+						break;
 					}
-				}
 
-				if (searchResult == null)
-				{
-					logger.debug("Cache MISS!");
-					searchResult = CachedSearchResult.createCachedSearchResult(m_metric.getName(),
-							tempFile, m_dataPointFactory, m_keepCacheFiles);
-					m_datastore.queryDatabase(m_metric, searchResult);
-					returnedRows = searchResult.getRows();
+					//The leader stopped on its own deadline or memory budget,
+					//this query reads the data under its own
+					m_sharedQuery.done();
+					m_sharedQuery = m_queuingManager.joinOrRun(m_cacheFilename, m_metric.getQueryClass(),
+							m_metric.getClientId(), m_costEstimator.estimate(m_metric));
 				}
+
+				returnedRows = searchResult.getRows();
+			}
+			catch (QueryCancelledException | QueryMemoryException e)
+			{
+				//Only this query stopped, queries attached to it read the data again
+				m_sharedQuery.abandon();
+				throw e;
 			}
 			catch (Exception e)
 			{
+				m_sharedQuery.setFailure(e);
 				logger.error("Query Error", e);
 				throw new DatastoreException(e);
 			}
@@ -511,10 +744,13 @@ public class KairosDatastore implements KairosPostConstructInit
 			}
 
 			m_rowCount = returnedRows.size();
+			if (m_sharedQuery.isLeader())
+				m_costEstimator.record(m_metric, m_rowCount);
 
 			ThreadReporter.addDataPoint(QUERY_SAMPLE_SIZE, m_dataPointCount);
 			ThreadReporter.addDataPoint(QUERY_ROW_COUNT, m_rowCount);
 
+			long groupStartTime = System.nanoTime();
 			List<DataPointGroup> queryResults = groupByTypeAndTag(m_metric.getName(),
 					returnedRows, getTagGroupBy(m_metric.getGroupBys()), m_metric.getOrder());
 
@@ -530,6 +766,15 @@ public class KairosDatastore implements KairosPostConstructInit
 				throw new DatastoreException(e);
 			}
 
+			m_profile.addTime(QueryProfile.Phase.GROUP, System.nanoTime() - groupStartTime);
+			m_profile.addRows(QueryProfile.Phase.GROUP, m_rowCount);
+			m_profile.addDataPoints(QueryProfile.Phase.GROUP, m_dataPointCount);
+
+			//Series can be aggregated on their own when nothing but tags groups them
+			boolean partialAggregation = m_partialAggregationExecutor != null &&
+					m_metric.getLimit() == 0 && m_metric.getOrder() == Order.ASC &&
+					removeTagGroupBy(m_metric.getGroupBys()).isEmpty();
+
 			m_results = new ArrayList<DataPointGroup>();
 			for (DataPointGroup queryResult : queryResults)
 			{
@@ -543,6 +788,7 @@ public class KairosDatastore implements KairosPostConstructInit
 					}
 				}
 
+				long aggregateStartTime = System.nanoTime();
 				DataPointGroup aggregatedGroup = queryResult;
 
 				List<Aggregator> aggregators = m_metric.getAggregators();
@@ -552,6 +798,15 @@ public class KairosDatastore implements KairosPostConstructInit
 					aggregatedGroup = new LimitAggregator(m_metric.getLimit()).aggregate(aggregatedGroup);
 				}
 
+				if (partialAggregation && canAggregatePartials(queryResult, aggregators, groupType))
+				{
+					RangeAggregator rangeAggregator = (RangeAggregator) aggregators.get(0);
+					aggregatedGroup = rangeAggregator.aggregatePartials((SortingDataPointGroup) queryResult,
+							m_partialAggregationExecutor, m_partialAggregationThreads);
+					groupType = rangeAggregator.getAggregatedGroupType(groupType);
+					aggregators = aggregators.subList(1, aggregators.size());
+				}
+
 				//This will pipe the aggregators together.
 				for (Aggregator aggregator : aggregators)
 				{
@@ -562,16 +817,43 @@ public class KairosDatastore implements KairosPostConstructInit
 					}
 				}
 
+				m_profile.addTime(QueryProfile.Phase.AGGREGATE, System.nanoTime() - aggregateStartTime);
+				m_profile.addRows(QueryProfile.Phase.AGGREGATE, 1);
+				if (m_metric.getCancellation() != null)
+					aggregatedGroup = new CancellableDataPointGroup(aggregatedGroup, m_metric.getCancellation());
+
+				if (m_metric.isProfile() || m_logSlowQueries)
+					aggregatedGroup = new ProfiledDataPointGroup(aggregatedGroup, m_profile);
+
 				m_results.add(aggregatedGroup);
 			}
 
 
 			//Report how long query took
 			ThreadReporter.addDataPoint(QUERY_METRIC_TIME, System.currentTimeMillis() - queryStartTime);
+			m_profile.setPeakMemory(getPeakMemory());
 
 			return (m_results);
 		}
 
+		private long getPeakMemory()
+		{
+			long peak = m_memoryTracker.getPeak();
+			if (m_resultTracker != null)
+				peak += m_resultTracker.getPeak();
+			return peak;
+		}
+
+		private boolean canAggregatePartials(DataPointGroup group, List<Aggregator> aggregators, String groupType)
+		{
+			if (!(group instanceof SortingDataPointGroup) || aggregators.isEmpty())
+				return false;
+
+			Aggregator first = aggregators.get(0);
+			return (first instanceof RangeAggregator && ((RangeAggregator) first).canAggregatePartials() &&
+					first.canAggregate(groupType));
+		}
+
 		@Override
 		public void close()
 		{
@@ -587,7 +869,11 @@ public class KairosDatastore implements KairosPostConstructInit
 			}
 			finally
 			{  //This must get done
-				m_queuingManager.done(m_cacheFilename);
+				m_profile.setPeakMemory(getPeakMemory());
+				m_profile.finish();
+				m_sharedQuery.done();
+				if (m_ownsMemoryTracker)
+					m_memoryTracker.close();
 			}
 		}
 	}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.groupby.GroupByResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ Copy of the data points of a group held in memory so the query that
+ produced them can be closed before they are read.  Only meant for groups
+ with few data points.
+ */
+public class MemoryDataPointGroup extends AbstractDataPointGroup
+{
+	private final Iterator<DataPoint> m_iterator;
+
+	/**
+	 Reads all of the data points of the group, the caller closes it.
+	 */
+	public MemoryDataPointGroup(DataPointGroup group)
+	{
+		super(group.getName());
+		addTags(group);
+		for (GroupByResult groupByResult : group.getGroupByResult())
+			addGroupByResult(groupByResult);
+
+		List<DataPoint> dataPoints = new ArrayList<>();
+		while (group.hasNext())
+			dataPoints.add(group.next());
+
+		m_iterator = dataPoints.iterator();
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return m_iterator.hasNext();
+	}
+
+	@Override
+	public DataPoint next()
+	{
+		return m_iterator.next();
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
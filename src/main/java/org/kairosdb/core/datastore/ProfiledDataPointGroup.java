@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.groupby.GroupByResult;
+import org.kairosdb.core.reporting.QueryProfile;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ Adds the time spent pulling data points through the aggregators to the
+ aggregate phase of the profile.  Aggregators are lazy so this work happens
+ while the results are being formatted.
+ */
+public class ProfiledDataPointGroup implements DataPointGroup
+{
+	private final DataPointGroup m_innerGroup;
+	private final QueryProfile m_profile;
+
+	public ProfiledDataPointGroup(DataPointGroup innerGroup, QueryProfile profile)
+	{
+		m_innerGroup = innerGroup;
+		m_profile = profile;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		long start = System.nanoTime();
+		boolean ret = m_innerGroup.hasNext();
+		m_profile.addTime(QueryProfile.Phase.AGGREGATE, System.nanoTime() - start);
+		return ret;
+	}
+
+	@Override
+	public DataPoint next()
+	{
+		long start = System.nanoTime();
+		DataPoint ret = m_innerGroup.next();
+		m_profile.addTime(QueryProfile.Phase.AGGREGATE, System.nanoTime() - start);
+		m_profile.addDataPoints(QueryProfile.Phase.AGGREGATE, 1);
+		return ret;
+	}
+
+	@Override
+	public void remove()
+	{
+		m_innerGroup.remove();
+	}
+
+	@Override
+	public String getName()
+	{
+		return m_innerGroup.getName();
+	}
+
+	@Override
+	public List<GroupByResult> getGroupByResult()
+	{
+		return m_innerGroup.getGroupByResult();
+	}
+
+	@Override
+	public Set<String> getTagNames()
+	{
+		return m_innerGroup.getTagNames();
+	}
+
+	@Override
+	public Set<String> getTagValues(String tag)
+	{
+		return m_innerGroup.getTagValues(tag);
+	}
+
+	@Override
+	public void close()
+	{
+		m_innerGroup.close();
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Hands out the query threads (permits) to waiting queries.
+
+ Queries are admitted in start time fair queuing order.  Each query gets a
+ virtual finish time of its start time plus its estimated cost divided by the
+ weight of its class.  The start time is the later of the current virtual time
+ and the finish time of the previous query from the same client and class, so
+ a client sending a large batch of queries queues behind itself instead of
+ in front of everyone else, cheap queries go ahead of expensive ones and
+ classes with a larger weight get a larger share of the permits.
+
+ A client (remote address) can additionally be limited to a number of
+ queries running at once.
+ */
+public class QueryAdmissionScheduler implements KairosMetricReporter
+{
+	public static final String INTERACTIVE_WEIGHT_PROPERTY = "kairosdb.query_admission.weight.interactive";
+	public static final String ROLLUP_WEIGHT_PROPERTY = "kairosdb.query_admission.weight.rollup";
+	public static final String EXPORT_WEIGHT_PROPERTY = "kairosdb.query_admission.weight.export";
+	public static final String HEALTH_WEIGHT_PROPERTY = "kairosdb.query_admission.weight.health";
+	public static final String MAX_QUERIES_PER_CLIENT_PROPERTY = "kairosdb.query_admission.max_queries_per_client";
+
+	public static final String ADMISSION_WAIT_METRIC_NAME = "kairosdb.datastore.admission.wait_time";
+	public static final String ADMISSION_COUNT_METRIC_NAME = "kairosdb.datastore.admission.count";
+
+	//Clean up finish times of idle clients once there are this many
+	private static final int MAX_IDLE_CLIENTS = 1024;
+
+	private final String m_hostname;
+	//Fair so queries are queued in the order they arrive
+	private final ReentrantLock m_lock = new ReentrantLock(true);
+	private final List<Ticket> m_waiting = new ArrayList<>();
+	private final Map<String, Integer> m_clientRunning = new HashMap<>();
+	private final Map<String, Double> m_lastFinish = new HashMap<>();
+	private final Map<QueryClass, Integer> m_weights = new EnumMap<>(QueryClass.class);
+	private final Map<QueryClass, WaitStats> m_waitStats = new EnumMap<>(QueryClass.class);
+
+	private int m_availablePermits;
+	private int m_maxQueriesPerClient = 0;
+	private double m_virtualTime;
+	private long m_nextSequence;
+
+	@Inject
+	public QueryAdmissionScheduler(@Named(QueryQueuingManager.CONCURRENT_QUERY_THREAD) int concurrentQueryThreads,
+			@Named("HOSTNAME") String hostname)
+	{
+		checkArgument(concurrentQueryThreads > 0);
+		m_hostname = checkNotNullOrEmpty(hostname);
+		m_availablePermits = concurrentQueryThreads;
+
+		m_weights.put(QueryClass.INTERACTIVE, 8);
+		m_weights.put(QueryClass.ROLLUP, 2);
+		m_weights.put(QueryClass.EXPORT, 1);
+		m_weights.put(QueryClass.HEALTH, 16);
+
+		for (QueryClass queryClass : QueryClass.values())
+			m_waitStats.put(queryClass, new WaitStats());
+	}
+
+	@Inject(optional = true)
+	public void setWeights(@Named(INTERACTIVE_WEIGHT_PROPERTY) int interactive,
+			@Named(ROLLUP_WEIGHT_PROPERTY) int rollup,
+			@Named(EXPORT_WEIGHT_PROPERTY) int export,
+			@Named(HEALTH_WEIGHT_PROPERTY) int health)
+	{
+		setWeight(QueryClass.INTERACTIVE, interactive);
+		setWeight(QueryClass.ROLLUP, rollup);
+		setWeight(QueryClass.EXPORT, export);
+		setWeight(QueryClass.HEALTH, health);
+	}
+
+	public void setWeight(QueryClass queryClass, int weight)
+	{
+		checkArgument(weight > 0, "weight must be greater than 0");
+		m_lock.lock();
+		try
+		{
+			m_weights.put(checkNotNull(queryClass), weight);
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 Limits how many queries a single client can run at once, 0 means no limit.
+	 */
+	@Inject(optional = true)
+	public void setMaxQueriesPerClient(@Named(MAX_QUERIES_PER_CLIENT_PROPERTY) int maxQueriesPerClient)
+	{
+		checkArgument(maxQueriesPerClient >= 0);
+		m_lock.lock();
+		try
+		{
+			m_maxQueriesPerClient = maxQueriesPerClient;
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 Blocks until the query is admitted.  The returned ticket must be passed to
+	 {@link #release(Ticket)} when the query is done.
+
+	 @param queryClass class of the query
+	 @param clientId   remote address or token of the client, may be null for
+	                   internal queries
+	 @param cost       estimated cost of the query, see {@link QueryCostEstimator}
+	 */
+	public Ticket acquire(QueryClass queryClass, String clientId, long cost) throws InterruptedException
+	{
+		checkNotNull(queryClass);
+
+		m_lock.lock();
+		try
+		{
+			Ticket ticket = new Ticket(queryClass, clientId, Math.max(1, cost));
+			m_waiting.add(ticket);
+			dispatch();
+
+			try
+			{
+				while (!ticket.m_admitted)
+					ticket.m_ready.await();
+			}
+			catch (InterruptedException e)
+			{
+				if (ticket.m_admitted)
+					release(ticket);
+				else
+					m_waiting.remove(ticket);
+				throw e;
+			}
+
+			m_waitStats.get(queryClass).add(System.currentTimeMillis() - ticket.m_arrivalTime);
+			return ticket;
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	public void release(Ticket ticket)
+	{
+		m_lock.lock();
+		try
+		{
+			if (!ticket.m_admitted || ticket.m_released)
+				return;
+
+			ticket.m_released = true;
+			m_availablePermits++;
+			if (ticket.m_clientId != null)
+			{
+				int running = m_clientRunning.get(ticket.m_clientId) - 1;
+				if (running == 0)
+					m_clientRunning.remove(ticket.m_clientId);
+				else
+					m_clientRunning.put(ticket.m_clientId, running);
+			}
+
+			if (m_lastFinish.size() > MAX_IDLE_CLIENTS)
+				removeIdleClients();
+
+			dispatch();
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 Admits waiting queries in virtual finish time order while permits are
+	 available.  Queries from a client that is at its limit are skipped.
+	 */
+	private void dispatch()
+	{
+		while (m_availablePermits > 0)
+		{
+			Ticket next = null;
+			for (Ticket ticket : m_waiting)
+			{
+				if (isOverQuota(ticket))
+					continue;
+
+				if (next == null || ticket.m_finishTag < next.m_finishTag ||
+						(ticket.m_finishTag == next.m_finishTag && ticket.m_sequence < next.m_sequence))
+					next = ticket;
+			}
+
+			if (next == null)
+				return;
+
+			m_waiting.remove(next);
+			m_availablePermits--;
+			if (next.m_clientId != null)
+				m_clientRunning.merge(next.m_clientId, 1, Integer::sum);
+
+			m_virtualTime = Math.max(m_virtualTime, next.m_startTag);
+			next.m_admitted = true;
+			next.m_ready.signal();
+		}
+	}
+
+	private boolean isOverQuota(Ticket ticket)
+	{
+		if (m_maxQueriesPerClient == 0 || ticket.m_clientId == null)
+			return false;
+
+		Integer running = m_clientRunning.get(ticket.m_clientId);
+		return running != null && running >= m_maxQueriesPerClient;
+	}
+
+	/**
+	 A client whose last finish time has already passed starts at the current
+	 virtual time anyway, so there is no need to remember it.
+	 */
+	private void removeIdleClients()
+	{
+		Iterator<Double> it = m_lastFinish.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next() <= m_virtualTime)
+				it.remove();
+		}
+	}
+
+	public int getQueueLength()
+	{
+		m_lock.lock();
+		try
+		{
+			return m_waiting.size();
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	public int getAvailablePermits()
+	{
+		m_lock.lock();
+		try
+		{
+			return m_availablePermits;
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<>();
+
+		m_lock.lock();
+		try
+		{
+			for (Map.Entry<QueryClass, WaitStats> entry : m_waitStats.entrySet())
+			{
+				WaitStats stats = entry.getValue();
+				if (stats.m_count == 0)
+					continue;
+
+				DataPointSet waitSet = new DataPointSet(ADMISSION_WAIT_METRIC_NAME);
+				waitSet.addTag("host", m_hostname);
+				waitSet.addTag("query_class", entry.getKey().getText());
+				waitSet.addDataPoint(new LongDataPoint(now, stats.m_totalWait / stats.m_count));
+				ret.add(waitSet);
+
+				DataPointSet countSet = new DataPointSet(ADMISSION_COUNT_METRIC_NAME);
+				countSet.addTag("host", m_hostname);
+				countSet.addTag("query_class", entry.getKey().getText());
+				countSet.addDataPoint(new LongDataPoint(now, stats.m_count));
+				ret.add(countSet);
+
+				stats.m_count = 0;
+				stats.m_totalWait = 0;
+			}
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+
+		return ret;
+	}
+
+	/**
+	 Guarded by m_lock
+	 */
+	private static class WaitStats
+	{
+		private long m_count;
+		private long m_totalWait;
+
+		private void add(long wait)
+		{
+			m_count++;
+			m_totalWait += wait;
+		}
+	}
+
+	/**
+	 A query waiting for or holding a permit.
+	 */
+	public class Ticket
+	{
+		private final QueryClass m_queryClass;
+		private final String m_clientId;
+		private final long m_cost;
+		private final long m_sequence;
+		private final long m_arrivalTime;
+		private final double m_startTag;
+		private final double m_finishTag;
+		private final Condition m_ready = m_lock.newCondition();
+		private boolean m_admitted;
+		private boolean m_released;
+
+		//Called with m_lock held
+		private Ticket(QueryClass queryClass, String clientId, long cost)
+		{
+			m_queryClass = queryClass;
+			m_clientId = clientId;
+			m_cost = cost;
+			m_sequence = m_nextSequence++;
+			m_arrivalTime = System.currentTimeMillis();
+
+			String fairKey = queryClass.getText() + ":" + (clientId == null ? "" : clientId);
+			Double lastFinish = m_lastFinish.get(fairKey);
+			m_startTag = lastFinish == null ? m_virtualTime : Math.max(m_virtualTime, lastFinish);
+			m_finishTag = m_startTag + ((double) cost / m_weights.get(queryClass));
+			m_lastFinish.put(fairKey, m_finishTag);
+		}
+
+		public QueryClass getQueryClass()
+		{
+			return m_queryClass;
+		}
+
+		public String getClientId()
+		{
+			return m_clientId;
+		}
+
+		public long getCost()
+		{
+			return m_cost;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ Deadline and cancel flag for a query request.  The request creates one and
+ sets it on each QueryMetric, while the datastore runs the query it is kept
+ in a thread local the same way as QueryProfile.  Code that waits on the
+ cluster uses getRemainingMillis to bound the wait and checks isCancelled
+ between units of work.  Listeners are called once when the query is
+ cancelled so in flight requests can be stopped.
+ */
+public class QueryCancellation
+{
+	/**
+	 Request attribute the query endpoints store the token under so a client
+	 disconnect can cancel it.
+	 */
+	public static final String REQUEST_ATTRIBUTE = "kairosdb.query_cancellation";
+
+	private static final ThreadLocal<QueryCancellation> s_current = new ThreadLocal<QueryCancellation>();
+
+	/**
+	 Returns the cancellation of the query running on this thread or null if
+	 there isn't one.
+	 */
+	public static QueryCancellation current()
+	{
+		return s_current.get();
+	}
+
+	public static void setCurrent(QueryCancellation cancellation)
+	{
+		if (cancellation == null)
+			s_current.remove();
+		else
+			s_current.set(cancellation);
+	}
+
+	private final List<Runnable> m_listeners = new ArrayList<>();
+	private volatile long m_deadline = 0L;
+	private volatile String m_reason = null;
+
+	/**
+	 Sets the time in milliseconds since epoch the query must finish by, 0
+	 means no deadline.
+	 */
+	public void setDeadline(long deadline)
+	{
+		m_deadline = deadline;
+	}
+
+	public long getDeadline()
+	{
+		return m_deadline;
+	}
+
+	/**
+	 Milliseconds left until the deadline, Long.MAX_VALUE if there is no
+	 deadline and 0 once the query is cancelled.
+	 */
+	public long getRemainingMillis()
+	{
+		if (isCancelled())
+			return 0L;
+
+		if (m_deadline == 0L)
+			return Long.MAX_VALUE;
+
+		return Math.max(0L, m_deadline - System.currentTimeMillis());
+	}
+
+	public boolean isCancelled()
+	{
+		if (m_reason == null && m_deadline != 0L && System.currentTimeMillis() >= m_deadline)
+			cancel("Query exceeded its deadline");
+
+		return m_reason != null;
+	}
+
+	/**
+	 @throws QueryCancelledException if the query has been cancelled
+	 */
+	public void checkCancelled()
+	{
+		if (isCancelled())
+			throw new QueryCancelledException(m_reason);
+	}
+
+	/**
+	 Reason the query was cancelled or null if it is still running
+	 */
+	public String getReason()
+	{
+		return m_reason;
+	}
+
+	/**
+	 Cancels the query, only the first call has any effect.
+	 */
+	public void cancel(String reason)
+	{
+		List<Runnable> listeners;
+		synchronized (m_listeners)
+		{
+			if (m_reason != null)
+				return;
+
+			m_reason = reason;
+			listeners = new ArrayList<>(m_listeners);
+			m_listeners.clear();
+		}
+
+		for (Runnable listener : listeners)
+			listener.run();
+	}
+
+	/**
+	 Adds a listener that is run when the query is cancelled, it runs right
+	 away if the query has already been cancelled.
+	 */
+	public void addListener(Runnable listener)
+	{
+		synchronized (m_listeners)
+		{
+			if (m_reason == null)
+			{
+				m_listeners.add(listener);
+				return;
+			}
+		}
+
+		listener.run();
+	}
+
+	public void removeListener(Runnable listener)
+	{
+		synchronized (m_listeners)
+		{
+			m_listeners.remove(listener);
+		}
+	}
+}
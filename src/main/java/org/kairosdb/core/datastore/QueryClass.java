@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+/**
+ The kind of work a query is doing.  The admission scheduler gives each class
+ a share of the query threads in proportion to its weight.
+ */
+public enum QueryClass
+{
+	INTERACTIVE("interactive"),
+	ROLLUP("rollup"),
+	EXPORT("export"),
+	HEALTH("health");
+
+	private final String m_text;
+
+	QueryClass(String text)
+	{
+		m_text = text;
+	}
+
+	public String getText()
+	{
+		return (m_text);
+	}
+}
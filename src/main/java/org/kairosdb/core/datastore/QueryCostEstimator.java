@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ Estimates the cost of a query before it runs as the number of row keys it
+ will read.  The number of row keys per time slice is learned from the row
+ counts of earlier queries for the same metric, metrics that have not been
+ queried yet are assumed to have one row key per slice.
+ */
+public class QueryCostEstimator
+{
+	/**
+	 Width of a time slice, the same as the width of a Cassandra row.
+	 */
+	public static final long SLICE_WIDTH = 1814400000L;
+
+	private static final int MAX_METRICS = 10000;
+
+	private final Cache<String, Double> m_rowsPerSlice = CacheBuilder.newBuilder()
+			.maximumSize(MAX_METRICS).build();
+
+	private static long getSliceCount(DatastoreMetricQuery query)
+	{
+		long span = Math.max(0, query.getEndTime() - query.getStartTime());
+		return (span / SLICE_WIDTH) + 1;
+	}
+
+	public long estimate(DatastoreMetricQuery query)
+	{
+		Double rowsPerSlice = m_rowsPerSlice.getIfPresent(query.getName());
+		if (rowsPerSlice == null)
+			rowsPerSlice = 1.0;
+
+		return Math.max(1, Math.round(rowsPerSlice * getSliceCount(query)));
+	}
+
+	/**
+	 Records the number of rows a query read.  Queries with tag filters read a
+	 subset of the rows so they only ever raise the estimate.
+	 */
+	public void record(DatastoreMetricQuery query, int rowCount)
+	{
+		double rowsPerSlice = (double) rowCount / getSliceCount(query);
+		Double previous = m_rowsPerSlice.getIfPresent(query.getName());
+
+		if (previous == null || query.getTags().isEmpty() || rowsPerSlice > previous)
+			m_rowsPerSlice.put(query.getName(), rowsPerSlice);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Memory budgets for the buffers of running queries.  Each query gets a
+ QueryMemoryTracker, a query that reserves more than the per query budget
+ fails and so does a query that would take the memory of all running queries
+ over the total budget.  Buffers that can spill to disk do that instead of
+ failing the query.
+
+ By default a query may use a quarter of the heap and all queries together
+ half of it, 0 turns a budget off.  Unlike MemoryMonitor, which reacts once
+ the heap is already full, this stops the query that is using the memory.
+ */
+public class QueryMemoryBudget implements KairosMetricReporter
+{
+	public static final String QUERY_BUDGET_PROPERTY = "kairosdb.queries.memory_budget";
+	public static final String TOTAL_BUDGET_PROPERTY = "kairosdb.queries.total_memory_budget";
+
+	public static final String USED_METRIC_NAME = "kairosdb.datastore.query_memory.used";
+	public static final String LARGEST_METRIC_NAME = "kairosdb.datastore.query_memory.largest_query";
+	public static final String REJECTED_METRIC_NAME = "kairosdb.datastore.query_memory.rejected";
+
+	private final String m_hostname;
+
+	@Inject(optional = true)
+	@Named(QUERY_BUDGET_PROPERTY)
+	private long m_queryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+	@Inject(optional = true)
+	@Named(TOTAL_BUDGET_PROPERTY)
+	private long m_totalBudget = Runtime.getRuntime().maxMemory() / 2;
+
+	private final AtomicLong m_used = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final Set<QueryMemoryTracker> m_trackers = Collections.newSetFromMap(
+			new ConcurrentHashMap<QueryMemoryTracker, Boolean>());
+
+	@Inject
+	public QueryMemoryBudget(@Named("HOSTNAME") String hostname)
+	{
+		m_hostname = checkNotNullOrEmpty(hostname);
+	}
+
+	public QueryMemoryBudget(String hostname, long queryBudget, long totalBudget)
+	{
+		m_hostname = checkNotNullOrEmpty(hostname);
+		m_queryBudget = queryBudget;
+		m_totalBudget = totalBudget;
+	}
+
+	/**
+	 Creates the tracker for a new query, it has to be closed when the query
+	 is done.
+	 */
+	public QueryMemoryTracker newTracker(String name)
+	{
+		QueryMemoryTracker tracker = new QueryMemoryTracker(this, name);
+		m_trackers.add(tracker);
+		return tracker;
+	}
+
+	public long getQueryBudget()
+	{
+		return m_queryBudget;
+	}
+
+	public long getTotalBudget()
+	{
+		return m_totalBudget;
+	}
+
+	/**
+	 Bytes reserved by all running queries
+	 */
+	public long getUsed()
+	{
+		return m_used.get();
+	}
+
+	/**
+	 Trackers of the queries currently running
+	 */
+	public List<QueryMemoryTracker> getTrackers()
+	{
+		return new ArrayList<QueryMemoryTracker>(m_trackers);
+	}
+
+	boolean reserve(long bytes)
+	{
+		long used = m_used.addAndGet(bytes);
+		if (m_totalBudget != 0 && used > m_totalBudget)
+		{
+			m_used.addAndGet(-bytes);
+			return false;
+		}
+
+		return true;
+	}
+
+	void release(long bytes)
+	{
+		m_used.addAndGet(-bytes);
+	}
+
+	void remove(QueryMemoryTracker tracker)
+	{
+		m_trackers.remove(tracker);
+	}
+
+	void queryRejected()
+	{
+		m_rejected.incrementAndGet();
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		long largest = 0;
+		for (QueryMemoryTracker tracker : m_trackers)
+			largest = Math.max(largest, tracker.getUsed());
+
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+		ret.add(newDataPointSet(USED_METRIC_NAME, now, getUsed()));
+		ret.add(newDataPointSet(LARGEST_METRIC_NAME, now, largest));
+		ret.add(newDataPointSet(REJECTED_METRIC_NAME, now, m_rejected.getAndSet(0)));
+
+		return ret;
+	}
+
+	private DataPointSet newDataPointSet(String metricName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(new LongDataPoint(now, value));
+		return dps;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+/**
+ Thrown when a query would go over its memory budget or over the budget
+ shared by all running queries.  Like QueryCancelledException it is unchecked
+ so it can be thrown while data points are read and aggregated.
+ */
+public class QueryMemoryException extends RuntimeException
+{
+	private final boolean m_totalBudget;
+
+	public QueryMemoryException(String message, boolean totalBudget)
+	{
+		super(message);
+		m_totalBudget = totalBudget;
+	}
+
+	/**
+	 True if the budget of all running queries was exceeded, the query may
+	 succeed when run again later.  False if the query is too large on its own.
+	 */
+	public boolean isTotalBudget()
+	{
+		return m_totalBudget;
+	}
+}
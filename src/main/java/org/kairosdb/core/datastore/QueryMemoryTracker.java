@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Counts the bytes of heap a query holds in its buffers against the budgets
+ of QueryMemoryBudget.  The sizes are estimates, the goal is to stop a query
+ that reads far more than it should long before the heap runs out, not to
+ measure the heap exactly.
+
+ While the datastore runs a query the tracker is kept in a thread local the
+ same way as QueryProfile.  Code that holds data points in memory reserves
+ what it adds and releases it when the buffer is freed, whatever is still
+ reserved is released when the tracker is closed.
+ */
+public class QueryMemoryTracker
+{
+	/**
+	 Rough heap size of a data point object held in a list
+	 */
+	public static final int DATA_POINT_MEMORY = 48;
+
+	private static final ThreadLocal<QueryMemoryTracker> s_current = new ThreadLocal<QueryMemoryTracker>();
+
+	/**
+	 Returns the tracker of the query running on this thread or null if there
+	 isn't one.
+	 */
+	public static QueryMemoryTracker current()
+	{
+		return s_current.get();
+	}
+
+	public static void setCurrent(QueryMemoryTracker tracker)
+	{
+		if (tracker == null)
+			s_current.remove();
+		else
+			s_current.set(tracker);
+	}
+
+	private final QueryMemoryBudget m_budget;
+	private final String m_name;
+	private final AtomicLong m_used = new AtomicLong();
+	private final AtomicLong m_peak = new AtomicLong();
+	private volatile boolean m_closed = false;
+
+	QueryMemoryTracker(QueryMemoryBudget budget, String name)
+	{
+		m_budget = budget;
+		m_name = name;
+	}
+
+	/**
+	 Name the tracker was created with, the client or metric of the query
+	 */
+	public String getName()
+	{
+		return m_name;
+	}
+
+	/**
+	 Bytes currently reserved
+	 */
+	public long getUsed()
+	{
+		return m_used.get();
+	}
+
+	/**
+	 Most bytes reserved at any one time
+	 */
+	public long getPeak()
+	{
+		return m_peak.get();
+	}
+
+	/**
+	 Reserves memory for the query.
+	 @throws QueryMemoryException if the query or all running queries would go
+	 over their budget
+	 */
+	public void reserve(long bytes)
+	{
+		reserve(bytes, true);
+	}
+
+	/**
+	 Reserves memory for the query if it fits in the budgets.  Used by buffers
+	 that can spill to disk instead of failing the query.
+	 @return false if nothing was reserved
+	 */
+	public boolean tryReserve(long bytes)
+	{
+		return reserve(bytes, false);
+	}
+
+	private boolean reserve(long bytes, boolean throwOnFailure)
+	{
+		long used = m_used.addAndGet(bytes);
+		long queryBudget = m_budget.getQueryBudget();
+		if (queryBudget != 0 && used > queryBudget)
+		{
+			m_used.addAndGet(-bytes);
+			if (!throwOnFailure)
+				return false;
+
+			m_budget.queryRejected();
+			throw new QueryMemoryException("Query exceeded its memory budget of " + queryBudget +
+					" bytes, try a shorter time range or fewer series", false);
+		}
+
+		if (!m_budget.reserve(bytes))
+		{
+			m_used.addAndGet(-bytes);
+			if (!throwOnFailure)
+				return false;
+
+			m_budget.queryRejected();
+			throw new QueryMemoryException("Running queries exceeded the memory budget of " +
+					m_budget.getTotalBudget() + " bytes, try again later", true);
+		}
+
+		long peak = m_peak.get();
+		while (used > peak && !m_peak.compareAndSet(peak, used))
+			peak = m_peak.get();
+
+		return true;
+	}
+
+	public void release(long bytes)
+	{
+		//Everything was given back when the tracker was closed
+		if (m_closed)
+			return;
+
+		m_used.addAndGet(-bytes);
+		m_budget.release(bytes);
+	}
+
+	/**
+	 Releases whatever the query still has reserved.
+	 */
+	public void close()
+	{
+		m_closed = true;
+		m_budget.release(m_used.getAndSet(0));
+		m_budget.remove(this);
+	}
+}
@@ -44,6 +44,11 @@ public class QueryMetric implements DatastoreMetricQuery
 	private Order order = Order.ASC;
 	private List<QueryPlugin> plugins;
 	private boolean explicitTags = false;
+	private QueryClass queryClass = QueryClass.INTERACTIVE;
+	private String clientId;
+	private boolean profile = false;
+	private transient QueryCancellation cancellation;
+	private transient QueryMemoryTracker memoryTracker;
 
 	public QueryMetric(long start_time, int cacheTime, String name)
 	{
@@ -207,6 +212,71 @@ public class QueryMetric implements DatastoreMetricQuery
 		return (order);
 	}
 
+	public QueryClass getQueryClass()
+	{
+		return (queryClass);
+	}
+
+	public void setQueryClass(QueryClass queryClass)
+	{
+		this.queryClass = queryClass;
+	}
+
+	/**
+	 Remote address or token of the client that sent the query, null for
+	 queries run by KairosDB itself.
+	 */
+	public String getClientId()
+	{
+		return (clientId);
+	}
+
+	public void setClientId(String clientId)
+	{
+		this.clientId = clientId;
+	}
+
+	/**
+	 True if the query profile should be returned with the results.
+	 */
+	public boolean isProfile()
+	{
+		return (profile);
+	}
+
+	public void setProfile(boolean profile)
+	{
+		this.profile = profile;
+	}
+
+	/**
+	 Deadline and cancel flag of the request the query is part of, null if the
+	 query can't be cancelled.
+	 */
+	public QueryCancellation getCancellation()
+	{
+		return (cancellation);
+	}
+
+	public void setCancellation(QueryCancellation cancellation)
+	{
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 Memory tracker shared by the metrics of a request, when it is null the
+	 query gets its own.
+	 */
+	public QueryMemoryTracker getMemoryTracker()
+	{
+		return (memoryTracker);
+	}
+
+	public void setMemoryTracker(QueryMemoryTracker memoryTracker)
+	{
+		this.memoryTracker = memoryTracker;
+	}
+
 	@Override
 	public List<QueryPlugin> getPlugins()
 	{
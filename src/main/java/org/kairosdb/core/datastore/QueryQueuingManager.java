@@ -20,53 +20,171 @@ import com.google.inject.name.Named;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.reporting.KairosMetricReporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
 
+/**
+ Limits the number of queries hitting the datastore at once and makes sure
+ only one query with a given hash reads from the datastore at a time.  The
+ order in which waiting queries get to run is decided by the
+ {@link QueryAdmissionScheduler}.
+
+ Queries started with {@link #joinOrRun(String)} are single flight: while a
+ query is running, identical queries attach to it and share its SearchResult
+ instead of running again.
+ */
 public class QueryQueuingManager implements KairosMetricReporter
 {
 	public static final Logger logger = LoggerFactory.getLogger(QueryQueuingManager.class);
 	public static final String CONCURRENT_QUERY_THREAD = "kairosdb.datastore.concurrentQueryThreads";
 	public static final String QUERY_COLLISIONS_METRIC_NAME = "kairosdb.datastore.query_collisions";
+	public static final String QUERY_COALESCED_METRIC_NAME = "kairosdb.datastore.coalesced_queries";
 
-	private final Map<String, Thread> runningQueries = new HashMap<String, Thread>();
+	private final Map<String, RunningQuery> runningQueries = new HashMap<String, RunningQuery>();
 	private final ReentrantLock lock = new ReentrantLock();
-	private final Semaphore semaphore;
+	private final QueryAdmissionScheduler scheduler;
 	private final String hostname;
 
 	private AtomicInteger collisions = new AtomicInteger();
+	private AtomicInteger coalesced = new AtomicInteger();
+
+	public QueryQueuingManager(int concurrentQueryThreads, String hostname)
+	{
+		this(new QueryAdmissionScheduler(concurrentQueryThreads, hostname), hostname);
+	}
 
 	@Inject
-	public QueryQueuingManager(@Named(CONCURRENT_QUERY_THREAD) int concurrentQueryThreads, @Named("HOSTNAME") String hostname)
+	public QueryQueuingManager(QueryAdmissionScheduler scheduler, @Named("HOSTNAME") String hostname)
 	{
-		checkArgument(concurrentQueryThreads > 0);
+		this.scheduler = checkNotNull(scheduler);
 		this.hostname = checkNotNullOrEmpty(hostname);
-		semaphore = new Semaphore(concurrentQueryThreads, true);
 	}
 
+	public QueryAdmissionScheduler getScheduler()
+	{
+		return scheduler;
+	}
+
+	/**
+	 Blocks until a permit is available and no other query with the same hash
+	 is running.  Must be followed by a call to {@link #done(String)}.
+	 */
 	public void waitForTimeToRun(String queryHash) throws InterruptedException
 	{
 		boolean firstTime = true;
-		while(!acquireSemaphore(queryHash))
+		while(!acquirePermit(queryHash, false, QueryClass.INTERACTIVE, null, 1))
+		{
+			if (firstTime)
+			{
+				collisions.incrementAndGet();
+				firstTime = false;
+			}
+			waitForFinish(queryHash, false);
+		}
+	}
+
+	/**
+	 Attaches to a running query with the same hash or, if there isn't one,
+	 waits for a permit and registers the caller as the query that reads from
+	 the datastore.  The returned SharedQuery must be closed with
+	 {@link SharedQuery#done()}.
+	 */
+	public SharedQuery joinOrRun(String queryHash) throws InterruptedException
+	{
+		return joinOrRun(queryHash, QueryClass.INTERACTIVE, null, 1);
+	}
+
+	/**
+	 Same as {@link #joinOrRun(String)}, the class, client and cost are used to
+	 decide when the query is admitted if it has to read from the datastore.
+	 */
+	public SharedQuery joinOrRun(String queryHash, QueryClass queryClass, String clientId, long cost)
+			throws InterruptedException
+	{
+		boolean firstTime = true;
+		while (true)
 		{
+			SharedQuery attached = attach(queryHash);
+			if (attached != null)
+				return attached;
+
+			if (acquirePermit(queryHash, true, queryClass, clientId, cost))
+			{
+				lock.lock();
+				try
+				{
+					return new SharedQuery(runningQueries.get(queryHash), true);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+
+			//Still being read by queries that attached to the previous run
 			if (firstTime)
 			{
 				collisions.incrementAndGet();
 				firstTime = false;
 			}
-			Thread.sleep(100);
+			waitForFinish(queryHash, true);
+		}
+	}
+
+	private SharedQuery attach(String queryHash)
+	{
+		lock.lock();
+		try
+		{
+			RunningQuery running = runningQueries.get(queryHash);
+			if (running != null && running.shareable)
+			{
+				running.participants++;
+				coalesced.incrementAndGet();
+				return new SharedQuery(running, false);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return null;
+	}
+
+	/**
+	 Waits for the running query with the hash to finish.  If attachable is set
+	 this also returns as soon as the running query can be attached to.
+	 */
+	private void waitForFinish(String queryHash, boolean attachable) throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			RunningQuery running = runningQueries.get(queryHash);
+			while (running != null && !(attachable && running.shareable))
+			{
+				running.finished.await();
+				running = runningQueries.get(queryHash);
+			}
+		}
+		finally
+		{
+			lock.unlock();
 		}
 	}
 
@@ -75,18 +193,23 @@ public class QueryQueuingManager implements KairosMetricReporter
 		lock.lock();
 		try
 		{
-			runningQueries.remove(queryHash);
+			RunningQuery running = runningQueries.remove(queryHash);
+			if (running != null)
+			{
+				running.finished.signalAll();
+				scheduler.release(running.ticket);
+			}
 		}
 		finally
 		{
 			lock.unlock();
 		}
-		semaphore.release();
 	}
 
-	private boolean acquireSemaphore(String queryHash) throws InterruptedException
+	private boolean acquirePermit(String queryHash, boolean shareable, QueryClass queryClass,
+			String clientId, long cost) throws InterruptedException
 	{
-		semaphore.acquire();
+		QueryAdmissionScheduler.Ticket ticket = scheduler.acquire(queryClass, clientId, cost);
 
 		boolean hashConflict = false;
 		lock.lock();
@@ -95,7 +218,7 @@ public class QueryQueuingManager implements KairosMetricReporter
 			hashConflict = runningQueries.containsKey(queryHash);
 			if (!hashConflict)
 			{
-				runningQueries.put(queryHash, Thread.currentThread());
+				runningQueries.put(queryHash, new RunningQuery(queryHash, shareable, ticket));
 			}
 		}
 		finally
@@ -105,7 +228,7 @@ public class QueryQueuingManager implements KairosMetricReporter
 
 		if (hashConflict)
 		{
-			semaphore.release();
+			scheduler.release(ticket);
 			return false;
 		}
 		else
@@ -114,21 +237,274 @@ public class QueryQueuingManager implements KairosMetricReporter
 
 	public int getQueryWaitingCount()
 	{
-		return semaphore.getQueueLength();
+		return scheduler.getQueueLength();
 	}
 
 	public int getAvailableThreads()
 	{
-		return semaphore.availablePermits();
+		return scheduler.getAvailablePermits();
 	}
 
 	@Override
 	public List<DataPointSet> getMetrics(long now)
 	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
 		DataPointSet collisionSet = new DataPointSet(QUERY_COLLISIONS_METRIC_NAME);
 		collisionSet.addTag("host", hostname);
 		collisionSet.addDataPoint(new LongDataPoint(System.currentTimeMillis(), collisions.getAndSet(0)));
+		ret.add(collisionSet);
+
+		DataPointSet coalescedSet = new DataPointSet(QUERY_COALESCED_METRIC_NAME);
+		coalescedSet.addTag("host", hostname);
+		coalescedSet.addDataPoint(new LongDataPoint(System.currentTimeMillis(), coalesced.getAndSet(0)));
+		ret.add(coalescedSet);
+
+		return ret;
+	}
+
+	/**
+	 State shared by all the queries attached to one run.  Guarded by lock.
+	 */
+	private class RunningQuery
+	{
+		private final String queryHash;
+		private final QueryAdmissionScheduler.Ticket ticket;
+		private final Condition finished = lock.newCondition();
+		private final Condition resultReady = lock.newCondition();
+		private boolean shareable;
+		private int participants = 1;
+		private boolean complete;
+		private boolean abandoned;
+		private SearchResult result;
+		private QueryMemoryTracker resultTracker;
+		private Exception failure;
+
+		private RunningQuery(String queryHash, boolean shareable, QueryAdmissionScheduler.Ticket ticket)
+		{
+			this.queryHash = queryHash;
+			this.shareable = shareable;
+			this.ticket = ticket;
+		}
+	}
+
+	/**
+	 A handle on a single flight query.  The leader reads from the datastore
+	 and publishes the result with setResult, every other participant gets the
+	 same SearchResult from getResult.  The result is retained until the last
+	 participant calls done, so is the memory it reserved.
+	 */
+	public class SharedQuery
+	{
+		private final RunningQuery m_running;
+		private final boolean m_leader;
+		private boolean m_done;
+
+		private SharedQuery(RunningQuery running, boolean leader)
+		{
+			m_running = running;
+			m_leader = leader;
+		}
+
+		public boolean isLeader()
+		{
+			return m_leader;
+		}
+
+		public void setResult(SearchResult result)
+		{
+			setResult(result, null);
+		}
+
+		/**
+		 Same as {@link #setResult(SearchResult)}, the memory tracker holds
+		 the memory of the result and is closed when the result is released.
+		 The leader can finish before the queries attached to it so the result
+		 can't be held by the leader's own tracker.
+		 */
+		public void setResult(SearchResult result, QueryMemoryTracker resultTracker)
+		{
+			checkArgument(m_leader, "Only the leading query can set the result");
+			result.retain();
+
+			lock.lock();
+			try
+			{
+				m_running.result = result;
+				m_running.resultTracker = resultTracker;
+				m_running.complete = true;
+				m_running.resultReady.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public void setFailure(Exception failure)
+		{
+			lock.lock();
+			try
+			{
+				if (m_leader && !m_running.complete)
+				{
+					m_running.failure = failure;
+					m_running.complete = true;
+					m_running.resultReady.signalAll();
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
 
-		return Collections.singletonList(collisionSet);
+		/**
+		 Called by the leader when it stops for a reason of its own, its
+		 deadline, a disconnect or its memory budget.  Attached queries are not
+		 failed with it, getResult returns null so they read the data themselves.
+		 */
+		public void abandon()
+		{
+			lock.lock();
+			try
+			{
+				if (m_leader && !m_running.complete)
+				{
+					m_running.abandoned = true;
+					m_running.shareable = false;
+					m_running.complete = true;
+					m_running.resultReady.signalAll();
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 Waits for the leading query to finish reading from the datastore.
+		 */
+		public SearchResult getResult() throws InterruptedException, DatastoreException
+		{
+			return getResult(null);
+		}
+
+		/**
+		 Waits for the leading query to finish reading from the datastore, no
+		 longer than the cancellation of this query allows.
+
+		 @param cancellation cancellation of this query, may be null
+		 @return the result or null if the leader abandoned the query
+		 @throws QueryCancelledException if this query is cancelled while waiting
+		 */
+		public SearchResult getResult(QueryCancellation cancellation) throws InterruptedException, DatastoreException
+		{
+			Runnable wakeUp = null;
+			if (cancellation != null)
+			{
+				wakeUp = new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						lock.lock();
+						try
+						{
+							m_running.resultReady.signalAll();
+						}
+						finally
+						{
+							lock.unlock();
+						}
+					}
+				};
+				cancellation.addListener(wakeUp);
+			}
+
+			lock.lock();
+			try
+			{
+				while (!m_running.complete)
+				{
+					if (cancellation == null)
+						m_running.resultReady.await();
+					else
+					{
+						cancellation.checkCancelled();
+						long remaining = cancellation.getRemainingMillis();
+						if (remaining == Long.MAX_VALUE)
+							m_running.resultReady.await();
+						else
+							m_running.resultReady.await(remaining, java.util.concurrent.TimeUnit.MILLISECONDS);
+					}
+				}
+
+				if (m_running.abandoned)
+					return null;
+
+				if (m_running.failure != null)
+					throw new DatastoreException(m_running.failure);
+
+				return m_running.result;
+			}
+			finally
+			{
+				lock.unlock();
+				if (wakeUp != null)
+					cancellation.removeListener(wakeUp);
+			}
+		}
+
+		/**
+		 Releases this participant.  When the leader is done no more queries can
+		 attach, when the last participant is done the hash is free to run again.
+		 */
+		public void done()
+		{
+			SearchResult release = null;
+			QueryMemoryTracker releaseTracker = null;
+			lock.lock();
+			try
+			{
+				if (m_done)
+					return;
+				m_done = true;
+
+				if (m_leader)
+				{
+					m_running.shareable = false;
+					if (!m_running.complete)
+					{
+						m_running.failure = new IllegalStateException("Query finished without a result");
+						m_running.complete = true;
+						m_running.resultReady.signalAll();
+					}
+				}
+
+				m_running.participants--;
+				if (m_running.participants == 0)
+				{
+					runningQueries.remove(m_running.queryHash);
+					m_running.finished.signalAll();
+					release = m_running.result;
+					releaseTracker = m_running.resultTracker;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			if (m_leader)
+				scheduler.release(m_running.ticket);
+
+			if (release != null)
+				release.release();
+
+			if (releaseTracker != null)
+				releaseTracker.close();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,1047 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.datapoints.DataPointFactory;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.eventbus.Subscribe;
+import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.util.KDataInput;
+import org.kairosdb.util.KDataOutput;
+import org.kairosdb.util.MemoryMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Caches raw query results in time aligned buckets.  A query is normalized to
+ the metric name and tag filters (aggregators and group bys are applied after
+ the cache) and its time range is split into buckets of bucket_size_ms.
+
+ Buckets that ended more than settle_time_ms ago are considered immutable and
+ are kept in an LRU bounded by max_bytes.  Only the buckets that are missing
+ from the cache plus the open buckets at the end of the range are read from
+ the datastore, so a dashboard refreshing the last 6 hours only reads the
+ newest bucket on each refresh.
+
+ Data points written into an already settled bucket and deletes invalidate
+ the affected buckets.  A range to read that is larger than max_bytes or the
+ memory budget of the query is read without the cache.
+ */
+public class QueryResultCache implements KairosMetricReporter
+{
+	public static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+	public static final String ENABLED_PROPERTY = "kairosdb.query_cache.result_cache.enabled";
+	public static final String BUCKET_SIZE_PROPERTY = "kairosdb.query_cache.result_cache.bucket_size_ms";
+	public static final String MAX_BYTES_PROPERTY = "kairosdb.query_cache.result_cache.max_bytes";
+	public static final String SETTLE_TIME_PROPERTY = "kairosdb.query_cache.result_cache.settle_time_ms";
+
+	public static final String HITS_METRIC_NAME = "kairosdb.datastore.result_cache.hits";
+	public static final String MISSES_METRIC_NAME = "kairosdb.datastore.result_cache.misses";
+	public static final String HIT_RATIO_METRIC_NAME = "kairosdb.datastore.result_cache.hit_ratio";
+	public static final String BYTES_METRIC_NAME = "kairosdb.datastore.result_cache.bytes";
+	public static final String EVICTIONS_METRIC_NAME = "kairosdb.datastore.result_cache.evictions";
+
+	/**
+	 Queries spanning more buckets than this bypass the cache.
+	 */
+	public static final int MAX_BUCKETS_PER_QUERY = 5000;
+
+	//Rough per entry overhead used when sizing buckets
+	private static final int ENTRY_OVERHEAD = 64;
+	//Most memory a fetch reserves from the query's budget at a time
+	private static final int RESERVE_BYTES = 16 * 1024;
+
+	private final String m_hostname;
+
+	@Inject(optional = true)
+	@Named(ENABLED_PROPERTY)
+	private boolean m_enabled = false;
+
+	@Inject(optional = true)
+	@Named(BUCKET_SIZE_PROPERTY)
+	private long m_bucketSize = 3600000L;
+
+	@Inject(optional = true)
+	@Named(MAX_BYTES_PROPERTY)
+	private long m_maxBytes = 64L * 1024L * 1024L;
+
+	@Inject(optional = true)
+	@Named(SETTLE_TIME_PROPERTY)
+	private long m_settleTime = 300000L;
+
+	private final Object m_lock = new Object();
+	private final LinkedHashMap<BucketKey, Bucket> m_buckets = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Set<BucketKey>> m_metricIndex = new HashMap<>();
+	private long m_bytes;
+
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_evictions = new AtomicLong();
+
+	@Inject
+	public QueryResultCache(@Named("HOSTNAME") String hostname)
+	{
+		m_hostname = checkNotNullOrEmpty(hostname);
+	}
+
+	public QueryResultCache(String hostname, long bucketSize, long maxBytes, long settleTime)
+	{
+		checkArgument(bucketSize > 0, "bucket size must be greater than 0");
+		m_hostname = checkNotNullOrEmpty(hostname);
+		m_enabled = true;
+		m_bucketSize = bucketSize;
+		m_maxBytes = maxBytes;
+		m_settleTime = settleTime;
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled && m_bucketSize > 0 && m_maxBytes > 0;
+	}
+
+	/**
+	 Returns true if the query can be answered using this cache.  Queries with
+	 a limit or with plugins change what the datastore returns so they are not
+	 cached, neither are queries that do not cover at least one settled bucket.
+	 */
+	public boolean canCache(QueryMetric query, long now)
+	{
+		if (!isEnabled() || query.getLimit() != 0 || !query.getPlugins().isEmpty())
+			return false;
+
+		long start = query.getStartTime();
+		long end = query.getEndTime();
+		if (end < start || end - start < 0)
+			return false;
+
+		if ((end - start) / m_bucketSize >= MAX_BUCKETS_PER_QUERY)
+			return false;
+
+		return isSettled(bucketStart(start), now);
+	}
+
+	private long bucketStart(long timestamp)
+	{
+		return timestamp - Math.floorMod(timestamp, m_bucketSize);
+	}
+
+	private boolean isSettled(long bucketStart, long now)
+	{
+		return bucketStart + m_bucketSize <= now - m_settleTime;
+	}
+
+	/**
+	 Returns the result for the query.  The result has one row per data type
+	 and tag combination with data points in the order requested by the query.
+	 Cached blocks are immutable so the result can be read more than once.
+
+	 Buckets read from the datastore are encoded as the data points arrive and
+	 their memory is reserved from the query's QueryMemoryTracker.
+	 @return the result or null if a range read from the datastore is larger
+	 than max_bytes or the query's memory budget, the query then reads the data
+	 without the cache
+	 */
+	public SearchResult query(Datastore datastore, QueryMetric query,
+			KairosDataPointFactory dataPointFactory, long now) throws DatastoreException
+	{
+		QueryMemoryTracker memoryTracker = QueryMemoryTracker.current();
+		AtomicLong reserved = new AtomicLong();
+		String queryKey = getQueryKey(query);
+		long start = query.getStartTime();
+		long end = query.getEndTime();
+
+		List<Long> bucketTimes = new ArrayList<>();
+		Map<Long, Bucket> buckets = new HashMap<>();
+		for (long bucket = bucketStart(start); bucket <= end && bucket >= bucketStart(start); bucket += m_bucketSize)
+		{
+			bucketTimes.add(bucket);
+			if (isSettled(bucket, now))
+			{
+				Bucket cached = get(new BucketKey(query.getName(), queryKey, bucket));
+				if (cached != null)
+					buckets.put(bucket, cached);
+			}
+		}
+
+		//Read contiguous runs of missing buckets from the datastore
+		int index = 0;
+		while (index < bucketTimes.size())
+		{
+			if (buckets.containsKey(bucketTimes.get(index)))
+			{
+				index++;
+				continue;
+			}
+
+			int runEnd = index;
+			while (runEnd + 1 < bucketTimes.size() && !buckets.containsKey(bucketTimes.get(runEnd + 1)))
+				runEnd++;
+
+			if (!fetch(datastore, query, queryKey, bucketTimes.subList(index, runEnd + 1), buckets,
+					now, memoryTracker, reserved))
+			{
+				logger.debug("Query for {} is too large for the result cache", query.getName());
+				if (memoryTracker != null)
+					memoryTracker.release(reserved.get());
+				return null;
+			}
+			index = runEnd + 1;
+		}
+
+		//Stitch the buckets together into one row per series
+		Map<SeriesKey, List<Block>> series = new LinkedHashMap<>();
+		for (Long bucketTime : bucketTimes)
+		{
+			for (Map.Entry<SeriesKey, Block> entry : buckets.get(bucketTime).getBlocks().entrySet())
+			{
+				List<Block> blocks = series.get(entry.getKey());
+				if (blocks == null)
+				{
+					blocks = new ArrayList<>();
+					series.put(entry.getKey(), blocks);
+				}
+				blocks.add(entry.getValue());
+			}
+		}
+
+		return new BlockSearchResult(query.getName(), series, start, end,
+				query.getOrder(), dataPointFactory);
+	}
+
+	/**
+	 @param reserved bytes reserved from the memory tracker are added to this
+	 @return false if the range didn't fit in max_bytes or the query's budget
+	 */
+	private boolean fetch(Datastore datastore, QueryMetric query, String queryKey,
+			List<Long> bucketTimes, Map<Long, Bucket> buckets, long now,
+			QueryMemoryTracker memoryTracker, AtomicLong reserved) throws DatastoreException
+	{
+		long fetchStart = bucketTimes.get(0);
+		long lastBucket = bucketTimes.get(bucketTimes.size() - 1);
+		long fetchEnd = lastBucket + m_bucketSize - 1;
+
+		//Open buckets are only read for the requested range as they are not cached
+		if (!isSettled(fetchStart, now))
+			fetchStart = Math.max(fetchStart, query.getStartTime());
+		if (!isSettled(lastBucket, now))
+			fetchEnd = Math.min(fetchEnd, query.getEndTime());
+
+		QueryMetric fetchQuery = new QueryMetric(fetchStart, fetchEnd, 0, query.getName());
+		fetchQuery.setTags(query.getTags());
+		fetchQuery.setExplicitTags(query.isExplicitTags());
+
+		BucketingCallback callback = new BucketingCallback(memoryTracker, reserved);
+		try
+		{
+			datastore.queryDatabase(fetchQuery, callback);
+		}
+		catch (DatastoreException | RuntimeException e)
+		{
+			if (callback.isTooLarge())
+				return false;
+			throw e;
+		}
+
+		if (callback.isTooLarge())
+			return false;
+
+		for (Long bucketTime : bucketTimes)
+		{
+			Bucket bucket = callback.buildBucket(bucketTime);
+			buckets.put(bucketTime, bucket);
+
+			if (isSettled(bucketTime, now))
+				put(new BucketKey(query.getName(), queryKey, bucketTime), bucket);
+		}
+
+		return true;
+	}
+
+	private Bucket get(BucketKey key)
+	{
+		Bucket bucket;
+		synchronized (m_lock)
+		{
+			bucket = m_buckets.get(key);
+		}
+
+		if (bucket != null)
+			m_hits.incrementAndGet();
+		else
+			m_misses.incrementAndGet();
+
+		return bucket;
+	}
+
+	private void put(BucketKey key, Bucket bucket)
+	{
+		if (bucket.getBytes() > m_maxBytes)
+			return;
+
+		synchronized (m_lock)
+		{
+			Bucket old = m_buckets.put(key, bucket);
+			if (old != null)
+				m_bytes -= old.getBytes();
+			m_bytes += bucket.getBytes();
+
+			Set<BucketKey> keys = m_metricIndex.get(key.m_metricName);
+			if (keys == null)
+			{
+				keys = new HashSet<>();
+				m_metricIndex.put(key.m_metricName, keys);
+			}
+			keys.add(key);
+
+			Iterator<Map.Entry<BucketKey, Bucket>> it = m_buckets.entrySet().iterator();
+			while (m_bytes > m_maxBytes && it.hasNext())
+			{
+				Map.Entry<BucketKey, Bucket> eldest = it.next();
+				it.remove();
+				removeFromIndex(eldest.getKey());
+				m_bytes -= eldest.getValue().getBytes();
+				m_evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void removeFromIndex(BucketKey key)
+	{
+		Set<BucketKey> keys = m_metricIndex.get(key.m_metricName);
+		if (keys != null)
+		{
+			keys.remove(key);
+			if (keys.isEmpty())
+				m_metricIndex.remove(key.m_metricName);
+		}
+	}
+
+	/**
+	 Removes every cached bucket for the metric.
+	 */
+	public void invalidate(String metricName)
+	{
+		synchronized (m_lock)
+		{
+			Set<BucketKey> keys = m_metricIndex.remove(metricName);
+			if (keys != null)
+			{
+				for (BucketKey key : keys)
+				{
+					Bucket bucket = m_buckets.remove(key);
+					if (bucket != null)
+						m_bytes -= bucket.getBytes();
+				}
+			}
+		}
+	}
+
+	/**
+	 Removes the cached buckets for the metric that contain the timestamp.
+	 */
+	public void invalidate(String metricName, long timestamp)
+	{
+		long bucketTime = bucketStart(timestamp);
+		synchronized (m_lock)
+		{
+			Set<BucketKey> keys = m_metricIndex.get(metricName);
+			if (keys == null)
+				return;
+
+			Iterator<BucketKey> it = keys.iterator();
+			while (it.hasNext())
+			{
+				BucketKey key = it.next();
+				if (key.m_bucketTime == bucketTime)
+				{
+					it.remove();
+					Bucket bucket = m_buckets.remove(key);
+					if (bucket != null)
+						m_bytes -= bucket.getBytes();
+				}
+			}
+
+			if (keys.isEmpty())
+				m_metricIndex.remove(metricName);
+		}
+	}
+
+	@Subscribe
+	public void dataPoint(DataPointEvent event)
+	{
+		invalidateLate(event.getMetricName(), event.getDataPoint().getTimestamp());
+	}
+
+	/**
+	 Removes the cached buckets for the metric that contain the timestamp if
+	 the bucket is already settled.  Called when a data point arrives and
+	 again by the datastore once it is written, a query that reads in between
+	 would otherwise cache the bucket without the data point.
+	 */
+	public void invalidateLate(String metricName, long timestamp)
+	{
+		if (!isEnabled())
+			return;
+
+		//Only late data can land in a bucket we may have cached
+		if (isSettled(bucketStart(timestamp), System.currentTimeMillis()))
+			invalidate(metricName, timestamp);
+	}
+
+	public long getBytes()
+	{
+		synchronized (m_lock)
+		{
+			return m_bytes;
+		}
+	}
+
+	public int getBucketCount()
+	{
+		synchronized (m_lock)
+		{
+			return m_buckets.size();
+		}
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		if (!isEnabled())
+			return Collections.emptyList();
+
+		List<DataPointSet> ret = new ArrayList<>();
+		long hits = m_hits.getAndSet(0);
+		long misses = m_misses.getAndSet(0);
+
+		ret.add(newDataPointSet(HITS_METRIC_NAME, new LongDataPoint(now, hits)));
+		ret.add(newDataPointSet(MISSES_METRIC_NAME, new LongDataPoint(now, misses)));
+		if (hits + misses != 0)
+			ret.add(newDataPointSet(HIT_RATIO_METRIC_NAME, new DoubleDataPoint(now, (double)hits / (hits + misses))));
+		ret.add(newDataPointSet(BYTES_METRIC_NAME, new LongDataPoint(now, getBytes())));
+		ret.add(newDataPointSet(EVICTIONS_METRIC_NAME, new LongDataPoint(now, m_evictions.getAndSet(0))));
+
+		return ret;
+	}
+
+	private DataPointSet newDataPointSet(String metricName, DataPoint dataPoint)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(dataPoint);
+		return dps;
+	}
+
+	/**
+	 Builds the part of the cache key that identifies which series the query reads.
+	 */
+	private static String getQueryKey(QueryMetric query)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(query.getName()).append('{');
+
+		TreeMap<String, TreeSet<String>> tags = new TreeMap<>();
+		for (Map.Entry<String, String> tag : query.getTags().entries())
+		{
+			TreeSet<String> values = tags.get(tag.getKey());
+			if (values == null)
+			{
+				values = new TreeSet<>();
+				tags.put(tag.getKey(), values);
+			}
+			values.add(tag.getValue());
+		}
+
+		for (Map.Entry<String, TreeSet<String>> tag : tags.entrySet())
+		{
+			sb.append(tag.getKey()).append('=').append(tag.getValue()).append(';');
+		}
+
+		sb.append('}');
+		if (query.isExplicitTags())
+			sb.append("explicit");
+
+		return sb.toString();
+	}
+
+	//===========================================================================
+	private static class BucketKey
+	{
+		private final String m_metricName;
+		private final String m_queryKey;
+		private final long m_bucketTime;
+
+		private BucketKey(String metricName, String queryKey, long bucketTime)
+		{
+			m_metricName = metricName;
+			m_queryKey = queryKey;
+			m_bucketTime = bucketTime;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			BucketKey bucketKey = (BucketKey) o;
+
+			return m_bucketTime == bucketKey.m_bucketTime && m_queryKey.equals(bucketKey.m_queryKey);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = m_queryKey.hashCode();
+			result = 31 * result + (int) (m_bucketTime ^ (m_bucketTime >>> 32));
+			return result;
+		}
+	}
+
+	//===========================================================================
+	private static class SeriesKey
+	{
+		private final String m_dataType;
+		private final SortedMap<String, String> m_tags;
+
+		private SeriesKey(String dataType, SortedMap<String, String> tags)
+		{
+			m_dataType = dataType;
+			m_tags = ImmutableSortedMap.copyOfSorted(tags);
+		}
+
+		private int getBytes()
+		{
+			int bytes = m_dataType.length() * 2;
+			for (Map.Entry<String, String> tag : m_tags.entrySet())
+			{
+				bytes += (tag.getKey().length() + tag.getValue().length()) * 2 + ENTRY_OVERHEAD;
+			}
+			return bytes;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			SeriesKey seriesKey = (SeriesKey) o;
+
+			return m_dataType.equals(seriesKey.m_dataType) && m_tags.equals(seriesKey.m_tags);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = m_dataType.hashCode();
+			result = 31 * result + m_tags.hashCode();
+			return result;
+		}
+	}
+
+	//===========================================================================
+	/**
+	 The data points of a single series within a bucket.  Timestamps are kept
+	 in an array and values in their serialized datastore form.
+	 */
+	private static class Block
+	{
+		private final long[] m_timestamps;
+		private final byte[] m_values;
+
+		private Block(long[] timestamps, byte[] values)
+		{
+			m_timestamps = timestamps;
+			m_values = values;
+		}
+
+		private int getBytes()
+		{
+			return m_timestamps.length * 8 + m_values.length + ENTRY_OVERHEAD;
+		}
+
+		/**
+		 Index of the first data point with a timestamp >= timestamp
+		 */
+		private int lowerBound(long timestamp)
+		{
+			int low = 0;
+			int high = m_timestamps.length;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (m_timestamps[mid] < timestamp)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		private int upperBound(long timestamp)
+		{
+			if (timestamp == Long.MAX_VALUE)
+				return m_timestamps.length;
+			return lowerBound(timestamp + 1);
+		}
+
+		private List<DataPoint> decode(DataPointFactory factory, int from, int to) throws IOException
+		{
+			List<DataPoint> ret = new ArrayList<>(to - from);
+			KDataInput input = KDataInput.createInput(m_values);
+			for (int i = 0; i < to; i++)
+			{
+				DataPoint dataPoint = factory.getDataPoint(m_timestamps[i], input);
+				if (i >= from)
+					ret.add(dataPoint);
+			}
+			return ret;
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Encodes the data points of a series within a bucket as they are read.
+	 Each value is written in its serialized form right away, the offsets let
+	 the values be reordered if the points did not arrive in time order.
+	 */
+	private static class BlockBuilder
+	{
+		private long[] m_timestamps = new long[16];
+		private int[] m_offsets = new int[16];
+		private int m_size;
+		private final KDataOutput m_values = new KDataOutput();
+
+		private void ensureCapacity(int size)
+		{
+			if (size > m_timestamps.length)
+			{
+				int capacity = Math.max(size, m_timestamps.length * 2);
+				m_timestamps = Arrays.copyOf(m_timestamps, capacity);
+				m_offsets = Arrays.copyOf(m_offsets, capacity);
+			}
+		}
+
+		/**
+		 @return bytes the data point takes up
+		 */
+		private int add(DataPoint dataPoint) throws IOException
+		{
+			ensureCapacity(m_size + 1);
+			int offset = m_values.size();
+			m_timestamps[m_size] = dataPoint.getTimestamp();
+			m_offsets[m_size] = offset;
+			m_size++;
+			dataPoint.writeValueToBuffer(m_values);
+
+			return 12 + m_values.size() - offset;
+		}
+
+		private void addAll(BlockBuilder other) throws IOException
+		{
+			ensureCapacity(m_size + other.m_size);
+			int base = m_values.size();
+			for (int i = 0; i < other.m_size; i++)
+			{
+				m_timestamps[m_size] = other.m_timestamps[i];
+				m_offsets[m_size] = base + other.m_offsets[i];
+				m_size++;
+			}
+			m_values.write(other.m_values.getBytes());
+		}
+
+		private Block build() throws IOException
+		{
+			byte[] values = m_values.getBytes();
+
+			boolean sorted = true;
+			for (int i = 1; i < m_size && sorted; i++)
+			{
+				sorted = m_timestamps[i - 1] <= m_timestamps[i];
+			}
+
+			if (sorted)
+				return new Block(Arrays.copyOf(m_timestamps, m_size), values);
+
+			Integer[] order = new Integer[m_size];
+			for (int i = 0; i < m_size; i++)
+				order[i] = i;
+			Arrays.sort(order, (o1, o2) -> Long.compare(m_timestamps[o1], m_timestamps[o2]));
+
+			long[] timestamps = new long[m_size];
+			KDataOutput output = new KDataOutput();
+			for (int i = 0; i < m_size; i++)
+			{
+				int index = order[i];
+				int end = (index + 1 < m_size) ? m_offsets[index + 1] : values.length;
+				timestamps[i] = m_timestamps[index];
+				output.write(values, m_offsets[index], end - m_offsets[index]);
+			}
+
+			return new Block(timestamps, output.getBytes());
+		}
+	}
+
+	//===========================================================================
+	private static class Bucket
+	{
+		private final Map<SeriesKey, Block> m_blocks;
+		private final long m_bytes;
+
+		private Bucket(Map<SeriesKey, Block> blocks)
+		{
+			m_blocks = blocks;
+			long bytes = ENTRY_OVERHEAD;
+			for (Map.Entry<SeriesKey, Block> entry : blocks.entrySet())
+			{
+				bytes += entry.getKey().getBytes() + entry.getValue().getBytes();
+			}
+			m_bytes = bytes;
+		}
+
+		private Map<SeriesKey, Block> getBlocks()
+		{
+			return m_blocks;
+		}
+
+		private long getBytes()
+		{
+			return m_bytes;
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Collects data points from the datastore and splits them into buckets.
+	 The datastore may call back from several threads so each writer encodes
+	 locally and merges when closed.  Writers reserve memory in chunks and
+	 stop the read once the range no longer fits in max_bytes or the query's
+	 memory budget.
+	 */
+	private class BucketingCallback implements QueryCallback
+	{
+		private final Map<Long, Map<SeriesKey, BlockBuilder>> m_buckets = new HashMap<>();
+		private final MemoryMonitor m_memoryMonitor = new MemoryMonitor(1000);
+		private final QueryMemoryTracker m_memoryTracker;
+		private final AtomicLong m_reserved;
+		private final long m_reserveChunk = Math.max(1L, Math.min(RESERVE_BYTES, m_maxBytes / 64));
+		private final AtomicLong m_runBytes = new AtomicLong();
+		private volatile boolean m_tooLarge = false;
+
+		private BucketingCallback(QueryMemoryTracker memoryTracker, AtomicLong reserved)
+		{
+			m_memoryTracker = memoryTracker;
+			m_reserved = reserved;
+		}
+
+		private boolean isTooLarge()
+		{
+			return m_tooLarge;
+		}
+
+		private void reserveChunk() throws IOException
+		{
+			if (m_runBytes.addAndGet(m_reserveChunk) > m_maxBytes ||
+					(m_memoryTracker != null && !m_memoryTracker.tryReserve(m_reserveChunk)))
+			{
+				m_tooLarge = true;
+				throw new IOException("Range is too large for the result cache");
+			}
+
+			if (m_memoryTracker != null)
+				m_reserved.addAndGet(m_reserveChunk);
+		}
+
+		@Override
+		public DataPointWriter startDataPointSet(String dataType, SortedMap<String, String> tags) throws IOException
+		{
+			return new BucketingWriter(new SeriesKey(dataType, tags));
+		}
+
+		private synchronized void addBlocks(SeriesKey seriesKey, Map<Long, BlockBuilder> blocks) throws IOException
+		{
+			for (Map.Entry<Long, BlockBuilder> entry : blocks.entrySet())
+			{
+				Map<SeriesKey, BlockBuilder> bucket = m_buckets.get(entry.getKey());
+				if (bucket == null)
+				{
+					bucket = new LinkedHashMap<>();
+					m_buckets.put(entry.getKey(), bucket);
+				}
+
+				//The same series can be written more than once, one time per row
+				BlockBuilder builder = bucket.get(seriesKey);
+				if (builder == null)
+					bucket.put(seriesKey, entry.getValue());
+				else
+					builder.addAll(entry.getValue());
+			}
+		}
+
+		private synchronized Bucket buildBucket(long bucketTime) throws DatastoreException
+		{
+			Map<SeriesKey, Block> blocks = new LinkedHashMap<>();
+			Map<SeriesKey, BlockBuilder> bucket = m_buckets.remove(bucketTime);
+			if (bucket != null)
+			{
+				try
+				{
+					for (Map.Entry<SeriesKey, BlockBuilder> entry : bucket.entrySet())
+					{
+						blocks.put(entry.getKey(), entry.getValue().build());
+					}
+				}
+				catch (IOException e)
+				{
+					throw new DatastoreException(e);
+				}
+			}
+
+			return new Bucket(blocks);
+		}
+
+		private class BucketingWriter implements DataPointWriter
+		{
+			private final SeriesKey m_seriesKey;
+			private final Map<Long, BlockBuilder> m_blocks = new HashMap<>();
+			private long m_currentBucket;
+			private BlockBuilder m_current = null;
+			private long m_bytes = 0;
+			private long m_reservedBytes = 0;
+
+			private BucketingWriter(SeriesKey seriesKey)
+			{
+				m_seriesKey = seriesKey;
+			}
+
+			@Override
+			public void addDataPoint(DataPoint datapoint) throws IOException
+			{
+				long bucketTime = bucketStart(datapoint.getTimestamp());
+				if (m_current == null || bucketTime != m_currentBucket)
+				{
+					m_current = m_blocks.get(bucketTime);
+					if (m_current == null)
+					{
+						m_current = new BlockBuilder();
+						m_blocks.put(bucketTime, m_current);
+					}
+					m_currentBucket = bucketTime;
+				}
+
+				m_bytes += m_current.add(datapoint);
+				while (m_bytes > m_reservedBytes)
+				{
+					reserveChunk();
+					m_reservedBytes += m_reserveChunk;
+				}
+
+				m_memoryMonitor.checkMemoryAndThrowException();
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				addBlocks(m_seriesKey, m_blocks);
+			}
+		}
+	}
+
+	//===========================================================================
+	private static class BlockSearchResult implements SearchResult
+	{
+		private final String m_metricName;
+		private final Map<SeriesKey, List<Block>> m_series;
+		private final long m_startTime;
+		private final long m_endTime;
+		private final Order m_order;
+		private final KairosDataPointFactory m_dataPointFactory;
+
+		private BlockSearchResult(String metricName, Map<SeriesKey, List<Block>> series,
+				long startTime, long endTime, Order order, KairosDataPointFactory dataPointFactory)
+		{
+			m_metricName = metricName;
+			m_series = series;
+			m_startTime = startTime;
+			m_endTime = endTime;
+			m_order = order;
+			m_dataPointFactory = dataPointFactory;
+		}
+
+		@Override
+		public List<DataPointRow> getRows()
+		{
+			List<DataPointRow> rows = new ArrayList<>();
+			for (Map.Entry<SeriesKey, List<Block>> entry : m_series.entrySet())
+			{
+				BlockDataPointRow row = new BlockDataPointRow(m_metricName, entry.getKey(),
+						entry.getValue(), m_startTime, m_endTime, m_order, m_dataPointFactory);
+				if (row.getDataPointCount() != 0)
+					rows.add(row);
+			}
+
+			return rows;
+		}
+
+		@Override
+		public DataPointWriter startDataPointSet(String dataType, SortedMap<String, String> tags)
+		{
+			throw new UnsupportedOperationException("Cached results are read only");
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Iterates the blocks of one series restricted to the query range.  Blocks
+	 are decoded one at a time as the row is read.
+	 */
+	private static class BlockDataPointRow implements DataPointRow
+	{
+		private final String m_metricName;
+		private final SeriesKey m_seriesKey;
+		private final List<Block> m_blocks;
+		private final long m_startTime;
+		private final long m_endTime;
+		private final boolean m_descending;
+		private final DataPointFactory m_dataPointFactory;
+		private final int m_dataPointCount;
+
+		private int m_blockIndex;
+		private Iterator<DataPoint> m_current = Collections.emptyIterator();
+
+		private BlockDataPointRow(String metricName, SeriesKey seriesKey, List<Block> blocks,
+				long startTime, long endTime, Order order, KairosDataPointFactory dataPointFactory)
+		{
+			m_metricName = metricName;
+			m_seriesKey = seriesKey;
+			m_blocks = blocks;
+			m_startTime = startTime;
+			m_endTime = endTime;
+			m_descending = order == Order.DESC;
+			m_dataPointFactory = dataPointFactory.getFactoryForDataStoreType(seriesKey.m_dataType);
+
+			int count = 0;
+			for (Block block : blocks)
+			{
+				count += block.upperBound(endTime) - block.lowerBound(startTime);
+			}
+			m_dataPointCount = count;
+		}
+
+		@Override
+		public String getName()
+		{
+			return m_metricName;
+		}
+
+		@Override
+		public String getDatastoreType()
+		{
+			return m_seriesKey.m_dataType;
+		}
+
+		@Override
+		public Set<String> getTagNames()
+		{
+			return m_seriesKey.m_tags.keySet();
+		}
+
+		@Override
+		public String getTagValue(String tag)
+		{
+			return m_seriesKey.m_tags.get(tag);
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public int getDataPointCount()
+		{
+			return m_dataPointCount;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (!m_current.hasNext() && m_blockIndex < m_blocks.size())
+			{
+				Block block = m_blocks.get(m_descending ? m_blocks.size() - 1 - m_blockIndex : m_blockIndex);
+				m_blockIndex++;
+
+				try
+				{
+					List<DataPoint> dataPoints = block.decode(m_dataPointFactory,
+							block.lowerBound(m_startTime), block.upperBound(m_endTime));
+					if (m_descending)
+						Collections.reverse(dataPoints);
+					m_current = dataPoints.iterator();
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+
+			return m_current.hasNext();
+		}
+
+		@Override
+		public DataPoint next()
+		{
+			hasNext();
+			return m_current.next();
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.aggregator.RangeAggregator;
+import org.kairosdb.core.groupby.TimeGroupBy;
+import org.kairosdb.plugin.Aggregator;
+import org.kairosdb.plugin.GroupBy;
+
+import java.util.List;
+
+/**
+ Which results of a query have to be computed again to bring the results of
+ a previous run of the same query up to date.
+
+ Data points written since the previous run are at or after the end of that
+ run less the late arrival time, moving the start of the query forward drops
+ the data points before the new start.  Only the ranges of the aggregators
+ holding those data points change, so the results are split in three:
+ <ul>
+ <li>results before the head end, read again from the start of the query</li>
+ <li>results from the head end to the tail start, unchanged since the previous run</li>
+ <li>results at or after the tail start, read again from the tail read start</li>
+ </ul>
+ The aggregators keep the start time of the whole query so the ranges of the
+ partial reads are the same as the ranges of a full run.  Ranges that are
+ only partly read give data points outside the head or tail, these have to be
+ dropped from the partial results.
+
+ This only works when every aggregator is a range aggregator with
+ align_sampling, otherwise moving the start of the query moves the ranges.
+ Aggregators like lttb that look at neighbouring ranges can't be refreshed
+ either.
+ */
+public class RefreshPlan
+{
+	private final long m_startTime;
+	private final long m_headEnd;
+	private final long m_headReadEnd;
+	private final long m_tailStart;
+	private final long m_tailReadStart;
+
+	private RefreshPlan(long startTime, long headEnd, long headReadEnd, long tailStart, long tailReadStart)
+	{
+		m_startTime = startTime;
+		m_headEnd = headEnd;
+		m_headReadEnd = headReadEnd;
+		m_tailStart = tailStart;
+		m_tailReadStart = tailReadStart;
+	}
+
+	/**
+	 True if the results of the query can be brought up to date without
+	 running it again from the start.
+	 */
+	public static boolean canRefresh(QueryMetric query)
+	{
+		if (query.getLimit() != 0 || query.getOrder() != Order.ASC || !query.getPlugins().isEmpty())
+			return false;
+
+		for (GroupBy groupBy : query.getGroupBys())
+		{
+			if (groupBy instanceof TimeGroupBy)
+				return false;
+		}
+
+		for (Aggregator aggregator : query.getAggregators())
+		{
+			if (!(aggregator instanceof RangeAggregator))
+				return false;
+
+			RangeAggregator rangeAggregator = (RangeAggregator) aggregator;
+			if (!rangeAggregator.isAlignSampling() || rangeAggregator.isExhaustive() ||
+					!rangeAggregator.isRangeIndependent())
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 @param query             query with the start time of this run
+	 @param endTime           end of this run, the end of the query or now if that is earlier
+	 @param previousStartTime start of the query in the previous run
+	 @param previousEndTime   end of the previous run
+	 @param lateArrival       milliseconds data points may be written after their timestamp
+	 @return the plan or null if the query has to be run again from the start
+	 */
+	public static RefreshPlan create(QueryMetric query, long endTime, long previousStartTime,
+			long previousEndTime, long lateArrival)
+	{
+		long startTime = query.getStartTime();
+		if (!canRefresh(query) || startTime < previousStartTime || endTime < previousEndTime)
+			return null;
+
+		//Data points at or after this may have been written since the previous run
+		long changedFrom = previousEndTime - lateArrival;
+		if (changedFrom <= startTime)
+			return null;
+
+		List<Aggregator> aggregators = query.getAggregators();
+		int count = aggregators.size();
+		RangeAggregator[] rangeAggregators = new RangeAggregator[count];
+		long[] origins = new long[count];
+		long[] changedRangeStarts = new long[count];
+		long[] changedRangeEnds = new long[count];
+
+		//Follow the changed data points through the aggregators.  The results
+		//before headEnd and at or after tailStart change, the rest stays.
+		long headEnd = startTime;
+		long tailStart = changedFrom;
+		for (int I = 0; I < count; I++)
+		{
+			RangeAggregator aggregator = (RangeAggregator) aggregators.get(I);
+			rangeAggregators[I] = aggregator;
+			origins[I] = aggregator.getRangeOrigin(startTime);
+
+			//Moving the start of the query must not move the ranges
+			if (aggregator.getRangeOrigin(previousStartTime) != origins[I])
+				return null;
+
+			//With align_end_time the result of a range is at the start of the next one
+			int endOffset = aggregator.isAlignEndTime() ? 1 : 0;
+
+			if (startTime != previousStartTime)
+			{
+				changedRangeEnds[I] = getRangeEnd(aggregator, origins[I], headEnd - 1);
+				headEnd = changedRangeEnds[I] + endOffset;
+			}
+
+			changedRangeStarts[I] = getRangeStart(aggregator, origins[I], tailStart);
+			tailStart = changedRangeStarts[I] + endOffset;
+
+			if (headEnd > tailStart)
+				return null;
+		}
+
+		//Then work back to the data points the changed ranges are made of
+		long headReadEnd = headEnd;
+		long tailReadStart = tailStart;
+		if (count != 0)
+		{
+			if (startTime != previousStartTime)
+				headReadEnd = changedRangeEnds[count - 1];
+			tailReadStart = changedRangeStarts[count - 1];
+
+			for (int I = count - 2; I >= 0; I--)
+			{
+				RangeAggregator aggregator = rangeAggregators[I];
+				if (startTime != previousStartTime)
+					headReadEnd = getRangeEnd(aggregator, origins[I], headReadEnd - 1);
+
+				tailReadStart = getRangeStart(aggregator, origins[I],
+						aggregator.isAlignEndTime() ? tailReadStart - 1 : tailReadStart);
+			}
+		}
+
+		//Aggregators that don't handle the type of a group pass the data points through
+		headReadEnd = Math.max(headReadEnd, headEnd);
+		tailReadStart = Math.max(Math.min(tailReadStart, tailStart), startTime);
+
+		//Not worth it when the head and the tail meet
+		if (headReadEnd >= tailReadStart)
+			return null;
+
+		return new RefreshPlan(startTime, headEnd, headReadEnd, tailStart, tailReadStart);
+	}
+
+	private static long getRangeStart(RangeAggregator aggregator, long origin, long timestamp)
+	{
+		return aggregator.getRangeStart(Math.max(timestamp, origin));
+	}
+
+	private static long getRangeEnd(RangeAggregator aggregator, long origin, long timestamp)
+	{
+		return aggregator.getRangeEnd(Math.max(timestamp, origin));
+	}
+
+	/**
+	 True if results before the head end have to be read again
+	 */
+	public boolean hasHead()
+	{
+		return m_headReadEnd > m_startTime;
+	}
+
+	/**
+	 Results of the previous run before this are replaced by the head results
+	 */
+	public long getHeadEnd()
+	{
+		return m_headEnd;
+	}
+
+	/**
+	 The head is read from the start of the query up to this time, exclusive
+	 */
+	public long getHeadReadEnd()
+	{
+		return m_headReadEnd;
+	}
+
+	/**
+	 Results of the previous run at or after this are replaced by the tail results
+	 */
+	public long getTailStart()
+	{
+		return m_tailStart;
+	}
+
+	/**
+	 The tail is read from this time to the end of the query
+	 */
+	public long getTailReadStart()
+	{
+		return m_tailReadStart;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RefreshPlan{" +
+				"headEnd=" + m_headEnd +
+				", headReadEnd=" + m_headReadEnd +
+				", tailStart=" + m_tailStart +
+				", tailReadStart=" + m_tailReadStart +
+				'}';
+	}
+}
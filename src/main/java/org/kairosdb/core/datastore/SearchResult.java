@@ -8,4 +8,25 @@ import java.util.List;
 public interface SearchResult extends QueryCallback
 {
 	List<DataPointRow> getRows();
+
+	/**
+	 Keeps the underlying resources open until the matching call to release.
+	 Used when several queries share the same result.
+	 */
+	default void retain()
+	{
+	}
+
+	default void release()
+	{
+	}
+
+	/**
+	 Called instead of getRows when the query writing the result failed or
+	 was cancelled.  Anything written so far is thrown away so a partial
+	 result is never read back from the cache.
+	 */
+	default void discard()
+	{
+	}
 }
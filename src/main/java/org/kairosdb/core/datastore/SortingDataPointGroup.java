@@ -18,22 +18,29 @@ package org.kairosdb.core.datastore;
 
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.groupby.GroupByResult;
-import org.kairosdb.util.TournamentTree;
+import org.kairosdb.util.LoserTree;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
 public class SortingDataPointGroup extends AbstractDataPointGroup
 {
-	private TournamentTree<DataPoint> m_tree;
+	//Data points with the same timestamp are sorted by value
+	private static final Comparator<DataPoint> VALUE_COMPARATOR =
+			(point1, point2) -> Double.compare(point1.getDoubleValue(), point2.getDoubleValue());
+
+	//The tree doesn't read the iterators until this group is read so they can
+	//be read directly instead, see getDataPointGroups()
+	private LoserTree<DataPoint> m_tree;
 	//We keep this list so we can close the iterators
 	private List<DataPointGroup> m_taggedDataPointsList = new ArrayList<>();
 
 	public SortingDataPointGroup(String name, Order order)
 	{
 		super(name);
-		m_tree = new TournamentTree<>(new DataPointComparator(), order);
+		m_tree = new LoserTree<>(DataPoint::getTimestamp, VALUE_COMPARATOR, order);
 	}
 
 	public SortingDataPointGroup(List<DataPointGroup> listDataPointGroup, Order order)
@@ -62,6 +69,15 @@ public class SortingDataPointGroup extends AbstractDataPointGroup
 		m_taggedDataPointsList.add(taggedDataPoints);
 	}
 
+	/**
+	 Returns the groups being sorted.  They can be read directly instead of
+	 reading this group, for example when they are aggregated separately, but
+	 not both.
+	 */
+	public List<DataPointGroup> getDataPointGroups()
+	{
+		return Collections.unmodifiableList(m_taggedDataPointsList);
+	}
 
 	@Override
 	public void close()
@@ -83,24 +99,4 @@ public class SortingDataPointGroup extends AbstractDataPointGroup
 	{
 		return m_tree.nextElement();
 	}
-
-
-	private static class DataPointComparator implements Comparator<DataPoint>
-	{
-		@Override
-		public int compare(DataPoint point1, DataPoint point2)
-		{
-			long ret = point1.getTimestamp() - point2.getTimestamp();
-
-			if (ret == 0L)
-				ret = Double.compare(point1.getDoubleValue(), point2.getDoubleValue());
-
-			if (ret == 0L)
-			{  //Simple hack to break a tie.
-				ret = System.identityHashCode(point1) - System.identityHashCode(point2);
-			}
-
-			return (ret < 0L ? -1 : 1);
-		}
-	}
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.groupby.GroupByResult;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ Returns only the data points of the inner group with a timestamp at or
+ after the start and before the end.
+ */
+public class TimeRangeDataPointGroup implements DataPointGroup
+{
+	private final DataPointGroup m_innerGroup;
+	private final long m_startTime;
+	private final long m_endTime;
+	private DataPoint m_next;
+
+	public TimeRangeDataPointGroup(DataPointGroup innerGroup, long startTime, long endTime)
+	{
+		m_innerGroup = innerGroup;
+		m_startTime = startTime;
+		m_endTime = endTime;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		while (m_next == null && m_innerGroup.hasNext())
+		{
+			DataPoint dataPoint = m_innerGroup.next();
+			if (dataPoint.getTimestamp() >= m_startTime && dataPoint.getTimestamp() < m_endTime)
+				m_next = dataPoint;
+		}
+
+		return m_next != null;
+	}
+
+	@Override
+	public DataPoint next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		DataPoint ret = m_next;
+		m_next = null;
+		return ret;
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getName()
+	{
+		return m_innerGroup.getName();
+	}
+
+	@Override
+	public List<GroupByResult> getGroupByResult()
+	{
+		return m_innerGroup.getGroupByResult();
+	}
+
+	@Override
+	public Set<String> getTagNames()
+	{
+		return m_innerGroup.getTagNames();
+	}
+
+	@Override
+	public Set<String> getTagValues(String tag)
+	{
+		return m_innerGroup.getTagValues(tag);
+	}
+
+	@Override
+	public void close()
+	{
+		m_innerGroup.close();
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.formatter;
+
+import com.google.common.base.Charsets;
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LegacyDoubleDataPoint;
+import org.kairosdb.core.datapoints.LegacyLongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.groupby.GroupByResult;
+import org.kairosdb.core.reporting.QueryProfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Set;
+
+import static org.kairosdb.util.Util.packLong;
+import static org.kairosdb.util.Util.packUnsignedLong;
+
+/**
+ Writes query results in a compact binary format for clients that read large
+ amounts of data.  Data points are streamed from the groups into blocks, so
+ only one block is held in memory at a time.
+
+ <pre>
+ response   := "KDBC" version:byte (query)* END
+ query      := QUERY sample_size:int (group)*
+ group      := GROUP name:string group_by_count:varint (group_by_json:string)*
+               tag_count:varint (tag_name:string value_count:varint (value:string)*)*
+               (block)* 0:varint
+ block      := count:varint type:byte timestamps values
+ timestamps := zigzag varint delta from the previous timestamp in the group
+               (0 before the first) for each data point
+ values     := LONG   zigzag varint for each data point
+               DOUBLE for each data point the bits are xor'd with the previous
+                      value in the block (0 for the first).  A byte holds the
+                      number of leading zero bytes in the high four bits and
+                      trailing zero bytes in the low four bits, followed by the
+                      remaining bytes of the xor, most significant first.
+               JSON   the value as written to a JSON response, as a string
+ string     := length:varint UTF-8 bytes
+ </pre>
+ varints are the protobuf encoding, sample_size is big endian.  A block only
+ holds one type, a new block is started when the type changes.
+ */
+public class ColumnarResponse implements QueryResponseFormatter
+{
+	public static final String MEDIA_TYPE = "application/vnd.kairosdb.columnar";
+
+	public static final byte[] MAGIC = {'K', 'D', 'B', 'C'};
+	public static final byte VERSION = 1;
+
+	public static final byte END = 0;
+	public static final byte QUERY = 1;
+	public static final byte GROUP = 2;
+
+	public static final byte TYPE_LONG = 0;
+	public static final byte TYPE_DOUBLE = 1;
+	public static final byte TYPE_JSON = 2;
+
+	public static final int BLOCK_SIZE = 1024;
+
+	private final DataOutputStream m_output;
+
+	//Current block
+	private final long[] m_timestamps = new long[BLOCK_SIZE];
+	private final long[] m_values = new long[BLOCK_SIZE];
+	private final String[] m_jsonValues = new String[BLOCK_SIZE];
+	private int m_blockSize;
+	private byte m_blockType;
+	private long m_lastTimestamp;
+
+	public ColumnarResponse(OutputStream outputStream)
+	{
+		m_output = new DataOutputStream(outputStream);
+	}
+
+	/**
+	 Returns true if the Accept header of a request asks for this format.
+	 */
+	public static boolean isAccepted(String acceptHeader)
+	{
+		if (acceptHeader == null)
+			return false;
+
+		for (String mediaType : acceptHeader.split(","))
+		{
+			int paramStart = mediaType.indexOf(';');
+			if (paramStart != -1)
+				mediaType = mediaType.substring(0, paramStart);
+
+			if (mediaType.trim().equalsIgnoreCase(MEDIA_TYPE))
+				return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public void begin() throws FormatterException
+	{
+		try
+		{
+			m_output.write(MAGIC);
+			m_output.writeByte(VERSION);
+		}
+		catch (IOException e)
+		{
+			throw new FormatterException(e);
+		}
+	}
+
+	/**
+	 Writes the results of a query.  The profile is not included in this
+	 format, the time spent is still recorded in it.
+	 */
+	@Override
+	public void formatQuery(List<DataPointGroup> queryResults, boolean excludeTags, int sampleSize,
+			QueryProfile profile) throws FormatterException
+	{
+		long formatStartTime = System.nanoTime();
+		long aggregateStartTime = 0;
+		long dataPointCount = 0;
+		if (profile != null)
+			aggregateStartTime = profile.getTime(QueryProfile.Phase.AGGREGATE);
+
+		try
+		{
+			m_output.writeByte(QUERY);
+			m_output.writeInt(sampleSize);
+
+			//Don't close the groups the caller will do that.
+			for (DataPointGroup group : queryResults)
+			{
+				m_output.writeByte(GROUP);
+				writeString(group.getName());
+
+				List<GroupByResult> groupByResults = group.getGroupByResult();
+				packUnsignedLong(groupByResults.size(), m_output);
+				for (GroupByResult groupByResult : groupByResults)
+					writeString(groupByResult.toJson());
+
+				if (excludeTags)
+					packUnsignedLong(0, m_output);
+				else
+				{
+					Set<String> tagNames = group.getTagNames();
+					packUnsignedLong(tagNames.size(), m_output);
+					for (String tagName : tagNames)
+					{
+						writeString(tagName);
+						Set<String> tagValues = group.getTagValues(tagName);
+						packUnsignedLong(tagValues.size(), m_output);
+						for (String tagValue : tagValues)
+							writeString(tagValue);
+					}
+				}
+
+				dataPointCount += writeDataPoints(group);
+			}
+
+			if (profile != null)
+			{
+				long aggregateTime = profile.getTime(QueryProfile.Phase.AGGREGATE) - aggregateStartTime;
+				profile.addTime(QueryProfile.Phase.FORMAT, System.nanoTime() - formatStartTime - aggregateTime);
+				profile.addDataPoints(QueryProfile.Phase.FORMAT, dataPointCount);
+			}
+		}
+		catch (IOException | JSONException e)
+		{
+			throw new FormatterException(e);
+		}
+	}
+
+	@Override
+	public void end() throws FormatterException
+	{
+		try
+		{
+			m_output.writeByte(END);
+			m_output.flush();
+		}
+		catch (IOException e)
+		{
+			throw new FormatterException(e);
+		}
+	}
+
+	private long writeDataPoints(DataPointGroup group) throws IOException, FormatterException
+	{
+		long count = 0;
+		m_blockSize = 0;
+		m_lastTimestamp = 0;
+
+		while (group.hasNext())
+		{
+			DataPoint dataPoint = group.next();
+			byte type = getType(dataPoint);
+
+			if (m_blockSize == BLOCK_SIZE || (m_blockSize != 0 && type != m_blockType))
+				writeBlock();
+
+			m_blockType = type;
+			m_timestamps[m_blockSize] = dataPoint.getTimestamp();
+			if (type == TYPE_LONG)
+				m_values[m_blockSize] = dataPoint.getLongValue();
+			else if (type == TYPE_DOUBLE)
+				m_values[m_blockSize] = Double.doubleToRawLongBits(dataPoint.getDoubleValue());
+			else
+				m_jsonValues[m_blockSize] = toJson(dataPoint);
+
+			m_blockSize++;
+			count++;
+		}
+
+		if (m_blockSize != 0)
+			writeBlock();
+
+		packUnsignedLong(0, m_output);
+
+		return count;
+	}
+
+	private void writeBlock() throws IOException
+	{
+		packUnsignedLong(m_blockSize, m_output);
+		m_output.writeByte(m_blockType);
+
+		for (int I = 0; I < m_blockSize; I++)
+		{
+			packLong(m_timestamps[I] - m_lastTimestamp, m_output);
+			m_lastTimestamp = m_timestamps[I];
+		}
+
+		if (m_blockType == TYPE_LONG)
+		{
+			for (int I = 0; I < m_blockSize; I++)
+				packLong(m_values[I], m_output);
+		}
+		else if (m_blockType == TYPE_DOUBLE)
+		{
+			long previous = 0;
+			for (int I = 0; I < m_blockSize; I++)
+			{
+				writeXor(m_values[I] ^ previous);
+				previous = m_values[I];
+			}
+		}
+		else
+		{
+			for (int I = 0; I < m_blockSize; I++)
+			{
+				writeString(m_jsonValues[I]);
+				m_jsonValues[I] = null;
+			}
+		}
+
+		m_blockSize = 0;
+	}
+
+	private void writeXor(long xor) throws IOException
+	{
+		if (xor == 0)
+		{
+			m_output.writeByte(8 << 4);
+			return;
+		}
+
+		int leading = Long.numberOfLeadingZeros(xor) / 8;
+		int trailing = Long.numberOfTrailingZeros(xor) / 8;
+		m_output.writeByte((leading << 4) | trailing);
+
+		for (int shift = (7 - leading) * 8; shift >= trailing * 8; shift -= 8)
+			m_output.writeByte((int) (xor >>> shift));
+	}
+
+	private void writeString(String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(Charsets.UTF_8);
+		packUnsignedLong(bytes.length, m_output);
+		m_output.write(bytes);
+	}
+
+	private static byte getType(DataPoint dataPoint)
+	{
+		Class<?> type = dataPoint.getClass();
+		if (type == LongDataPoint.class || type == LegacyLongDataPoint.class)
+			return TYPE_LONG;
+		else if (type == DoubleDataPoint.class || type == LegacyDoubleDataPoint.class)
+			return TYPE_DOUBLE;
+		else
+			return TYPE_JSON;
+	}
+
+	private static String toJson(DataPoint dataPoint) throws FormatterException
+	{
+		try
+		{
+			StringWriter writer = new StringWriter();
+			JSONWriter jsonWriter = new JSONWriter(writer);
+			jsonWriter.array();
+			dataPoint.writeValueToJson(jsonWriter);
+			jsonWriter.endArray();
+
+			String json = writer.toString();
+			return json.substring(1, json.length() - 1);
+		}
+		catch (JSONException e)
+		{
+			throw new FormatterException(e);
+		}
+	}
+}
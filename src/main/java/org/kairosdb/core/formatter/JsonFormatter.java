@@ -100,6 +100,10 @@ public class JsonFormatter implements DataFormatter
 					jsonWriter.endObject();
 
 					jsonWriter.key("values").array();
+					//Writes the whole group, leaving nothing for the loop below
+					if (writer instanceof Utf8JsonWriter)
+						JsonResponse.writeValues((Utf8JsonWriter) writer, group);
+
 					while (group.hasNext())
 					{
 						DataPoint dataPoint = group.next();
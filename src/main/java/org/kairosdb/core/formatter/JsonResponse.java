@@ -19,24 +19,38 @@ package org.kairosdb.core.formatter;
 import org.json.JSONException;
 import org.json.JSONWriter;
 import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LegacyDoubleDataPoint;
+import org.kairosdb.core.datapoints.LegacyLongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
 import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.RefreshPlan;
 import org.kairosdb.core.groupby.GroupByResult;
+import org.kairosdb.core.reporting.QueryProfile;
 
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
 
-public class JsonResponse
+public class JsonResponse implements QueryResponseFormatter
 {
 	private Writer m_writer;
 	private JSONWriter m_jsonWriter;
+	private Utf8JsonWriter m_utf8Writer;
 
+	/**
+	 @param writer writer for the response.  If it is a Utf8JsonWriter the data
+	               points are written directly to it instead of through JSONWriter.
+	 */
 	public JsonResponse(Writer writer)
 	{
 		m_writer = writer;
 		m_jsonWriter = new JSONWriter(writer);
+		if (writer instanceof Utf8JsonWriter)
+			m_utf8Writer = (Utf8JsonWriter) writer;
 	}
 
+	@Override
 	public void begin() throws FormatterException
 	{
 		try
@@ -60,6 +74,48 @@ public class JsonResponse
 	 */
 	public void formatQuery(List<DataPointGroup> queryResults, boolean excludeTags, int sampleSize) throws FormatterException
 	{
+		formatQuery(queryResults, excludeTags, sampleSize, null);
+	}
+
+	/**
+	 * Formats the query results and records the time spent in the profile.
+	 *
+	 * @param queryResults results of the query
+	 * @param excludeTags if true do not include tag information
+	 * @param sampleSize   Passing a sample size of -1 will cause the attribute to not show up
+	 * @param profile      profile of the query, may be null.  The profile is
+	 *                     written after the results if it was requested with the query.
+	 * @throws FormatterException
+	 */
+	@Override
+	public void formatQuery(List<DataPointGroup> queryResults, boolean excludeTags, int sampleSize,
+			QueryProfile profile) throws FormatterException
+	{
+		formatQuery(queryResults, excludeTags, sampleSize, profile, null);
+	}
+
+	/**
+	 * Formats the results of a query that only computed what changed since a
+	 * previous run.  The head end and tail start of the plan are written with
+	 * the results, the client replaces the previous results before the head
+	 * end and at or after the tail start with these.
+	 *
+	 * @param queryResults results of the query
+	 * @param excludeTags if true do not include tag information
+	 * @param sampleSize   Passing a sample size of -1 will cause the attribute to not show up
+	 * @param profile      profile of the query, may be null
+	 * @param refresh      plan the results were computed with, null for a full run
+	 * @throws FormatterException
+	 */
+	public void formatQuery(List<DataPointGroup> queryResults, boolean excludeTags, int sampleSize,
+			QueryProfile profile, RefreshPlan refresh) throws FormatterException
+	{
+		long formatStartTime = System.nanoTime();
+		long aggregateStartTime = 0;
+		long dataPointCount = 0;
+		if (profile != null)
+			aggregateStartTime = profile.getTime(QueryProfile.Phase.AGGREGATE);
+
 		try
 		{
 			m_jsonWriter.object();
@@ -67,6 +123,14 @@ public class JsonResponse
 			if (sampleSize != -1)
 				m_jsonWriter.key("sample_size").value(sampleSize);
 
+			if (refresh != null)
+			{
+				m_jsonWriter.key("refresh").object();
+				m_jsonWriter.key("head_end").value(refresh.getHeadEnd());
+				m_jsonWriter.key("tail_start").value(refresh.getTailStart());
+				m_jsonWriter.endObject();
+			}
+
 			m_jsonWriter.key("results").array();
 
 			//This loop must call close on each group at the end.
@@ -105,6 +169,10 @@ public class JsonResponse
 				}
 
 				m_jsonWriter.key("values").array();
+				//Writes the whole group, leaving nothing for the loop below
+				if (m_utf8Writer != null)
+					dataPointCount += writeValues(m_utf8Writer, group);
+
 				while (group.hasNext())
 				{
 					DataPoint dataPoint = group.next();
@@ -126,6 +194,7 @@ public class JsonResponse
 						m_jsonWriter.value(value);
 					}*/
 					m_jsonWriter.endArray();
+					dataPointCount ++;
 				}
 				m_jsonWriter.endArray();
 				m_jsonWriter.endObject();
@@ -133,7 +202,24 @@ public class JsonResponse
 				//Don't close the group the caller will do that.
 			}
 
-			m_jsonWriter.endArray().endObject();
+			m_jsonWriter.endArray();
+
+			if (profile != null)
+			{
+				//Aggregation happens as the data points are pulled through the
+				//groups so it is taken out of the format time.
+				long aggregateTime = profile.getTime(QueryProfile.Phase.AGGREGATE) - aggregateStartTime;
+				profile.addTime(QueryProfile.Phase.FORMAT, System.nanoTime() - formatStartTime - aggregateTime);
+				profile.addDataPoints(QueryProfile.Phase.FORMAT, dataPointCount);
+
+				if (profile.isReturnInResponse())
+				{
+					m_jsonWriter.key("profile");
+					profile.writeJson(m_jsonWriter);
+				}
+			}
+
+			m_jsonWriter.endObject();
 		}
 		catch (JSONException e)
 		{
@@ -145,11 +231,77 @@ public class JsonResponse
 		}
 	}
 
+	/**
+	 Writes the data points of the group as [timestamp, value] pairs separated
+	 by commas.  Long and double values are formatted by the writer, other
+	 types are written by the data point through a JSONWriter.
+
+	 @return number of data points written
+	 */
+	static long writeValues(Utf8JsonWriter writer, DataPointGroup group) throws IOException, JSONException
+	{
+		long count = 0;
+		while (group.hasNext())
+		{
+			DataPoint dataPoint = group.next();
+
+			if (count != 0)
+				writer.writeAscii(',');
+
+			Class<?> type = dataPoint.getClass();
+			if (type == LongDataPoint.class || type == LegacyLongDataPoint.class)
+			{
+				writer.writeAscii('[');
+				writer.writeLong(dataPoint.getTimestamp());
+				writer.writeAscii(',');
+				writer.writeLong(dataPoint.getLongValue());
+				writer.writeAscii(']');
+			}
+			else if ((type == DoubleDataPoint.class || type == LegacyDoubleDataPoint.class) &&
+					isFinite(dataPoint.getDoubleValue()))
+			{
+				writer.writeAscii('[');
+				writer.writeLong(dataPoint.getTimestamp());
+				writer.writeAscii(',');
+				writer.writeDouble(dataPoint.getDoubleValue());
+				writer.writeAscii(']');
+			}
+			else
+			{
+				//Also reports NaN and Infinity the same way as before
+				JSONWriter jsonWriter = new JSONWriter(writer);
+				jsonWriter.array().value(dataPoint.getTimestamp());
+				dataPoint.writeValueToJson(jsonWriter);
+				jsonWriter.endArray();
+			}
+
+			count++;
+		}
+
+		return count;
+	}
+
+	private static boolean isFinite(double value)
+	{
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	@Override
 	public void end() throws FormatterException
+	{
+		end(null);
+	}
+
+	/**
+	 @param refreshToken token to send with the next run of the query, may be null
+	 */
+	public void end(String refreshToken) throws FormatterException
 	{
 		try
 		{
 			m_jsonWriter.endArray();
+			if (refreshToken != null)
+				m_jsonWriter.key("refresh_token").value(refreshToken);
 			m_jsonWriter.endObject();
 		}
 		catch (JSONException e)
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.formatter;
+
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.reporting.QueryProfile;
+
+import java.util.List;
+
+/**
+ Writes the response to /datapoints/query.  begin is called once, then
+ formatQuery for each query in the request and then end.
+ */
+public interface QueryResponseFormatter
+{
+	void begin() throws FormatterException;
+
+	/**
+	 @param queryResults results of the query, the caller closes them
+	 @param excludeTags  if true do not include tag information
+	 @param sampleSize   Passing a sample size of -1 will cause the attribute to not show up
+	 @param profile      profile of the query, may be null
+	 */
+	void formatQuery(List<DataPointGroup> queryResults, boolean excludeTags, int sampleSize,
+			QueryProfile profile) throws FormatterException;
+
+	void end() throws FormatterException;
+}
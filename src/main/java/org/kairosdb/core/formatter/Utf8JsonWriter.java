@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.formatter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Buffered writer that encodes straight to UTF-8 bytes and can write longs and
+ doubles without creating strings.  It can be handed to a JSONWriter for the
+ structure of a response while numbers are written directly, the output is
+ the same as JSONWriter.value() for the same number.
+
+ Not thread safe.
+ */
+public class Utf8JsonWriter extends Writer
+{
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	//Doubles with this many decimal places or less are formatted directly
+	private static final int MAX_FAST_DECIMALS = 6;
+	private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+	private static final long[] LONG_POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+
+	//Double.toString() uses plain notation between these
+	private static final double PLAIN_MIN = 1e-3;
+	private static final double PLAIN_MAX = 1e7;
+
+	private final OutputStream m_outputStream;
+	private final byte[] m_buffer;
+	private int m_position;
+	private char m_highSurrogate;
+
+	public Utf8JsonWriter(OutputStream outputStream)
+	{
+		this(outputStream, DEFAULT_BUFFER_SIZE);
+	}
+
+	public Utf8JsonWriter(OutputStream outputStream, int bufferSize)
+	{
+		m_outputStream = checkNotNull(outputStream);
+		//Room for the longest number so it never has to be split
+		m_buffer = new byte[Math.max(bufferSize, 64)];
+	}
+
+	@Override
+	public void write(int c) throws IOException
+	{
+		writeChar((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		for (int I = off; I < off + len; I++)
+			writeChar(cbuf[I]);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException
+	{
+		for (int I = off; I < off + len; I++)
+			writeChar(str.charAt(I));
+	}
+
+	/**
+	 Writes a character that is known to be ASCII.
+	 */
+	public void writeAscii(char c) throws IOException
+	{
+		ensureCapacity(1);
+		m_buffer[m_position++] = (byte) c;
+	}
+
+	/**
+	 Writes the value the same as Long.toString().
+	 */
+	public void writeLong(long value) throws IOException
+	{
+		ensureCapacity(20);
+
+		if (value == Long.MIN_VALUE)
+		{
+			writeAsciiString(Long.toString(value), 0, 20);
+			return;
+		}
+
+		if (value < 0)
+		{
+			m_buffer[m_position++] = '-';
+			value = -value;
+		}
+
+		writeDigits(value, digitCount(value));
+	}
+
+	/**
+	 Writes a finite double the same as JSONWriter.value(double), which is
+	 Double.toString() with trailing zeros after the decimal point removed.
+	 Values with a few decimal places in the range where Double.toString()
+	 doesn't use an exponent are formatted without creating a string.
+	 */
+	public void writeDouble(double value) throws IOException
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("NaN or Infinity: " + value);
+
+		ensureCapacity(32);
+
+		if (value == 0)
+		{
+			//Double.toString() keeps the sign of negative zero
+			if (Double.doubleToRawLongBits(value) != 0)
+				m_buffer[m_position++] = '-';
+			m_buffer[m_position++] = '0';
+			return;
+		}
+
+		double abs = Math.abs(value);
+		if (abs >= PLAIN_MIN && abs < PLAIN_MAX)
+		{
+			//The fewest decimal places that parse back to the same double is
+			//what Double.toString() returns in this range
+			for (int decimals = 0; decimals <= MAX_FAST_DECIMALS; decimals++)
+			{
+				long scaled = Math.round(abs * POWERS_OF_TEN[decimals]);
+				if (scaled / POWERS_OF_TEN[decimals] == abs)
+				{
+					if (value < 0)
+						m_buffer[m_position++] = '-';
+					writeDecimal(scaled, decimals);
+					return;
+				}
+			}
+		}
+
+		String str = Double.toString(value);
+		int end = str.length();
+		if (str.indexOf('.') > 0 && str.indexOf('E') < 0)
+		{
+			while (str.charAt(end - 1) == '0')
+				end--;
+			if (str.charAt(end - 1) == '.')
+				end--;
+		}
+
+		writeAsciiString(str, 0, end);
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		flushBuffer();
+		m_outputStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (m_highSurrogate != 0)
+			{
+				m_highSurrogate = 0;
+				writeAscii('?');
+			}
+			flushBuffer();
+		}
+		finally
+		{
+			m_outputStream.close();
+		}
+	}
+
+	private void writeDecimal(long scaled, int decimals)
+	{
+		long integerPart = scaled / LONG_POWERS_OF_TEN[decimals];
+		writeDigits(integerPart, digitCount(integerPart));
+
+		if (decimals != 0)
+		{
+			m_buffer[m_position++] = '.';
+			writeDigits(scaled - integerPart * LONG_POWERS_OF_TEN[decimals], decimals);
+		}
+	}
+
+	/**
+	 Writes a non negative value as count digits, zero padded on the left.
+	 */
+	private void writeDigits(long value, int count)
+	{
+		int end = m_position + count;
+		for (int I = end - 1; I >= m_position; I--)
+		{
+			m_buffer[I] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		m_position = end;
+	}
+
+	private static int digitCount(long value)
+	{
+		int count = 1;
+		while (value >= 10)
+		{
+			value /= 10;
+			count++;
+		}
+
+		return count;
+	}
+
+	private void writeAsciiString(String str, int off, int end) throws IOException
+	{
+		ensureCapacity(end - off);
+		for (int I = off; I < end; I++)
+			m_buffer[m_position++] = (byte) str.charAt(I);
+	}
+
+	private void writeChar(char c) throws IOException
+	{
+		ensureCapacity(4);
+
+		if (m_highSurrogate != 0)
+		{
+			char high = m_highSurrogate;
+			m_highSurrogate = 0;
+
+			if (Character.isLowSurrogate(c))
+			{
+				int codePoint = Character.toCodePoint(high, c);
+				m_buffer[m_position++] = (byte) (0xF0 | (codePoint >> 18));
+				m_buffer[m_position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				m_buffer[m_position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				m_buffer[m_position++] = (byte) (0x80 | (codePoint & 0x3F));
+				return;
+			}
+
+			//Unpaired surrogate, replaced the same as OutputStreamWriter does
+			m_buffer[m_position++] = '?';
+			ensureCapacity(4);
+		}
+
+		if (c < 0x80)
+			m_buffer[m_position++] = (byte) c;
+		else if (c < 0x800)
+		{
+			m_buffer[m_position++] = (byte) (0xC0 | (c >> 6));
+			m_buffer[m_position++] = (byte) (0x80 | (c & 0x3F));
+		}
+		else if (Character.isHighSurrogate(c))
+			m_highSurrogate = c;
+		else if (Character.isLowSurrogate(c))
+			m_buffer[m_position++] = '?';
+		else
+		{
+			m_buffer[m_position++] = (byte) (0xE0 | (c >> 12));
+			m_buffer[m_position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			m_buffer[m_position++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void ensureCapacity(int length) throws IOException
+	{
+		if (m_position + length > m_buffer.length)
+			flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		if (m_position != 0)
+		{
+			m_outputStream.write(m_buffer, 0, m_position);
+			m_position = 0;
+		}
+	}
+}
@@ -20,6 +20,7 @@ import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.KairosDataPointFactory;
 import org.kairosdb.core.datapoints.DataPointFactory;
 import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.QueryMemoryTracker;
 import org.kairosdb.util.KDataInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +42,8 @@ public class Group
 	public static final int DATA_POINT_SIZE = 8 + 1 + 8; //timestamp + type flag + value
 	public static final int READ_BUFFER_SIZE = 60; //The number of data points to read into each buffer we could potentially have a lot of these so we keep them smaller
 	public static final int WRITE_BUFFER_SIZE = 500;
+	//Default sized BufferedOutputStream and BufferedInputStream of the group file
+	public static final int BUFFER_MEMORY = 8192 * 2;
 
 	public static final byte LONG_FLAG = 0x1;
 	public static final byte DOUBLE_FLAG = 0x2;
@@ -55,6 +58,7 @@ public class Group
 	private final KairosDataPointFactory dataPointFactory;
 	private final Map<String, Integer> storageTypeIdMap;
 	private final List<DataPointFactory> dataPointFactories;
+	private final QueryMemoryTracker m_memoryTracker;
 
 	private Group(File file, DataPointGroup dataPointGroup, List<GroupByResult> groupByResults,
 			KairosDataPointFactory dataPointFactory) throws FileNotFoundException
@@ -69,6 +73,10 @@ public class Group
 
 		m_groupCacheFile = file;
 
+		m_memoryTracker = QueryMemoryTracker.current();
+		if (m_memoryTracker != null)
+			m_memoryTracker.reserve(BUFFER_MEMORY);
+
 		m_dataOutputStream = new DataOutputStream(new BufferedOutputStream(
 				new FileOutputStream(m_groupCacheFile)));
 
@@ -187,6 +195,9 @@ public class Group
 			try
 			{
 				m_dataInputStream.close();
+				if (m_memoryTracker != null)
+					m_memoryTracker.release(BUFFER_MEMORY);
+
 				boolean fileDeleted = m_groupCacheFile.delete();
 
 				if (!fileDeleted)
@@ -5,6 +5,7 @@ import com.google.inject.Inject;
 import org.kairosdb.core.datastore.DataPointGroup;
 import org.kairosdb.core.datastore.DatastoreQuery;
 import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.datastore.QueryClass;
 import org.kairosdb.core.datastore.QueryMetric;
 import org.kairosdb.core.exception.DatastoreException;
 
@@ -32,9 +33,11 @@ public class DatastoreQueryHealthCheck extends HealthCheck implements HealthStat
 	@Override
 	protected Result check() throws Exception
 	{
-		try (DatastoreQuery query = datastore.createQuery(
-				new QueryMetric(System.currentTimeMillis() - (10 * 60 * 1000),
-						0, "kairosdb.jvm.thread_count")))
+		QueryMetric metric = new QueryMetric(System.currentTimeMillis() - (10 * 60 * 1000),
+				0, "kairosdb.jvm.thread_count");
+		metric.setQueryClass(QueryClass.HEALTH);
+
+		try (DatastoreQuery query = datastore.createQuery(metric))
 		{
 			List<DataPointGroup> results = query.execute();
 			return Result.healthy();
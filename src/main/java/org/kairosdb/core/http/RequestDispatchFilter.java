@@ -0,0 +1,317 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datapoints.LongDataPointFactory;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.core.datastore.QueryCancellation;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Moves api requests off of the Jetty threads.  Each request is put in async
+ mode and the rest of the filter chain runs on the pool for its kind of
+ request, so slow queries waiting on the query queue or on Cassandra can't
+ use up the threads that accept data points and answer health checks.
+ Each pool has a bounded queue, when it is full the request is answered with
+ a 503 right away.  A pool with 0 threads runs its requests on the Jetty
+ thread as before.
+ */
+public class RequestDispatchFilter implements Filter, KairosMetricReporter
+{
+	public static final Logger logger = LoggerFactory.getLogger(RequestDispatchFilter.class);
+
+	public static final String QUERY_THREADS = "kairosdb.jetty.query_pool.threads";
+	public static final String QUERY_QUEUE_SIZE = "kairosdb.jetty.query_pool.queue_size";
+	public static final String INGEST_THREADS = "kairosdb.jetty.ingest_pool.threads";
+	public static final String INGEST_QUEUE_SIZE = "kairosdb.jetty.ingest_pool.queue_size";
+	public static final String METADATA_THREADS = "kairosdb.jetty.metadata_pool.threads";
+	public static final String METADATA_QUEUE_SIZE = "kairosdb.jetty.metadata_pool.queue_size";
+
+	private static final String API_PREFIX = "/api/v1";
+	private static final String REJECTED_RESPONSE = "{\"errors\":[\"Server is too busy, try again later\"]}";
+
+	public enum RequestPool
+	{
+		/**
+		 Runs on the Jetty thread
+		 */
+		NONE,
+		QUERY,
+		INGEST,
+		METADATA
+	}
+
+	private final String m_hostName;
+	private final Map<RequestPool, ThreadPoolExecutor> m_executors = new EnumMap<>(RequestPool.class);
+	private final Map<RequestPool, AtomicLong> m_rejected = new EnumMap<>(RequestPool.class);
+
+	@Inject(optional = true)
+	@Named(QUERY_THREADS)
+	private int m_queryThreads = 10;
+
+	@Inject(optional = true)
+	@Named(QUERY_QUEUE_SIZE)
+	private int m_queryQueueSize = 100;
+
+	@Inject(optional = true)
+	@Named(INGEST_THREADS)
+	private int m_ingestThreads = 20;
+
+	@Inject(optional = true)
+	@Named(INGEST_QUEUE_SIZE)
+	private int m_ingestQueueSize = 500;
+
+	@Inject(optional = true)
+	@Named(METADATA_THREADS)
+	private int m_metadataThreads = 5;
+
+	@Inject(optional = true)
+	@Named(METADATA_QUEUE_SIZE)
+	private int m_metadataQueueSize = 100;
+
+	@Inject
+	private LongDataPointFactory m_dataPointFactory = new LongDataPointFactoryImpl();
+
+	@Inject
+	public RequestDispatchFilter(@Named("HOSTNAME") String hostName)
+	{
+		m_hostName = checkNotNullOrEmpty(hostName);
+
+		for (RequestPool pool : RequestPool.values())
+			m_rejected.put(pool, new AtomicLong());
+	}
+
+	/**
+	 Decides which pool handles a request from its uri.  Health checks and
+	 version run on the Jetty thread so they still answer when the pools are
+	 busy.
+	 */
+	static RequestPool getRequestPool(String uri)
+	{
+		if (!uri.startsWith(API_PREFIX))
+			return RequestPool.NONE;
+
+		String path = uri.substring(API_PREFIX.length());
+		if (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+
+		if (path.startsWith("/health") || path.equals("/version"))
+			return RequestPool.NONE;
+		else if (path.equals("/datapoints"))
+			return RequestPool.INGEST;
+		else if (path.startsWith("/datapoints/") || path.startsWith("/metric/"))
+			return RequestPool.QUERY;
+		else
+			return RequestPool.METADATA;
+	}
+
+	@VisibleForTesting
+	void createExecutor(RequestPool pool, int threads, int queueSize)
+	{
+		if (threads <= 0)
+			return;
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+				new ThreadFactoryBuilder().setNameFormat("http-" + pool.name().toLowerCase() + "-%d")
+						.setDaemon(true).build());
+
+		m_executors.put(pool, executor);
+	}
+
+	@VisibleForTesting
+	void setExecutor(RequestPool pool, ThreadPoolExecutor executor)
+	{
+		m_executors.put(pool, executor);
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException
+	{
+		createExecutor(RequestPool.QUERY, m_queryThreads, m_queryQueueSize);
+		createExecutor(RequestPool.INGEST, m_ingestThreads, m_ingestQueueSize);
+		createExecutor(RequestPool.METADATA, m_metadataThreads, m_metadataQueueSize);
+	}
+
+	@Override
+	public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain)
+			throws IOException, ServletException
+	{
+		RequestPool pool = getRequestPool(((HttpServletRequest) servletRequest).getRequestURI());
+		ThreadPoolExecutor executor = m_executors.get(pool);
+
+		if (executor == null || !servletRequest.isAsyncSupported())
+		{
+			filterChain.doFilter(servletRequest, servletResponse);
+			return;
+		}
+
+		AsyncContext asyncContext = servletRequest.startAsync(servletRequest, servletResponse);
+		//Queries have their own limits, the connection stays open until the response is written
+		asyncContext.setTimeout(0);
+		asyncContext.addListener(new CancelQueryListener());
+
+		try
+		{
+			executor.execute(() -> runRequest(asyncContext, filterChain));
+		}
+		catch (RejectedExecutionException e)
+		{
+			m_rejected.get(pool).incrementAndGet();
+			logger.warn("Rejecting request for " + ((HttpServletRequest) servletRequest).getRequestURI() +
+					", the " + pool.name().toLowerCase() + " pool is full");
+
+			HttpServletResponse response = (HttpServletResponse) servletResponse;
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setContentType("application/json");
+			response.getWriter().write(REJECTED_RESPONSE);
+			asyncContext.complete();
+		}
+	}
+
+	private void runRequest(AsyncContext asyncContext, FilterChain filterChain)
+	{
+		try
+		{
+			filterChain.doFilter(asyncContext.getRequest(), asyncContext.getResponse());
+		}
+		catch (Exception e)
+		{
+			logger.error("Error handling request", e);
+			HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+			if (!response.isCommitted())
+			{
+				try
+				{
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				}
+				catch (IOException ioe)
+				{
+					logger.error("Unable to send error response", ioe);
+				}
+			}
+		}
+		finally
+		{
+			asyncContext.complete();
+		}
+	}
+
+	/**
+	 Cancels the query of a request whose connection failed before the
+	 response was written.
+	 */
+	private static class CancelQueryListener implements AsyncListener
+	{
+		private void cancel(AsyncEvent event, String reason)
+		{
+			Object cancellation = event.getSuppliedRequest().getAttribute(QueryCancellation.REQUEST_ATTRIBUTE);
+			if (cancellation instanceof QueryCancellation)
+				((QueryCancellation) cancellation).cancel(reason);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event)
+		{
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event)
+		{
+			cancel(event, "Request timed out");
+		}
+
+		@Override
+		public void onError(AsyncEvent event)
+		{
+			cancel(event, "Client disconnected");
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event)
+		{
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		for (ThreadPoolExecutor executor : m_executors.values())
+			executor.shutdownNow();
+
+		m_executors.clear();
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<>();
+
+		for (Map.Entry<RequestPool, ThreadPoolExecutor> entry : m_executors.entrySet())
+		{
+			String poolName = entry.getKey().name().toLowerCase();
+			ThreadPoolExecutor executor = entry.getValue();
+
+			ret.add(newDataPointSet("kairosdb.http.pool.active", poolName, now, executor.getActiveCount()));
+			ret.add(newDataPointSet("kairosdb.http.pool.queued", poolName, now, executor.getQueue().size()));
+			ret.add(newDataPointSet("kairosdb.http.pool.rejected", poolName, now,
+					m_rejected.get(entry.getKey()).getAndSet(0)));
+		}
+
+		return ret;
+	}
+
+	private DataPointSet newDataPointSet(String metricName, String poolName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostName);
+		dps.addTag("pool", poolName);
+		dps.addDataPoint(m_dataPointFactory.createDataPoint(now, value));
+
+		return dps;
+	}
+}
@@ -32,6 +32,7 @@ import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
 import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.util.security.Constraint;
 import org.eclipse.jetty.util.security.Credential;
@@ -85,6 +86,7 @@ public class WebServer implements KairosDBService
 	private String m_keyStorePassword;
 	private ExecutorThreadPool m_pool;
 	private boolean m_showStacktrace;
+	private RequestDispatchFilter m_dispatchFilter;
 
 
 	public WebServer(int port, String webRoot)
@@ -147,6 +149,12 @@ public class WebServer implements KairosDBService
 		m_pool = new ExecutorThreadPool(minThreads, maxThreads, keepAliveMs, TimeUnit.MILLISECONDS, queue);
 	}
 
+	@Inject(optional = true)
+	public void setRequestDispatchFilter(RequestDispatchFilter dispatchFilter)
+	{
+		m_dispatchFilter = dispatchFilter;
+	}
+
 	@Inject
 	public void setJettyShowStacktrace(@Named(JETTY_SHOW_STACKTRACE) boolean showStacktrace) {
 		m_showStacktrace = showStacktrace;
@@ -198,6 +206,14 @@ public class WebServer implements KairosDBService
 				servletContextHandler.setContextPath("/");
 			}
 
+			//Runs the rest of the chain on the query, ingest or metadata pool
+			if (m_dispatchFilter != null)
+			{
+				FilterHolder dispatchHolder = new FilterHolder(m_dispatchFilter);
+				dispatchHolder.setAsyncSupported(true);
+				servletContextHandler.addFilter(dispatchHolder, "/api/*", null);
+			}
+
 			servletContextHandler.addFilter(GuiceFilter.class, "/api/*", null);
 			servletContextHandler.addServlet(DefaultServlet.class, "/api/*");
 
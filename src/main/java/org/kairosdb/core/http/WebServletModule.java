@@ -25,8 +25,10 @@ import org.eclipse.jetty.servlets.GzipFilter;
 import org.kairosdb.core.http.exceptionmapper.InvalidServerTypeExceptionMapper;
 import org.kairosdb.core.KairosRootConfig;
 import org.kairosdb.core.http.rest.FeaturesResource;
+import org.kairosdb.core.http.rest.HistogramResource;
 import org.kairosdb.core.http.rest.MetadataResource;
 import org.kairosdb.core.http.rest.MetricsResource;
+import org.kairosdb.core.http.rest.QueryMemoryResource;
 
 import javax.ws.rs.core.MediaType;
 
@@ -44,11 +46,14 @@ public class WebServletModule extends JerseyServletModule
 
 		//Bind web server
 		bind(WebServer.class);
+		bind(RequestDispatchFilter.class).in(Scopes.SINGLETON);
 
 		//Bind resource classes here
 		bind(MetricsResource.class).in(Scopes.SINGLETON);
         bind(MetadataResource.class).in(Scopes.SINGLETON);
 		bind(FeaturesResource.class).in(Scopes.SINGLETON);
+		bind(HistogramResource.class).in(Scopes.SINGLETON);
+		bind(QueryMemoryResource.class).in(Scopes.SINGLETON);
 
 		bind(GuiceContainer.class);
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http.rest;
+
+import com.google.gson.JsonObject;
+import com.google.inject.Inject;
+import org.kairosdb.core.http.rest.json.JsonResponseBuilder;
+import org.kairosdb.util.HistogramRegistry;
+import org.kairosdb.util.LogLinearHistogram;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kairosdb.core.http.rest.MetricsResource.setHeaders;
+
+/**
+ Shows the internal metric histograms without waiting for them to be
+ reported.  For each histogram the last reporting interval and the total
+ since startup are returned.  Only answers requests from the local host.
+ */
+@Path("/api/v1/admin/histograms")
+public class HistogramResource
+{
+	private final HistogramRegistry m_histogramRegistry;
+
+	@Inject
+	public HistogramResource(HistogramRegistry histogramRegistry)
+	{
+		m_histogramRegistry = checkNotNull(histogramRegistry);
+	}
+
+	static boolean isLocal(String remoteAddr)
+	{
+		try
+		{
+			//Remote addresses are IP literals so this does no lookup
+			return InetAddress.getByName(remoteAddr).isLoopbackAddress();
+		}
+		catch (UnknownHostException e)
+		{
+			return false;
+		}
+	}
+
+	private static JsonObject toJson(LogLinearHistogram.Data data)
+	{
+		JsonObject ret = new JsonObject();
+		ret.addProperty("count", data.getCount());
+		ret.addProperty("min", data.getMin());
+		ret.addProperty("max", data.getMax());
+		ret.addProperty("avg", data.getMean());
+		ret.addProperty("p50", data.getValueAtPercentile(50));
+		ret.addProperty("p90", data.getValueAtPercentile(90));
+		ret.addProperty("p99", data.getValueAtPercentile(99));
+		ret.addProperty("p999", data.getValueAtPercentile(99.9));
+		return ret;
+	}
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	public Response getHistograms(@Context HttpServletRequest request)
+	{
+		if (!isLocal(request.getRemoteAddr()))
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.FORBIDDEN);
+			builder.addError("Histograms are only available from the local host");
+			return builder.build();
+		}
+
+		JsonObject histograms = new JsonObject();
+		for (Map.Entry<String, LogLinearHistogram> entry : m_histogramRegistry.getHistograms().entrySet())
+		{
+			JsonObject histogram = new JsonObject();
+			histogram.add("interval", toJson(entry.getValue().getLastInterval()));
+			histogram.add("total", toJson(entry.getValue().getTotal()));
+			histograms.add(entry.getKey(), histogram);
+		}
+
+		Response.ResponseBuilder responseBuilder = Response.status(Response.Status.OK).entity(histograms.toString());
+		setHeaders(responseBuilder);
+		return responseBuilder.build();
+	}
+}
@@ -25,25 +25,33 @@ import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.MalformedJsonException;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import org.json.JSONException;
+import org.json.JSONWriter;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.KairosDataPointFactory;
 import org.kairosdb.core.datapoints.LongDataPointFactory;
 import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
 import org.kairosdb.core.datapoints.StringDataPointFactory;
 import org.kairosdb.core.datastore.*;
+import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.exception.InvalidServerTypeException;
+import org.kairosdb.core.formatter.ColumnarResponse;
 import org.kairosdb.core.formatter.DataFormatter;
 import org.kairosdb.core.formatter.FormatterException;
 import org.kairosdb.core.formatter.JsonFormatter;
 import org.kairosdb.core.formatter.JsonResponse;
+import org.kairosdb.core.formatter.QueryResponseFormatter;
+import org.kairosdb.core.formatter.Utf8JsonWriter;
 import org.kairosdb.core.http.rest.json.*;
 import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.core.reporting.QueryProfile;
 import org.kairosdb.core.reporting.ThreadReporter;
 import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.eventbus.Publisher;
 import org.kairosdb.events.DataPointEvent;
 import org.kairosdb.util.MemoryMonitorException;
-import org.kairosdb.util.SimpleStats;
+import org.kairosdb.util.HistogramRegistry;
+import org.kairosdb.util.LogLinearHistogram;
 import org.kairosdb.util.SimpleStatsReporter;
 import org.kairosdb.util.StatsMap;
 import org.slf4j.Logger;
@@ -52,6 +60,7 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -81,12 +90,18 @@ enum ServerType
 public class MetricsResource implements KairosMetricReporter
 {
 	public static final Logger logger = LoggerFactory.getLogger(MetricsResource.class);
+	private static final Logger slowQueryLogger = LoggerFactory.getLogger("slow_query_logger");
 	public static final String QUERY_TIME = "kairosdb.http.query_time";
 	public static final String REQUEST_TIME = "kairosdb.http.request_time";
 	public static final String INGEST_COUNT = "kairosdb.http.ingest_count";
 	public static final String INGEST_TIME = "kairosdb.http.ingest_time";
 
 	public static final String QUERY_URL = "/datapoints/query";
+	public static final String QUERY_TIMEOUT = "kairosdb.queries.timeout_ms";
+	public static final String REFRESH_LATE_ARRIVAL = "kairosdb.queries.refresh.late_arrival_ms";
+
+	//Buffer of Utf8JsonWriter, about the same as the blocks and stream buffer of ColumnarResponse
+	private static final int RESPONSE_BUFFER_MEMORY = 64 * 1024;
 
 	private final KairosDatastore datastore;
 	private final Publisher<DataPointEvent> m_publisher;
@@ -135,6 +150,22 @@ public class MetricsResource implements KairosMetricReporter
 	@Named("kairosdb.log.queries.greater_than")
 	private int m_logQueriesLongerThan = 60;
 
+	@Inject(optional = true)
+	@Named(KairosDatastore.LOG_SLOW_QUERIES)
+	private boolean m_logSlowQueries = false;
+
+	@Inject(optional = true)
+	@Named("kairosdb.log.slow_queries.threshold_ms")
+	private long m_slowQueryThreshold = 10000;
+
+	@Inject(optional = true)
+	@Named(QUERY_TIMEOUT)
+	private long m_queryTimeout = 0;
+
+	@Inject(optional = true)
+	@Named(REFRESH_LATE_ARRIVAL)
+	private long m_refreshLateArrival = 60000;
+
 	@Inject
 	@Named("HOSTNAME")
 	private String hostName = "localhost";
@@ -164,6 +195,20 @@ public class MetricsResource implements KairosMetricReporter
 	@Inject
 	private SimpleStatsReporter m_simpleStatsReporter = new SimpleStatsReporter();
 
+	private BulkDeleteManager m_bulkDeleteManager;
+
+	@Inject(optional = true)
+	public void setHistogramRegistry(HistogramRegistry histogramRegistry)
+	{
+		m_statsMap.setHistogramRegistry(histogramRegistry);
+	}
+
+	@Inject(optional = true)
+	public void setBulkDeleteManager(BulkDeleteManager bulkDeleteManager)
+	{
+		m_bulkDeleteManager = bulkDeleteManager;
+	}
+
 	@Inject
 	public MetricsResource(KairosDatastore datastore, QueryParser queryParser,
 			KairosDataPointFactory dataPointFactory, FilterEventBus eventBus)
@@ -430,28 +475,63 @@ public class MetricsResource implements KairosMetricReporter
 	}
 
 	@GET
-	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Produces({MediaType.APPLICATION_JSON + "; charset=UTF-8", ColumnarResponse.MEDIA_TYPE})
 	@Path(QUERY_URL)
 	public Response getQuery(@QueryParam("query") String json, @Context HttpServletRequest request) throws Exception
 	{
 		checkServerType(ServerType.QUERY, QUERY_URL, "GET");
-		return runQuery(json, request.getRemoteAddr());
+		return runQuery(json, request.getRemoteAddr(), request.getHeader(HttpHeaders.ACCEPT),
+				newQueryCancellation(request));
 	}
 
 	@POST
-	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Produces({MediaType.APPLICATION_JSON + "; charset=UTF-8", ColumnarResponse.MEDIA_TYPE})
 	@Path(QUERY_URL)
 	public Response postQuery(String json, @Context HttpServletRequest request) throws Exception
 	{
 		checkServerType(ServerType.QUERY, QUERY_URL, "POST");
-		return runQuery(json, request.getRemoteAddr());
+		return runQuery(json, request.getRemoteAddr(), request.getHeader(HttpHeaders.ACCEPT),
+				newQueryCancellation(request));
 	}
 
 
+	/**
+	 The cancellation is kept on the request so the dispatch filter can cancel
+	 the query when the client goes away.
+	 */
+	private static QueryCancellation newQueryCancellation(HttpServletRequest request)
+	{
+		QueryCancellation cancellation = new QueryCancellation();
+		request.setAttribute(QueryCancellation.REQUEST_ATTRIBUTE, cancellation);
+		return cancellation;
+	}
+
 	public Response runQuery(String json, String remoteAddr) throws Exception
+	{
+		return runQuery(json, remoteAddr, null);
+	}
+
+	public Response runQuery(String json, String remoteAddr, String accept) throws Exception
+	{
+		return runQuery(json, remoteAddr, accept, new QueryCancellation());
+	}
+
+	/**
+	 @param accept Accept header of the request, the results are written with
+	               ColumnarResponse if it asks for that format and JSON otherwise
+	 @param cancellation gets the deadline of the query, timeout_ms from the
+	                     query or kairosdb.queries.timeout_ms
+	 */
+	public Response runQuery(String json, String remoteAddr, String accept,
+			QueryCancellation cancellation) throws Exception
 	{
 		logger.debug(json);
 		boolean queryFailed = false;
+		boolean queryCancelled = false;
+		long requestStartTime = System.currentTimeMillis();
+		File respFile = null;
+		Closeable output = null;
+		QueryMemoryTracker memoryTracker = datastore.getMemoryBudget().newTracker(remoteAddr);
 
 		ThreadReporter.setReportTime(System.currentTimeMillis());
 		ThreadReporter.addTag("host", hostName);
@@ -461,18 +541,65 @@ public class MetricsResource implements KairosMetricReporter
 			if (json == null)
 				throw new BeanValidationException(new QueryParser.SimpleConstraintViolation("query json", "must not be null or empty"), "");
 
-			File respFile = File.createTempFile("kairos", ".json", new File(datastore.getCacheDir()));
-			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(respFile), "UTF-8"));
-
-			JsonResponse jsonResponse = new JsonResponse(writer);
+			boolean columnar = ColumnarResponse.isAccepted(accept);
+			memoryTracker.reserve(RESPONSE_BUFFER_MEMORY);
+			respFile = File.createTempFile("kairos", columnar ? ".bin" : ".json", new File(datastore.getCacheDir()));
+			QueryResponseFormatter queryResponse;
+			JsonResponse jsonResponse = null;
+			if (columnar)
+			{
+				OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(respFile));
+				output = outputStream;
+				queryResponse = new ColumnarResponse(outputStream);
+			}
+			else
+			{
+				Utf8JsonWriter writer = new Utf8JsonWriter(new FileOutputStream(respFile));
+				output = writer;
+				jsonResponse = new JsonResponse(writer);
+				queryResponse = jsonResponse;
+			}
 
-			jsonResponse.begin();
+			queryResponse.begin();
 
 			Query mainQuery = queryParser.parseQueryMetric(json);
 			mainQuery = m_queryPreProcessor.preProcess(mainQuery);
 
+			long timeout = mainQuery.getTimeout() > 0 ? mainQuery.getTimeout() : m_queryTimeout;
+			if (timeout > 0)
+				cancellation.setDeadline(requestStartTime + timeout);
+
+			List<QueryPlugin> plugins = mainQuery.getPlugins();
+			if (columnar)
+			{
+				for (QueryPlugin plugin : plugins)
+				{
+					if (plugin instanceof QueryPostProcessingPlugin)
+						throw new QueryException("Query post processing plugins need a JSON response");
+				}
+			}
+
 			List<QueryMetric> queries = mainQuery.getQueryMetrics();
 
+			//A token is only returned to queries that sent one, empty or not
+			RefreshToken previousToken = null;
+			RefreshToken refreshToken = null;
+			if (mainQuery.getRefreshToken() != null)
+			{
+				if (columnar)
+					throw new QueryException("Refresh tokens need a JSON response");
+
+				if (canRefresh(mainQuery))
+				{
+					refreshToken = new RefreshToken(mainQuery.getRefreshHash());
+					previousToken = RefreshToken.decode(mainQuery.getRefreshToken());
+					//A token of a different query gets the full results
+					if (previousToken != null && (previousToken.getQueryHash() != mainQuery.getRefreshHash() ||
+							previousToken.getQueryCount() != queries.size()))
+						previousToken = null;
+				}
+			}
+
 			int queryCount = 0;
 			for (QueryMetric query : queries)
 			{
@@ -480,29 +607,59 @@ public class MetricsResource implements KairosMetricReporter
 				ThreadReporter.addTag("metric_name", query.getName());
 				ThreadReporter.addTag("query_index", String.valueOf(queryCount));
 
+				cancellation.checkCancelled();
+				query.setClientId(remoteAddr);
+				query.setCancellation(cancellation);
+				query.setMemoryTracker(memoryTracker);
+
+				RefreshPlan refreshPlan = null;
+				if (refreshToken != null)
+				{
+					long refreshEndTime = Math.min(query.getEndTime(), requestStartTime);
+					if (previousToken != null)
+						refreshPlan = RefreshPlan.create(query, refreshEndTime,
+								previousToken.getStartTime(queryCount - 1),
+								previousToken.getEndTime(queryCount - 1), m_refreshLateArrival);
+
+					refreshToken.addQuery(query.getStartTime(), refreshEndTime);
+				}
+
+				if (refreshPlan != null)
+				{
+					runRefreshQuery(query, refreshPlan, jsonResponse, remoteAddr, json);
+					continue;
+				}
+
 				DatastoreQuery dq = datastore.createQuery(query);
 				long startQuery = System.currentTimeMillis();
 
 				try
 				{
 					List<DataPointGroup> results = dq.execute();
-					jsonResponse.formatQuery(results, query.isExcludeTags(), dq.getSampleSize());
+					queryResponse.formatQuery(results, query.isExcludeTags(), dq.getSampleSize(), dq.getProfile());
 
-					ThreadReporter.addDataPoint(QUERY_TIME, System.currentTimeMillis() - startQuery);
+					long elapsed = System.currentTimeMillis() - startQuery;
+					ThreadReporter.addDataPoint(QUERY_TIME, elapsed);
+					//Aggregated stats already get this from ThreadReporter
+					if (!m_aggregatedQueryMetrics)
+						m_statsMap.addMetric(QUERY_TIME, elapsed);
 				}
 				finally
 				{
 					dq.close();
+					logSlowQuery(dq.getProfile(), remoteAddr, json);
 				}
 			}
 
-			jsonResponse.end();
-			writer.flush();
-			writer.close();
+			if (refreshToken != null)
+				jsonResponse.end(refreshToken.encode());
+			else
+				queryResponse.end();
+			output.close();
+			output = null;
 
 
 			//System.out.println("About to process plugins");
-			List<QueryPlugin> plugins = mainQuery.getPlugins();
 			for (QueryPlugin plugin : plugins)
 			{
 				if (plugin instanceof QueryPostProcessingPlugin)
@@ -513,6 +670,8 @@ public class MetricsResource implements KairosMetricReporter
 
 			ResponseBuilder responseBuilder = Response.status(Response.Status.OK).entity(
 					new FileStreamingOutput(respFile));
+			if (columnar)
+				responseBuilder.type(ColumnarResponse.MEDIA_TYPE);
 
 			setHeaders(responseBuilder);
 			return responseBuilder.build();
@@ -529,39 +688,77 @@ public class MetricsResource implements KairosMetricReporter
 			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
 			return builder.addErrors(e.getErrorMessages()).build();
 		}
+		catch (QueryCancelledException e)
+		{
+			queryFailed = true;
+			queryCancelled = true;
+			logger.info("Query from " + remoteAddr + " cancelled: " + e.getMessage());
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.SERVICE_UNAVAILABLE);
+			return builder.addError(e.getMessage()).build();
+		}
+		catch (QueryMemoryException e)
+		{
+			queryFailed = true;
+			logger.warn("Query from " + remoteAddr + " rejected: " + e.getMessage());
+			//Only waiting for other queries to finish can help when the total is exceeded
+			JsonResponseBuilder builder = new JsonResponseBuilder(e.isTotalBudget() ?
+					Response.Status.SERVICE_UNAVAILABLE : Response.Status.BAD_REQUEST);
+			return builder.addError(e.getMessage()).build();
+		}
 		catch (MemoryMonitorException e)
 		{
 			queryFailed = true;
 			logger.error("Query failed.", e);
 			Thread.sleep(1000);
 			System.gc();
-			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.APPLICATION_JSON_TYPE).entity(new ErrorResponse(e.getMessage()))).build();
 		}
 		catch (IOException e)
 		{
 			queryFailed = true;
 			logger.error("Failed to open temp folder " + datastore.getCacheDir(), e);
-			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.APPLICATION_JSON_TYPE).entity(new ErrorResponse(e.getMessage()))).build();
 		}
 		catch (Exception e)
 		{
 			queryFailed = true;
 			logger.error("Query failed.", e);
-			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.APPLICATION_JSON_TYPE).entity(new ErrorResponse(e.getMessage()))).build();
 		}
 		catch (OutOfMemoryError e)
 		{
 			queryFailed = true;
 			logger.error("Out of memory error.", e);
-			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.APPLICATION_JSON_TYPE).entity(new ErrorResponse(e.getMessage()))).build();
 
 		}
 		finally
 		{
+			memoryTracker.close();
+
+			//Remove the partial response of a failed query
+			if (queryFailed && respFile != null)
+			{
+				if (output != null)
+				{
+					try
+					{
+						output.close();
+					}
+					catch (IOException e)
+					{
+						logger.error("Unable to close response file", e);
+					}
+				}
+				respFile.delete();
+			}
+
 			ThreadReporter.clearTags();
 			ThreadReporter.addTag("host", hostName);
 
-			if (queryFailed)
+			if (queryCancelled)
+				ThreadReporter.addTag("status", "cancelled");
+			else if (queryFailed)
 				ThreadReporter.addTag("status", "failed");
 			else
 				ThreadReporter.addTag("status", "success");
@@ -586,12 +783,139 @@ public class MetricsResource implements KairosMetricReporter
 			{
 				ThreadReporter.submitData(m_longDataPointFactory,
 						m_stringDataPointFactory, m_publisher);
+				m_statsMap.addMetric(REQUEST_TIME, queryTime);
 			}
 
 			ThreadReporter.clear();
 		}
 	}
 
+	/**
+	 True if every metric of the query can be refreshed from the previous
+	 response and no plugin post processes the results.
+	 */
+	private static boolean canRefresh(Query query)
+	{
+		for (QueryPlugin plugin : query.getPlugins())
+		{
+			if (plugin instanceof QueryPostProcessingPlugin)
+				return false;
+		}
+
+		for (QueryMetric queryMetric : query.getQueryMetrics())
+		{
+			if (!RefreshPlan.canRefresh(queryMetric))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 Reads the head and the tail of the plan and writes them as the results
+	 of the query.  The head is copied into memory so only one datastore
+	 query is open at a time.
+	 */
+	private void runRefreshQuery(QueryMetric query, RefreshPlan plan, JsonResponse queryResponse,
+			String remoteAddr, String json) throws Exception
+	{
+		long startTime = query.getStartTime();
+		long endTime = query.getEndTime();
+		String cacheString = query.getCacheString();
+		long startQuery = System.currentTimeMillis();
+
+		try
+		{
+			List<DataPointGroup> results = new ArrayList<>();
+			int sampleSize = 0;
+			if (plan.hasHead())
+			{
+				DatastoreQuery dq = createRangeQuery(query, startTime, plan.getHeadReadEnd() - 1, cacheString);
+				try
+				{
+					for (DataPointGroup group : dq.execute())
+						results.add(new MemoryDataPointGroup(new TimeRangeDataPointGroup(group,
+								Long.MIN_VALUE, plan.getHeadEnd())));
+					sampleSize += dq.getSampleSize();
+				}
+				finally
+				{
+					dq.close();
+					logSlowQuery(dq.getProfile(), remoteAddr, json);
+				}
+			}
+
+			DatastoreQuery dq = createRangeQuery(query, plan.getTailReadStart(), endTime, cacheString);
+			try
+			{
+				for (DataPointGroup group : dq.execute())
+					results.add(new TimeRangeDataPointGroup(group, plan.getTailStart(), Long.MAX_VALUE));
+				sampleSize += dq.getSampleSize();
+
+				queryResponse.formatQuery(results, query.isExcludeTags(), sampleSize, dq.getProfile(), plan);
+
+				long elapsed = System.currentTimeMillis() - startQuery;
+				ThreadReporter.addDataPoint(QUERY_TIME, elapsed);
+				if (!m_aggregatedQueryMetrics)
+					m_statsMap.addMetric(QUERY_TIME, elapsed);
+			}
+			finally
+			{
+				dq.close();
+				logSlowQuery(dq.getProfile(), remoteAddr, json);
+			}
+		}
+		finally
+		{
+			query.setStartTime(startTime);
+			query.setEndTime(endTime);
+			query.setCacheString(cacheString);
+		}
+	}
+
+	/**
+	 Datastore query reading part of the time range of the query.  The cache
+	 string gets the range so it is neither coalesced nor cached with a query
+	 reading the whole range.
+	 */
+	private DatastoreQuery createRangeQuery(QueryMetric query, long startTime, long endTime,
+			String cacheString) throws DatastoreException
+	{
+		query.setStartTime(startTime);
+		query.setEndTime(endTime);
+		query.setCacheString(cacheString + "refresh:" + startTime + ":" + endTime + ":");
+		return datastore.createQuery(query);
+	}
+
+	/**
+	 Writes one json line to the slow query log for each metric query that
+	 took at least the configured threshold.
+	 */
+	private void logSlowQuery(QueryProfile profile, String remoteAddr, String json)
+	{
+		if (!m_logSlowQueries || profile == null || profile.getTotalTimeMillis() < m_slowQueryThreshold)
+			return;
+
+		try
+		{
+			StringWriter out = new StringWriter();
+			JSONWriter writer = new JSONWriter(out);
+			writer.object();
+			writer.key("metric").value(profile.getMetricName());
+			writer.key("remote_address").value(remoteAddr);
+			writer.key("query").value(json);
+			writer.key("profile");
+			profile.writeJson(writer);
+			writer.endObject();
+
+			slowQueryLogger.info(out.toString());
+		}
+		catch (JSONException e)
+		{
+			logger.error("Unable to write slow query log", e);
+		}
+	}
+
 	@OPTIONS
 	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
 	@Path("/datapoints/delete")
@@ -652,6 +976,123 @@ public class MetricsResource implements KairosMetricReporter
 		}
 	}
 
+	/**
+	 Starts the delete in the background and returns the job, the body is the
+	 same as /datapoints/delete
+	 */
+	@POST
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Path("/datapoints/delete/jobs")
+	public Response submitDeleteJob(String json) throws Exception
+	{
+		checkServerType(ServerType.DELETE, "/datapoints/delete/jobs", "POST");
+		checkNotNull(json);
+
+		if (m_bulkDeleteManager == null)
+			return new JsonResponseBuilder(Response.Status.NOT_FOUND).addError("Delete jobs are not available").build();
+
+		try
+		{
+			BulkDeleteJob job = m_bulkDeleteManager.submit(json);
+			return setHeaders(Response.status(Response.Status.OK).entity(m_bulkDeleteManager.toJson(job))).build();
+		}
+		catch (JsonSyntaxException | QueryException e)
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
+			return builder.addError(e.getMessage()).build();
+		}
+		catch (BeanValidationException e)
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
+			return builder.addErrors(e.getErrorMessages()).build();
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to start delete job.", e);
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+		}
+	}
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Path("/datapoints/delete/jobs")
+	public Response listDeleteJobs() throws Exception
+	{
+		checkServerType(ServerType.DELETE, "/datapoints/delete/jobs", "GET");
+
+		if (m_bulkDeleteManager == null)
+			return new JsonResponseBuilder(Response.Status.NOT_FOUND).addError("Delete jobs are not available").build();
+
+		try
+		{
+			StringBuilder json = new StringBuilder();
+			json.append('[');
+			for (BulkDeleteJob job : m_bulkDeleteManager.getJobs())
+			{
+				if (json.length() > 1)
+					json.append(',');
+				json.append(m_bulkDeleteManager.toJson(job));
+			}
+			json.append(']');
+
+			return setHeaders(Response.status(Response.Status.OK).entity(json.toString())).build();
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to list delete jobs.", e);
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+		}
+	}
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Path("/datapoints/delete/jobs/{id}")
+	public Response getDeleteJob(@PathParam("id") String id) throws Exception
+	{
+		checkServerType(ServerType.DELETE, "/datapoints/delete/jobs", "GET");
+
+		if (m_bulkDeleteManager == null)
+			return new JsonResponseBuilder(Response.Status.NOT_FOUND).addError("Delete jobs are not available").build();
+
+		try
+		{
+			BulkDeleteJob job = m_bulkDeleteManager.getJob(id);
+			if (job == null)
+				return new JsonResponseBuilder(Response.Status.NOT_FOUND).addError("No delete job " + id).build();
+
+			return setHeaders(Response.status(Response.Status.OK).entity(m_bulkDeleteManager.toJson(job))).build();
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to read delete job.", e);
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+		}
+	}
+
+	@DELETE
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Path("/datapoints/delete/jobs/{id}")
+	public Response removeDeleteJob(@PathParam("id") String id) throws Exception
+	{
+		checkServerType(ServerType.DELETE, "/datapoints/delete/jobs", "DELETE");
+
+		if (m_bulkDeleteManager == null)
+			return new JsonResponseBuilder(Response.Status.NOT_FOUND).addError("Delete jobs are not available").build();
+
+		try
+		{
+			if (!m_bulkDeleteManager.removeJob(id))
+				return new JsonResponseBuilder(Response.Status.CONFLICT).addError("Delete job " + id + " is still running").build();
+
+			return setHeaders(Response.status(Response.Status.NO_CONTENT)).build();
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to remove delete job.", e);
+			return setHeaders(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage()))).build();
+		}
+	}
+
 	public static ResponseBuilder getCorsPreflightResponseBuilder(final String requestHeaders,
 			final String requestMethod)
 	{
@@ -761,14 +1202,15 @@ public class MetricsResource implements KairosMetricReporter
 			ret.add(dpsTime);
 		}
 
-		Map<String, SimpleStats> statsMap = m_statsMap.getStatsMap();
+		Map<String, LogLinearHistogram> statsMap = m_statsMap.getStatsMap();
 
-		for (Map.Entry<String, SimpleStats> entry : statsMap.entrySet())
+		for (Map.Entry<String, LogLinearHistogram> entry : statsMap.entrySet())
 		{
 			String metric = entry.getKey();
-			SimpleStats.Data stats = entry.getValue().getAndClear();
+			LogLinearHistogram.Data stats = entry.getValue().getAndClear();
 
-			m_simpleStatsReporter.reportStats(stats, now, metric, ret);
+			if (stats.getCount() != 0)
+				m_simpleStatsReporter.reportStats(stats, now, metric, ret);
 		}
 
 		return ret;
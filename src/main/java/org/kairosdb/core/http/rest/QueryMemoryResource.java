@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http.rest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.inject.Inject;
+import org.kairosdb.core.datastore.QueryMemoryBudget;
+import org.kairosdb.core.datastore.QueryMemoryTracker;
+import org.kairosdb.core.http.rest.json.JsonResponseBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kairosdb.core.http.rest.HistogramResource.isLocal;
+import static org.kairosdb.core.http.rest.MetricsResource.setHeaders;
+
+/**
+ Shows the memory reserved by each running query and by all of them
+ together.  Only answers requests from the local host.
+ */
+@Path("/api/v1/admin/query_memory")
+public class QueryMemoryResource
+{
+	private final QueryMemoryBudget m_memoryBudget;
+
+	@Inject
+	public QueryMemoryResource(QueryMemoryBudget memoryBudget)
+	{
+		m_memoryBudget = checkNotNull(memoryBudget);
+	}
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	public Response getQueryMemory(@Context HttpServletRequest request)
+	{
+		if (!isLocal(request.getRemoteAddr()))
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.FORBIDDEN);
+			builder.addError("Query memory is only available from the local host");
+			return builder.build();
+		}
+
+		JsonObject memory = new JsonObject();
+		memory.addProperty("used", m_memoryBudget.getUsed());
+		memory.addProperty("query_budget", m_memoryBudget.getQueryBudget());
+		memory.addProperty("total_budget", m_memoryBudget.getTotalBudget());
+
+		JsonArray queries = new JsonArray();
+		for (QueryMemoryTracker tracker : m_memoryBudget.getTrackers())
+		{
+			JsonObject query = new JsonObject();
+			query.addProperty("name", tracker.getName());
+			query.addProperty("used", tracker.getUsed());
+			query.addProperty("peak", tracker.getPeak());
+			queries.add(query);
+		}
+		memory.add("queries", queries);
+
+		Response.ResponseBuilder responseBuilder = Response.status(Response.Status.OK).entity(memory.toString());
+		setHeaders(responseBuilder);
+		return responseBuilder.build();
+	}
+}
@@ -39,6 +39,19 @@ public class Query implements PluggableQuery
 	@SerializedName("time_zone")
 	private DateTimeZone m_timeZone;// = DateTimeZone.UTC;;
 
+	@SerializedName("profile")
+	private boolean m_profile;
+
+	@Min(0)
+	@SerializedName("timeout_ms")
+	private long m_timeout;
+
+	@SerializedName("refresh_token")
+	private String m_refreshToken;
+
+	@Expose(deserialize = false)
+	private long m_refreshHash;
+
 	@Expose(deserialize = false)
 	private List<QueryPlugin> m_plugins = new ArrayList<>();
 
@@ -75,6 +88,26 @@ public class Query implements PluggableQuery
 		m_timeZone = timeZone;
 	}
 
+	public void setProfile(boolean profile)
+	{
+		m_profile = profile;
+	}
+
+	public void setTimeout(long timeout)
+	{
+		m_timeout = timeout;
+	}
+
+	public void setRefreshToken(String refreshToken)
+	{
+		m_refreshToken = refreshToken;
+	}
+
+	public void setRefreshHash(long refreshHash)
+	{
+		m_refreshHash = refreshHash;
+	}
+
 	public void setPlugins(List<QueryPlugin> plugins)
 	{
 		m_plugins = plugins;
@@ -115,6 +148,37 @@ public class Query implements PluggableQuery
 		return m_timeZone;
 	}
 
+	public boolean isProfile()
+	{
+		return m_profile;
+	}
+
+	/**
+	 Milliseconds the query may run for, 0 uses the server default
+	 */
+	public long getTimeout()
+	{
+		return m_timeout;
+	}
+
+	/**
+	 Token of the previous response to the same query, an empty string asks
+	 for a token without having one and null for no token at all.
+	 */
+	public String getRefreshToken()
+	{
+		return m_refreshToken;
+	}
+
+	/**
+	 Hash of the query without its times and refresh token, only set when
+	 the query has a refresh token.
+	 */
+	public long getRefreshHash()
+	{
+		return m_refreshHash;
+	}
+
 	public String getCacheString()
 	{
 		StringBuilder sb = new StringBuilder();
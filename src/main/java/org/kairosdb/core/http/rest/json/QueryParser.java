@@ -198,6 +198,9 @@ public class QueryParser
 		{
 			query = m_gson.fromJson(obj, Query.class);
 			validateObject(query);
+
+			if (query.getRefreshToken() != null)
+				query.setRefreshHash(RefreshToken.hashQuery(obj));
 		}
 		catch (ContextualJsonSyntaxException e)
 		{
@@ -232,6 +235,7 @@ public class QueryParser
 				QueryMetric queryMetric = new QueryMetric(startTime, query.getCacheTime(), metric.getName());
 				queryMetric.setExcludeTags(metric.isExcludeTags());
 				queryMetric.setLimit(metric.getLimit());
+				queryMetric.setProfile(query.isProfile());
 
 				long endTime = getEndTime(query);
 				if (endTime > -1)
@@ -258,6 +262,11 @@ public class QueryParser
 					}
 				}
 
+				if (metric.getMaxPoints() < 0)
+					throw new BeanValidationException(new SimpleConstraintViolation("max_points", "must be greater than or equal to 0"), context);
+				else if (metric.getMaxPoints() > 0)
+					applyMaxPoints(query, queryMetric, jsMetric, metric.getMaxPoints(), context);
+
 				JsonElement plugins = jsMetric.get("plugins");
 				if (plugins != null)
 				{
@@ -311,6 +320,59 @@ public class QueryParser
 		}
 	}
 
+	/**
+	 Picks the sampling of the range aggregators that don't set one so each
+	 group of the metric returns no more than maxPoints data points.  If there
+	 is no such aggregator an m4 aggregator is added after the others.
+	 */
+	private void applyMaxPoints(Query query, QueryMetric queryMetric, JsonObject jsMetric,
+			int maxPoints, String context) throws BeanValidationException
+	{
+		long endTime = Math.min(queryMetric.getEndTime(), System.currentTimeMillis());
+		JsonArray jsAggregators = jsMetric.getAsJsonArray("aggregators");
+		List<Aggregator> aggregators = queryMetric.getAggregators();
+
+		boolean picked = false;
+		for (int I = 0; I < aggregators.size(); I++)
+		{
+			if (!(aggregators.get(I) instanceof RangeAggregator))
+				continue;
+
+			if (jsAggregators != null && I < jsAggregators.size() &&
+					jsAggregators.get(I).getAsJsonObject().has("sampling"))
+				continue;
+
+			pickSampling(query, (RangeAggregator) aggregators.get(I), endTime, maxPoints);
+			picked = true;
+		}
+
+		if (!picked)
+		{
+			Object m4 = m_processingChain.getFeatureProcessingFactory(Aggregator.class).createFeatureProcessor("m4");
+			if (!(m4 instanceof RangeAggregator))
+				throw new BeanValidationException(new SimpleConstraintViolation("max_points", "needs the m4 aggregator"), context);
+
+			RangeAggregator aggregator = (RangeAggregator) m4;
+			parseSpecificQueryProcessor(aggregator, queryMetric, query.getTimeZone());
+			aggregator.setAlignSampling(true);
+			pickSampling(query, aggregator, endTime, maxPoints);
+			queryMetric.addAggregator(aggregator);
+		}
+	}
+
+	private void pickSampling(Query query, RangeAggregator aggregator, long endTime, int maxPoints)
+	{
+		aggregator.setMaxRanges(endTime, Math.max(1, maxPoints / aggregator.getDataPointsPerRange()));
+
+		//The ranges of a refresh have to match the ones of the previous run
+		if (query.getRefreshToken() != null)
+		{
+			Sampling sampling = aggregator.getSampling();
+			query.setRefreshHash(31 * (31 * query.getRefreshHash() + sampling.getValue()) +
+					sampling.getUnit().ordinal());
+		}
+	}
+
 	private void addQueryProcessorToMetric(Object queryProcessor, QueryMetric queryMetric)
 	{
 		if (queryProcessor instanceof Aggregator)
@@ -557,6 +619,9 @@ public class QueryParser
 		@SerializedName("limit")
 		private int limit;
 
+		@SerializedName("max_points")
+		private int maxPoints;
+
 		public Metric(String name, boolean exclude_tags, TreeMultimap<String, String> tags)
 		{
 			this.name = name;
@@ -580,6 +645,16 @@ public class QueryParser
 			this.limit = limit;
 		}
 
+		public int getMaxPoints()
+		{
+			return maxPoints;
+		}
+
+		public void setMaxPoints(int maxPoints)
+		{
+			this.maxPoints = maxPoints;
+		}
+
 		private boolean isExcludeTags()
 		{
 			return exclude_tags;
@@ -820,6 +895,10 @@ public class QueryParser
 			if (limit != null)
 				ret.setLimit(limit.getAsInt());
 
+			JsonElement maxPoints = jsonObject.get("max_points");
+			if (maxPoints != null)
+				ret.setMaxPoints(maxPoints.getAsInt());
+
 			return (ret);
 		}
 	}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http.rest.json;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ Token returned with the results of a query so the next run of the same
+ query only has to compute what changed since.  The token holds a hash of
+ the query and the time range each metric query was run over.  Clients treat
+ it as an opaque string.
+ */
+public class RefreshToken
+{
+	private static final byte VERSION = 1;
+
+	//The times move between runs of a dashboard query, the rest must not
+	private static final Set<String> UNHASHED_PROPERTIES = ImmutableSet.of("refresh_token",
+			"start_absolute", "start_relative", "end_absolute", "end_relative");
+
+	private final long m_queryHash;
+	private final List<Long> m_startTimes = new ArrayList<>();
+	private final List<Long> m_endTimes = new ArrayList<>();
+
+	public RefreshToken(long queryHash)
+	{
+		m_queryHash = queryHash;
+	}
+
+	/**
+	 Hash of the query json without its times and refresh token
+	 */
+	public static long hashQuery(JsonObject query)
+	{
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		for (Map.Entry<String, JsonElement> entry : query.entrySet())
+		{
+			if (UNHASHED_PROPERTIES.contains(entry.getKey()))
+				continue;
+
+			hasher.putString(entry.getKey(), Charsets.UTF_8);
+			hasher.putString(entry.getValue().toString(), Charsets.UTF_8);
+		}
+
+		return hasher.hash().asLong();
+	}
+
+	public long getQueryHash()
+	{
+		return m_queryHash;
+	}
+
+	/**
+	 Records the time range a metric query was run over, in the order of the
+	 metric queries.
+	 */
+	public void addQuery(long startTime, long endTime)
+	{
+		m_startTimes.add(startTime);
+		m_endTimes.add(endTime);
+	}
+
+	public int getQueryCount()
+	{
+		return m_startTimes.size();
+	}
+
+	public long getStartTime(int query)
+	{
+		return m_startTimes.get(query);
+	}
+
+	public long getEndTime(int query)
+	{
+		return m_endTimes.get(query);
+	}
+
+	public String encode()
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeLong(m_queryHash);
+			out.writeShort(m_startTimes.size());
+			for (int I = 0; I < m_startTimes.size(); I++)
+			{
+				out.writeLong(m_startTimes.get(I));
+				out.writeLong(m_endTimes.get(I));
+			}
+			out.close();
+
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+		}
+		catch (IOException e)
+		{
+			//Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 @return the token or null if it is not a token this version wrote
+	 */
+	public static RefreshToken decode(String token)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					Base64.getUrlDecoder().decode(token)));
+
+			if (in.readByte() != VERSION)
+				return null;
+
+			RefreshToken ret = new RefreshToken(in.readLong());
+			int count = in.readUnsignedShort();
+			for (int I = 0; I < count; I++)
+				ret.addQuery(in.readLong(), in.readLong());
+
+			if (in.available() != 0)
+				return null;
+
+			return ret;
+		}
+		catch (IllegalArgumentException | IOException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.queue;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.events.DataPointEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Reorders a batch of events so events for the same series are next to each
+ other.  A series maps to one row key per row time, so the datastore ends up
+ with batches that each touch few partitions.  Writes to the same cell (same
+ series, timestamp and data type) are merged so only the last one is sent,
+ which is what Cassandra would have kept anyway.
+
+ Series are kept in the order they first appear in the batch and events for a
+ series keep their relative order.
+ */
+public class PartitionBatcher
+{
+	private PartitionBatcher()
+	{
+	}
+
+	public static List<DataPointEvent> groupBySeries(List<DataPointEvent> events)
+	{
+		if (events.size() < 2)
+			return events;
+
+		Map<SeriesKey, List<DataPointEvent>> seriesMap = new LinkedHashMap<>();
+		for (DataPointEvent event : events)
+		{
+			SeriesKey key = new SeriesKey(event.getMetricName(), event.getTags());
+			List<DataPointEvent> series = seriesMap.get(key);
+			if (series == null)
+			{
+				series = new ArrayList<>();
+				seriesMap.put(key, series);
+			}
+			series.add(event);
+		}
+
+		if (seriesMap.size() == events.size())
+			return events; //Nothing to group or merge
+
+		List<DataPointEvent> ret = new ArrayList<>(events.size());
+		for (List<DataPointEvent> series : seriesMap.values())
+		{
+			if (series.size() == 1)
+				ret.add(series.get(0));
+			else
+				ret.addAll(mergeCells(series));
+		}
+
+		return ret;
+	}
+
+	private static Collection<DataPointEvent> mergeCells(List<DataPointEvent> series)
+	{
+		Map<CellKey, DataPointEvent> cells = new LinkedHashMap<>();
+		for (DataPointEvent event : series)
+		{
+			//Remove first so the cell moves to the position of the last write
+			CellKey key = new CellKey(event.getDataPoint().getTimestamp(),
+					event.getDataPoint().getDataStoreDataType());
+			cells.remove(key);
+			cells.put(key, event);
+		}
+
+		return cells.values();
+	}
+
+	private static class SeriesKey
+	{
+		private final String m_metricName;
+		private final ImmutableSortedMap<String, String> m_tags;
+		private final int m_hashCode;
+
+		private SeriesKey(String metricName, ImmutableSortedMap<String, String> tags)
+		{
+			m_metricName = metricName;
+			m_tags = tags;
+			m_hashCode = 31 * metricName.hashCode() + tags.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			SeriesKey that = (SeriesKey) o;
+
+			return m_hashCode == that.m_hashCode && m_metricName.equals(that.m_metricName) &&
+					m_tags.equals(that.m_tags);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_hashCode;
+		}
+	}
+
+	private static class CellKey
+	{
+		private final long m_timestamp;
+		private final String m_dataType;
+
+		private CellKey(long timestamp, String dataType)
+		{
+			m_timestamp = timestamp;
+			m_dataType = dataType;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			CellKey that = (CellKey) o;
+
+			return m_timestamp == that.m_timestamp && m_dataType.equals(that.m_dataType);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * Long.hashCode(m_timestamp) + m_dataType.hashCode();
+		}
+	}
+}
@@ -1,20 +1,24 @@
 package org.kairosdb.core.queue;
 
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.reporting.KairosMetricReporter;
 import org.kairosdb.eventbus.Subscribe;
 import org.kairosdb.events.BatchReductionEvent;
 import org.kairosdb.events.DataPointEvent;
-import org.kairosdb.util.SimpleStats;
+import org.kairosdb.util.HistogramRegistry;
+import org.kairosdb.util.LogLinearHistogram;
 import org.kairosdb.util.SimpleStatsReporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  Created by bhawkins on 10/12/16.
@@ -29,21 +33,40 @@ public abstract class QueueProcessor implements KairosMetricReporter
 	public static final String MEMORY_QUEUE_SIZE = "kairosdb.queue_processor.memory_queue_size";
 	public static final String MINIMUM_BATCH_SIZE = "kairosdb.queue_processor.min_batch_size";
 	public static final String MINIMUM_BATCH_WAIT = "kairosdb.queue_processor.min_batch_wait";
+	public static final String DELIVERY_THREADS = "kairosdb.queue_processor.delivery_threads";
+	public static final String GROUP_BY_SERIES = "kairosdb.queue_processor.group_by_series";
+	public static final String BATCH_STATS = "kairosdb.queue.batch_stats";
 
 
 	private final DeliveryThread m_deliveryThread;
 	private final ExecutorService m_executor;
-	private int m_batchSize;
+	private volatile int m_batchSize;
 	private final int m_initialBatchSize;
 	private final int m_minimumBatchSize;
 	private final int m_minBatchWait;
-	private final SimpleStats m_batchStats = new SimpleStats();
+	private final LogLinearHistogram m_batchStats = new LogLinearHistogram();
+	private final Object m_deliveryLock = new Object();
+	private final AtomicInteger m_helperThreads = new AtomicInteger();
+	private volatile boolean m_shutdown = false;
 
 	private volatile ProcessorHandler m_processorHandler;
 
 	@Inject
 	private SimpleStatsReporter m_simpleStatsReporter = new SimpleStatsReporter();
 
+	@Inject(optional = true)
+	@Named(DELIVERY_THREADS)
+	private int m_deliveryThreads = 1;
+
+	@Inject(optional = true)
+	@Named(GROUP_BY_SERIES)
+	private boolean m_groupBySeries = false;
+
+	@Inject(optional = true)
+	public void setHistogramRegistry(HistogramRegistry histogramRegistry)
+	{
+		histogramRegistry.register(BATCH_STATS, m_batchStats);
+	}
 
 	public QueueProcessor(ExecutorService executor, int batchSize, int minimumBatchSize,
 			int minBatchWait)
@@ -74,6 +97,7 @@ public abstract class QueueProcessor implements KairosMetricReporter
 
 	public void shutdown()
 	{
+		m_shutdown = true;
 		m_deliveryThread.shutdown();
 		m_executor.shutdown();
 	}
@@ -89,6 +113,14 @@ public abstract class QueueProcessor implements KairosMetricReporter
 
 	protected abstract int getAvailableDataPointEvents();
 
+	/**
+	 Number of events waiting to be written to the datastore
+	 */
+	public int getQueueSize()
+	{
+		return getAvailableDataPointEvents();
+	}
+
 	protected abstract EventCompletionCallBack getCompletionCallBack();
 
 	protected abstract void addReportedMetrics(ArrayList<DataPointSet> metrics, long now);
@@ -98,13 +130,68 @@ public abstract class QueueProcessor implements KairosMetricReporter
 		ArrayList<DataPointSet> metrics = new ArrayList<>();
 		addReportedMetrics(metrics, now);
 
-		m_simpleStatsReporter.reportStats(m_batchStats.getAndClear(), now,
-				"kairosdb.queue.batch_stats", metrics);
+		m_simpleStatsReporter.reportStats(m_batchStats.getAndClear(), now, BATCH_STATS, metrics);
 
 		return metrics;
 	}
 
 
+	/**
+	 Pulls a batch from the queue and sends it to the processor handler.  Can
+	 be called from more than one thread, taking events from the queue and
+	 getting the callback for them has to happen together.
+	 */
+	private void deliverBatch()
+	{
+		List<DataPointEvent> results;
+		EventCompletionCallBack callbackToPass;
+		boolean fullBatch = false;
+
+		synchronized (m_deliveryLock)
+		{
+			results = get(m_batchSize);
+			//getCompletionCallBack must be called after get()
+			callbackToPass = getCompletionCallBack();
+
+			if (results.size() == m_batchSize)
+			{
+				fullBatch = true;
+				if (m_batchSize < m_initialBatchSize)
+					m_batchSize += 5;
+			}
+		}
+
+		if (m_groupBySeries)
+			results = PartitionBatcher.groupBySeries(results);
+
+		m_batchStats.addValue(results.size());
+
+		m_processorHandler.handleEvents(results, callbackToPass, fullBatch);
+	}
+
+	/**
+	 Starts another delivery thread when the backlog is deep enough that one
+	 thread can't keep up.  Helper threads stop once the backlog is drained.
+	 */
+	private void startHelperThread()
+	{
+		if (m_deliveryThreads <= 1 || m_shutdown ||
+				m_helperThreads.get() >= m_deliveryThreads - 1 ||
+				getAvailableDataPointEvents() < m_batchSize * 2)
+			return;
+
+		m_helperThreads.incrementAndGet();
+		try
+		{
+			m_executor.execute(new HelperDeliveryThread());
+		}
+		catch (RejectedExecutionException e)
+		{
+			m_helperThreads.decrementAndGet();
+		}
+	}
+
+
 	/**
 	 Single thread that pulls data out of the queue and sends it to the callback
 	 in batches
@@ -170,22 +257,9 @@ public abstract class QueueProcessor implements KairosMetricReporter
 					if (getAvailableDataPointEvents() == 0)
 						continue;
 
-					List<DataPointEvent> results = get(m_batchSize);
-					//getCompletionCallBack must be called after get()
-					EventCompletionCallBack callbackToPass = getCompletionCallBack();
-
-					m_batchStats.addValue(results.size());
-
-					boolean fullBatch = false;
+					deliverBatch();
 
-					if (results.size() == m_batchSize)
-					{
-						fullBatch = true;
-						if (m_batchSize < m_initialBatchSize)
-							m_batchSize += 5;
-					}
-
-					m_processorHandler.handleEvents(results, callbackToPass, fullBatch);
+					startHelperThread();
 				}
 				catch (Exception e)
 				{
@@ -195,10 +269,32 @@ public abstract class QueueProcessor implements KairosMetricReporter
 		}
 	}
 
-
-
-
-
-
-
+	/**
+	 Delivers full batches alongside the DeliveryThread while there is a backlog
+	 */
+	private class HelperDeliveryThread implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (!m_shutdown && getAvailableDataPointEvents() >= m_batchSize)
+				{
+					try
+					{
+						deliverBatch();
+					}
+					catch (Exception e)
+					{
+						logger.error("DeliveryThread Exception", e);
+					}
+				}
+			}
+			finally
+			{
+				m_helperThreads.decrementAndGet();
+			}
+		}
+	}
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.reporting;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Records where a single query spends its time.  Each phase of the query keeps
+ the time spent in it along with the data points, bytes, rows and cluster
+ round trips it handled.
+
+ Like ThreadReporter the profile of the running query is kept in a thread
+ local.  Code that hands work off to other threads must capture the profile
+ with {@link #current()} and pass it along, all the counters are thread safe.
+ Phases that run on several threads at once (decode and cache write) report
+ the sum of the time spent on each thread.
+ */
+public class QueryProfile
+{
+	public enum Phase
+	{
+		INDEX_LOOKUP("index_lookup"),
+		CQL_FETCH("cql_fetch"),
+		DECODE("decode"),
+		CACHE_WRITE("cache_write"),
+		GROUP("group"),
+		AGGREGATE("aggregate"),
+		FORMAT("format");
+
+		private final String m_text;
+
+		Phase(String text)
+		{
+			m_text = text;
+		}
+
+		public String getText()
+		{
+			return (m_text);
+		}
+	}
+
+	private static final ThreadLocal<QueryProfile> s_current = new ThreadLocal<QueryProfile>();
+
+	/**
+	 Returns the profile of the query running on this thread or null if there
+	 isn't one.
+	 */
+	public static QueryProfile current()
+	{
+		return s_current.get();
+	}
+
+	public static void setCurrent(QueryProfile profile)
+	{
+		if (profile == null)
+			s_current.remove();
+		else
+			s_current.set(profile);
+	}
+
+	private final String m_metricName;
+	private final boolean m_returnInResponse;
+	private final long m_startTime;
+	private final PhaseStats[] m_phases;
+	private volatile long m_totalTime = -1;
+	private volatile long m_peakMemory;
+
+	/**
+	 @param metricName       metric being queried
+	 @param returnInResponse true if the profile was requested with the query
+	 */
+	public QueryProfile(String metricName, boolean returnInResponse)
+	{
+		m_metricName = metricName;
+		m_returnInResponse = returnInResponse;
+		m_startTime = System.nanoTime();
+		m_phases = new PhaseStats[Phase.values().length];
+		for (int I = 0; I < m_phases.length; I++)
+			m_phases[I] = new PhaseStats();
+	}
+
+	public String getMetricName()
+	{
+		return (m_metricName);
+	}
+
+	public boolean isReturnInResponse()
+	{
+		return (m_returnInResponse);
+	}
+
+	public void addTime(Phase phase, long nanos)
+	{
+		m_phases[phase.ordinal()].m_time.addAndGet(nanos);
+	}
+
+	public void addDataPoints(Phase phase, long count)
+	{
+		m_phases[phase.ordinal()].m_dataPoints.addAndGet(count);
+	}
+
+	public void addBytes(Phase phase, long count)
+	{
+		m_phases[phase.ordinal()].m_bytes.addAndGet(count);
+	}
+
+	public void addRows(Phase phase, long count)
+	{
+		m_phases[phase.ordinal()].m_rows.addAndGet(count);
+	}
+
+	public void addRoundTrips(Phase phase, long count)
+	{
+		m_phases[phase.ordinal()].m_roundTrips.addAndGet(count);
+	}
+
+	/**
+	 Time spent in the phase in nanoseconds
+	 */
+	public long getTime(Phase phase)
+	{
+		return m_phases[phase.ordinal()].m_time.get();
+	}
+
+	public long getDataPoints(Phase phase)
+	{
+		return m_phases[phase.ordinal()].m_dataPoints.get();
+	}
+
+	public long getBytes(Phase phase)
+	{
+		return m_phases[phase.ordinal()].m_bytes.get();
+	}
+
+	public long getRows(Phase phase)
+	{
+		return m_phases[phase.ordinal()].m_rows.get();
+	}
+
+	public long getRoundTrips(Phase phase)
+	{
+		return m_phases[phase.ordinal()].m_roundTrips.get();
+	}
+
+	/**
+	 Most bytes of buffers the query held at once, see QueryMemoryTracker
+	 */
+	public void setPeakMemory(long peakMemory)
+	{
+		m_peakMemory = peakMemory;
+	}
+
+	public long getPeakMemory()
+	{
+		return m_peakMemory;
+	}
+
+	/**
+	 Marks the end of the query.  Only the first call has any effect.
+	 */
+	public void finish()
+	{
+		if (m_totalTime == -1)
+			m_totalTime = System.nanoTime() - m_startTime;
+	}
+
+	/**
+	 Wall time of the query in milliseconds, up to now if the query has not
+	 finished yet.
+	 */
+	public long getTotalTimeMillis()
+	{
+		long total = m_totalTime;
+		if (total == -1)
+			total = System.nanoTime() - m_startTime;
+
+		return TimeUnit.NANOSECONDS.toMillis(total);
+	}
+
+	public void writeJson(JSONWriter writer) throws JSONException
+	{
+		writer.object();
+		writer.key("total_ms").value(getTotalTimeMillis());
+		writer.key("peak_memory_bytes").value(m_peakMemory);
+		writer.key("phases").object();
+		for (Phase phase : Phase.values())
+		{
+			PhaseStats stats = m_phases[phase.ordinal()];
+			writer.key(phase.getText()).object();
+			writer.key("time_ms").value(TimeUnit.NANOSECONDS.toMillis(stats.m_time.get()));
+			writer.key("data_points").value(stats.m_dataPoints.get());
+			writer.key("bytes").value(stats.m_bytes.get());
+			writer.key("rows").value(stats.m_rows.get());
+			writer.key("round_trips").value(stats.m_roundTrips.get());
+			writer.endObject();
+		}
+		writer.endObject();
+		writer.endObject();
+	}
+
+	public String toJson()
+	{
+		StringWriter out = new StringWriter();
+		try
+		{
+			writeJson(new JSONWriter(out));
+		}
+		catch (JSONException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	private static class PhaseStats
+	{
+		private final AtomicLong m_time = new AtomicLong();
+		private final AtomicLong m_dataPoints = new AtomicLong();
+		private final AtomicLong m_bytes = new AtomicLong();
+		private final AtomicLong m_rows = new AtomicLong();
+		private final AtomicLong m_roundTrips = new AtomicLong();
+	}
+}
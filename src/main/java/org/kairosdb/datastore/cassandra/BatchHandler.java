@@ -6,6 +6,7 @@ import com.google.common.collect.ImmutableSortedMap;
 import com.google.inject.assistedinject.Assisted;
 import org.json.JSONWriter;
 import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datastore.QueryResultCache;
 import org.kairosdb.core.queue.EventCompletionCallBack;
 import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.eventbus.Publisher;
@@ -18,6 +19,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +43,10 @@ public class BatchHandler extends RetryCallable
 	private final boolean m_forceDefaultDatapointTtl;
 	private final DataCache<DataPointsRowKey> m_rowKeyCache;
 	private final DataCache<String> m_metricNameCache;
+	private final RowKeyFingerprintSet m_rowKeySet;
 	private final CassandraModule.CQLBatchFactory m_cqlBatchFactory;
+	private final StringDictionary m_stringDictionary;
+	private final QueryResultCache m_resultCache;
 	private final Publisher<RowKeyEvent> m_rowKeyPublisher;
 	private final Publisher<BatchReductionEvent> m_batchReductionPublisher;
 	private final String m_clusterName;
@@ -53,8 +58,11 @@ public class BatchHandler extends RetryCallable
 			CassandraConfiguration configuration,
 			DataCache<DataPointsRowKey> rowKeyCache,
 			DataCache<String> metricNameCache,
+			RowKeyFingerprintSet rowKeySet,
 			FilterEventBus eventBus,
-			CassandraModule.CQLBatchFactory cqlBatchFactory)
+			CassandraModule.CQLBatchFactory cqlBatchFactory,
+			StringDictionary stringDictionary,
+			QueryResultCache resultCache)
 	{
 		m_events = events;
 		m_callBack = callBack;
@@ -64,15 +72,23 @@ public class BatchHandler extends RetryCallable
 		m_forceDefaultDatapointTtl = configuration.isForceDefaultDatapointTtl();
 		m_rowKeyCache = rowKeyCache;
 		m_metricNameCache = metricNameCache;
+		m_rowKeySet = rowKeySet;
 
 		m_cqlBatchFactory = cqlBatchFactory;
+		m_stringDictionary = stringDictionary;
+		m_resultCache = resultCache;
 
 		m_rowKeyPublisher = eventBus.createPublisher(RowKeyEvent.class);
 		m_batchReductionPublisher = eventBus.createPublisher(BatchReductionEvent.class);
 	}
 
 
-	private void loadBatch(int limit, CQLBatch batch, Iterator<DataPointEvent> events) throws Exception
+	/**
+	 @param newRowKeys row keys written to the index by this batch are added to this list
+	 @param written events added to this batch are added to this list
+	 */
+	private void loadBatch(int limit, CQLBatch batch, Iterator<DataPointEvent> events,
+			List<RowKeyEvent> newRowKeys, List<DataPointEvent> written) throws Exception
 	{
 		int count = 0;
 		while (events.hasNext() && count < limit)
@@ -85,7 +101,8 @@ public class BatchHandler extends RetryCallable
 					continue;*/
 
 			ImmutableSortedMap<String, String> tags = event.getTags();
-			DataPoint dataPoint = event.getDataPoint();
+			//Strings of dictionary metrics go to rows of their own type
+			DataPoint dataPoint = m_stringDictionary.toDictionaryDataPoint(metricName, event.getDataPoint());
 			
 			// force default ttl if property is set, use event's ttl otherwise
 			int ttl = m_forceDefaultDatapointTtl ? m_defaultTtl : event.getTtl();
@@ -125,15 +142,17 @@ public class BatchHandler extends RetryCallable
 			rowKey = new DataPointsRowKey(metricName, m_clusterName, rowTime, dataPoint.getDataStoreDataType(),
 					tags);
 
-			//Write out the row key if it is not cached
+			//Write out the row key if it is not cached and was not written before
 			DataPointsRowKey cachedKey = m_rowKeyCache.cacheItem(rowKey);
-			if (cachedKey == null)
+			if (cachedKey == null && !m_rowKeySet.contains(rowKey, rowKeyTtl))
 			{
 				batch.addRowKey(metricName, rowKey, rowKeyTtl);
 
-				m_rowKeyPublisher.post(new RowKeyEvent(metricName, rowKey, rowKeyTtl));
+				RowKeyEvent rowKeyEvent = new RowKeyEvent(metricName, rowKey, rowKeyTtl);
+				newRowKeys.add(rowKeyEvent);
+				m_rowKeyPublisher.post(rowKeyEvent);
 			}
-			else
+			else if (cachedKey != null)
 				rowKey = cachedKey;
 
 			//Write metric name if not in cache
@@ -153,6 +172,7 @@ public class BatchHandler extends RetryCallable
 			int columnTime = getColumnName(rowTime, dataPoint.getTimestamp());
 
 			batch.addDataPoint(rowKey, columnTime, dataPoint, ttl);
+			written.add(event);
 		}
 	}
 
@@ -180,10 +200,20 @@ public class BatchHandler extends RetryCallable
 					/*CQLBatch batch = new CQLBatch(m_consistencyLevel, m_session, m_schema,
 							m_batchStats, m_loadBalancingPolicy);*/
 
-					loadBatch(limit, batch, events);
+					List<RowKeyEvent> newRowKeys = new ArrayList<>();
+					List<DataPointEvent> written = new ArrayList<>();
+					loadBatch(limit, batch, events, newRowKeys, written);
 
 					batch.submitBatch();
 
+					//Only remembered once they are written
+					for (RowKeyEvent newRowKey : newRowKeys)
+						m_rowKeySet.add(newRowKey.getRowKey(), newRowKey.getRowKeyTtl());
+
+					//Queries may have cached the bucket before these points were written
+					for (DataPointEvent event : written)
+						m_resultCache.invalidateLate(event.getMetricName(), event.getDataPoint().getTimestamp());
+
 				}
 
 			}
@@ -1,20 +1,35 @@
 package org.kairosdb.datastore.cassandra;
 
-import org.kairosdb.util.SimpleStats;
+import com.google.inject.Inject;
+import org.kairosdb.util.HistogramRegistry;
+import org.kairosdb.util.LogLinearHistogram;
 
 /**
  Created by bhawkins on 1/26/17.
  */
 public class BatchStats
 {
-	private final SimpleStats m_dataPointStats = new SimpleStats();
-	private final SimpleStats m_rowKeyStats = new SimpleStats();
-	private final SimpleStats m_nameStats = new SimpleStats();
+	public static final String WRITE_BATCH_SIZE = "kairosdb.datastore.cassandra.write_batch_size";
+	public static final String WRITE_TIME = "kairosdb.datastore.cassandra.write_time_micro";
+
+	private final LogLinearHistogram m_dataPointStats = new LogLinearHistogram();
+	private final LogLinearHistogram m_rowKeyStats = new LogLinearHistogram();
+	private final LogLinearHistogram m_nameStats = new LogLinearHistogram();
+	private final LogLinearHistogram m_writeTimeStats = new LogLinearHistogram();
 
 	public BatchStats()
 	{
 	}
 
+	@Inject(optional = true)
+	public void setHistogramRegistry(HistogramRegistry histogramRegistry)
+	{
+		histogramRegistry.register(WRITE_BATCH_SIZE, "table", "string_index", m_nameStats);
+		histogramRegistry.register(WRITE_BATCH_SIZE, "table", "data_points", m_dataPointStats);
+		histogramRegistry.register(WRITE_BATCH_SIZE, "table", "row_keys", m_rowKeyStats);
+		histogramRegistry.register(WRITE_TIME, m_writeTimeStats);
+	}
+
 	public void addNameBatch(long count)
 	{
 		m_nameStats.addValue(count);
@@ -30,18 +45,31 @@ public class BatchStats
 		m_dataPointStats.addValue(count);
 	}
 
-	public SimpleStats.Data getDataPointStats()
+	/**
+	 Time for all data point partitions of a batch to be written
+	 */
+	public void addWriteTime(long micros)
+	{
+		m_writeTimeStats.addValue(micros);
+	}
+
+	public LogLinearHistogram.Data getDataPointStats()
 	{
 		return m_dataPointStats.getAndClear();
 	}
 
-	public SimpleStats.Data getRowKeyStats()
+	public LogLinearHistogram.Data getRowKeyStats()
 	{
 		return m_rowKeyStats.getAndClear();
 	}
 
-	public SimpleStats.Data getNameStats()
+	public LogLinearHistogram.Data getNameStats()
 	{
 		return m_nameStats.getAndClear();
 	}
+
+	public LogLinearHistogram.Data getWriteTimeStats()
+	{
+		return m_writeTimeStats.getAndClear();
+	}
 }
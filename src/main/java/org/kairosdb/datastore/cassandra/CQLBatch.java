@@ -3,11 +3,10 @@ package org.kairosdb.datastore.cassandra;
 import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ConsistencyLevel;
-import com.datastax.driver.core.Host;
-import com.datastax.driver.core.Session;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Statement;
-import com.datastax.driver.core.policies.LoadBalancingPolicy;
 import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
 import org.kairosdb.util.KDataOutput;
 
 import javax.inject.Inject;
@@ -15,16 +14,24 @@ import javax.inject.Named;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.kairosdb.datastore.cassandra.CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_WIDTH;
 import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_KEY_METRIC_NAMES;
 
 /**
  Created by bhawkins on 1/11/17.
+
+ Data point writes are batched by partition, a batch that spans partitions
+ makes the coordinator forward each statement to its own replicas.  The
+ partition batches are sent concurrently and submitBatch() waits for all of
+ them so failures are still reported to the caller.
  */
 public class CQLBatch
 {
@@ -33,13 +40,14 @@ public class CQLBatch
 	private final ClusterConnection m_clusterConnection;
 	private final BatchStats m_batchStats;
 	private final ConsistencyLevel m_consistencyLevel;
+	private final StringDictionary m_stringDictionary;
 	private final long m_now;
-	private final LoadBalancingPolicy m_loadBalancingPolicy;
 
-	private Map<Host, BatchStatement> m_batchMap = new HashMap<>();
+	private Map<DataPointsRowKey, List<BoundStatement>> m_partitionMap = new LinkedHashMap<>();
+	//Dictionary cells in this batch, remembered once the batch is written
+	private Map<DataPointsRowKey, List<Long>> m_dictionaryIds = new LinkedHashMap<>();
 
 	private BatchStatement metricNamesBatch = new BatchStatement(BatchStatement.Type.UNLOGGED);
-	private BatchStatement dataPointBatch = new BatchStatement(BatchStatement.Type.UNLOGGED);
 	private BatchStatement rowKeyBatch = new BatchStatement(BatchStatement.Type.UNLOGGED);
 
 
@@ -48,13 +56,13 @@ public class CQLBatch
 			ConsistencyLevel consistencyLevel,
 			@Named("write_cluster")ClusterConnection clusterConnection,
 			BatchStats batchStats,
-			LoadBalancingPolicy loadBalancingPolicy)
+			StringDictionary stringDictionary)
 	{
 		m_consistencyLevel = consistencyLevel;
 		m_clusterConnection = clusterConnection;
 		m_batchStats = batchStats;
+		m_stringDictionary = stringDictionary;
 		m_now = System.currentTimeMillis();
-		m_loadBalancingPolicy = loadBalancingPolicy;
 	}
 
 	public void addRowKey(String metricName, DataPointsRowKey rowKey, int rowKeyTtl)
@@ -96,25 +104,15 @@ public class CQLBatch
 		metricNamesBatch.add(bs);
 	}
 
-	private void addBoundStatement(BoundStatement boundStatement)
+	private void addBoundStatement(DataPointsRowKey rowKey, BoundStatement boundStatement)
 	{
-		Iterator<Host> hosts = m_loadBalancingPolicy.newQueryPlan(m_clusterConnection.getKeyspace(), boundStatement);
-		if (hosts.hasNext())
-		{
-			Host hostKey = hosts.next();
-
-			BatchStatement batchStatement = m_batchMap.get(hostKey);
-			if (batchStatement == null)
-			{
-				batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
-				m_batchMap.put(hostKey, batchStatement);
-			}
-			batchStatement.add(boundStatement);
-		}
-		else
+		List<BoundStatement> partition = m_partitionMap.get(rowKey);
+		if (partition == null)
 		{
-			dataPointBatch.add(boundStatement);
+			partition = new ArrayList<>();
+			m_partitionMap.put(rowKey, partition);
 		}
+		partition.add(boundStatement);
 	}
 
 	public void deleteDataPoint(DataPointsRowKey rowKey, int columnTime) throws IOException
@@ -129,13 +127,22 @@ public class CQLBatch
 		boundStatement.setConsistencyLevel(m_consistencyLevel);
 		boundStatement.setIdempotent(true);
 
-		addBoundStatement(boundStatement);
+		addBoundStatement(rowKey, boundStatement);
 	}
 
 	public void addDataPoint(DataPointsRowKey rowKey, int columnTime, DataPoint dataPoint, int ttl) throws IOException
 	{
-		KDataOutput kDataOutput = new KDataOutput();
-		dataPoint.writeValueToBuffer(kDataOutput);
+		ByteBuffer value;
+		if (StringDictionary.isDictionaryRow(rowKey))
+		{
+			value = addDictionaryValue(rowKey, ((StringDataPoint) dataPoint).getValue(), ttl);
+		}
+		else
+		{
+			KDataOutput kDataOutput = new KDataOutput();
+			dataPoint.writeValueToBuffer(kDataOutput);
+			value = ByteBuffer.wrap(kDataOutput.getBytes());
+		}
 
 		BoundStatement boundStatement = new BoundStatement(m_clusterConnection.psDataPointsInsert);
 		boundStatement.setBytesUnsafe(0, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
@@ -143,13 +150,53 @@ public class CQLBatch
 		b.putInt(columnTime);
 		b.rewind();
 		boundStatement.setBytesUnsafe(1, b);
-		boundStatement.setBytesUnsafe(2, ByteBuffer.wrap(kDataOutput.getBytes()));
+		boundStatement.setBytesUnsafe(2, value);
 		boundStatement.setInt(3, ttl);
 		boundStatement.setLong(4, m_now);
 		boundStatement.setConsistencyLevel(m_consistencyLevel);
 		boundStatement.setIdempotent(true);
 
-		addBoundStatement(boundStatement);
+		addBoundStatement(rowKey, boundStatement);
+	}
+
+	/**
+	 Adds the dictionary cell of the value to the batch if this node hasn't
+	 written it to the row yet and returns the id to store in the data point
+	 cell.
+	 */
+	private ByteBuffer addDictionaryValue(DataPointsRowKey rowKey, String value, int ttl)
+	{
+		long id = StringDictionary.getId(value);
+
+		List<Long> batchIds = m_dictionaryIds.get(rowKey);
+		if ((batchIds == null || !batchIds.contains(id)) && m_stringDictionary.needsWrite(rowKey, id))
+		{
+			//Same ttl as the row key so the cell outlives the data points of the row
+			int dictionaryTtl = (ttl == 0) ? 0 : ttl + ((int) (ROW_WIDTH / 1000));
+
+			BoundStatement boundStatement = new BoundStatement(m_clusterConnection.psDataPointsInsert);
+			boundStatement.setBytesUnsafe(0, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
+			boundStatement.setBytesUnsafe(1, StringDictionary.getDictionaryColumn(id));
+			boundStatement.setBytesUnsafe(2, ByteBuffer.wrap(value.getBytes(UTF_8)));
+			boundStatement.setInt(3, dictionaryTtl);
+			boundStatement.setLong(4, m_now);
+			boundStatement.setConsistencyLevel(m_consistencyLevel);
+			boundStatement.setIdempotent(true);
+
+			addBoundStatement(rowKey, boundStatement);
+
+			if (batchIds == null)
+			{
+				batchIds = new ArrayList<>();
+				m_dictionaryIds.put(rowKey, batchIds);
+			}
+			batchIds.add(id);
+		}
+
+		ByteBuffer idBuffer = ByteBuffer.allocate(8);
+		idBuffer.putLong(id);
+		idBuffer.rewind();
+		return idBuffer;
 	}
 
 	public void submitBatch()
@@ -167,22 +214,35 @@ public class CQLBatch
 			m_batchStats.addRowKeyBatch(rowKeyBatch.size());
 		}
 
-		for (BatchStatement batchStatement : m_batchMap.values())
+		long writeStartTime = System.nanoTime();
+		List<ResultSetFuture> futures = new ArrayList<>(m_partitionMap.size());
+		for (List<BoundStatement> partition : m_partitionMap.values())
 		{
-			//batchStatement.enableTracing();
-			if (batchStatement.size() != 0)
+			Statement statement;
+			if (partition.size() == 1)
+				statement = partition.get(0);
+			else
 			{
-				m_clusterConnection.execute(batchStatement);
-				//System.out.println(resultSet.getExecutionInfo().getQueryTrace().getTraceId());
-				m_batchStats.addDatapointsBatch(batchStatement.size());
+				BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+				batchStatement.addAll(partition);
+				statement = batchStatement;
 			}
+
+			futures.add(m_clusterConnection.executeAsync(statement));
+			m_batchStats.addDatapointsBatch(partition.size());
 		}
 
-		//Catch all in case of a load balancing problem
-		if (dataPointBatch.size() != 0)
+		//Throws the same exceptions as execute() would for a failed partition
+		for (ResultSetFuture future : futures)
+			future.getUninterruptibly();
+
+		if (!futures.isEmpty())
+			m_batchStats.addWriteTime(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - writeStartTime));
+
+		for (Map.Entry<DataPointsRowKey, List<Long>> entry : m_dictionaryIds.entrySet())
 		{
-			m_clusterConnection.execute(dataPointBatch);
-			m_batchStats.addDatapointsBatch(dataPointBatch.size());
+			for (Long id : entry.getValue())
+				m_stringDictionary.written(entry.getKey(), id);
 		}
 	}
 }
@@ -4,33 +4,35 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.name.Named;
+import org.kairosdb.core.datastore.QueryCancellation;
+import org.kairosdb.core.datastore.QueryCancelledException;
 import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.reporting.QueryProfile;
 import org.kairosdb.core.reporting.ThreadReporter;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.kairosdb.core.KairosConfigProperties.QUERIES_REGEX_PREFIX;
 
 public class CQLFilteredRowKeyIterator implements Iterator<DataPointsRowKey>
 {
-	private final SetMultimap<String, String> m_filterTags;
-	private final Set<String> m_filterTagNames;
+	private final RowKeyTagMatcher m_tagMatcher;
 	private DataPointsRowKey m_nextKey;
 	private final Iterator<ResultSet> m_resultSets;
 	private ResultSet m_currentResultSet;
 	private final String m_metricName;
 	private final String m_clusterName;
 	private int m_rawRowKeyCount = 0;
-	private Map<String, Pattern> m_patternFilter;
 	private Set<DataPointsRowKey> m_returnedKeys;  //keep from returning duplicates, querying old and new indexes
 
 
@@ -43,28 +45,7 @@ public class CQLFilteredRowKeyIterator implements Iterator<DataPointsRowKey>
 			@Assisted SetMultimap<String, String> filterTags,
 			@Named(QUERIES_REGEX_PREFIX) String regexPrefix) throws DatastoreException
 	{
-		m_filterTags = HashMultimap.create();
-		m_filterTagNames = new HashSet<>();
-		m_patternFilter = new HashMap<>();
-
-		for (Map.Entry<String, String> entry : filterTags.entries())
-		{
-			if (regexPrefix.length() != 0 && entry.getValue().startsWith(regexPrefix))
-			{
-				String regex = entry.getValue().substring(regexPrefix.length());
-
-				Pattern pattern = Pattern.compile(regex);
-
-				m_patternFilter.put(entry.getKey(), pattern);
-			}
-			else
-			{
-				m_filterTags.put(entry.getKey(), entry.getValue());
-			}
-
-			m_filterTagNames.add(entry.getKey());
-		}
-
+		m_tagMatcher = new RowKeyTagMatcher(filterTags, regexPrefix);
 
 		m_metricName = metricName;
 		m_clusterName = cluster.getClusterName();
@@ -122,11 +103,19 @@ public class CQLFilteredRowKeyIterator implements Iterator<DataPointsRowKey>
 			futures.add(cluster.executeAsync(statement));
 		}
 
+		QueryProfile profile = QueryProfile.current();
+		if (profile != null)
+			profile.addRoundTrips(QueryProfile.Phase.INDEX_LOOKUP, futures.size());
+
 		ListenableFuture<List<ResultSet>> listListenableFuture = Futures.allAsList(futures);
 
+		QueryCancellation cancellation = QueryCancellation.current();
 		try
 		{
-			m_resultSets = listListenableFuture.get().iterator();
+			if (cancellation == null)
+				m_resultSets = listListenableFuture.get().iterator();
+			else
+				m_resultSets = listListenableFuture.get(cancellation.getRemainingMillis(), TimeUnit.MILLISECONDS).iterator();
 			if (m_resultSets.hasNext())
 				m_currentResultSet = m_resultSets.next();
 
@@ -140,17 +129,13 @@ public class CQLFilteredRowKeyIterator implements Iterator<DataPointsRowKey>
 		{
 			throw new DatastoreException("Failed to read key index", e);
 		}
-	}
-
-	private boolean matchRegexFilter(String tag, String value)
-	{
-		if (m_patternFilter.containsKey(tag))
+		catch (TimeoutException e)
 		{
-			Pattern pattern = m_patternFilter.get(tag);
-
-			return pattern.matcher(value).matches();
+			//Cancels the index queries still running
+			listListenableFuture.cancel(true);
+			cancellation.cancel("Query exceeded its deadline");
+			throw new QueryCancelledException(cancellation.getReason());
 		}
-		return false;
 	}
 
 	private DataPointsRowKey nextKeyFromIterator(ResultSet iterator)
@@ -160,32 +145,34 @@ public class CQLFilteredRowKeyIterator implements Iterator<DataPointsRowKey>
 		if (iterator.getColumnDefinitions().contains("row_time"))
 			newIndex = true;
 
-outer:
 		while (!iterator.isExhausted())
 		{
 			DataPointsRowKey rowKey;
 			Row record = iterator.one();
 
+			//Tags are matched on the serialized bytes so keys that are filtered
+			//out are never parsed
 			if (newIndex)
 			{
-				if (record.getString(1) == null)
+				if (record.isNull(1))
 					continue; //empty row
 
+				m_rawRowKeyCount ++;
+				if (!m_tagMatcher.matchesTagMap(record.getBytesUnsafe(2)))
+					continue; //Don't want this key
+
 				rowKey = new DataPointsRowKey(m_metricName, m_clusterName, record.getTimestamp(0).getTime(),
 						record.getString(1), new TreeMap<String, String>(record.getMap(2, String.class, String.class)));
 			}
 			else
-				rowKey = CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER.fromByteBuffer(record.getBytes(0), m_clusterName);
+			{
+				ByteBuffer serializedKey = record.getBytes(0);
 
-			m_rawRowKeyCount ++;
+				m_rawRowKeyCount ++;
+				if (!m_tagMatcher.matchesRowKey(serializedKey))
+					continue; //Don't want this key
 
-			Map<String, String> keyTags = rowKey.getTags();
-			for (String tag : m_filterTagNames)
-			{
-				String value = keyTags.get(tag);
-				if (value == null || !(m_filterTags.get(tag).contains(value) || 
-						matchRegexFilter(tag, value)))
-					continue outer; //Don't want this key
+				rowKey = CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER.fromByteBuffer(serializedKey, m_clusterName);
 			}
 
 			/* We can get duplicate keys from querying old and new indexes */
@@ -21,25 +21,34 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.SetMultimap;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
 import com.typesafe.config.Optional;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.KairosDataPointFactory;
 import org.kairosdb.core.datapoints.DataPointFactory;
+import org.kairosdb.core.datapoints.DictionaryStringDataPoint;
 import org.kairosdb.core.datapoints.LegacyDataPointFactory;
 import org.kairosdb.core.datapoints.LegacyDoubleDataPoint;
 import org.kairosdb.core.datapoints.LegacyLongDataPoint;
 import org.kairosdb.core.datastore.DataPointRow;
 import org.kairosdb.core.datastore.Datastore;
 import org.kairosdb.core.datastore.DatastoreMetricQuery;
+import org.kairosdb.core.datastore.DeleteProgressListener;
 import org.kairosdb.core.datastore.Order;
 import org.kairosdb.core.datastore.QueryCallback;
+import org.kairosdb.core.datastore.QueryCancellation;
+import org.kairosdb.core.datastore.QueryCancelledException;
+import org.kairosdb.core.datastore.QueryMemoryException;
 import org.kairosdb.core.datastore.QueryMetric;
 import org.kairosdb.core.datastore.QueryPlugin;
 import org.kairosdb.core.datastore.ServiceKeyStore;
@@ -51,11 +60,14 @@ import org.kairosdb.core.queue.EventCompletionCallBack;
 import org.kairosdb.core.queue.ProcessorHandler;
 import org.kairosdb.core.queue.QueueProcessor;
 import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.core.reporting.QueryProfile;
 import org.kairosdb.core.reporting.ThreadReporter;
 import org.kairosdb.eventbus.Subscribe;
 import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.util.HistogramRegistry;
 import org.kairosdb.util.IngestExecutorService;
 import org.kairosdb.util.KDataInput;
+import org.kairosdb.util.LogLinearHistogram;
 import org.kairosdb.util.MemoryMonitor;
 import org.kairosdb.util.SimpleStatsReporter;
 import org.slf4j.Logger;
@@ -69,6 +81,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -76,10 +89,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -96,9 +112,16 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 
 	public static final long ROW_WIDTH = 1814400000L; //3 Weeks wide
 
+	//How often a query waiting on Cassandra checks if it was cancelled
+	private static final long CANCEL_CHECK_INTERVAL = 100;
+
 	public static final String KEY_QUERY_TIME = "kairosdb.datastore.cassandra.key_query_time";
 	public static final String ROW_KEY_COUNT = "kairosdb.datastore.cassandra.row_key_count";
 	public static final String RAW_ROW_KEY_COUNT = "kairosdb.datastore.cassandra.raw_row_key_count";
+	public static final String QUERY_FETCH_TIME = "kairosdb.datastore.cassandra.query_fetch_time_micro";
+	public static final String ROW_READ_TIME = "kairosdb.datastore.cassandra.row_read_time_micro";
+	public static final String ABANDONED_ROW_QUERIES = "kairosdb.datastore.cassandra.abandoned_row_queries";
+	public static final String DELETE_PARALLELISM = "kairosdb.datastore.cassandra.delete_parallelism";
 
 
 	public static final String ROW_KEY_METRIC_NAMES = "metric_names";
@@ -115,6 +138,11 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 	@Inject
 	private final BatchStats m_batchStats = new BatchStats();
 
+	//Time cqlQueryWithRowKeys takes to read all rows of a query
+	private final LogLinearHistogram m_queryFetchTime = new LogLinearHistogram();
+	//Time from sending a row query until its results arrive
+	private final LogLinearHistogram m_rowReadTime = new LogLinearHistogram();
+
 	@Inject
 	private DataCache<DataPointsRowKey> m_rowKeyCache = new DataCache<DataPointsRowKey>(1024);
 	@Inject
@@ -126,6 +154,7 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 	private final CassandraModule.BatchHandlerFactory m_batchHandlerFactory;
 	private final CassandraModule.DeleteBatchHandlerFactory m_deleteBatchHandlerFactory;
 	private final CassandraModule.CQLFilteredRowKeyIteratorFactory m_rowKeyFilterFactory;
+	private final SeriesCatalog m_seriesCatalog;
 
 	private CassandraConfiguration m_cassandraConfiguration;
 
@@ -140,6 +169,14 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 	@Named("kairosdb.datastore.cassandra.query_failure_tolerance")
 	private double m_query_failure_tolerance=0.0;	//Used to allow queries with a configurable percentage of failures to complete
 
+	@Inject(optional = true)
+	@Named(DELETE_PARALLELISM)
+	private int m_deleteParallelism = 16;
+
+	private RowKeyFingerprintSet m_rowKeySet;
+
+	private StringDictionary m_stringDictionary = new StringDictionary();
+
 	@Inject
 	public CassandraDatastore(
 			CassandraConfiguration cassandraConfiguration,
@@ -151,7 +188,8 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 			IngestExecutorService congestionExecutor,
 			CassandraModule.BatchHandlerFactory batchHandlerFactory,
 			CassandraModule.DeleteBatchHandlerFactory deleteBatchHandlerFactory,
-			CassandraModule.CQLFilteredRowKeyIteratorFactory rowKeyFilterFactory) throws DatastoreException
+			CassandraModule.CQLFilteredRowKeyIteratorFactory rowKeyFilterFactory,
+			SeriesCatalog seriesCatalog) throws DatastoreException
 	{
 		//m_astyanaxClient = astyanaxClient;
 		m_kairosDataPointFactory = kairosDataPointFactory;
@@ -161,6 +199,7 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		m_batchHandlerFactory = batchHandlerFactory;
 		m_deleteBatchHandlerFactory = deleteBatchHandlerFactory;
 		m_rowKeyFilterFactory = rowKeyFilterFactory;
+		m_seriesCatalog = seriesCatalog;
 
 		m_writeCluster = writeCluster;
 		m_metaCluster = metaCluster;
@@ -182,6 +221,29 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		m_queueProcessor.setProcessorHandler(this);
 	}
 
+	@Inject(optional = true)
+	public void setHistogramRegistry(HistogramRegistry histogramRegistry)
+	{
+		histogramRegistry.register(QUERY_FETCH_TIME, m_queryFetchTime);
+		histogramRegistry.register(ROW_READ_TIME, m_rowReadTime);
+	}
+
+	/**
+	 Row keys removed by a delete have to be forgotten so they are indexed
+	 again when new data arrives
+	 */
+	@Inject(optional = true)
+	public void setRowKeyFingerprintSet(RowKeyFingerprintSet rowKeySet)
+	{
+		m_rowKeySet = rowKeySet;
+	}
+
+	@Inject(optional = true)
+	public void setStringDictionary(StringDictionary stringDictionary)
+	{
+		m_stringDictionary = stringDictionary;
+	}
+
 	//Used for creating the end string for prefix searches
 	private static ByteBuffer serializeEndString(String str)
 	{
@@ -361,6 +423,9 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 	@Override
 	public Iterable<String> getMetricNames(String prefix) throws DatastoreException
 	{
+		if (m_seriesCatalog.isReady())
+			return m_seriesCatalog.getMetricNames(prefix);
+
 		if (prefix == null)
 			return queryStringIndex(ROW_KEY_METRIC_NAMES);
 		else
@@ -370,18 +435,28 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 	@Override
 	public Iterable<String> getTagNames() throws DatastoreException
 	{
+		if (m_seriesCatalog.isReady())
+			return m_seriesCatalog.getTagNames();
+
 		return queryStringIndex(ROW_KEY_TAG_NAMES);
 	}
 
 	@Override
 	public Iterable<String> getTagValues() throws DatastoreException
 	{
+		if (m_seriesCatalog.isReady())
+			return m_seriesCatalog.getTagValues();
+
 		return queryStringIndex(ROW_KEY_TAG_VALUES);
 	}
 
 	@Override
 	public TagSet queryMetricTags(DatastoreMetricQuery query) throws DatastoreException
 	{
+		if (m_seriesCatalog.isReady() && !hasRowKeyPlugin(query))
+			return m_seriesCatalog.queryMetricTags(query.getName(), query.getStartTime(),
+					query.getEndTime(), query.getTags());
+
 		TagSetImpl tagSet = new TagSetImpl();
 		Iterator<DataPointsRowKey> rowKeys = getKeysForQueryIterator(query);
 
@@ -542,7 +617,13 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 	@Override
 	public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback) throws DatastoreException
 	{
-		cqlQueryWithRowKeys(query, queryCallback, getKeysForQueryIterator(query));
+		QueryProfile profile = QueryProfile.current();
+		long indexStartTime = System.nanoTime();
+		Iterator<DataPointsRowKey> rowKeys = getKeysForQueryIterator(query);
+		if (profile != null)
+			profile.addTime(QueryProfile.Phase.INDEX_LOOKUP, System.nanoTime() - indexStartTime);
+
+		cqlQueryWithRowKeys(query, queryCallback, rowKeys);
 	}
 
 	@Override
@@ -551,14 +632,20 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		List<DataPointSet> ret = new ArrayList<>();
 
 		m_simpleStatsReporter.reportStats(m_batchStats.getNameStats(), now,
-				"kairosdb.datastore.cassandra.write_batch_size",
+				BatchStats.WRITE_BATCH_SIZE,
 				"table", "string_index", ret);
 		m_simpleStatsReporter.reportStats(m_batchStats.getDataPointStats(), now,
-				"kairosdb.datastore.cassandra.write_batch_size",
+				BatchStats.WRITE_BATCH_SIZE,
 				"table", "data_points", ret);
 		m_simpleStatsReporter.reportStats(m_batchStats.getRowKeyStats(), now,
-				"kairosdb.datastore.cassandra.write_batch_size",
+				BatchStats.WRITE_BATCH_SIZE,
 				"table", "row_keys", ret);
+		m_simpleStatsReporter.reportStats(m_batchStats.getWriteTimeStats(), now,
+				BatchStats.WRITE_TIME, ret);
+		m_simpleStatsReporter.reportStats(m_queryFetchTime.getAndClear(), now,
+				QUERY_FETCH_TIME, ret);
+		m_simpleStatsReporter.reportStats(m_rowReadTime.getAndClear(), now,
+				ROW_READ_TIME, ret);
 
 		return ret;
 	}
@@ -569,40 +656,80 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		private final QueryCallback m_callback;
 		private final Semaphore m_semaphore;  //Used to notify caller when last query is done
 		private final QueryMonitor m_queryMonitor;
-
-		public QueryListener(DataPointsRowKey rowKey, QueryCallback callback, Semaphore querySemaphor, QueryMonitor queryMonitor)
+		private final QueryProfile m_profile;
+		private final QueryCancellation m_cancellation;
+		private final int m_endColumn;
+		private final int m_limit;
+		private final long m_sendTime;
+
+		public QueryListener(DataPointsRowKey rowKey, QueryCallback callback, Semaphore querySemaphor,
+				QueryMonitor queryMonitor, QueryProfile profile, QueryCancellation cancellation,
+				int endColumn, int limit)
 		{
+			m_sendTime = System.nanoTime();
 			m_rowKey = rowKey;
+			m_endColumn = endColumn;
+			m_limit = limit;
 			m_callback = callback;
 			m_semaphore = querySemaphor;
 			m_queryMonitor = queryMonitor;
+			m_profile = profile;
+			m_cancellation = cancellation;
 		}
 
 		@Override
 		public void onSuccess(@Nullable ResultSet result)
 		{
+			m_rowReadTime.addValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - m_sendTime));
 			try
 			{
 				//CQL will give back results that are empty
 				if (result.isExhausted())
 					return;
 
+				if (m_cancellation != null && m_cancellation.isCancelled())
+					return;
+
 				try (QueryCallback.DataPointWriter dataPointWriter = m_callback.startDataPointSet(m_rowKey.getDataType(), m_rowKey.getTags()))
 				{
 
 					DataPointFactory dataPointFactory = null;
 					dataPointFactory = m_kairosDataPointFactory.getFactoryForDataStoreType(m_rowKey.getDataType());
 
+					long decodeStartTime = System.nanoTime();
+					long byteCount = 0;
+					long dataPointCount = 0;
+					boolean dictionaryRow = StringDictionary.isDictionaryRow(m_rowKey);
+					//Dictionary rows are read to the end so the values arrive with the ids
+					Map<Long, String> dictionary = dictionaryRow ? new HashMap<Long, String>() : null;
+					List<long[]> dictionaryPoints = dictionaryRow ? new ArrayList<long[]>() : null;
 					while (!result.isExhausted())
 					{
 						Row row = result.one();
 						ByteBuffer bytes = row.getBytes(0);
+						ByteBuffer value = row.getBytes(1);
+						byteCount += bytes.remaining() + value.remaining();
 
-						int columnTime = bytes.getInt();
+						if (dictionaryRow && StringDictionary.isDictionaryColumn(bytes))
+						{
+							long id = StringDictionary.getColumnId(bytes);
+							dictionary.put(id, m_stringDictionary.getValue(id, value));
+							continue;
+						}
 
-						ByteBuffer value = row.getBytes(1);
+						int columnTime = bytes.getInt();
 						long timestamp = getColumnTimestamp(m_rowKey.getTimestamp(), columnTime);
 
+						if (dictionaryRow)
+						{
+							if (Integer.compareUnsigned(columnTime, m_endColumn) < 0 &&
+									(m_limit == 0 || dictionaryPoints.size() < m_limit))
+								dictionaryPoints.add(new long[]{timestamp, value.getLong(value.position())});
+							continue;
+						}
+
+						dataPointCount ++;
+
 						//If type is legacy type it will point to the same object, no need for equals
 						if (m_rowKey.getDataType() == LegacyDataPointFactory.DATASTORE_TYPE)
 						{
@@ -627,10 +754,50 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 
 						m_queryMonitor.incrementCounter();
 
+						if (m_cancellation != null && (dataPointCount % 1024) == 0)
+							m_cancellation.checkCancelled();
+					}
+
+					if (dictionaryRow)
+					{
+						for (long[] dictionaryPoint : dictionaryPoints)
+						{
+							String value = dictionary.get(dictionaryPoint[1]);
+							if (value == null)
+							{
+								//Dictionary cell was lost or has expired
+								logger.warn("Missing dictionary value for data point in row "+m_rowKey);
+								continue;
+							}
+
+							dataPointCount ++;
+							dataPointWriter.addDataPoint(new DictionaryStringDataPoint(dictionaryPoint[0], value));
+							m_queryMonitor.incrementCounter();
+
+							if (m_cancellation != null && (dataPointCount % 1024) == 0)
+								m_cancellation.checkCancelled();
+						}
+					}
+
+					if (m_profile != null)
+					{
+						m_profile.addTime(QueryProfile.Phase.DECODE, System.nanoTime() - decodeStartTime);
+						m_profile.addBytes(QueryProfile.Phase.DECODE, byteCount);
+						m_profile.addDataPoints(QueryProfile.Phase.DECODE, dataPointCount);
+						m_profile.addRows(QueryProfile.Phase.DECODE, 1);
 					}
 				}
 
 			}
+			catch (QueryCancelledException e)
+			{
+				//The query thread reports the cancellation
+			}
+			catch (QueryMemoryException e)
+			{
+				//Reading the other rows would only fail the same way
+				m_queryMonitor.abortQuery(e);
+			}
 			catch (Exception e)
 			{
 				logger.error("QueryListener failure on cluster "+m_rowKey.getClusterName(), e);
@@ -645,8 +812,12 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		@Override
 		public void onFailure(Throwable t)
 		{
-			logger.error("Async query failure on cluster "+m_rowKey.getClusterName(), t);
-			m_queryMonitor.failQuery(t);
+			//Futures are cancelled when the query is cancelled
+			if (!(t instanceof CancellationException))
+			{
+				logger.error("Async query failure on cluster "+m_rowKey.getClusterName(), t);
+				m_queryMonitor.failQuery(t);
+			}
 			m_semaphore.release();
 		}
 	}
@@ -661,6 +832,10 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		long queryEndTime = query.getEndTime();
 		boolean useLimit = query.getLimit() != 0;
 		QueryMonitor queryMonitor = new QueryMonitor(m_cassandraConfiguration.getQueryLimit(), m_query_failure_tolerance);
+		QueryProfile profile = QueryProfile.current();
+		QueryCancellation cancellation = QueryCancellation.current();
+		long fetchStartTime = System.nanoTime();
+		long indexTime = 0;
 
 		ExecutorService resultsExecutor = Executors.newFixedThreadPool(m_cassandraConfiguration.getQueryReaderThreads(),
 				new ThreadFactory()
@@ -676,10 +851,16 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		//Controls the number of queries sent out at the same time.
 		Semaphore querySemaphore = new Semaphore(m_cassandraConfiguration.getSimultaneousQueries());
 
-		while (rowKeys.hasNext())
+		while (cancellation == null || !cancellation.isCancelled())
 		{
+			long keyStartTime = System.nanoTime();
+			boolean hasNextKey = rowKeys.hasNext();
+			DataPointsRowKey rowKey = hasNextKey ? rowKeys.next() : null;
+			indexTime += System.nanoTime() - keyStartTime;
+			if (!hasNextKey)
+				break;
+
 			rowCount ++;
-			DataPointsRowKey rowKey = rowKeys.next();
 			long tierRowTime = rowKey.getTimestamp();
 			int startTime;
 			int endTime;
@@ -697,14 +878,28 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 			startBuffer.putInt(startTime);
 			startBuffer.rewind();
 
-			ByteBuffer endBuffer = ByteBuffer.allocate(4);
-			endBuffer.putInt(endTime);
-			endBuffer.rewind();
+			ByteBuffer endBuffer;
+			boolean dictionaryRow = StringDictionary.isDictionaryRow(rowKey);
+			if (dictionaryRow)
+			{
+				//Dictionary cells sort after the data points, the listener drops
+				//data points past the end time
+				endBuffer = StringDictionary.getEndOfRow();
+			}
+			else
+			{
+				endBuffer = ByteBuffer.allocate(4);
+				endBuffer.putInt(endTime);
+				endBuffer.rewind();
+			}
 
 			ClusterConnection cluster = m_clusterMap.get(rowKey.getClusterName());
 
+			//A limit would count dictionary cells as data points, the listener
+			//applies it instead
+			boolean useRowLimit = useLimit && !dictionaryRow;
 			BoundStatement boundStatement;
-			if (useLimit)
+			if (useRowLimit)
 			{
 				if (query.getOrder() == Order.ASC)
 					boundStatement = new BoundStatement(cluster.psDataPointsQueryAscLimit);
@@ -723,14 +918,15 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 			boundStatement.setBytesUnsafe(1, startBuffer);
 			boundStatement.setBytesUnsafe(2, endBuffer);
 
-			if (useLimit)
+			if (useRowLimit)
 				boundStatement.setInt(3, query.getLimit());
 
 			boundStatement.setConsistencyLevel(cluster.getReadConsistencyLevel());
 
 			try
 			{
-				querySemaphore.acquire();
+				if (!acquireQueryPermits(querySemaphore, 1, cancellation))
+					break;
 			}
 			catch (InterruptedException e)
 			{
@@ -745,7 +941,8 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 
 				queryResults.add(resultSetFuture);
 
-				Futures.addCallback(resultSetFuture, new QueryListener(rowKey, queryCallback, querySemaphore, queryMonitor), resultsExecutor);
+				Futures.addCallback(resultSetFuture, new QueryListener(rowKey, queryCallback, querySemaphore,
+						queryMonitor, profile, cancellation, endTime, query.getLimit()), resultsExecutor);
 			}
 			else
 			{
@@ -764,8 +961,21 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 
 		try
 		{
-			if (queryMonitor.getException() == null)
+			if (queryMonitor.getException() == null &&
+					!acquireQueryPermits(querySemaphore, m_cassandraConfiguration.getSimultaneousQueries(), cancellation))
+			{
+				int abandoned = 0;
+				for (ResultSetFuture queryResult : queryResults)
+				{
+					if (queryResult.cancel(true))
+						abandoned++;
+				}
+				ThreadReporter.addDataPoint(ABANDONED_ROW_QUERIES, abandoned);
+
+				//Listeners stop decoding once they see the cancellation, wait for them
+				//so nothing is written to the result after it is discarded
 				querySemaphore.acquire(m_cassandraConfiguration.getSimultaneousQueries());
+			}
 			resultsExecutor.shutdown();
 		}
 		catch (InterruptedException e)
@@ -773,47 +983,149 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 			logger.error("Query interrupted", e);
 		}
 
+		m_queryFetchTime.addValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - fetchStartTime));
+
+		if (profile != null)
+		{
+			profile.addTime(QueryProfile.Phase.INDEX_LOOKUP, indexTime);
+			profile.addRows(QueryProfile.Phase.INDEX_LOOKUP, rowCount);
+			profile.addTime(QueryProfile.Phase.CQL_FETCH, System.nanoTime() - fetchStartTime - indexTime);
+			profile.addRows(QueryProfile.Phase.CQL_FETCH, queryResults.size());
+			profile.addRoundTrips(QueryProfile.Phase.CQL_FETCH, queryResults.size());
+		}
+
+		if (queryMonitor.getException() instanceof QueryMemoryException)
+			throw (QueryMemoryException) queryMonitor.getException();
+
 		if (queryMonitor.getException() != null)
 			throw new DatastoreException(queryMonitor.getException());
+
+		if (cancellation != null && cancellation.isCancelled())
+			throw new QueryCancelledException(cancellation.getReason());
+	}
+
+	/**
+	 Waits for permits on the query semaphore.  With a cancellation the wait
+	 wakes up every CANCEL_CHECK_INTERVAL ms to see if the query was cancelled.
+	 @return false if the query was cancelled before the permits were free
+	 */
+	private static boolean acquireQueryPermits(Semaphore semaphore, int permits,
+			QueryCancellation cancellation) throws InterruptedException
+	{
+		if (cancellation == null)
+		{
+			semaphore.acquire(permits);
+			return true;
+		}
+
+		while (!semaphore.tryAcquire(permits, Math.min(cancellation.getRemainingMillis(), CANCEL_CHECK_INTERVAL),
+				TimeUnit.MILLISECONDS))
+		{
+			if (cancellation.isCancelled())
+				return false;
+		}
+
+		return true;
 	}
 
-	private void deletePartialRow(DataPointsRowKey rowKey, long start, long end) throws DatastoreException
+	/**
+	 Clusters a row key is deleted from, the row key only lives on the cluster
+	 it was read from.
+	 */
+	private Iterable<ClusterConnection> getDeleteClusters(DataPointsRowKey rowKey)
+	{
+		ClusterConnection cluster = m_clusterMap.get(rowKey.getClusterName());
+		if (cluster != null)
+			return Collections.singletonList(cluster);
+
+		return m_clusterMap.values();
+	}
+
+	/**
+	 Drops the whole partition, the index entries for it are removed once the
+	 data is gone so a failed delete can be run again.
+	 */
+	private ListenableFuture<List<ResultSet>> deleteRowAsync(ClusterConnection cluster,
+			DataPointsRowKey rowKey, boolean deleteRowTime)
 	{
-		queryClusters((cluster) ->
+		BoundStatement statement = new BoundStatement(cluster.psDataPointsDeleteRow);
+		statement.setBytesUnsafe(0, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
+		statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
+
+		return Futures.transformAsync(cluster.executeAsync(statement), (AsyncFunction<ResultSet, List<ResultSet>>) resultSet ->
 		{
-			if (cluster.psDataPointsDeleteRange != null)
+			List<ResultSetFuture> futures = new ArrayList<>();
+
+			//Delete from old row keys
+			BoundStatement indexStatement = new BoundStatement(cluster.psRowKeyIndexDelete);
+			indexStatement.setBytesUnsafe(0, serializeString(rowKey.getMetricName()));
+			indexStatement.setBytesUnsafe(1, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
+			indexStatement.setConsistencyLevel(cluster.getReadConsistencyLevel());
+			futures.add(cluster.executeAsync(indexStatement));
+
+			indexStatement = new BoundStatement(cluster.psRowKeyDelete);
+			indexStatement.setString(0, rowKey.getMetricName());
+			indexStatement.setTimestamp(1, new Date(rowKey.getTimestamp()));
+			indexStatement.setString(2, rowKey.getDataType());
+			indexStatement.setMap(3, rowKey.getTags());
+			indexStatement.setConsistencyLevel(cluster.getReadConsistencyLevel());
+			futures.add(cluster.executeAsync(indexStatement));
+
+			//Should only remove if the entire time window goes away and no tags are specified in query
+			//todo if we allow deletes for specific types this needs to change
+			if (deleteRowTime)
 			{
-				BoundStatement statement = new BoundStatement(cluster.psDataPointsDeleteRange);
-				statement.setBytesUnsafe(0, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
-				ByteBuffer b = ByteBuffer.allocate(4);
-				b.putInt(getColumnName(rowKey.getTimestamp(), start));
-				b.rewind();
-				statement.setBytesUnsafe(1, b);
-
-				b = ByteBuffer.allocate(4);
-				b.putInt(getColumnName(rowKey.getTimestamp(), end));
-				b.rewind();
-				statement.setBytesUnsafe(2, b);
-
-				statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
-				cluster.executeAsync(statement);
+				indexStatement = new BoundStatement(cluster.psRowKeyTimeDelete);
+				indexStatement.setString(0, rowKey.getMetricName());
+				indexStatement.setTimestamp(1, new Date(rowKey.getTimestamp()));
+				indexStatement.setConsistencyLevel(cluster.getReadConsistencyLevel());
+				futures.add(cluster.executeAsync(indexStatement));
 			}
-			else
-			{
-				//note, with multiple old clusters this query could be done multiple times
-				DatastoreMetricQuery deleteQuery = new QueryMetric(start, end, 0,
-						rowKey.getMetricName());
 
-				cqlQueryWithRowKeys(deleteQuery, new DeletingCallback(deleteQuery.getName()),
-						Collections.singletonList(rowKey).iterator());
-			}
-			return null;
-		});
+			return Futures.allAsList(futures);
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 Range delete on the column, only the start and end of the range are
+	 written as a tombstone
+	 */
+	private ListenableFuture<ResultSet> deleteRangeAsync(ClusterConnection cluster,
+			DataPointsRowKey rowKey, long start, long end)
+	{
+		BoundStatement statement = new BoundStatement(cluster.psDataPointsDeleteRange);
+		statement.setBytesUnsafe(0, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
+		ByteBuffer b = ByteBuffer.allocate(4);
+		b.putInt(getColumnName(rowKey.getTimestamp(), start));
+		b.rewind();
+		statement.setBytesUnsafe(1, b);
+
+		b = ByteBuffer.allocate(4);
+		b.putInt(getColumnName(rowKey.getTimestamp(), end));
+		b.rewind();
+		statement.setBytesUnsafe(2, b);
+
+		statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
+		return cluster.executeAsync(statement);
 	}
 
 
 	@Override
 	public void deleteDataPoints(DatastoreMetricQuery deleteQuery) throws DatastoreException
+	{
+		deleteDataPoints(deleteQuery, null);
+	}
+
+	/**
+	 Partitions entirely inside the delete range are dropped and the ones on
+	 the edges get a range delete.  Deletes are sent asynchronously with up to
+	 delete_parallelism partitions in flight on each cluster.  Clusters that
+	 don't support range deletes fall back to reading the points and deleting
+	 them one at a time.
+	 */
+	@Override
+	public void deleteDataPoints(DatastoreMetricQuery deleteQuery, DeleteProgressListener listener)
+			throws DatastoreException
 	{
 		checkNotNull(deleteQuery);
 		boolean clearCache = false;
@@ -823,77 +1135,65 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 		if (deleteQuery.getStartTime() == Long.MIN_VALUE && deleteQuery.getEndTime() == Long.MAX_VALUE)
 			deleteAll = true;
 
-		Iterator<DataPointsRowKey> rowKeyIterator = getKeysForQueryIterator(deleteQuery);
-
-		while (rowKeyIterator.hasNext())
+		//Series with a partition dropped, the catalog is updated once they are gone
+		Set<SortedMap<String, String>> droppedSeries = new HashSet<>();
+		DeleteMonitor deleteMonitor = new DeleteMonitor(listener);
+		try
 		{
-			DataPointsRowKey rowKey = rowKeyIterator.next();
-			//System.out.println("Deleting from row "+rowKey);
-			long rowKeyTimestamp = rowKey.getTimestamp();
-			if (deleteQuery.getStartTime() <= rowKeyTimestamp && (deleteQuery.getEndTime() >= rowKeyTimestamp + ROW_WIDTH - 1))
-			{
-				queryClusters((cluster) ->
-						{
-							//System.out.println("Delete entire row");
-							BoundStatement statement = new BoundStatement(cluster.psDataPointsDeleteRow);
-							statement.setBytesUnsafe(0, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
-							statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
-							cluster.execute(statement);
-
-							//Delete from old row keys
-							statement = new BoundStatement(cluster.psRowKeyIndexDelete);
-							statement.setBytesUnsafe(0, serializeString(rowKey.getMetricName()));
-							statement.setBytesUnsafe(1, DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(rowKey));
-							statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
-							cluster.execute(statement);
-
-							statement = new BoundStatement(cluster.psRowKeyDelete);
-							statement.setString(0, rowKey.getMetricName());
-							statement.setTimestamp(1, new Date(rowKey.getTimestamp()));
-							statement.setString(2, rowKey.getDataType());
-							statement.setMap(3, rowKey.getTags());
-							statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
-							cluster.execute(statement);
-
-							//Should only remove if the entire time window goes away and no tags are specified in query
-							//todo if we allow deletes for specific types this needs to change
-							if (deleteQuery.getTags().isEmpty())
-							{
-								statement = new BoundStatement(cluster.psRowKeyTimeDelete);
-								statement.setString(0, rowKey.getMetricName());
-								statement.setTimestamp(1, new Date(rowKey.getTimestamp()));
-								statement.setConsistencyLevel(cluster.getReadConsistencyLevel());
-								cluster.execute(statement);
-							}
-							return null;
-						});
+			Iterator<DataPointsRowKey> rowKeyIterator = getKeysForQueryIterator(deleteQuery);
 
-				clearCache = true;
-			}
-			else if (deleteQuery.getStartTime() <= rowKeyTimestamp)
+			while (rowKeyIterator.hasNext() && deleteMonitor.getException() == null)
 			{
-				//System.out.println("Delete first of row");
-				//Delete first portion of row
-				//deletePartialRow(rowKey, 0, getColumnName(rowKeyTimestamp, deleteQuery.getEndTime()));
-				deletePartialRow(rowKey, rowKeyTimestamp, deleteQuery.getEndTime());
-			}
-			else if (deleteQuery.getEndTime() >= rowKeyTimestamp + ROW_WIDTH -1)
-			{
-				//System.out.println("Delete last of row");
-				//Delete last portion of row
-				//deletePartialRow(rowKey, getColumnName(rowKeyTimestamp, deleteQuery.getStartTime()),
-				//		getColumnName(rowKeyTimestamp, rowKeyTimestamp + ROW_WIDTH - 1));
-				deletePartialRow(rowKey, deleteQuery.getStartTime(),
-						rowKeyTimestamp + ROW_WIDTH - 1);
+				DataPointsRowKey rowKey = rowKeyIterator.next();
+				long rowKeyTimestamp = rowKey.getTimestamp();
+				long start = Math.max(deleteQuery.getStartTime(), rowKeyTimestamp);
+				long end = Math.min(deleteQuery.getEndTime(), rowKeyTimestamp + ROW_WIDTH - 1);
+
+				for (ClusterConnection cluster : getDeleteClusters(rowKey))
+				{
+					if (start == rowKeyTimestamp && end == rowKeyTimestamp + ROW_WIDTH - 1)
+					{
+						deleteMonitor.submit(cluster, false,
+								() -> deleteRowAsync(cluster, rowKey, deleteQuery.getTags().isEmpty()));
+						droppedSeries.add(rowKey.getTags());
+						clearCache = true;
+					}
+					else if (cluster.psDataPointsDeleteRange != null)
+					{
+						deleteMonitor.submit(cluster, true,
+								() -> deleteRangeAsync(cluster, rowKey, start, end));
+					}
+					else
+					{
+						//note, with multiple old clusters this query could be done multiple times
+						DatastoreMetricQuery partialQuery = new QueryMetric(start, end, 0,
+								rowKey.getMetricName());
+
+						cqlQueryWithRowKeys(partialQuery, new DeletingCallback(partialQuery.getName()),
+								Collections.singletonList(rowKey).iterator());
+						if (listener != null)
+							listener.rowDeleted(true);
+					}
+				}
 			}
+		}
+		finally
+		{
+			deleteMonitor.waitForDeletes();
+		}
+
+		if (deleteMonitor.getException() != null)
+			throw new DatastoreException("Delete of " + deleteQuery.getName() + " failed", deleteMonitor.getException());
+
+		if (m_seriesCatalog.isEnabled())
+		{
+			if (deleteAll && deleteQuery.getTags().isEmpty())
+				m_seriesCatalog.removeMetric(deleteQuery.getName());
 			else
 			{
-				//System.out.println("Delete within a row");
-				//Delete within a row
-				/*deletePartialRow(rowKey, getColumnName(rowKeyTimestamp, deleteQuery.getStartTime()),
-						getColumnName(rowKeyTimestamp, deleteQuery.getEndTime()));*/
-				deletePartialRow(rowKey, deleteQuery.getStartTime(),
-						deleteQuery.getEndTime());
+				for (SortedMap<String, String> tags : droppedSeries)
+					m_seriesCatalog.removeRows(deleteQuery.getName(), tags,
+							deleteQuery.getStartTime(), deleteQuery.getEndTime());
 			}
 		}
 
@@ -922,7 +1222,93 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 
 
 		if (clearCache)
+		{
 			m_rowKeyCache.clear();
+			if (m_rowKeySet != null)
+				m_rowKeySet.clear();
+			m_stringDictionary.clearWritten();
+		}
+	}
+
+	/**
+	 Keeps the number of deletes in flight on each cluster at or below
+	 delete_parallelism and remembers the first one that fails.
+	 */
+	private class DeleteMonitor
+	{
+		private final Map<String, Semaphore> m_permits = new HashMap<>();
+		private final int m_parallelism = Math.max(1, m_deleteParallelism);
+		private final DeleteProgressListener m_listener;
+		private volatile Throwable m_exception;
+
+		private DeleteMonitor(DeleteProgressListener listener)
+		{
+			m_listener = listener;
+		}
+
+		public Throwable getException()
+		{
+			return m_exception;
+		}
+
+		public void submit(ClusterConnection cluster, boolean partial,
+				Supplier<ListenableFuture<?>> delete) throws DatastoreException
+		{
+			Semaphore permits = m_permits.computeIfAbsent(cluster.getClusterName(),
+					(name) -> new Semaphore(m_parallelism));
+
+			try
+			{
+				permits.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				throw new DatastoreException("Delete interrupted", e);
+			}
+
+			ListenableFuture<?> future;
+			try
+			{
+				future = delete.get();
+			}
+			catch (RuntimeException e)
+			{
+				permits.release();
+				throw e;
+			}
+
+			Futures.addCallback(future, new FutureCallback<Object>()
+			{
+				@Override
+				public void onSuccess(@Nullable Object result)
+				{
+					permits.release();
+					if (m_listener != null)
+						m_listener.rowDeleted(partial);
+				}
+
+				@Override
+				public void onFailure(Throwable t)
+				{
+					if (m_exception == null)
+						m_exception = t;
+					permits.release();
+				}
+			}, MoreExecutors.directExecutor());
+		}
+
+		public void waitForDeletes() throws DatastoreException
+		{
+			try
+			{
+				for (Semaphore permits : m_permits.values())
+					permits.acquire(m_parallelism);
+			}
+			catch (InterruptedException e)
+			{
+				throw new DatastoreException("Delete interrupted", e);
+			}
+		}
 	}
 
 	private SortedMap<String, String> getTags(DataPointRow row)
@@ -971,23 +1357,68 @@ public class CassandraDatastore implements Datastore, ProcessorHandler, KairosMe
 			//one issue is that the queries are done in the constructor
 			//would like to do them lazily but would have to throw an exception through
 			//hasNext call, ick
-			if (m_writeCluster.containRange(query.getStartTime(), query.getEndTime()))
+			ret = getRowKeys(query.getName(), query.getStartTime(), query.getEndTime(), query.getTags());
+		}
+
+		return (ret);
+	}
+
+	private Iterator<DataPointsRowKey> getRowKeys(String metricName, long startTime, long endTime,
+			SetMultimap<String, String> tags) throws DatastoreException
+	{
+		Iterator<DataPointsRowKey> ret = null;
+
+		if (m_writeCluster.containRange(startTime, endTime))
+		{
+			ret = m_rowKeyFilterFactory.create(m_writeCluster, metricName, startTime,
+					endTime, tags);
+		}
+
+		for (ClusterConnection cluster : m_readClusters)
+		{
+			if (cluster.containRange(startTime, endTime))
 			{
-				ret = m_rowKeyFilterFactory.create(m_writeCluster, query.getName(), query.getStartTime(),
-						query.getEndTime(), query.getTags());
+				ret = Iterators.concat(ret, m_rowKeyFilterFactory.create(cluster, metricName, startTime,
+						endTime, tags));
 			}
+		}
+
+		return (ret);
+	}
+
+	private static boolean hasRowKeyPlugin(DatastoreMetricQuery query)
+	{
+		for (QueryPlugin plugin : query.getPlugins())
+		{
+			if (plugin instanceof CassandraRowKeyPlugin)
+				return (true);
+		}
+
+		return (false);
+	}
 
-			for (ClusterConnection cluster : m_readClusters)
+	/**
+	 Adds every series in the row key indexes of all clusters to the series
+	 catalog.  This reads the whole index so it is only done at start up.
+	 */
+	public void loadSeriesCatalog() throws DatastoreException
+	{
+		SetMultimap<String, String> noTags = ImmutableSetMultimap.of();
+		int metricCount = 0;
+
+		for (String metricName : queryStringIndex(ROW_KEY_METRIC_NAMES))
+		{
+			Iterator<DataPointsRowKey> rowKeys = getRowKeys(metricName, Long.MIN_VALUE / 2, Long.MAX_VALUE / 2, noTags);
+			while (rowKeys != null && rowKeys.hasNext())
 			{
-				if (cluster.containRange(query.getStartTime(), query.getEndTime()))
-				{
-					ret = Iterators.concat(ret, m_rowKeyFilterFactory.create(cluster, query.getName(), query.getStartTime(),
-							query.getEndTime(), query.getTags()));
-				}
+				DataPointsRowKey rowKey = rowKeys.next();
+				m_seriesCatalog.addSeries(metricName, rowKey.getTags(), rowKey.getTimestamp(), 0);
 			}
+
+			metricCount++;
 		}
 
-		return (ret);
+		logger.info("Loaded " + metricCount + " metrics into the series catalog");
 	}
 
 	public static long calculateRowTime(long timestamp)
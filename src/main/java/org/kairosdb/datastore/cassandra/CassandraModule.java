@@ -85,6 +85,10 @@ public class CassandraModule extends AbstractModule
 		//bind(CassandraClient.class).to(CassandraClientImpl.class);
 		//bind(CassandraClientImpl.class).in(Scopes.SINGLETON);
 		bind(BatchStats.class).in(Scopes.SINGLETON);
+		bind(SeriesCatalog.class).in(Scopes.SINGLETON);
+		bind(SeriesCatalogService.class).in(Scopes.SINGLETON);
+		bind(RowKeyFingerprintSet.class).in(Scopes.SINGLETON);
+		bind(StringDictionary.class).in(Scopes.SINGLETON);
 
 		bind(new TypeLiteral<Map<String, String>>(){}).annotatedWith(Names.named(CASSANDRA_AUTH_MAP))
 				.toInstance(m_authMap);
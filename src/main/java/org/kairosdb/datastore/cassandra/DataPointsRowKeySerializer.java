@@ -104,7 +104,7 @@ public class DataPointsRowKeySerializer
 		return buffer;
 	}
 
-	private StringBuilder escapeAppend(StringBuilder sb, String value, char escape)
+	private static StringBuilder escapeAppend(StringBuilder sb, String value, char escape)
 	{
 		int startPos = 0;
 
@@ -127,7 +127,7 @@ public class DataPointsRowKeySerializer
 		return sb;
 	}
 
-	private String unEscape(CharSequence source, int start, int end, char escape)
+	private static String unEscape(CharSequence source, int start, int end, char escape)
 	{
 		int startPos = start;
 		StringBuilder sb = new StringBuilder(end - start);
@@ -152,6 +152,47 @@ public class DataPointsRowKeySerializer
 	}
 
 
+	/**
+	 Tag name as it appears in the serialized tag string
+	 */
+	static String escapeTagName(String name)
+	{
+		return escapeAppend(new StringBuilder(), name, ':').toString();
+	}
+
+	/**
+	 Tag value as it appears in the serialized tag string
+	 */
+	static String escapeTagValue(String value)
+	{
+		return escapeAppend(new StringBuilder(), value, '=').toString();
+	}
+
+	static String unEscapeTagValue(String value)
+	{
+		return unEscape(value, 0, value.length(), '=');
+	}
+
+	/**
+	 Returns the position of the tag string in a serialized row key without
+	 parsing the rest of the key.
+	 */
+	static int getTagsPosition(ByteBuffer byteBuffer)
+	{
+		int position = byteBuffer.position();
+		//Metric name ends with a null
+		while (byteBuffer.get(position) != 0x0)
+			position ++;
+
+		position += 1 + 8; //null and timestamp
+
+		//Data type marker, legacy keys have none
+		if (position < byteBuffer.limit() && byteBuffer.get(position) == 0x0)
+			position += 2 + byteBuffer.get(position + 1);
+
+		return position;
+	}
+
 	private String generateTagString(SortedMap<String, String> tags)
 	{
 		StringBuilder sb = new StringBuilder();
@@ -53,6 +53,15 @@ public class QueryMonitor
 		}
 	}
 
+	/**
+	 Stops the query regardless of the failure tolerance
+	 */
+	public void abortQuery(Throwable e)
+	{
+		m_exception = e;
+		m_keepRunning = false;
+	}
+
 	public void incrementQueryCounter()
 	{
 		m_query_counter.incrementAndGet();
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_WIDTH;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.calculateRowTime;
+
+/**
+ Remembers which row keys have already been written to the row key index so
+ BatchHandler doesn't write them again when the row key cache misses.  Only
+ the current and previous row time (by wall clock) are tracked, each in its
+ own fixed size off heap table of hashed row key fingerprints using half of
+ max_bytes.  When a table is 75% full no more keys are added to it and those
+ row keys are written as before.
+
+ A fingerprint match for a row key that was never written is a false
+ positive and its index row would be skipped.  fingerprint_bits trades
+ memory for how likely that is, with 64 bits it doesn't happen in practice.
+ rewrite_ratio is the fraction of matches that are written anyway, so a
+ false positive is corrected the next time the row key misses the cache.
+
+ Row keys with a ttl shorter than two row widths are not tracked as they can
+ expire before the set forgets them.
+ */
+public class RowKeyFingerprintSet implements KairosDBService
+{
+	public static final Logger logger = LoggerFactory.getLogger(RowKeyFingerprintSet.class);
+
+	public static final String ENABLED_PROPERTY = "kairosdb.datastore.cassandra.row_key_set.enabled";
+	public static final String MAX_BYTES_PROPERTY = "kairosdb.datastore.cassandra.row_key_set.max_bytes";
+	public static final String FINGERPRINT_BITS_PROPERTY = "kairosdb.datastore.cassandra.row_key_set.fingerprint_bits";
+	public static final String REWRITE_RATIO_PROPERTY = "kairosdb.datastore.cassandra.row_key_set.rewrite_ratio";
+	public static final String SNAPSHOT_FILE_PROPERTY = "kairosdb.datastore.cassandra.row_key_set.snapshot_file";
+
+	private static final int SNAPSHOT_MAGIC = 0x4B524B31; //KRK1
+	private static final double MAX_LOAD = 0.75;
+	private static final long MIN_TRACKED_TTL = (2 * ROW_WIDTH) / 1000;
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	private final boolean m_enabled;
+	private final int m_fingerprintBits;
+	private final int m_capacity;
+	private final double m_rewriteRatio;
+
+	@Inject(optional = true)
+	@Named(SNAPSHOT_FILE_PROPERTY)
+	private String m_snapshotFile = "";
+
+	private final Object m_lock = new Object();
+	private final Tier[] m_tiers = new Tier[2];
+
+	@Inject
+	public RowKeyFingerprintSet(
+			@Named(ENABLED_PROPERTY) boolean enabled,
+			@Named(MAX_BYTES_PROPERTY) long maxBytes,
+			@Named(FINGERPRINT_BITS_PROPERTY) int fingerprintBits,
+			@Named(REWRITE_RATIO_PROPERTY) double rewriteRatio)
+	{
+		checkArgument(fingerprintBits == 32 || fingerprintBits == 64, "fingerprint_bits must be 32 or 64");
+		checkArgument(rewriteRatio >= 0 && rewriteRatio <= 1, "rewrite_ratio must be between 0 and 1");
+
+		m_enabled = enabled;
+		m_fingerprintBits = fingerprintBits;
+		m_rewriteRatio = rewriteRatio;
+
+		long tierSlots = Math.min(maxBytes / 2, Integer.MAX_VALUE) / (fingerprintBits / 8);
+		checkArgument(!enabled || tierSlots >= 2, "max_bytes is too small");
+		m_capacity = (int) Long.highestOneBit(Math.max(tierSlots, 2));
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	/**
+	 Returns true if the row key has already been written to the index.
+	 */
+	public boolean contains(DataPointsRowKey rowKey, int rowKeyTtl)
+	{
+		return contains(rowKey, rowKeyTtl, System.currentTimeMillis());
+	}
+
+	boolean contains(DataPointsRowKey rowKey, int rowKeyTtl, long now)
+	{
+		if (!m_enabled || !isTracked(rowKeyTtl))
+			return false;
+
+		long[] hash = hash(rowKey);
+		boolean found;
+		synchronized (m_lock)
+		{
+			Tier tier = getTier(rowKey.getTimestamp(), now, false);
+			found = tier != null && tier.contains(hash[0], hash[1]);
+		}
+
+		if (found && m_rewriteRatio != 0 && ThreadLocalRandom.current().nextDouble() < m_rewriteRatio)
+			return false;
+
+		return found;
+	}
+
+	/**
+	 Records that the row key has been written to the index.
+	 */
+	public void add(DataPointsRowKey rowKey, int rowKeyTtl)
+	{
+		add(rowKey, rowKeyTtl, System.currentTimeMillis());
+	}
+
+	void add(DataPointsRowKey rowKey, int rowKeyTtl, long now)
+	{
+		if (!m_enabled || !isTracked(rowKeyTtl))
+			return;
+
+		long[] hash = hash(rowKey);
+		synchronized (m_lock)
+		{
+			Tier tier = getTier(rowKey.getTimestamp(), now, true);
+			if (tier != null)
+				tier.add(hash[0], hash[1]);
+		}
+	}
+
+	/**
+	 Forgets every row key, called when row keys are removed from the index
+	 so they get written again.
+	 */
+	public void clear()
+	{
+		synchronized (m_lock)
+		{
+			for (int I = 0; I < m_tiers.length; I++)
+				m_tiers[I] = null;
+		}
+	}
+
+	public long size()
+	{
+		synchronized (m_lock)
+		{
+			long size = 0;
+			for (Tier tier : m_tiers)
+			{
+				if (tier != null)
+					size += tier.m_count;
+			}
+
+			return size;
+		}
+	}
+
+	private static boolean isTracked(int rowKeyTtl)
+	{
+		return rowKeyTtl == 0 || rowKeyTtl >= MIN_TRACKED_TTL;
+	}
+
+	private static long[] hash(DataPointsRowKey rowKey)
+	{
+		Hasher hasher = HASH_FUNCTION.newHasher()
+				.putString(rowKey.getMetricName(), Charsets.UTF_8).putByte((byte) 0)
+				.putString(rowKey.getClusterName(), Charsets.UTF_8).putByte((byte) 0)
+				.putLong(rowKey.getTimestamp())
+				.putString(rowKey.getDataType(), Charsets.UTF_8).putByte((byte) 0);
+
+		for (Map.Entry<String, String> tag : rowKey.getTags().entrySet())
+		{
+			hasher.putString(tag.getKey(), Charsets.UTF_8).putByte((byte) 0)
+					.putString(tag.getValue(), Charsets.UTF_8).putByte((byte) 0);
+		}
+
+		ByteBuffer bytes = ByteBuffer.wrap(hasher.hash().asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+		return new long[]{bytes.getLong(), bytes.getLong()};
+	}
+
+	/**
+	 Drops tiers that are no longer current or previous and returns the tier
+	 for the row time.  Must hold m_lock.
+	 */
+	private Tier getTier(long rowTime, long now, boolean create)
+	{
+		long currentRowTime = calculateRowTime(now);
+		long previousRowTime = currentRowTime - ROW_WIDTH;
+
+		Tier ret = null;
+		for (int I = 0; I < m_tiers.length; I++)
+		{
+			Tier tier = m_tiers[I];
+			if (tier != null && tier.m_rowTime != currentRowTime && tier.m_rowTime != previousRowTime)
+				m_tiers[I] = tier = null;
+
+			if (tier != null && tier.m_rowTime == rowTime)
+				ret = tier;
+		}
+
+		if (ret == null && create && (rowTime == currentRowTime || rowTime == previousRowTime))
+		{
+			ret = new Tier(rowTime, m_fingerprintBits, m_capacity);
+			m_tiers[m_tiers[0] == null ? 0 : 1] = ret;
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void start() throws KairosDBException
+	{
+		File snapshotFile = getSnapshotFile();
+		if (!m_enabled || snapshotFile == null || !snapshotFile.exists())
+			return;
+
+		try
+		{
+			readSnapshot(snapshotFile, System.currentTimeMillis());
+			logger.info("Loaded " + size() + " row keys from " + snapshotFile);
+		}
+		catch (IOException e)
+		{
+			logger.error("Unable to read row key snapshot " + snapshotFile, e);
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+		File snapshotFile = getSnapshotFile();
+		if (!m_enabled || snapshotFile == null)
+			return;
+
+		try
+		{
+			writeSnapshot(snapshotFile);
+		}
+		catch (IOException e)
+		{
+			logger.error("Unable to write row key snapshot " + snapshotFile, e);
+		}
+	}
+
+	private File getSnapshotFile()
+	{
+		if (m_snapshotFile == null || m_snapshotFile.isEmpty())
+			return null;
+
+		return new File(m_snapshotFile);
+	}
+
+	void writeSnapshot(File file) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.exists() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent);
+
+		File tmpFile = new File(parent, file.getName() + ".tmp");
+
+		synchronized (m_lock)
+		{
+			try (RandomAccessFile out = new RandomAccessFile(tmpFile, "rw"))
+			{
+				out.setLength(0);
+				FileChannel channel = out.getChannel();
+				DataOutputStream header = new DataOutputStream(Channels.newOutputStream(channel));
+				header.writeInt(SNAPSHOT_MAGIC);
+				header.writeInt(m_fingerprintBits);
+				header.writeInt(m_capacity);
+
+				for (Tier tier : m_tiers)
+				{
+					if (tier == null)
+						continue;
+
+					header.writeBoolean(true);
+					header.writeLong(tier.m_rowTime);
+					header.writeInt(tier.m_count);
+					header.flush();
+
+					ByteBuffer table = tier.m_table.duplicate();
+					table.clear();
+					while (table.hasRemaining())
+						channel.write(table);
+				}
+
+				header.writeBoolean(false);
+				header.flush();
+			}
+		}
+
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 Loads the tiers in a snapshot that are still current.  The snapshot is
+	 ignored if it was written with a different size or fingerprint_bits.
+	 */
+	void readSnapshot(File file, long now) throws IOException
+	{
+		try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			FileChannel channel = in.getChannel();
+			DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+			if (header.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a row key snapshot: " + file);
+
+			if (header.readInt() != m_fingerprintBits || header.readInt() != m_capacity)
+			{
+				logger.warn("Row key set settings changed, ignoring snapshot " + file);
+				return;
+			}
+
+			while (header.readBoolean())
+			{
+				long rowTime = header.readLong();
+				int count = header.readInt();
+
+				synchronized (m_lock)
+				{
+					Tier tier = getTier(rowTime, now, true);
+					if (tier == null)
+					{
+						channel.position(channel.position() + (long) m_capacity * (m_fingerprintBits / 8));
+						continue;
+					}
+
+					ByteBuffer table = tier.m_table.duplicate();
+					table.clear();
+					while (table.hasRemaining())
+					{
+						if (channel.read(table) < 0)
+							throw new IOException("Truncated row key snapshot: " + file);
+					}
+					tier.m_count = count;
+				}
+			}
+		}
+	}
+
+	/**
+	 Open addressing table of fingerprints with linear probing, 0 marks an
+	 empty slot.  The slot comes from one half of the hash and the fingerprint
+	 from the other so a false positive needs both to collide.
+	 */
+	private static class Tier
+	{
+		private final long m_rowTime;
+		private final boolean m_wide;
+		private final ByteBuffer m_table;
+		private final int m_mask;
+		private final int m_maxCount;
+		private int m_count;
+		private boolean m_fullLogged;
+
+		private Tier(long rowTime, int fingerprintBits, int capacity)
+		{
+			m_rowTime = rowTime;
+			m_wide = fingerprintBits == 64;
+			m_table = ByteBuffer.allocateDirect(capacity * (fingerprintBits / 8)).order(ByteOrder.nativeOrder());
+			m_mask = capacity - 1;
+			m_maxCount = (int) (capacity * MAX_LOAD);
+		}
+
+		private long fingerprint(long hash)
+		{
+			long fingerprint = m_wide ? hash : (hash & 0xFFFFFFFFL);
+			return fingerprint == 0 ? 1 : fingerprint;
+		}
+
+		private long get(int slot)
+		{
+			return m_wide ? m_table.getLong(slot << 3) : (m_table.getInt(slot << 2) & 0xFFFFFFFFL);
+		}
+
+		private void set(int slot, long fingerprint)
+		{
+			if (m_wide)
+				m_table.putLong(slot << 3, fingerprint);
+			else
+				m_table.putInt(slot << 2, (int) fingerprint);
+		}
+
+		private boolean contains(long slotHash, long fingerprintHash)
+		{
+			long fingerprint = fingerprint(fingerprintHash);
+			for (int slot = (int) slotHash & m_mask; ; slot = (slot + 1) & m_mask)
+			{
+				long value = get(slot);
+				if (value == fingerprint)
+					return true;
+				if (value == 0)
+					return false;
+			}
+		}
+
+		private void add(long slotHash, long fingerprintHash)
+		{
+			if (m_count >= m_maxCount)
+			{
+				if (!m_fullLogged)
+				{
+					m_fullLogged = true;
+					logger.warn("Row key set for row time " + m_rowTime + " is full, increase " + MAX_BYTES_PROPERTY);
+				}
+				return;
+			}
+
+			long fingerprint = fingerprint(fingerprintHash);
+			for (int slot = (int) slotHash & m_mask; ; slot = (slot + 1) & m_mask)
+			{
+				long value = get(slot);
+				if (value == fingerprint)
+					return;
+				if (value == 0)
+				{
+					set(slot, fingerprint);
+					m_count++;
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.SetMultimap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ Tag filter of a query compiled to match the tags of a row key while they
+ are still serialized.  The row key index returns every series of a metric
+ and a selective filter discards most of them, matching the bytes in place
+ means only the keys that are returned get parsed into a DataPointsRowKey.
+
+ Tag names and exact values are looked up as bytes in hash sets through a
+ ByteBuffer view of the key, only regex filters decode the value to a
+ String.  Works on both the tag string of a serialized row key (row_key_index)
+ and the serialized tags map of the row_keys table.
+ */
+public class RowKeyTagMatcher
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte NAME_SEPARATOR = '=';
+	private static final byte VALUE_SEPARATOR = ':';
+
+	//Filters by tag name as it appears in the tag string and in the tags map
+	private final Map<ByteBuffer, TagFilter> m_escapedFilters = new HashMap<>();
+	private final Map<ByteBuffer, TagFilter> m_filters = new HashMap<>();
+
+	public RowKeyTagMatcher(SetMultimap<String, String> filterTags, String regexPrefix)
+	{
+		for (Map.Entry<String, Collection<String>> entry : filterTags.asMap().entrySet())
+		{
+			TagFilter filter = new TagFilter();
+			for (String value : entry.getValue())
+			{
+				if (regexPrefix.length() != 0 && value.startsWith(regexPrefix))
+					filter.m_pattern = Pattern.compile(value.substring(regexPrefix.length()));
+				else
+				{
+					filter.m_values.add(toBuffer(value));
+					filter.m_escapedValues.add(toBuffer(DataPointsRowKeySerializer.escapeTagValue(value)));
+				}
+			}
+
+			m_filters.put(toBuffer(entry.getKey()), filter);
+			m_escapedFilters.put(toBuffer(DataPointsRowKeySerializer.escapeTagName(entry.getKey())), filter);
+		}
+	}
+
+	private static ByteBuffer toBuffer(String str)
+	{
+		return ByteBuffer.wrap(str.getBytes(UTF_8));
+	}
+
+	/**
+	 True when there is no filter and every key matches
+	 */
+	public boolean isEmpty()
+	{
+		return m_filters.isEmpty();
+	}
+
+	/**
+	 Matches the tags of a serialized row key from the row_key_index table.
+	 */
+	public boolean matchesRowKey(ByteBuffer rowKey)
+	{
+		if (m_filters.isEmpty())
+			return true;
+
+		ByteBuffer name = rowKey.duplicate();
+		ByteBuffer value = rowKey.duplicate();
+		int end = rowKey.limit();
+		int nameStart = DataPointsRowKeySerializer.getTagsPosition(rowKey);
+		int valueStart = -1;
+		int matched = 0;
+
+		//Same state machine as DataPointsRowKeySerializer.extractTags, the byte
+		//after an escape character is skipped
+		for (int position = nameStart; position < end; position ++)
+		{
+			byte ch = rowKey.get(position);
+			if (valueStart == -1)
+			{
+				if (ch == NAME_SEPARATOR)
+					valueStart = position + 1;
+				else if (ch == VALUE_SEPARATOR)
+					position ++;
+			}
+			else
+			{
+				if (ch == VALUE_SEPARATOR)
+				{
+					setRange(name, nameStart, valueStart - 1);
+					TagFilter filter = m_escapedFilters.get(name);
+					if (filter != null)
+					{
+						setRange(value, valueStart, position);
+						if (!filter.matchesEscaped(value))
+							return false;
+						matched ++;
+					}
+
+					nameStart = position + 1;
+					valueStart = -1;
+				}
+				else if (ch == NAME_SEPARATOR)
+					position ++;
+			}
+		}
+
+		return matched == m_filters.size();
+	}
+
+	/**
+	 Matches the serialized tags map of the row_keys table, an int count
+	 followed by int length prefixed names and values.
+	 */
+	public boolean matchesTagMap(ByteBuffer tagMap)
+	{
+		if (m_filters.isEmpty())
+			return true;
+
+		if (tagMap == null)
+			return false;
+
+		ByteBuffer name = tagMap.duplicate();
+		ByteBuffer value = tagMap.duplicate();
+		int position = tagMap.position();
+		int count = tagMap.getInt(position);
+		position += 4;
+		int matched = 0;
+
+		for (int I = 0; I < count; I++)
+		{
+			int nameLength = tagMap.getInt(position);
+			position += 4;
+			setRange(name, position, position + nameLength);
+			position += nameLength;
+
+			int valueLength = tagMap.getInt(position);
+			position += 4;
+
+			TagFilter filter = m_filters.get(name);
+			if (filter != null)
+			{
+				setRange(value, position, position + valueLength);
+				if (!filter.matches(value))
+					return false;
+				matched ++;
+			}
+			position += valueLength;
+		}
+
+		return matched == m_filters.size();
+	}
+
+	private static void setRange(ByteBuffer buffer, int start, int end)
+	{
+		//Limit first so the position is never past it
+		buffer.limit(end);
+		buffer.position(start);
+	}
+
+	private static String decode(ByteBuffer value)
+	{
+		return UTF_8.decode(value.duplicate()).toString();
+	}
+
+	private static class TagFilter
+	{
+		private final Set<ByteBuffer> m_values = new HashSet<>();
+		private final Set<ByteBuffer> m_escapedValues = new HashSet<>();
+		private Pattern m_pattern;
+
+		private boolean matches(ByteBuffer value)
+		{
+			if (m_values.contains(value))
+				return true;
+
+			return m_pattern != null && m_pattern.matcher(decode(value)).matches();
+		}
+
+		private boolean matchesEscaped(ByteBuffer value)
+		{
+			if (m_escapedValues.contains(value))
+				return true;
+
+			return m_pattern != null &&
+					m_pattern.matcher(DataPointsRowKeySerializer.unEscapeTagValue(decode(value))).matches();
+		}
+	}
+}
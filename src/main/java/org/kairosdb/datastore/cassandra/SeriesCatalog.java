@@ -0,0 +1,807 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.SetMultimap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.datastore.TagSet;
+import org.kairosdb.core.datastore.TagSetImpl;
+import org.kairosdb.eventbus.Subscribe;
+import org.kairosdb.events.RowKeyEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kairosdb.core.KairosConfigProperties.QUERIES_REGEX_PREFIX;
+
+/**
+ Node local catalog of every series (metric name plus tags) written to or
+ read from the row key index.  It answers the metadata queries (metric names,
+ tag names and values) and queryMetricTags from memory instead of scanning
+ the string and row key indexes.
+
+ Every distinct string is stored once in a dictionary and series refer to it
+ by id.  For each metric the series ids are kept in sorted postings lists per
+ tag value so a tag filter is a union of the lists for the matching values
+ and an intersection across tag names.  Each series keeps the first and last
+ row time it was seen in, so time filtering is to row granularity and gaps
+ within a series are not excluded.
+
+ The catalog is fed by RowKeyEvents, which are only posted for row keys this
+ node writes.  Series written by other nodes are picked up when the catalog
+ is loaded from the index tables at start up.  Deletes on this node shrink
+ or remove the series whose partitions they drop.
+ */
+public class SeriesCatalog
+{
+	public static final Logger logger = LoggerFactory.getLogger(SeriesCatalog.class);
+
+	public static final String ENABLED_PROPERTY = "kairosdb.datastore.cassandra.series_catalog.enabled";
+	public static final String SNAPSHOT_FILE_PROPERTY = "kairosdb.datastore.cassandra.series_catalog.snapshot_file";
+	public static final String SNAPSHOT_INTERVAL_PROPERTY = "kairosdb.datastore.cassandra.series_catalog.snapshot_interval_minutes";
+
+	private static final int SNAPSHOT_MAGIC = 0x4B534331; //KSC1
+
+	@Inject(optional = true)
+	@Named(ENABLED_PROPERTY)
+	private boolean m_enabled = false;
+
+	@Inject(optional = true)
+	@Named(SNAPSHOT_FILE_PROPERTY)
+	private String m_snapshotFile = "";
+
+	@Inject(optional = true)
+	@Named(SNAPSHOT_INTERVAL_PROPERTY)
+	private long m_snapshotInterval = 10;
+
+	@Inject(optional = true)
+	@Named(QUERIES_REGEX_PREFIX)
+	private String m_regexPrefix = "";
+
+	private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+	//String dictionary, ids are indexes into m_strings
+	private final Map<String, Integer> m_stringIds = new HashMap<>();
+	private final List<String> m_strings = new ArrayList<>();
+
+	private final Map<String, MetricSeries> m_metrics = new HashMap<>();
+	private final TreeSet<String> m_metricNames = new TreeSet<>();
+	private final TreeSet<String> m_tagNames = new TreeSet<>();
+	private final TreeSet<String> m_tagValues = new TreeSet<>();
+	private long m_seriesCount;
+
+	private volatile boolean m_ready;
+	//Set when series are removed, the name sets are rebuilt on next read
+	private volatile boolean m_namesStale;
+
+	@Inject
+	public SeriesCatalog()
+	{
+	}
+
+	public SeriesCatalog(String regexPrefix)
+	{
+		m_enabled = true;
+		m_regexPrefix = checkNotNull(regexPrefix);
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	/**
+	 True once the catalog has been loaded from a snapshot or the index tables
+	 and can answer queries.
+	 */
+	public boolean isReady()
+	{
+		return m_enabled && m_ready;
+	}
+
+	public void setReady()
+	{
+		m_ready = true;
+	}
+
+	public File getSnapshotFile()
+	{
+		if (m_snapshotFile == null || m_snapshotFile.isEmpty())
+			return null;
+
+		return new File(m_snapshotFile);
+	}
+
+	public long getSnapshotInterval()
+	{
+		return m_snapshotInterval;
+	}
+
+	@Subscribe
+	public void rowKey(RowKeyEvent event)
+	{
+		if (!m_enabled)
+			return;
+
+		DataPointsRowKey rowKey = event.getRowKey();
+		addSeries(event.getMetricName(), rowKey.getTags(), rowKey.getTimestamp(), event.getRowKeyTtl());
+	}
+
+	/**
+	 @param rowKeyTtl ttl of the row key in seconds, 0 if it never expires
+	 */
+	public void addSeries(String metricName, SortedMap<String, String> tags, long rowTime, int rowKeyTtl)
+	{
+		long expires = Long.MAX_VALUE;
+		if (rowKeyTtl != 0)
+			expires = System.currentTimeMillis() + rowKeyTtl * 1000L;
+
+		m_lock.writeLock().lock();
+		try
+		{
+			int[] tagIds = new int[tags.size() * 2];
+			int index = 0;
+			for (Map.Entry<String, String> tag : tags.entrySet())
+			{
+				tagIds[index++] = getStringId(tag.getKey());
+				tagIds[index++] = getStringId(tag.getValue());
+			}
+
+			addSeries(metricName, tagIds, rowTime, rowTime, expires);
+		}
+		finally
+		{
+			m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 Must hold the write lock
+	 */
+	private void addSeries(String metricName, int[] tagIds, long minRowTime, long maxRowTime, long expires)
+	{
+		MetricSeries metric = m_metrics.get(metricName);
+		if (metric == null)
+		{
+			metric = new MetricSeries();
+			m_metrics.put(metricName, metric);
+			m_metricNames.add(metricName);
+		}
+
+		Series series = new Series(tagIds);
+		Integer seriesId = metric.m_seriesIds.get(series);
+		if (seriesId != null)
+		{
+			series = metric.m_series.get(seriesId);
+			if (series.m_removed)
+			{
+				//Written again after it was deleted
+				series.m_removed = false;
+				series.m_minRowTime = minRowTime;
+				series.m_maxRowTime = maxRowTime;
+				series.m_expires = expires;
+				m_seriesCount++;
+				m_metricNames.add(metricName);
+				addTagNames(tagIds);
+				return;
+			}
+
+			series.m_minRowTime = Math.min(series.m_minRowTime, minRowTime);
+			series.m_maxRowTime = Math.max(series.m_maxRowTime, maxRowTime);
+			series.m_expires = Math.max(series.m_expires, expires);
+			return;
+		}
+
+		series.m_minRowTime = minRowTime;
+		series.m_maxRowTime = maxRowTime;
+		series.m_expires = expires;
+
+		int id = metric.m_series.size();
+		metric.m_series.add(series);
+		metric.m_seriesIds.put(series, id);
+		m_seriesCount++;
+
+		addTagNames(tagIds);
+		for (int I = 0; I < tagIds.length; I += 2)
+		{
+			Map<Integer, IntList> values = metric.m_postings.get(tagIds[I]);
+			if (values == null)
+			{
+				values = new HashMap<>();
+				metric.m_postings.put(tagIds[I], values);
+			}
+
+			IntList postings = values.get(tagIds[I + 1]);
+			if (postings == null)
+			{
+				postings = new IntList();
+				values.put(tagIds[I + 1], postings);
+			}
+
+			//Ids are handed out in increasing order so the list stays sorted
+			postings.add(id);
+		}
+	}
+
+	private void addTagNames(int[] tagIds)
+	{
+		for (int I = 0; I < tagIds.length; I += 2)
+		{
+			m_tagNames.add(m_strings.get(tagIds[I]));
+			m_tagValues.add(m_strings.get(tagIds[I + 1]));
+		}
+	}
+
+	/**
+	 Called once the partitions of a series between the start and end time
+	 are dropped.  Only partitions that lie completely within the range are
+	 gone, the row times of the series shrink when the dropped rows are at
+	 either end and the series is removed when none are left.  Rows dropped
+	 from the middle leave a gap that is not tracked.
+	 */
+	public void removeRows(String metricName, SortedMap<String, String> tags, long startTime, long endTime)
+	{
+		long firstRow = Long.MIN_VALUE;
+		if (startTime != Long.MIN_VALUE)
+		{
+			firstRow = CassandraDatastore.calculateRowTime(startTime);
+			if (firstRow < startTime)
+				firstRow += CassandraDatastore.ROW_WIDTH;
+		}
+		long lastRow = CassandraDatastore.calculateRowTime(endTime - CassandraDatastore.ROW_WIDTH + 1);
+		if (firstRow > lastRow)
+			return;
+
+		m_lock.writeLock().lock();
+		try
+		{
+			MetricSeries metric = m_metrics.get(metricName);
+			if (metric == null)
+				return;
+
+			int[] tagIds = new int[tags.size() * 2];
+			int index = 0;
+			for (Map.Entry<String, String> tag : tags.entrySet())
+			{
+				Integer nameId = m_stringIds.get(tag.getKey());
+				Integer valueId = m_stringIds.get(tag.getValue());
+				if (nameId == null || valueId == null)
+					return;
+				tagIds[index++] = nameId;
+				tagIds[index++] = valueId;
+			}
+
+			Integer seriesId = metric.m_seriesIds.get(new Series(tagIds));
+			if (seriesId == null)
+				return;
+
+			Series series = metric.m_series.get(seriesId);
+			if (series.m_removed)
+				return;
+
+			boolean dropsFirst = firstRow <= series.m_minRowTime && series.m_minRowTime <= lastRow;
+			boolean dropsLast = firstRow <= series.m_maxRowTime && series.m_maxRowTime <= lastRow;
+			if (dropsFirst && dropsLast)
+			{
+				series.m_removed = true;
+				m_seriesCount--;
+				m_namesStale = true;
+			}
+			else if (dropsFirst)
+				series.m_minRowTime = lastRow + CassandraDatastore.ROW_WIDTH;
+			else if (dropsLast)
+				series.m_maxRowTime = firstRow - CassandraDatastore.ROW_WIDTH;
+		}
+		finally
+		{
+			m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 Removes every series of the metric, called when the whole metric is
+	 deleted.
+	 */
+	public void removeMetric(String metricName)
+	{
+		m_lock.writeLock().lock();
+		try
+		{
+			MetricSeries metric = m_metrics.remove(metricName);
+			if (metric == null)
+				return;
+
+			for (Series series : metric.m_series)
+			{
+				if (!series.m_removed)
+					m_seriesCount--;
+			}
+			m_namesStale = true;
+		}
+		finally
+		{
+			m_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 Rebuilds the metric, tag name and tag value sets from the series that
+	 are left after a removal.
+	 */
+	private void refreshNames()
+	{
+		if (!m_namesStale)
+			return;
+
+		m_lock.writeLock().lock();
+		try
+		{
+			if (!m_namesStale)
+				return;
+
+			m_metricNames.clear();
+			m_tagNames.clear();
+			m_tagValues.clear();
+			for (Map.Entry<String, MetricSeries> metric : m_metrics.entrySet())
+			{
+				for (Series series : metric.getValue().m_series)
+				{
+					if (series.m_removed)
+						continue;
+
+					m_metricNames.add(metric.getKey());
+					addTagNames(series.m_tagIds);
+				}
+			}
+
+			m_namesStale = false;
+		}
+		finally
+		{
+			m_lock.writeLock().unlock();
+		}
+	}
+
+	private int getStringId(String str)
+	{
+		Integer id = m_stringIds.get(str);
+		if (id == null)
+		{
+			id = m_strings.size();
+			m_strings.add(str);
+			m_stringIds.put(str, id);
+		}
+
+		return id;
+	}
+
+	public List<String> getMetricNames(String prefix)
+	{
+		refreshNames();
+		m_lock.readLock().lock();
+		try
+		{
+			if (prefix == null)
+				return new ArrayList<>(m_metricNames);
+
+			List<String> ret = new ArrayList<>();
+			for (String name : m_metricNames.tailSet(prefix))
+			{
+				if (!name.startsWith(prefix))
+					break;
+				ret.add(name);
+			}
+
+			return ret;
+		}
+		finally
+		{
+			m_lock.readLock().unlock();
+		}
+	}
+
+	public List<String> getTagNames()
+	{
+		refreshNames();
+		m_lock.readLock().lock();
+		try
+		{
+			return new ArrayList<>(m_tagNames);
+		}
+		finally
+		{
+			m_lock.readLock().unlock();
+		}
+	}
+
+	public List<String> getTagValues()
+	{
+		refreshNames();
+		m_lock.readLock().lock();
+		try
+		{
+			return new ArrayList<>(m_tagValues);
+		}
+		finally
+		{
+			m_lock.readLock().unlock();
+		}
+	}
+
+	public long getSeriesCount()
+	{
+		m_lock.readLock().lock();
+		try
+		{
+			return m_seriesCount;
+		}
+		finally
+		{
+			m_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 Returns the tags of the series of a metric that have row keys between the
+	 start and end time and match the tag filter, the same as filtering the
+	 row keys with CQLFilteredRowKeyIterator.
+	 */
+	public TagSet queryMetricTags(String metricName, long startTime, long endTime,
+			SetMultimap<String, String> filterTags)
+	{
+		TagSetImpl tagSet = new TagSetImpl();
+		long startRowTime = CassandraDatastore.calculateRowTime(startTime);
+		long now = System.currentTimeMillis();
+
+		m_lock.readLock().lock();
+		try
+		{
+			MetricSeries metric = m_metrics.get(metricName);
+			if (metric == null)
+				return tagSet;
+
+			int[] seriesIds = null; //null matches every series
+			for (String tagName : filterTags.keySet())
+			{
+				int[] matching = getMatchingSeries(metric, tagName, filterTags.get(tagName));
+				seriesIds = (seriesIds == null) ? matching : intersect(seriesIds, matching);
+				if (seriesIds.length == 0)
+					return tagSet;
+			}
+
+			int count = (seriesIds == null) ? metric.m_series.size() : seriesIds.length;
+			for (int I = 0; I < count; I++)
+			{
+				Series series = metric.m_series.get(seriesIds == null ? I : seriesIds[I]);
+				if (series.m_removed || series.m_maxRowTime < startRowTime || series.m_minRowTime > endTime ||
+						series.m_expires < now)
+					continue;
+
+				int[] tagIds = series.m_tagIds;
+				for (int J = 0; J < tagIds.length; J += 2)
+					tagSet.addTag(m_strings.get(tagIds[J]), m_strings.get(tagIds[J + 1]));
+			}
+
+			return tagSet;
+		}
+		finally
+		{
+			m_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 Union of the postings of the values of a tag that match the filter,
+	 values starting with the regex prefix are matched as regular expressions.
+	 */
+	private int[] getMatchingSeries(MetricSeries metric, String tagName, Collection<String> filterValues)
+	{
+		Integer tagNameId = m_stringIds.get(tagName);
+		Map<Integer, IntList> values = (tagNameId == null) ? null : metric.m_postings.get(tagNameId);
+		if (values == null)
+			return new int[0];
+
+		List<IntList> matching = new ArrayList<>();
+		List<Pattern> patterns = new ArrayList<>();
+		for (String filterValue : filterValues)
+		{
+			if (m_regexPrefix.length() != 0 && filterValue.startsWith(m_regexPrefix))
+				patterns.add(Pattern.compile(filterValue.substring(m_regexPrefix.length())));
+			else
+			{
+				Integer valueId = m_stringIds.get(filterValue);
+				IntList postings = (valueId == null) ? null : values.get(valueId);
+				if (postings != null)
+					matching.add(postings);
+			}
+		}
+
+		if (!patterns.isEmpty())
+		{
+			for (Map.Entry<Integer, IntList> value : values.entrySet())
+			{
+				String tagValue = m_strings.get(value.getKey());
+				for (Pattern pattern : patterns)
+				{
+					if (pattern.matcher(tagValue).matches())
+					{
+						matching.add(value.getValue());
+						break;
+					}
+				}
+			}
+		}
+
+		if (matching.size() == 1)
+			return matching.get(0).toArray();
+
+		int size = 0;
+		for (IntList postings : matching)
+			size += postings.m_size;
+
+		int[] ret = new int[size];
+		int position = 0;
+		for (IntList postings : matching)
+		{
+			System.arraycopy(postings.m_values, 0, ret, position, postings.m_size);
+			position += postings.m_size;
+		}
+
+		//A series only has one value per tag but the same value can match twice
+		Arrays.sort(ret);
+		int unique = 0;
+		for (int I = 0; I < ret.length; I++)
+		{
+			if (unique == 0 || ret[unique - 1] != ret[I])
+				ret[unique++] = ret[I];
+		}
+
+		return Arrays.copyOf(ret, unique);
+	}
+
+	private static int[] intersect(int[] a, int[] b)
+	{
+		int[] ret = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		int I = 0;
+		int J = 0;
+		while (I < a.length && J < b.length)
+		{
+			if (a[I] < b[J])
+				I++;
+			else if (a[I] > b[J])
+				J++;
+			else
+			{
+				ret[count++] = a[I];
+				I++;
+				J++;
+			}
+		}
+
+		return Arrays.copyOf(ret, count);
+	}
+
+	/**
+	 Writes the catalog to a temporary file which then replaces the snapshot
+	 file so a crash never leaves a partial snapshot.
+	 */
+	public void writeSnapshot(File file) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.exists() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent);
+
+		File tmpFile = new File(parent, file.getName() + ".tmp");
+
+		m_lock.readLock().lock();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+
+			out.writeInt(m_strings.size());
+			for (String str : m_strings)
+				writeString(out, str);
+
+			//Removed series are left out
+			Map<String, List<Series>> metrics = new HashMap<>();
+			for (Map.Entry<String, MetricSeries> metric : m_metrics.entrySet())
+			{
+				List<Series> seriesList = new ArrayList<>();
+				for (Series series : metric.getValue().m_series)
+				{
+					if (!series.m_removed)
+						seriesList.add(series);
+				}
+
+				if (!seriesList.isEmpty())
+					metrics.put(metric.getKey(), seriesList);
+			}
+
+			out.writeInt(metrics.size());
+			for (Map.Entry<String, List<Series>> metric : metrics.entrySet())
+			{
+				writeString(out, metric.getKey());
+
+				List<Series> seriesList = metric.getValue();
+				out.writeInt(seriesList.size());
+				for (Series series : seriesList)
+				{
+					out.writeInt(series.m_tagIds.length);
+					for (int tagId : series.m_tagIds)
+						out.writeInt(tagId);
+					out.writeLong(series.m_minRowTime);
+					out.writeLong(series.m_maxRowTime);
+					out.writeLong(series.m_expires);
+				}
+			}
+		}
+		finally
+		{
+			m_lock.readLock().unlock();
+		}
+
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 Adds the series in a snapshot to the catalog.
+	 */
+	public void readSnapshot(File file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a series catalog snapshot: " + file);
+
+			int stringCount = in.readInt();
+			String[] strings = new String[stringCount];
+			for (int I = 0; I < stringCount; I++)
+				strings[I] = readString(in);
+
+			int metricCount = in.readInt();
+			for (int I = 0; I < metricCount; I++)
+			{
+				String metricName = readString(in);
+				int seriesCount = in.readInt();
+				for (int J = 0; J < seriesCount; J++)
+				{
+					int[] snapshotIds = new int[in.readInt()];
+					for (int K = 0; K < snapshotIds.length; K++)
+						snapshotIds[K] = in.readInt();
+					long minRowTime = in.readLong();
+					long maxRowTime = in.readLong();
+					long expires = in.readLong();
+
+					m_lock.writeLock().lock();
+					try
+					{
+						//Ids in the snapshot are mapped to this catalog's dictionary
+						int[] tagIds = new int[snapshotIds.length];
+						for (int K = 0; K < snapshotIds.length; K++)
+							tagIds[K] = getStringId(strings[snapshotIds[K]]);
+
+						addSeries(metricName, tagIds, minRowTime, maxRowTime, expires);
+					}
+					finally
+					{
+						m_lock.writeLock().unlock();
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException
+	{
+		byte[] bytes = str.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	private static class MetricSeries
+	{
+		private final List<Series> m_series = new ArrayList<>();
+		private final Map<Series, Integer> m_seriesIds = new HashMap<>();
+
+		//tag name id -> tag value id -> sorted series ids
+		private final Map<Integer, Map<Integer, IntList>> m_postings = new HashMap<>();
+	}
+
+	private static class Series
+	{
+		//Alternating tag name and value ids sorted by tag name
+		private final int[] m_tagIds;
+		private long m_minRowTime;
+		private long m_maxRowTime;
+		private long m_expires;
+		//Removed series keep their id so the postings lists stay valid
+		private boolean m_removed;
+
+		private Series(int[] tagIds)
+		{
+			m_tagIds = tagIds;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return true;
+			if (o == null || getClass() != o.getClass())
+				return false;
+
+			return Arrays.equals(m_tagIds, ((Series) o).m_tagIds);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode(m_tagIds);
+		}
+	}
+
+	private static class IntList
+	{
+		private int[] m_values = new int[2];
+		private int m_size;
+
+		private void add(int value)
+		{
+			if (m_size == m_values.length)
+				m_values = Arrays.copyOf(m_values, m_size * 2);
+
+			m_values[m_size++] = value;
+		}
+
+		private int[] toArray()
+		{
+			return Arrays.copyOf(m_values, m_size);
+		}
+	}
+}
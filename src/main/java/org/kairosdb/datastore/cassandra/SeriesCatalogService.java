@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Loads the series catalog at start up and writes snapshots of it.  A snapshot
+ makes the catalog ready right away, the index tables are then read in the
+ background to add series written by other nodes while this one was down.
+ Without a snapshot the datastore answers metadata queries from the index
+ tables until that read finishes.
+ */
+public class SeriesCatalogService implements KairosDBService
+{
+	public static final Logger logger = LoggerFactory.getLogger(SeriesCatalogService.class);
+
+	private final SeriesCatalog m_catalog;
+	private final CassandraDatastore m_datastore;
+	private ScheduledExecutorService m_executor;
+
+	@Inject
+	public SeriesCatalogService(SeriesCatalog catalog, CassandraDatastore datastore)
+	{
+		m_catalog = checkNotNull(catalog);
+		m_datastore = checkNotNull(datastore);
+	}
+
+	@Override
+	public void start() throws KairosDBException
+	{
+		if (!m_catalog.isEnabled())
+			return;
+
+		m_executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("Series-Catalog-%s").setDaemon(true).build());
+
+		File snapshotFile = m_catalog.getSnapshotFile();
+		if (snapshotFile != null && snapshotFile.exists())
+		{
+			try
+			{
+				m_catalog.readSnapshot(snapshotFile);
+				m_catalog.setReady();
+				logger.info("Loaded " + m_catalog.getSeriesCount() + " series from " + snapshotFile);
+			}
+			catch (Exception e)
+			{
+				logger.error("Unable to read series catalog snapshot " + snapshotFile, e);
+			}
+		}
+
+		m_executor.submit(this::loadFromIndex);
+
+		if (snapshotFile != null)
+		{
+			long interval = m_catalog.getSnapshotInterval();
+			m_executor.scheduleWithFixedDelay(this::writeSnapshot, interval, interval, TimeUnit.MINUTES);
+		}
+	}
+
+	private void loadFromIndex()
+	{
+		try
+		{
+			m_datastore.loadSeriesCatalog();
+			m_catalog.setReady();
+			logger.info("Series catalog holds " + m_catalog.getSeriesCount() + " series");
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to load the series catalog from the row key index", e);
+		}
+	}
+
+	private void writeSnapshot()
+	{
+		File snapshotFile = m_catalog.getSnapshotFile();
+		if (!m_catalog.isReady() || snapshotFile == null)
+			return;
+
+		try
+		{
+			m_catalog.writeSnapshot(snapshotFile);
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to write series catalog snapshot " + snapshotFile, e);
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+		if (m_executor == null)
+			return;
+
+		m_executor.shutdownNow();
+		writeSnapshot();
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DictionaryStringDataPoint;
+import org.kairosdb.core.datapoints.DictionaryStringDataPointFactory;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.core.datapoints.StringDataPointFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ Stores the string values of chosen metrics as dictionary ids.  Each data
+ point cell of a dictionary row holds the 8 byte id of its value and the row
+ has one dictionary cell per distinct value that maps the id back to the
+ string.  Dictionary cells are named 0xFFFFFFFF followed by the id so they
+ sort after every data point column and are never returned by a time range
+ read of ordinary rows.
+
+ The id is a 64 bit hash of the value, so every Kairos node writing the same
+ row picks the same id without having to coordinate.  Dictionary cells are
+ written the first time a node writes a value to a row and again once the
+ write cache forgets it, they get the ttl of the row key so they outlive the
+ data points of the row.
+
+ Decoded values are kept by id and interned, status like metrics with a few
+ distinct values then share one String per value across all queries.
+ */
+public class StringDictionary
+{
+	public static final String METRICS_PROPERTY = "kairosdb.datastore.cassandra.string_dictionary.metrics";
+	public static final String CACHE_SIZE_PROPERTY = "kairosdb.datastore.cassandra.string_dictionary.cache_size";
+
+	public static final int DICTIONARY_COLUMN_PREFIX = 0xFFFFFFFF;
+	public static final int DICTIONARY_COLUMN_SIZE = 4 + 8;
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	private volatile Pattern m_metricPattern = null;
+	private volatile Cache<Long, String> m_values;
+	private volatile Cache<WrittenEntry, Boolean> m_written;
+
+	@Inject
+	public StringDictionary()
+	{
+		setCacheSize(100000);
+	}
+
+	/**
+	 Regular expression of the metric names that are stored with a dictionary,
+	 empty for none.
+	 */
+	@Inject(optional = true)
+	public void setMetrics(@Named(METRICS_PROPERTY) String metrics)
+	{
+		if (metrics == null || metrics.isEmpty())
+			m_metricPattern = null;
+		else
+			m_metricPattern = Pattern.compile(metrics);
+	}
+
+	/**
+	 Number of values and of written dictionary cells to remember
+	 */
+	@Inject(optional = true)
+	public void setCacheSize(@Named(CACHE_SIZE_PROPERTY) int cacheSize)
+	{
+		m_values = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+		//Rewritten once a day so a lost write doesn't leave values without a dictionary cell
+		m_written = CacheBuilder.newBuilder().maximumSize(cacheSize)
+				.expireAfterWrite(1, TimeUnit.DAYS).build();
+	}
+
+	public static boolean isDictionaryRow(DataPointsRowKey rowKey)
+	{
+		return DictionaryStringDataPointFactory.DST_DICTIONARY_STRING.equals(rowKey.getDataType());
+	}
+
+	/**
+	 Returns a dictionary data point for string data points of the configured
+	 metrics and the data point itself for everything else.
+	 */
+	public DataPoint toDictionaryDataPoint(String metricName, DataPoint dataPoint)
+	{
+		Pattern metricPattern = m_metricPattern;
+		if (metricPattern == null || !(dataPoint instanceof StringDataPoint) ||
+				!StringDataPointFactory.DST_STRING.equals(dataPoint.getDataStoreDataType()))
+			return dataPoint;
+
+		if (!metricPattern.matcher(metricName).matches())
+			return dataPoint;
+
+		return new DictionaryStringDataPoint(dataPoint.getTimestamp(), ((StringDataPoint) dataPoint).getValue());
+	}
+
+	public static long getId(String value)
+	{
+		return HASH_FUNCTION.hashString(value, Charsets.UTF_8).asLong();
+	}
+
+	public static ByteBuffer getDictionaryColumn(long id)
+	{
+		ByteBuffer column = ByteBuffer.allocate(DICTIONARY_COLUMN_SIZE);
+		column.putInt(DICTIONARY_COLUMN_PREFIX);
+		column.putLong(id);
+		column.rewind();
+		return column;
+	}
+
+	/**
+	 End of a data point query that also returns the dictionary cells,
+	 sorts after every dictionary column.
+	 */
+	public static ByteBuffer getEndOfRow()
+	{
+		ByteBuffer end = ByteBuffer.allocate(DICTIONARY_COLUMN_SIZE + 1);
+		while (end.hasRemaining())
+			end.put((byte) 0xFF);
+		end.rewind();
+		return end;
+	}
+
+	public static boolean isDictionaryColumn(ByteBuffer column)
+	{
+		return column.remaining() == DICTIONARY_COLUMN_SIZE &&
+				column.getInt(column.position()) == DICTIONARY_COLUMN_PREFIX;
+	}
+
+	public static long getColumnId(ByteBuffer column)
+	{
+		return column.getLong(column.position() + 4);
+	}
+
+	/**
+	 True if this node has not written the dictionary cell for the value to
+	 the row yet.
+	 */
+	public boolean needsWrite(DataPointsRowKey rowKey, long id)
+	{
+		return m_written.getIfPresent(new WrittenEntry(rowKey, id)) == null;
+	}
+
+	/**
+	 Called once the dictionary cell has been written
+	 */
+	public void written(DataPointsRowKey rowKey, long id)
+	{
+		m_written.put(new WrittenEntry(rowKey, id), Boolean.TRUE);
+	}
+
+	/**
+	 Forgets every written dictionary cell, called when partitions are dropped
+	 so the cells are written again if values go back into the same rows.
+	 */
+	public void clearWritten()
+	{
+		m_written.invalidateAll();
+	}
+
+	/**
+	 Returns the value of a dictionary cell, values already seen are returned
+	 without decoding the cell again.
+	 */
+	public String getValue(long id, ByteBuffer cellValue)
+	{
+		String value = m_values.getIfPresent(id);
+		if (value == null)
+		{
+			value = DictionaryStringDataPointFactory.intern(Charsets.UTF_8.decode(cellValue.duplicate()).toString());
+			m_values.put(id, value);
+		}
+
+		return value;
+	}
+
+	private static class WrittenEntry
+	{
+		private final DataPointsRowKey m_rowKey;
+		private final long m_id;
+
+		private WrittenEntry(DataPointsRowKey rowKey, long id)
+		{
+			m_rowKey = rowKey;
+			m_id = id;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			WrittenEntry that = (WrittenEntry) o;
+			return m_id == that.m_id && m_rowKey.equals(that.m_rowKey);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * m_rowKey.hashCode() + Long.hashCode(m_id);
+		}
+	}
+}
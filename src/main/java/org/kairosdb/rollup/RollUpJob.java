@@ -12,6 +12,7 @@ import org.kairosdb.core.datastore.DatastoreQuery;
 import org.kairosdb.core.datastore.Duration;
 import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.datastore.Order;
+import org.kairosdb.core.datastore.QueryClass;
 import org.kairosdb.core.datastore.QueryMetric;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.http.rest.json.RelativeTime;
@@ -160,6 +161,7 @@ public class RollUpJob implements InterruptableJob
 		log.info("Execute Rollup: Start time: " + new Date(query.getStartTime()) + " End time: " + new Date(query.getEndTime()));
 
 		int dpCount = 0;
+		query.setQueryClass(QueryClass.ROLLUP);
 		DatastoreQuery dq = datastore.createQuery(query);
 		try
 		{
@@ -212,6 +214,7 @@ public class RollUpJob implements InterruptableJob
 		DatastoreQuery query = null;
 		try
 		{
+			rollupQuery.setQueryClass(QueryClass.ROLLUP);
 			query = datastore.createQuery(rollupQuery);
 			List<DataPointGroup> rollupResult = query.execute();
 
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ Histograms used for internal metrics register here so the admin endpoint
+ can read them.  The owner still reports its histograms through
+ KairosMetricReporter, the registry only hands out read only views.
+ */
+public class HistogramRegistry
+{
+	private final ConcurrentSkipListMap<String, LogLinearHistogram> m_histograms = new ConcurrentSkipListMap<>();
+
+	public void register(String metricName, LogLinearHistogram histogram)
+	{
+		m_histograms.put(metricName, histogram);
+	}
+
+	public void register(String metricName, String tagName, String tagValue, LogLinearHistogram histogram)
+	{
+		m_histograms.put(metricName + "{" + tagName + "=" + tagValue + "}", histogram);
+	}
+
+	public SortedMap<String, LogLinearHistogram> getHistograms()
+	{
+		return Collections.unmodifiableSortedMap(m_histograms);
+	}
+}
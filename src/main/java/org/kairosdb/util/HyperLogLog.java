@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ HyperLogLog sketch that estimates the number of distinct values added to it.
+ With a precision of p the sketch has 2^p one byte registers and a standard
+ error of 1.04 / sqrt(2^p), the default of 12 is 4KB and about 1.6%.
+
+ Values are hashed with 64 bit murmur3, the top p bits pick the register and
+ the register keeps the longest run of leading zeros seen in the rest.
+ Sketches are merged by taking the larger of each register, a sketch of
+ higher precision is folded down to the lower one first so sketches written
+ with different precisions can still be merged.
+
+ Sketches with few registers set are serialized as index/value pairs, so a
+ sketch of a handful of values takes a few bytes instead of 2^p.
+ */
+public class HyperLogLog
+{
+	public static final int DEFAULT_PRECISION = 12;
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 16;
+
+	private static final byte VERSION = 1;
+	private static final byte DENSE = 0;
+	private static final byte SPARSE = 1;
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	private int m_precision;
+	private byte[] m_registers;
+
+	public HyperLogLog()
+	{
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision)
+	{
+		checkArgument(precision >= MIN_PRECISION && precision <= MAX_PRECISION,
+				"precision must be between %s and %s", MIN_PRECISION, MAX_PRECISION);
+		m_precision = precision;
+		m_registers = new byte[1 << precision];
+	}
+
+	public int getPrecision()
+	{
+		return m_precision;
+	}
+
+	public void offer(String value)
+	{
+		offerHash(HASH_FUNCTION.hashString(value, Charsets.UTF_8).asLong());
+	}
+
+	public void offerHash(long hash)
+	{
+		int index = (int) (hash >>> (64 - m_precision));
+		//Sentinel bit keeps the rank within the bits left after the index
+		long rest = (hash << m_precision) | (1L << (m_precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+
+		if (rank > m_registers[index])
+			m_registers[index] = rank;
+	}
+
+	/**
+	 Adds the values of another sketch to this one.  If the other sketch has a
+	 lower precision this one is folded down to it.
+	 */
+	public void merge(HyperLogLog other)
+	{
+		byte[] otherRegisters = other.m_registers;
+		if (other.m_precision > m_precision)
+			otherRegisters = fold(other.m_registers, other.m_precision, m_precision);
+		else if (other.m_precision < m_precision)
+		{
+			m_registers = fold(m_registers, m_precision, other.m_precision);
+			m_precision = other.m_precision;
+		}
+
+		for (int I = 0; I < m_registers.length; I++)
+		{
+			if (otherRegisters[I] > m_registers[I])
+				m_registers[I] = otherRegisters[I];
+		}
+	}
+
+	/**
+	 Registers of a sketch with the precision lowered.  The index bits that
+	 are dropped become the leading bits of the rest of the hash.
+	 */
+	private static byte[] fold(byte[] registers, int precision, int newPrecision)
+	{
+		int dropped = precision - newPrecision;
+		byte[] ret = new byte[1 << newPrecision];
+
+		for (int I = 0; I < registers.length; I++)
+		{
+			if (registers[I] == 0)
+				continue;
+
+			int lowBits = I & ((1 << dropped) - 1);
+			byte rank;
+			if (lowBits == 0)
+				rank = (byte) (registers[I] + dropped);
+			else
+				rank = (byte) (Integer.numberOfLeadingZeros(lowBits) - (32 - dropped) + 1);
+
+			int index = I >>> dropped;
+			if (rank > ret[index])
+				ret[index] = rank;
+		}
+
+		return ret;
+	}
+
+	/**
+	 Estimated number of distinct values added to the sketch
+	 */
+	public long estimate()
+	{
+		int count = m_registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : m_registers)
+		{
+			sum += 1.0 / (1L << register);
+			if (register == 0)
+				zeros ++;
+		}
+
+		double estimate = alpha(count) * count * count / sum;
+
+		//Linear counting is more accurate while many registers are empty
+		if (zeros != 0 && estimate <= 2.5 * count)
+			estimate = count * Math.log((double) count / zeros);
+
+		return Math.round(estimate);
+	}
+
+	private static double alpha(int count)
+	{
+		switch (count)
+		{
+			case 16:
+				return 0.673;
+			case 32:
+				return 0.697;
+			case 64:
+				return 0.709;
+			default:
+				return 0.7213 / (1 + 1.079 / count);
+		}
+	}
+
+	public HyperLogLog copy()
+	{
+		HyperLogLog ret = new HyperLogLog(m_precision);
+		System.arraycopy(m_registers, 0, ret.m_registers, 0, m_registers.length);
+		return ret;
+	}
+
+	public void write(DataOutput out) throws IOException
+	{
+		int set = 0;
+		for (byte register : m_registers)
+		{
+			if (register != 0)
+				set ++;
+		}
+
+		out.writeByte(VERSION);
+		out.writeByte(m_precision);
+
+		//An index and value pair takes 3 bytes
+		if (set * 3 < m_registers.length)
+		{
+			out.writeByte(SPARSE);
+			out.writeShort(set);
+			for (int I = 0; I < m_registers.length; I++)
+			{
+				if (m_registers[I] != 0)
+				{
+					out.writeShort(I);
+					out.writeByte(m_registers[I]);
+				}
+			}
+		}
+		else
+		{
+			out.writeByte(DENSE);
+			out.write(m_registers);
+		}
+	}
+
+	public static HyperLogLog read(DataInput in) throws IOException
+	{
+		byte version = in.readByte();
+		if (version != VERSION)
+			throw new IOException("Unknown HyperLogLog version " + version);
+
+		int precision = in.readByte();
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+			throw new IOException("Invalid HyperLogLog precision " + precision);
+
+		HyperLogLog ret = new HyperLogLog(precision);
+		byte encoding = in.readByte();
+		if (encoding == SPARSE)
+		{
+			int set = in.readUnsignedShort();
+			for (int I = 0; I < set; I++)
+			{
+				int index = in.readUnsignedShort();
+				if (index >= ret.m_registers.length)
+					throw new IOException("Invalid HyperLogLog register " + index);
+				ret.m_registers[index] = in.readByte();
+			}
+		}
+		else if (encoding == DENSE)
+			in.readFully(ret.m_registers);
+		else
+			throw new IOException("Unknown HyperLogLog encoding " + encoding);
+
+		return ret;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		HyperLogLog that = (HyperLogLog) o;
+		return m_precision == that.m_precision && Arrays.equals(m_registers, that.m_registers);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * m_precision + Arrays.hashCode(m_registers);
+	}
+}
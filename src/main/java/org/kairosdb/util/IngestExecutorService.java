@@ -6,6 +6,7 @@ import com.github.rholder.retry.Retryer;
 import com.github.rholder.retry.RetryerBuilder;
 import com.github.rholder.retry.WaitStrategies;
 import com.google.common.base.Stopwatch;
+import com.google.inject.Inject;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.datapoints.DoubleDataPointFactory;
 import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
@@ -14,7 +15,6 @@ import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.eventbus.Subscribe;
 import org.kairosdb.events.ShutdownEvent;
 
-import javax.inject.Inject;
 import javax.inject.Named;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,13 +32,14 @@ import java.util.concurrent.TimeUnit;
 public class IngestExecutorService implements KairosMetricReporter
 {
 	public static final String PERMIT_COUNT = "kairosdb.ingest_executor.thread_count";
+	public static final String WRITE_TIME = "kairosdb.ingest_executor.write_time_micro";
 
 	private final ExecutorService m_internalExecutor;
 	private final ThreadGroup m_threadGroup;
 	//Original idea behind this is that the number of threads could
 	//adjust via incrementing or decrementing the semaphore count.
 	private final CongestionSemaphore m_semaphore;
-	private final SimpleStats m_ingestTimeStats = new SimpleStats();
+	private final LogLinearHistogram m_ingestTimeStats = new LogLinearHistogram();
 	private int m_permitCount = 10;
 	private final Retryer<Integer> m_retryer;
 
@@ -48,6 +49,12 @@ public class IngestExecutorService implements KairosMetricReporter
 	@Inject
 	private SimpleStatsReporter m_simpleStatsReporter = new SimpleStatsReporter();
 
+	@Inject(optional = true)
+	public void setHistogramRegistry(HistogramRegistry histogramRegistry)
+	{
+		histogramRegistry.register(WRITE_TIME, m_ingestTimeStats);
+	}
+
 	@Inject
 	public IngestExecutorService(@Named(PERMIT_COUNT) int permitCount)
 	{
@@ -122,8 +129,7 @@ public class IngestExecutorService implements KairosMetricReporter
 	{
 		List<DataPointSet> ret = new ArrayList<>();
 
-		m_simpleStatsReporter.reportStats(m_ingestTimeStats.getAndClear(), now,
-				"kairosdb.ingest_executor.write_time_micro", ret);
+		m_simpleStatsReporter.reportStats(m_ingestTimeStats.getAndClear(), now, WRITE_TIME, ret);
 
 		return ret;
 	}
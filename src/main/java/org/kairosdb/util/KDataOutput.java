@@ -19,6 +19,14 @@ public class KDataOutput implements DataOutput
 		m_dataOutputStream = new DataOutputStream(m_arrayOutputStream);
 	}
 
+	/**
+	 Number of bytes written so far
+	 */
+	public int size()
+	{
+		return m_dataOutputStream.size();
+	}
+
 	public byte[] getBytes() throws IOException
 	{
 		m_dataOutputStream.flush();
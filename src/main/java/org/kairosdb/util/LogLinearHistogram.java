@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Histogram with log linear buckets in the style of HdrHistogram.  Values
+ below 128 are counted exactly, larger values are kept to 7 significant bits,
+ 64 buckets per power of two, so percentiles are within 1/64 (about 1.6%) of
+ the recorded value.  The whole range of long fits in under 4000 buckets.
+
+ addValue is lock free and can be called from any number of threads.
+ getAndClear swaps each bucket out with zero, a value recorded while it runs
+ lands in either this snapshot or the next one.  The last snapshot and the
+ total since the histogram was created are kept so they can be read without
+ disturbing the reporting interval.
+ */
+public class LogLinearHistogram
+{
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT +
+			(63 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray m_counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAccumulator m_min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+	private final LongAccumulator m_max = new LongAccumulator(Math::max, 0);
+	private final LongAdder m_sum = new LongAdder();
+	private final Object m_snapshotLock = new Object();
+	private Data m_lastInterval = new Data();
+	private final Data m_total = new Data();
+
+	static int getBucketIndex(long value)
+	{
+		if (value < SUB_BUCKET_COUNT)
+			return (int)value;
+
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		int top = (int)(value >>> shift);
+		return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (top - HALF_SUB_BUCKET_COUNT);
+	}
+
+	/**
+	 Largest value that is counted in the bucket
+	 */
+	static long getHighestValue(int index)
+	{
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+
+		int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		long top = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+		return (top << shift) + ((1L << shift) - 1);
+	}
+
+	/**
+	 Negative values are recorded as 0
+	 */
+	public void addValue(long value)
+	{
+		if (value < 0)
+			value = 0;
+
+		m_counts.incrementAndGet(getBucketIndex(value));
+		m_min.accumulate(value);
+		m_max.accumulate(value);
+		m_sum.add(value);
+	}
+
+	public Data getAndClear()
+	{
+		synchronized (m_snapshotLock)
+		{
+			long[] counts = new long[BUCKET_COUNT];
+			for (int I = 0; I < BUCKET_COUNT; I++)
+			{
+				if (m_counts.get(I) != 0)
+					counts[I] = m_counts.getAndSet(I, 0);
+			}
+
+			Data ret = new Data(counts, m_min.getThenReset(), m_max.getThenReset(), m_sum.sumThenReset());
+			m_lastInterval = ret;
+			m_total.add(ret);
+
+			return ret;
+		}
+	}
+
+	/**
+	 Snapshot returned by the last call to getAndClear
+	 */
+	public Data getLastInterval()
+	{
+		synchronized (m_snapshotLock)
+		{
+			return m_lastInterval;
+		}
+	}
+
+	/**
+	 Everything recorded since the histogram was created, including values
+	 not yet returned by getAndClear
+	 */
+	public Data getTotal()
+	{
+		synchronized (m_snapshotLock)
+		{
+			long[] counts = new long[BUCKET_COUNT];
+			for (int I = 0; I < BUCKET_COUNT; I++)
+				counts[I] = m_counts.get(I);
+
+			Data ret = new Data(counts, m_min.get(), m_max.get(), m_sum.sum());
+			ret.add(m_total);
+			return ret;
+		}
+	}
+
+	public static class Data
+	{
+		private final long[] m_counts;
+		private long m_count;
+		private long m_min;
+		private long m_max;
+		private long m_sum;
+
+		public Data()
+		{
+			this(new long[BUCKET_COUNT], Long.MAX_VALUE, 0, 0);
+		}
+
+		private Data(long[] counts, long min, long max, long sum)
+		{
+			m_counts = counts;
+			m_min = min;
+			m_max = max;
+			m_sum = sum;
+			for (long count : counts)
+				m_count += count;
+		}
+
+		/**
+		 Adds the counts from another snapshot to this one
+		 */
+		public void add(Data other)
+		{
+			for (int I = 0; I < BUCKET_COUNT; I++)
+				m_counts[I] += other.m_counts[I];
+
+			m_count += other.m_count;
+			m_sum += other.m_sum;
+			m_min = Math.min(m_min, other.m_min);
+			m_max = Math.max(m_max, other.m_max);
+		}
+
+		public long getCount()
+		{
+			return m_count;
+		}
+
+		public long getMin()
+		{
+			return m_count == 0 ? 0 : m_min;
+		}
+
+		public long getMax()
+		{
+			return m_max;
+		}
+
+		public long getSum()
+		{
+			return m_sum;
+		}
+
+		public double getMean()
+		{
+			return m_count == 0 ? 0.0 : (double)m_sum / m_count;
+		}
+
+		/**
+		 @param percentile value between 0 and 100
+		 @return the highest value in the bucket that holds the percentile,
+		 never more than the largest value recorded
+		 */
+		public long getValueAtPercentile(double percentile)
+		{
+			if (m_count == 0)
+				return 0;
+
+			long target = Math.max(1, (long)Math.ceil(m_count * Math.min(percentile, 100.0) / 100.0));
+			long seen = 0;
+			for (int I = 0; I < BUCKET_COUNT; I++)
+			{
+				seen += m_counts[I];
+				if (seen >= target)
+					return Math.min(getHighestValue(I), m_max);
+			}
+
+			return m_max;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import org.kairosdb.core.datastore.Order;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Merges sorted iterators into one sorted stream using a loser tree keyed on a
+ long, usually the timestamp.  Each internal node of the tree holds the source
+ that lost the match played there so replacing the winner only replays the
+ matches on its path to the root, log2(k) long comparisons per element with no
+ allocation.
+
+ Elements with the same key are ordered by the optional tie breaker, reversed
+ for descending order like the key, and after that by the order their
+ iterators were added.  The tie breaker is only called when keys are equal.
+ The iterators are not read until the first call to hasNext or
+ nextElement.
+ */
+public class LoserTree<T>
+{
+	private final ToLongFunction<T> m_keyFunction;
+	private final Comparator<? super T> m_tieBreaker;
+	private final boolean m_descending;
+	private final List<Iterator<T>> m_iterators = new ArrayList<>();
+
+	//Per source state, indexed by the order the iterators were added
+	private long[] m_keys = new long[0];
+	private Object[] m_values = new Object[0];
+	private boolean[] m_exhausted = new boolean[0];
+
+	//m_tree[0] is the overall winner, m_tree[1..m_leafCount-1] the losers
+	private int[] m_tree;
+	private int m_leafCount;
+	private int m_loadedCount;
+	private boolean m_built;
+
+	public LoserTree(ToLongFunction<T> keyFunction, Order order)
+	{
+		this(keyFunction, null, order);
+	}
+
+	/**
+	 @param keyFunction returns the key the iterators are sorted by
+	 @param tieBreaker  orders elements with the same key, may be null
+	 @param order       order of the keys in the iterators and the output
+	 */
+	public LoserTree(ToLongFunction<T> keyFunction, Comparator<? super T> tieBreaker, Order order)
+	{
+		m_keyFunction = checkNotNull(keyFunction);
+		m_tieBreaker = tieBreaker;
+		m_descending = order == Order.DESC;
+	}
+
+	public void addIterator(Iterator<T> iterator)
+	{
+		m_iterators.add(checkNotNull(iterator));
+		m_built = false;
+	}
+
+	public boolean hasNext()
+	{
+		build();
+		return (m_leafCount != 0 && !m_exhausted[m_tree[0]]);
+	}
+
+	@SuppressWarnings("unchecked")
+	public T nextElement()
+	{
+		if (!hasNext())
+			return (null);
+
+		int winner = m_tree[0];
+		T ret = (T) m_values[winner];
+
+		advance(winner);
+		replay(winner);
+
+		return (ret);
+	}
+
+	/**
+	 True if source a comes before source b.  Exhausted sources lose to
+	 everything and full ties go to the source added first.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean beats(int a, int b)
+	{
+		if (m_exhausted[a])
+			return (m_exhausted[b] && a < b);
+		if (m_exhausted[b])
+			return (true);
+
+		long keyA = m_keys[a];
+		long keyB = m_keys[b];
+		if (keyA != keyB)
+			return (m_descending ? keyA > keyB : keyA < keyB);
+
+		if (m_tieBreaker != null)
+		{
+			int ret = m_tieBreaker.compare((T) m_values[a], (T) m_values[b]);
+			if (ret != 0)
+				return (m_descending ? ret > 0 : ret < 0);
+		}
+
+		return (a < b);
+	}
+
+	private void advance(int source)
+	{
+		Iterator<T> iterator = m_iterators.get(source);
+		if (iterator.hasNext())
+		{
+			T value = iterator.next();
+			m_values[source] = value;
+			m_keys[source] = m_keyFunction.applyAsLong(value);
+		}
+		else
+		{
+			m_values[source] = null;
+			m_exhausted[source] = true;
+		}
+	}
+
+	private void replay(int source)
+	{
+		int winner = source;
+		for (int node = (source + m_leafCount) >> 1; node > 0; node >>= 1)
+		{
+			if (beats(m_tree[node], winner))
+			{
+				int loser = winner;
+				winner = m_tree[node];
+				m_tree[node] = loser;
+			}
+		}
+
+		m_tree[0] = winner;
+	}
+
+	/**
+	 Loads the first element of any new iterators and plays every match.  Only
+	 needed again if iterators are added after reading started.
+	 */
+	private void build()
+	{
+		if (m_built)
+			return;
+
+		m_built = true;
+		int sourceCount = m_iterators.size();
+		if (sourceCount == 0)
+			return;
+
+		int leafCount = Integer.highestOneBit(sourceCount);
+		if (leafCount < sourceCount)
+			leafCount <<= 1;
+
+		if (leafCount != m_leafCount)
+		{
+			m_keys = Arrays.copyOf(m_keys, leafCount);
+			m_values = Arrays.copyOf(m_values, leafCount);
+			m_exhausted = Arrays.copyOf(m_exhausted, leafCount);
+			m_tree = new int[leafCount];
+			m_leafCount = leafCount;
+		}
+
+		for (int I = m_loadedCount; I < leafCount; I++)
+		{
+			m_exhausted[I] = I >= sourceCount; //Padding past the last source
+			if (!m_exhausted[I])
+				advance(I);
+		}
+		m_loadedCount = sourceCount;
+
+		m_tree[0] = playMatches(1);
+	}
+
+	/**
+	 Plays the matches below node and returns the winner, the loser of each
+	 match is stored in its node.
+	 */
+	private int playMatches(int node)
+	{
+		if (node >= m_leafCount)
+			return (node - m_leafCount);
+
+		int left = playMatches(node * 2);
+		int right = playMatches(node * 2 + 1);
+
+		if (beats(left, right))
+		{
+			m_tree[node] = right;
+			return (left);
+		}
+		else
+		{
+			m_tree[node] = left;
+			return (right);
+		}
+	}
+}
@@ -8,6 +8,7 @@ import org.kairosdb.core.datapoints.LongDataPointFactory;
 import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -99,4 +100,37 @@ public class SimpleStatsReporter
 		dps.addTag(tagName, tagValue);
 		dataPointSets.add(dps);
 	}
+
+	/**
+	 Reports the same min, max, avg, count and sum metrics as SimpleStats plus
+	 p50, p90, p99 and p999
+	 */
+	public void reportStats(LogLinearHistogram.Data stats, long now, String metricPrefix,
+			List<DataPointSet> dataPointSets)
+	{
+		reportStats(stats, now, metricPrefix, null, null, dataPointSets);
+	}
+
+	public void reportStats(LogLinearHistogram.Data stats, long now, String metricPrefix,
+			String tagName, String tagValue, List<DataPointSet> dataPointSets)
+	{
+		List<DataPointSet> ret = new ArrayList<>();
+
+		ret.add(newDataPointSet(metricPrefix, "min", now, stats.getMin()));
+		ret.add(newDataPointSet(metricPrefix, "max", now, stats.getMax()));
+		ret.add(newDataPointSet(metricPrefix, "avg", now, stats.getMean()));
+		ret.add(newDataPointSet(metricPrefix, "count", now, stats.getCount()));
+		ret.add(newDataPointSet(metricPrefix, "sum", now, stats.getSum()));
+		ret.add(newDataPointSet(metricPrefix, "p50", now, stats.getValueAtPercentile(50)));
+		ret.add(newDataPointSet(metricPrefix, "p90", now, stats.getValueAtPercentile(90)));
+		ret.add(newDataPointSet(metricPrefix, "p99", now, stats.getValueAtPercentile(99)));
+		ret.add(newDataPointSet(metricPrefix, "p999", now, stats.getValueAtPercentile(99.9)));
+
+		for (DataPointSet dps : ret)
+		{
+			if (tagName != null)
+				dps.addTag(tagName, tagValue);
+			dataPointSets.add(dps);
+		}
+	}
 }
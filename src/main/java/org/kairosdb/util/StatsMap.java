@@ -1,47 +1,52 @@
 package org.kairosdb.util;
 
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- Contains a map of SimpleStats
+ Contains a map of histograms, one for each metric name.  The histograms are
+ kept between reporting intervals so they can be registered for the admin
+ endpoint.
  Created by bhawkins on 1/20/17.
  */
 public class StatsMap
 {
-	private Map<String, SimpleStats> m_statsMap;
-	private Object m_mapLock = new Object();
+	private final Map<String, LogLinearHistogram> m_statsMap = new ConcurrentHashMap<>();
+	private volatile HistogramRegistry m_histogramRegistry;
 
 	public StatsMap()
 	{
-		m_statsMap = new HashMap<>();
+	}
+
+	public void setHistogramRegistry(HistogramRegistry histogramRegistry)
+	{
+		m_histogramRegistry = histogramRegistry;
+		for (Map.Entry<String, LogLinearHistogram> entry : m_statsMap.entrySet())
+			histogramRegistry.register(entry.getKey(), entry.getValue());
 	}
 
 	public void addMetric(String name, long value)
 	{
-		synchronized (m_mapLock)
+		LogLinearHistogram stats = m_statsMap.get(name);
+		if (stats == null)
 		{
-			SimpleStats stats = m_statsMap.get(name);
-			if (stats == null)
+			stats = m_statsMap.computeIfAbsent(name, (key) ->
 			{
-				stats = new SimpleStats();
-				m_statsMap.put(name, stats);
-			}
-
-			stats.addValue(value);
+				LogLinearHistogram histogram = new LogLinearHistogram();
+				HistogramRegistry registry = m_histogramRegistry;
+				if (registry != null)
+					registry.register(key, histogram);
+				return histogram;
+			});
 		}
+
+		stats.addValue(value);
 	}
 
-	public Map<String, SimpleStats> getStatsMap()
+	public Map<String, LogLinearHistogram> getStatsMap()
 	{
-		Map<String, SimpleStats> ret;
-		synchronized (m_mapLock)
-		{
-			ret = m_statsMap;
-			m_statsMap = new HashMap<>();
-		}
-
-		return ret;
+		return Collections.unmodifiableMap(m_statsMap);
 	}
 }
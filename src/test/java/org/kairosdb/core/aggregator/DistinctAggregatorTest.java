@@ -0,0 +1,101 @@
+package org.kairosdb.core.aggregator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.HyperLogLogDataPoint;
+import org.kairosdb.core.datapoints.HyperLogLogDataPointFactory;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.testing.ListDataPointGroup;
+import org.kairosdb.util.HyperLogLog;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+
+public class DistinctAggregatorTest
+{
+    private DistinctAggregator aggregator;
+
+    @Before
+    public void setup()
+    {
+        aggregator = new DistinctAggregator(new LongDataPointFactoryImpl());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void test_nullSet_invalid()
+    {
+        aggregator.aggregate(null);
+    }
+
+    @Test
+    public void test_rawValues()
+    {
+        ListDataPointGroup group = new ListDataPointGroup("group");
+        group.addDataPoint(new StringDataPoint(1, "user1"));
+        group.addDataPoint(new StringDataPoint(1, "user2"));
+        group.addDataPoint(new StringDataPoint(1, "user1"));
+        group.addDataPoint(new LongDataPoint(2, 5));
+        group.addDataPoint(new StringDataPoint(2, "5"));
+        group.addDataPoint(new LongDataPoint(3, 25));
+
+        DataPointGroup results = aggregator.aggregate(group);
+
+        DataPoint dataPoint = results.next();
+        assertThat(dataPoint.getTimestamp(), equalTo(1L));
+        assertThat(dataPoint.getLongValue(), equalTo(2L));
+
+        dataPoint = results.next();
+        assertThat(dataPoint.getTimestamp(), equalTo(2L));
+        assertThat(dataPoint.getLongValue(), equalTo(1L));
+
+        dataPoint = results.next();
+        assertThat(dataPoint.getTimestamp(), equalTo(3L));
+        assertThat(dataPoint.getLongValue(), equalTo(1L));
+
+        assertThat(results.hasNext(), equalTo(false));
+    }
+
+    @Test
+    public void test_rolledUpSketches()
+    {
+        //Hourly sketches of overlapping users rolled up and then counted per day
+        ListDataPointGroup raw = new ListDataPointGroup("group");
+        for (int hour = 0; hour < 48; hour++)
+        {
+            for (int user = hour * 10; user < hour * 10 + 50; user++)
+                raw.addDataPoint(new StringDataPoint(hour * 3600000L, "user" + user));
+        }
+
+        HyperLogLogAggregator rollUp = new HyperLogLogAggregator(new HyperLogLogDataPointFactory());
+        rollUp.setSampling(new Sampling(1, TimeUnit.HOURS));
+        DataPointGroup sketches = rollUp.aggregate(raw);
+
+        ListDataPointGroup hourly = new ListDataPointGroup("group");
+        while (sketches.hasNext())
+        {
+            DataPoint sketch = sketches.next();
+            assertThat(sketch, instanceOf(HyperLogLogDataPoint.class));
+            hourly.addDataPoint(sketch);
+        }
+
+        aggregator.setSampling(new Sampling(1, TimeUnit.DAYS));
+        DataPointGroup results = aggregator.aggregate(hourly);
+
+        HyperLogLog firstDay = new HyperLogLog();
+        for (int user = 0; user < 280; user++)
+            firstDay.offer("user" + user);
+        HyperLogLog secondDay = new HyperLogLog();
+        for (int user = 240; user < 520; user++)
+            secondDay.offer("user" + user);
+
+        assertThat(results.next().getLongValue(), equalTo(firstDay.estimate()));
+        assertThat(results.next().getLongValue(), equalTo(secondDay.estimate()));
+        assertThat(results.hasNext(), equalTo(false));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+import static org.junit.Assert.assertThat;
+
+public class EwmaAggregatorTest
+{
+	private EwmaAggregator aggregator;
+
+	@Before
+	public void setup()
+	{
+		aggregator = new EwmaAggregator(new DoubleDataPointFactoryImpl());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void test_nullSet_invalid()
+	{
+		aggregator.aggregate(null);
+	}
+
+	@Test
+	public void test_alpha()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(1, 10));
+		group.addDataPoint(new LongDataPoint(2, 20));
+		group.addDataPoint(new LongDataPoint(3, 20));
+
+		aggregator.setAlpha(0.5);
+		DataPointGroup results = aggregator.aggregate(group);
+
+		DataPoint dataPoint = results.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(1L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(10.0));
+
+		dataPoint = results.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(2L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(15.0));
+
+		dataPoint = results.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(3L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(17.5));
+
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_size()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(1, 0));
+		group.addDataPoint(new LongDataPoint(2, 12));
+
+		//alpha = 2 / (size + 1)
+		aggregator.setSize(3);
+		DataPointGroup results = aggregator.aggregate(group);
+
+		results.next();
+		assertThat(results.next().getDoubleValue(), equalTo(6.0));
+	}
+
+	@Test
+	public void test_window()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(0, 0));
+		group.addDataPoint(new LongDataPoint(1000, 10));
+		group.addDataPoint(new LongDataPoint(4000, 10));
+
+		aggregator.setWindow(new Sampling(1, TimeUnit.SECONDS));
+		DataPointGroup results = aggregator.aggregate(group);
+
+		results.next();
+		double second = results.next().getDoubleValue();
+		assertThat(second, closeTo(10 * (1 - Math.exp(-1)), 0.0001));
+
+		//A longer gap gives the new data point more weight
+		assertThat(results.next().getDoubleValue(), closeTo(second + (10 - second) * (1 - Math.exp(-3)), 0.0001));
+	}
+}
@@ -0,0 +1,102 @@
+package org.kairosdb.core.aggregator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class LttbAggregatorTest
+{
+	private LttbAggregator aggregator;
+
+	@Before
+	public void setup()
+	{
+		aggregator = new LttbAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setSampling(new Sampling(10, TimeUnit.MILLISECONDS));
+		aggregator.setStartTime(0);
+	}
+
+	private static void assertDataPoint(DataPointGroup group, long timestamp, double value)
+	{
+		assertThat(group.hasNext(), equalTo(true));
+		DataPoint dataPoint = group.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(timestamp));
+		assertThat(dataPoint.getDoubleValue(), equalTo(value));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void test_nullSet_invalid()
+	{
+		aggregator.aggregate(null);
+	}
+
+	@Test
+	public void test_largestTriangle()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(0, 0));
+		group.addDataPoint(new LongDataPoint(5, 1));
+		group.addDataPoint(new LongDataPoint(10, 2));
+		group.addDataPoint(new LongDataPoint(15, 10));
+		group.addDataPoint(new LongDataPoint(18, 3));
+		group.addDataPoint(new LongDataPoint(20, 2));
+		group.addDataPoint(new LongDataPoint(25, 4));
+		group.addDataPoint(new LongDataPoint(30, 0));
+		group.addDataPoint(new LongDataPoint(35, 1));
+
+		DataPointGroup results = aggregator.aggregate(group);
+
+		//First data point, then the largest triangles with the average of the next range
+		assertDataPoint(results, 0, 0);
+		assertDataPoint(results, 15, 10);
+		assertDataPoint(results, 20, 2);
+		//Last data point
+		assertDataPoint(results, 35, 1);
+
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_singleRange_firstDataPoint()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(1, 3));
+		group.addDataPoint(new LongDataPoint(2, 7));
+
+		DataPointGroup results = aggregator.aggregate(group);
+
+		assertDataPoint(results, 1, 3);
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_twoRanges_firstAndLastDataPoints()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(1, 3));
+		group.addDataPoint(new LongDataPoint(2, 7));
+		group.addDataPoint(new LongDataPoint(41, 5));
+		group.addDataPoint(new LongDataPoint(45, 6));
+
+		DataPointGroup results = aggregator.aggregate(group);
+
+		assertDataPoint(results, 1, 3);
+		assertDataPoint(results, 45, 6);
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_notRangeIndependent()
+	{
+		assertThat(aggregator.isRangeIndependent(), equalTo(false));
+		assertThat(aggregator.canAggregatePartials(), equalTo(false));
+	}
+}
@@ -0,0 +1,90 @@
+package org.kairosdb.core.aggregator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class M4AggregatorTest
+{
+	private M4Aggregator aggregator;
+
+	@Before
+	public void setup()
+	{
+		aggregator = new M4Aggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setSampling(new Sampling(10, TimeUnit.MILLISECONDS));
+		aggregator.setStartTime(0);
+	}
+
+	private static void assertDataPoint(DataPointGroup group, long timestamp, double value)
+	{
+		assertThat(group.hasNext(), equalTo(true));
+		DataPoint dataPoint = group.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(timestamp));
+		assertThat(dataPoint.getDoubleValue(), equalTo(value));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void test_nullSet_invalid()
+	{
+		aggregator.aggregate(null);
+	}
+
+	@Test
+	public void test_firstMinMaxLast()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(1, 5));
+		group.addDataPoint(new LongDataPoint(2, 1));
+		group.addDataPoint(new LongDataPoint(3, 9));
+		group.addDataPoint(new LongDataPoint(4, 4));
+		group.addDataPoint(new DoubleDataPoint(12, 7.5));
+		group.addDataPoint(new LongDataPoint(21, 3));
+		group.addDataPoint(new LongDataPoint(25, 8));
+
+		DataPointGroup results = aggregator.aggregate(group);
+
+		assertDataPoint(results, 1, 5);
+		assertDataPoint(results, 2, 1);
+		assertDataPoint(results, 3, 9);
+		assertDataPoint(results, 4, 4);
+
+		assertDataPoint(results, 12, 7.5);
+
+		assertDataPoint(results, 21, 3);
+		assertDataPoint(results, 25, 8);
+
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_sameTimestamp_sortedByValue()
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		group.addDataPoint(new LongDataPoint(1, 5));
+		group.addDataPoint(new LongDataPoint(1, 2));
+
+		DataPointGroup results = aggregator.aggregate(group);
+
+		assertDataPoint(results, 1, 2);
+		assertDataPoint(results, 1, 5);
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_emptyGroup()
+	{
+		DataPointGroup results = aggregator.aggregate(new ListDataPointGroup("group"));
+
+		assertThat(results.hasNext(), equalTo(false));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+import static org.junit.Assert.assertThat;
+
+public class MovingWindowAggregatorTest
+{
+	private static ListDataPointGroup createGroup(long... timestampValuePairs)
+	{
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		for (int I = 0; I < timestampValuePairs.length; I += 2)
+			group.addDataPoint(new LongDataPoint(timestampValuePairs[I], timestampValuePairs[I + 1]));
+
+		return group;
+	}
+
+	private static List<Double> values(DataPointGroup group)
+	{
+		List<Double> ret = new ArrayList<Double>();
+		while (group.hasNext())
+			ret.add(group.next().getDoubleValue());
+
+		return ret;
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void test_nullSet_invalid()
+	{
+		new MovingAverageAggregator(new DoubleDataPointFactoryImpl()).aggregate(null);
+	}
+
+	@Test
+	public void test_countWindow_returnsPartialWindows()
+	{
+		MovingSumAggregator aggregator = new MovingSumAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setSize(3);
+
+		DataPointGroup results = aggregator.aggregate(createGroup(1, 1, 2, 2, 3, 3, 4, 4, 5, 5));
+
+		assertThat(values(results), equalTo(Arrays.asList(1.0, 3.0, 6.0, 9.0, 12.0)));
+	}
+
+	@Test
+	public void test_countWindow_timestamps()
+	{
+		MovingAverageAggregator aggregator = new MovingAverageAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setSize(2);
+
+		DataPointGroup results = aggregator.aggregate(createGroup(10, 2, 20, 4, 30, 8));
+
+		DataPoint dataPoint = results.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(10L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(2.0));
+
+		dataPoint = results.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(20L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(3.0));
+
+		dataPoint = results.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(30L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(6.0));
+
+		assertThat(results.hasNext(), equalTo(false));
+	}
+
+	@Test
+	public void test_min_max()
+	{
+		MovingMinAggregator min = new MovingMinAggregator(new DoubleDataPointFactoryImpl());
+		min.setSize(3);
+		MovingMaxAggregator max = new MovingMaxAggregator(new DoubleDataPointFactoryImpl());
+		max.setSize(3);
+
+		assertThat(values(min.aggregate(createGroup(1, 5, 2, 3, 3, 4, 4, 6, 5, 7, 6, 1))),
+				equalTo(Arrays.asList(5.0, 3.0, 3.0, 3.0, 4.0, 1.0)));
+		assertThat(values(max.aggregate(createGroup(1, 5, 2, 3, 3, 4, 4, 6, 5, 7, 6, 1))),
+				equalTo(Arrays.asList(5.0, 5.0, 5.0, 6.0, 7.0, 7.0)));
+	}
+
+	@Test
+	public void test_std()
+	{
+		MovingStdAggregator aggregator = new MovingStdAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setSize(3);
+
+		List<Double> results = values(aggregator.aggregate(createGroup(1, 2, 2, 4, 3, 6, 4, 6)));
+
+		assertThat(results.get(0), equalTo(0.0));
+		assertThat(results.get(1), closeTo(1.41421, 0.0001));
+		assertThat(results.get(2), closeTo(2.0, 0.0001));
+		assertThat(results.get(3), closeTo(1.15470, 0.0001));
+	}
+
+	@Test
+	public void test_timeWindow()
+	{
+		MovingSumAggregator aggregator = new MovingSumAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setWindow(new Sampling(10, TimeUnit.MILLISECONDS));
+
+		//Window covers (t - 10, t]
+		DataPointGroup results = aggregator.aggregate(createGroup(0, 1, 5, 2, 9, 3, 10, 4, 25, 5, 30, 6));
+
+		assertThat(values(results), equalTo(Arrays.asList(1.0, 3.0, 6.0, 9.0, 5.0, 11.0)));
+	}
+
+	@Test
+	public void test_timeWindow_descending()
+	{
+		MovingMaxAggregator aggregator = new MovingMaxAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setWindow(new Sampling(10, TimeUnit.MILLISECONDS));
+
+		DataPointGroup results = aggregator.aggregate(createGroup(30, 6, 25, 5, 10, 4, 9, 3, 5, 7, 0, 1));
+
+		assertThat(values(results), equalTo(Arrays.asList(6.0, 6.0, 4.0, 4.0, 7.0, 7.0)));
+	}
+
+	@Test
+	public void test_sma_largeWindowMatchesSmallWindowOutput()
+	{
+		SmaAggregator aggregator = new SmaAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setSize(10000);
+
+		ListDataPointGroup group = new ListDataPointGroup("group");
+		for (int I = 0; I < 20000; I++)
+			group.addDataPoint(new LongDataPoint(I, I));
+
+		List<Double> results = values(aggregator.aggregate(group));
+
+		assertThat(results.size(), equalTo(10001));
+		assertThat(results.get(0), equalTo(4999.5));
+		assertThat(results.get(10000), equalTo(14999.5));
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.testing.ListDataPointGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Runs the numeric range aggregators over a series with a data point every
+ 10 seconds, sampled into one minute ranges (6 points each) or one hour
+ ranges (360 points each).  The input group is built from an array each
+ invocation since aggregating consumes it.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.aggregator.RangeAggregatorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RangeAggregatorBenchmark
+{
+	private static final int POINT_COUNT = 100000;
+	private static final long START = 1500000000000L;
+
+	@Param({"avg", "count", "first", "last", "least_squares", "max", "min", "percentile", "std", "sum"})
+	public String aggregator;
+
+	@Param({"MINUTES", "HOURS"})
+	public org.kairosdb.core.datastore.TimeUnit sampling;
+
+	@Param({"false", "true"})
+	public boolean doubles;
+
+	private DataPoint[] m_dataPoints;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		m_dataPoints = new DataPoint[POINT_COUNT];
+		for (int I = 0; I < POINT_COUNT; I++)
+		{
+			long timestamp = START + I * 10000L;
+			if (doubles)
+				m_dataPoints[I] = new DoubleDataPoint(timestamp, random.nextDouble() * 1000);
+			else
+				m_dataPoints[I] = new LongDataPoint(timestamp, random.nextInt(100000));
+		}
+	}
+
+	private RangeAggregator createAggregator() throws KairosDBException
+	{
+		DoubleDataPointFactoryImpl doubleFactory = new DoubleDataPointFactoryImpl();
+		RangeAggregator ret;
+		switch (aggregator)
+		{
+			case "avg":
+				ret = new AvgAggregator(doubleFactory);
+				break;
+			case "count":
+				ret = new CountAggregator(new LongDataPointFactoryImpl());
+				break;
+			case "first":
+				ret = new FirstAggregator(doubleFactory);
+				break;
+			case "last":
+				ret = new LastAggregator(doubleFactory);
+				break;
+			case "least_squares":
+				ret = new LeastSquaresAggregator(doubleFactory);
+				break;
+			case "max":
+				ret = new MaxAggregator(doubleFactory);
+				break;
+			case "min":
+				ret = new MinAggregator(doubleFactory);
+				break;
+			case "percentile":
+				PercentileAggregator percentile = new PercentileAggregator(doubleFactory);
+				percentile.setPercentile(0.95);
+				ret = percentile;
+				break;
+			case "std":
+				ret = new StdAggregator(doubleFactory);
+				break;
+			default:
+				ret = new SumAggregator(doubleFactory);
+		}
+
+		ret.setSampling(new Sampling(1, sampling));
+		ret.setStartTime(START);
+		return ret;
+	}
+
+	@Benchmark
+	public void aggregate(Blackhole blackhole) throws KairosDBException
+	{
+		ListDataPointGroup group = new ListDataPointGroup("benchmark.metric");
+		for (DataPoint dataPoint : m_dataPoints)
+			group.addDataPoint(dataPoint);
+
+		DataPointGroup results = createAggregator().aggregate(group);
+		while (results.hasNext())
+			blackhole.consume(results.next());
+		results.close();
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(RangeAggregatorBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
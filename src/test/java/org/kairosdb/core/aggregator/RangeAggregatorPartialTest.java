@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.Order;
+import org.kairosdb.core.datastore.SortingDataPointGroup;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ Checks that aggregating each series into partials gives the same result as
+ merging the series and aggregating the merged data points.
+ */
+public class RangeAggregatorPartialTest
+{
+	private ExecutorService executor;
+
+	@Before
+	public void setup()
+	{
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdown();
+	}
+
+	private static SortingDataPointGroup createGroup(long seed)
+	{
+		Random random = new Random(seed);
+		List<DataPointGroup> series = new ArrayList<DataPointGroup>();
+		for (int I = 0; I < 7; I++)
+		{
+			ListDataPointGroup group = new ListDataPointGroup("metric");
+			long timestamp = 1000 + random.nextInt(50);
+			for (int J = 0; J < 200; J++)
+			{
+				if (random.nextBoolean())
+					group.addDataPoint(new LongDataPoint(timestamp, random.nextInt(100)));
+				else
+					group.addDataPoint(new DoubleDataPoint(timestamp, random.nextDouble() * 100));
+
+				timestamp += 1 + random.nextInt(40);
+			}
+			series.add(group);
+		}
+
+		return new SortingDataPointGroup(series, Order.ASC);
+	}
+
+	private void assertSameResults(RangeAggregator aggregator)
+	{
+		aggregator.setSampling(new Sampling(100, TimeUnit.MILLISECONDS));
+		aggregator.setStartTime(1000);
+
+		for (long seed = 0; seed < 5; seed++)
+		{
+			DataPointGroup expected = aggregator.aggregate(createGroup(seed));
+			DataPointGroup actual = aggregator.aggregatePartials(createGroup(seed), executor, 3);
+
+			int count = 0;
+			while (expected.hasNext())
+			{
+				assertThat(actual.hasNext(), equalTo(true));
+				DataPoint expectedDataPoint = expected.next();
+				DataPoint actualDataPoint = actual.next();
+
+				assertThat(actualDataPoint.getTimestamp(), equalTo(expectedDataPoint.getTimestamp()));
+				assertThat(actualDataPoint.getDoubleValue(), closeTo(expectedDataPoint.getDoubleValue(), 0.000001));
+				count++;
+			}
+
+			assertThat(actual.hasNext(), equalTo(false));
+			assertThat(count > 10, equalTo(true));
+		}
+	}
+
+	@Test
+	public void test_sum()
+	{
+		assertSameResults(new SumAggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_count()
+	{
+		assertSameResults(new CountAggregator(new LongDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_min()
+	{
+		assertSameResults(new MinAggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_max()
+	{
+		assertSameResults(new MaxAggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_avg() throws KairosDBException
+	{
+		assertSameResults(new AvgAggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_first()
+	{
+		assertSameResults(new FirstAggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_last()
+	{
+		assertSameResults(new LastAggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_distinct()
+	{
+		assertSameResults(new DistinctAggregator(new LongDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_m4()
+	{
+		assertSameResults(new M4Aggregator(new DoubleDataPointFactoryImpl()));
+	}
+
+	@Test
+	public void test_alignStartTime()
+	{
+		SumAggregator aggregator = new SumAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setAlignStartTime(true);
+		assertSameResults(aggregator);
+	}
+
+	@Test
+	public void test_alignSampling()
+	{
+		LastAggregator aggregator = new LastAggregator(new DoubleDataPointFactoryImpl());
+		aggregator.setAlignSampling(true);
+		aggregator.setAlignEndTime(true);
+		assertSameResults(aggregator);
+	}
+
+	@Test
+	public void test_notDecomposable()
+	{
+		assertThat(new PercentileAggregator(new DoubleDataPointFactoryImpl()).canAggregatePartials(), equalTo(false));
+		assertThat(new SumAggregator(new DoubleDataPointFactoryImpl()).canAggregatePartials(), equalTo(true));
+	}
+}
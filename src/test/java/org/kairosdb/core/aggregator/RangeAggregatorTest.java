@@ -684,4 +684,29 @@ public class RangeAggregatorTest
 
 
 	}
+
+	@Test
+	public void test_setMaxRanges()
+	{
+		DateTimeZone utc = DateTimeZone.UTC;
+		long startTime = new DateTime(2014, 1, 1, 0, 0, 30, utc).getMillis();
+		long endTime = new DateTime(2014, 1, 1, 1, 0, 30, utc).getMillis();
+
+		SumAggregator agg = new SumAggregator(new DoubleDataPointFactoryImpl());
+		agg.setAlignSampling(true);
+		agg.setStartTime(startTime);
+
+		//The aligned minutes from 00:00 to 01:00 are 61 ranges
+		agg.setMaxRanges(endTime, 61);
+		assertThat(agg.getSampling().getValue(), is(1L));
+		assertThat(agg.getSampling().getUnit(), is(TimeUnit.MINUTES));
+
+		agg.setMaxRanges(endTime, 60);
+		assertThat(agg.getSampling().getValue(), is(2L));
+		assertThat(agg.getSampling().getUnit(), is(TimeUnit.MINUTES));
+
+		agg.setMaxRanges(new DateTime(2044, 1, 1, 0, 0, utc).getMillis(), 10);
+		assertThat(agg.getSampling().getValue(), is(4L));
+		assertThat(agg.getSampling().getUnit(), is(TimeUnit.YEARS));
+	}
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.aggregator;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+import static org.junit.Assert.assertThat;
+
+public class SlidingWindowTest
+{
+	@Test
+	public void test_matchesFullRecalculation()
+	{
+		Random random = new Random(42);
+		SlidingWindow window = new SlidingWindow(4, true);
+		Deque<Double> expected = new ArrayDeque<Double>();
+
+		for (int I = 0; I < 10000; I++)
+		{
+			double value = random.nextGaussian() * 1000;
+			window.add(I, value);
+			expected.addLast(value);
+
+			//Window size wanders so the buffers have to grow
+			int size = 1 + (I / 100) % 50;
+			window.trimToSize(size);
+			while (expected.size() > size)
+				expected.removeFirst();
+
+			double sum = 0;
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (double v : expected)
+			{
+				sum += v;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			double mean = sum / expected.size();
+			double m2 = 0;
+			for (double v : expected)
+				m2 += (v - mean) * (v - mean);
+			double variance = expected.size() > 1 ? m2 / (expected.size() - 1) : 0;
+
+			assertThat(window.size(), equalTo(expected.size()));
+			assertThat(window.getSum(), closeTo(sum, 1e-6));
+			assertThat(window.getAverage(), closeTo(mean, 1e-6));
+			assertThat(window.getVariance(), closeTo(variance, 1e-3));
+			assertThat(window.getMin(), equalTo(min));
+			assertThat(window.getMax(), equalTo(max));
+		}
+	}
+
+	@Test
+	public void test_removeUpTo()
+	{
+		SlidingWindow window = new SlidingWindow(true);
+		window.add(1, 5);
+		window.add(2, 1);
+		window.add(3, 3);
+		window.add(4, 2);
+
+		window.removeUpTo(2);
+
+		assertThat(window.size(), equalTo(2));
+		assertThat(window.getSum(), equalTo(5.0));
+		assertThat(window.getMin(), equalTo(2.0));
+		assertThat(window.getMax(), equalTo(3.0));
+	}
+
+	@Test
+	public void test_removeFrom()
+	{
+		SlidingWindow window = new SlidingWindow(false);
+		window.add(4, 2);
+		window.add(3, 3);
+		window.add(2, 1);
+
+		window.removeFrom(3);
+
+		assertThat(window.size(), equalTo(1));
+		assertThat(window.getAverage(), equalTo(1.0));
+	}
+
+	@Test
+	public void test_nonFiniteValueLeavesWindow()
+	{
+		SlidingWindow window = new SlidingWindow(false);
+		window.add(1, Double.NaN);
+		window.add(2, 2);
+		window.add(3, 4);
+
+		assertThat(Double.isNaN(window.getSum()), equalTo(true));
+		assertThat(Double.isNaN(window.getVariance()), equalTo(true));
+
+		window.removeOldest();
+
+		assertThat(window.getSum(), equalTo(6.0));
+		assertThat(window.getVariance(), equalTo(2.0));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void test_minNotTracked()
+	{
+		SlidingWindow window = new SlidingWindow(false);
+		window.add(1, 1);
+		window.getMin();
+	}
+}
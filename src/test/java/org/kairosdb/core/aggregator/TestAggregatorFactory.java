@@ -57,6 +57,8 @@ public class TestAggregatorFactory implements FeatureProcessingFactory<Aggregato
 		addAggregator(LastAggregator.class);
 		addAggregator(SaveAsAggregator.class);
 		addAggregator(TrimAggregator.class);
+		addAggregator(M4Aggregator.class);
+		addAggregator(LttbAggregator.class);
 
 		injector = Guice.createInjector(new AbstractModule()
 		{
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.blast;
+
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.events.DataPointEvent;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class WorkloadGeneratorTest
+{
+	private static final long NOW = 1500000000000L;
+
+	private static WorkloadGenerator createGenerator(int metricCount, int rows, int tagCount,
+			String distribution, String valuePattern, long skew, double latePercent)
+	{
+		return new WorkloadGenerator(new LongDataPointFactoryImpl(), new DoubleDataPointFactoryImpl(),
+				"blast", metricCount, rows, tagCount, distribution, 1.0, valuePattern,
+				skew, latePercent, 60000, 0, 42);
+	}
+
+	@Test
+	public void test_seriesCardinality()
+	{
+		WorkloadGenerator generator = createGenerator(3, 10, 2, "uniform", "constant", 0, 0);
+
+		Set<String> series = new HashSet<>();
+		for (int I = 0; I < 10000; I++)
+		{
+			DataPointEvent event = generator.next(NOW);
+			assertThat(event.getTags().size(), equalTo(4));
+			assertThat(event.getDataPoint().getTimestamp(), equalTo(NOW));
+			assertThat(event.getDataPoint().getLongValue(), equalTo(42L));
+			series.add(event.getMetricName() + event.getTags());
+		}
+
+		assertThat(generator.getSeriesCount(), equalTo(30L));
+		assertThat(series.size(), equalTo(30));
+	}
+
+	@Test
+	public void test_zipfFavorsLowRows()
+	{
+		WorkloadGenerator generator = createGenerator(1, 1000, 0, "zipf", "constant", 0, 0);
+
+		int firstRow = 0;
+		int lastHalf = 0;
+		for (int I = 0; I < 10000; I++)
+		{
+			int row = generator.nextRow();
+			if (row == 0)
+				firstRow++;
+			else if (row >= 500)
+				lastHalf++;
+		}
+
+		//Row 0 gets about 13% of the data, rows 500-999 about 9% together
+		assertThat(firstRow, greaterThan(lastHalf));
+	}
+
+	@Test
+	public void test_skewAndLateData()
+	{
+		WorkloadGenerator generator = createGenerator(1, 10, 0, "uniform", "constant", 1000, 50);
+
+		int late = 0;
+		for (int I = 0; I < 1000; I++)
+		{
+			long timestamp = generator.nextTimestamp(NOW);
+			assertThat(timestamp, lessThanOrEqualTo(NOW + 1000));
+			assertThat(timestamp, greaterThanOrEqualTo(NOW - 1000 - 60000));
+			if (timestamp < NOW - 1000)
+				late++;
+		}
+
+		assertThat(late, greaterThan(300));
+		assertThat(late, lessThan(500));
+	}
+
+	@Test
+	public void test_valuePatterns()
+	{
+		WorkloadGenerator counter = createGenerator(1, 10, 0, "uniform", "counter", 0, 0);
+		assertThat(counter.createDataPoint(NOW + 5000, 0, 3).getLongValue() -
+				counter.createDataPoint(NOW, 0, 3).getLongValue(), equalTo(5L));
+
+		WorkloadGenerator sine = createGenerator(1, 10, 0, "uniform", "SINE", 0, 0);
+		for (int I = 0; I < 100; I++)
+		{
+			double value = sine.createDataPoint(NOW + I * 60000L, 0, I % 10).getDoubleValue();
+			assertThat(value, greaterThanOrEqualTo(0.0));
+			assertThat(value, lessThanOrEqualTo(1000.0));
+		}
+
+		WorkloadGenerator random = createGenerator(1, 10, 0, "uniform", "random", 0, 0);
+		assertThat(random.createDataPoint(NOW, 0, 0).isDouble(), equalTo(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_unknownValuePattern()
+	{
+		createGenerator(1, 10, 0, "uniform", "square", 0, 0);
+	}
+}
@@ -0,0 +1,50 @@
+package org.kairosdb.core.datapoints;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonPrimitive;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.kairosdb.util.HyperLogLog;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class HyperLogLogDataPointTest extends DataPointTestCommon
+{
+	@BeforeClass
+	public static void setup()
+	{
+		HyperLogLogDataPointFactory dpFactory = new HyperLogLogDataPointFactory();
+		factory = dpFactory;
+
+		HyperLogLog sparse = new HyperLogLog();
+		sparse.offer("Bob");
+		sparse.offer("Bob Dog");
+
+		HyperLogLog dense = new HyperLogLog(10);
+		for (int I = 0; I < 5000; I++)
+			dense.offer("user" + I);
+
+		dataPointList.clear();
+		dataPointList.add(dpFactory.createDataPoint(1, new HyperLogLog()));
+		dataPointList.add(dpFactory.createDataPoint(1, sparse));
+		dataPointList.add(dpFactory.createDataPoint(123, dense));
+
+		sum = 0;
+	}
+
+	@Test
+	public void test_jsonValues() throws IOException
+	{
+		JsonArray values = new JsonArray();
+		values.add(new JsonPrimitive("user1"));
+		values.add(new JsonPrimitive("user2"));
+		values.add(new JsonPrimitive("user1"));
+		values.add(new JsonPrimitive(42));
+
+		HyperLogLogDataPoint dataPoint = (HyperLogLogDataPoint) factory.getDataPoint(1, values);
+
+		assertEquals(3, dataPoint.getSketch().estimate());
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.KairosFeatureProcessor;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.aggregator.TestAggregatorFactory;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.core.groupby.TestGroupByFactory;
+import org.kairosdb.core.http.rest.json.QueryParser;
+import org.kairosdb.core.http.rest.json.TestQueryPluginFactory;
+import org.kairosdb.testing.FakeServiceKeyStore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BulkDeleteManagerTest
+{
+	private static final String DELETE_JSON = "{\"start_absolute\": 1, \"end_absolute\": 1000, " +
+			"\"metrics\": [{\"name\": \"metric1\"}, {\"name\": \"metric2\"}]}";
+	private static final long[] TIMES = new long[]{1, 1000};
+
+	private RecordingDatastore m_datastore;
+	private FakeServiceKeyStore m_keyStore;
+	private BulkDeleteManager m_manager;
+
+	@Before
+	public void setup() throws KairosDBException
+	{
+		m_datastore = new RecordingDatastore();
+		m_keyStore = new FakeServiceKeyStore();
+		QueryParser parser = new QueryParser(new KairosFeatureProcessor(new TestAggregatorFactory(),
+				new TestGroupByFactory()), new TestQueryPluginFactory());
+
+		m_manager = new BulkDeleteManager(new KairosDatastore(m_datastore,
+				new QueryQueuingManager(1, "hostname"), new TestDataPointFactory(), false),
+				parser, m_keyStore, "hostname");
+	}
+
+	@After
+	public void tearDown()
+	{
+		m_manager.stop();
+	}
+
+	private BulkDeleteJob waitForJob(String id) throws DatastoreException, InterruptedException
+	{
+		for (int I = 0; I < 500; I++)
+		{
+			BulkDeleteJob job = m_manager.getJob(id);
+			if (job.isFinished())
+				return job;
+			Thread.sleep(10);
+		}
+
+		throw new AssertionError("Delete job did not finish");
+	}
+
+	@Test
+	public void test_submit_deletesEveryMetric() throws Exception
+	{
+		m_manager.start();
+
+		BulkDeleteJob job = waitForJob(m_manager.submit(DELETE_JSON).getId());
+
+		assertThat(job.getStatus(), equalTo(BulkDeleteJob.Status.COMPLETE));
+		assertThat(job.getMetricsDeleted(), equalTo(2));
+		assertThat(job.getRowsDeleted(), equalTo(2L));
+		assertThat(job.getPartialRowsDeleted(), equalTo(2L));
+		assertThat(m_datastore.m_deleted, equalTo(Arrays.asList("metric1", "metric2")));
+
+		//Finished jobs are read back from the store
+		assertThat(m_manager.getJobs().size(), equalTo(1));
+		assertThat(m_manager.getJobs().get(0).getStatus(), equalTo(BulkDeleteJob.Status.COMPLETE));
+	}
+
+	@Test
+	public void test_failedDelete_marksJobFailed() throws Exception
+	{
+		m_datastore.m_fail = true;
+		m_manager.start();
+
+		BulkDeleteJob job = waitForJob(m_manager.submit(DELETE_JSON).getId());
+
+		assertThat(job.getStatus(), equalTo(BulkDeleteJob.Status.FAILED));
+		assertThat(job.getMetricsDeleted(), equalTo(0));
+	}
+
+	@Test
+	public void test_start_resumesUnfinishedJob() throws Exception
+	{
+		BulkDeleteJob saved = new BulkDeleteJob("job1", DELETE_JSON, "hostname", TIMES, TIMES, 0);
+		saved.start(0);
+		saved.metricDeleted(0);
+		m_keyStore.setValue(BulkDeleteManager.SERVICE, BulkDeleteManager.SERVICE_KEY_JOBS, "job1",
+				new Gson().toJson(saved));
+
+		BulkDeleteJob otherHost = new BulkDeleteJob("job2", DELETE_JSON, "otherhost", TIMES, TIMES, 0);
+		m_keyStore.setValue(BulkDeleteManager.SERVICE, BulkDeleteManager.SERVICE_KEY_JOBS, "job2",
+				new Gson().toJson(otherHost));
+
+		m_manager.start();
+
+		BulkDeleteJob job = waitForJob("job1");
+		assertThat(job.getStatus(), equalTo(BulkDeleteJob.Status.COMPLETE));
+		assertThat(job.getMetricsDeleted(), equalTo(2));
+		assertThat(m_datastore.m_deleted, equalTo(Collections.singletonList("metric2")));
+
+		//Jobs of other hosts are left alone
+		assertThat(m_manager.getJob("job2").getStatus(), equalTo(BulkDeleteJob.Status.QUEUED));
+	}
+
+	@Test
+	public void test_submit_resolvesOpenEndTime() throws Exception
+	{
+		String json = "{\"start_relative\": {\"value\": 1, \"unit\": \"hours\"}, " +
+				"\"metrics\": [{\"name\": \"metric1\"}]}";
+		m_manager.start();
+
+		long before = System.currentTimeMillis();
+		BulkDeleteJob submitted = m_manager.submit(json);
+		long after = System.currentTimeMillis();
+
+		assertThat(submitted.getStartTime(0) <= after - 3600000L, equalTo(true));
+		assertThat(submitted.getEndTime(0) >= before, equalTo(true));
+		assertThat(submitted.getEndTime(0) <= after, equalTo(true));
+
+		waitForJob(submitted.getId());
+		assertThat(m_datastore.m_endTimes, equalTo(Collections.singletonList(submitted.getEndTime(0))));
+	}
+
+	@Test
+	public void test_start_resumedJobUsesSavedTimes() throws Exception
+	{
+		BulkDeleteJob saved = new BulkDeleteJob("job1", DELETE_JSON, "hostname",
+				new long[]{5, 5}, new long[]{500, 500}, 0);
+		m_keyStore.setValue(BulkDeleteManager.SERVICE, BulkDeleteManager.SERVICE_KEY_JOBS, "job1",
+				new Gson().toJson(saved));
+
+		m_manager.start();
+
+		waitForJob("job1");
+		assertThat(m_datastore.m_endTimes, equalTo(Arrays.asList(500L, 500L)));
+	}
+
+	/**
+	 Reports one whole and one partial row for each metric deleted
+	 */
+	private static class RecordingDatastore implements Datastore
+	{
+		private final List<String> m_deleted = new CopyOnWriteArrayList<>();
+		private final List<Long> m_endTimes = new CopyOnWriteArrayList<>();
+		private volatile boolean m_fail = false;
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public Iterable<String> getMetricNames(String prefix)
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Iterable<String> getTagNames()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Iterable<String> getTagValues()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback)
+		{
+		}
+
+		@Override
+		public void deleteDataPoints(DatastoreMetricQuery deleteQuery) throws DatastoreException
+		{
+			deleteDataPoints(deleteQuery, partial -> {});
+		}
+
+		@Override
+		public void deleteDataPoints(DatastoreMetricQuery deleteQuery, DeleteProgressListener listener)
+				throws DatastoreException
+		{
+			if (m_fail)
+				throw new DatastoreException("Delete failed");
+
+			listener.rowDeleted(false);
+			listener.rowDeleted(true);
+			m_deleted.add(deleteQuery.getName());
+			m_endTimes.add(deleteQuery.getEndTime());
+		}
+
+		@Override
+		public TagSet queryMetricTags(DatastoreMetricQuery query)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.common.io.Files;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Writes query results to a cache file the way the datastore does while a
+ query runs, then reads every row back as the aggregators would.  The data
+ file is deleted when the last row is closed, so write includes removing it.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.datastore.CachedSearchResultBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CachedSearchResultBenchmark
+{
+	//series x data points per series
+	@Param({"4x100000", "10000x10"})
+	public String shape;
+
+	private final KairosDataPointFactory m_dataPointFactory = new TestDataPointFactory();
+	private File m_directory;
+	private DataPoint[][] m_series;
+	private SortedMap<String, String>[] m_tags;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup()
+	{
+		m_directory = Files.createTempDir();
+
+		String[] split = shape.split("x");
+		int seriesCount = Integer.parseInt(split[0]);
+		int pointsPerSeries = Integer.parseInt(split[1]);
+		Random random = new Random(42);
+		long start = 1500000000000L;
+
+		m_series = new DataPoint[seriesCount][pointsPerSeries];
+		m_tags = new SortedMap[seriesCount];
+		for (int series = 0; series < seriesCount; series++)
+		{
+			m_tags[series] = new TreeMap<>();
+			m_tags[series].put("host", "server" + series);
+			m_tags[series].put("dc", "dc" + (series % 3));
+
+			for (int I = 0; I < pointsPerSeries; I++)
+			{
+				long timestamp = start + I * 10000L;
+				if (series % 2 == 0)
+					m_series[series][I] = new LongDataPoint(timestamp, random.nextInt(100000));
+				else
+					m_series[series][I] = new DoubleDataPoint(timestamp, random.nextDouble() * 1000);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		File[] files = m_directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+				file.delete();
+		}
+		m_directory.delete();
+	}
+
+	private CachedSearchResult writeResult() throws IOException
+	{
+		CachedSearchResult result = CachedSearchResult.createCachedSearchResult("benchmark.metric",
+				new File(m_directory, "benchmark").getPath(), m_dataPointFactory, false);
+
+		for (int series = 0; series < m_series.length; series++)
+		{
+			String type = (series % 2 == 0) ? LongDataPointFactoryImpl.DST_LONG :
+					DoubleDataPointFactoryImpl.DST_DOUBLE;
+
+			QueryCallback.DataPointWriter writer = result.startDataPointSet(type, m_tags[series]);
+			for (DataPoint dataPoint : m_series[series])
+				writer.addDataPoint(dataPoint);
+			writer.close();
+		}
+
+		return result;
+	}
+
+	@Benchmark
+	public void write() throws IOException
+	{
+		//Closing the rows without reading them removes the file
+		for (DataPointRow row : writeResult().getRows())
+			row.close();
+	}
+
+	@Benchmark
+	public void writeAndRead(Blackhole blackhole) throws IOException
+	{
+		CachedSearchResult result = writeResult();
+
+		for (DataPointRow row : result.getRows())
+		{
+			while (row.hasNext())
+				blackhole.consume(row.next());
+			row.close();
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(CachedSearchResultBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
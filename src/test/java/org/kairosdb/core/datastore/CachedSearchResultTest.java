@@ -180,6 +180,41 @@ public class CachedSearchResultTest
 
 	}
 
+	@Test
+	public void test_writer_reservesMemoryInChunks() throws IOException
+	{
+		String tempFile = System.getProperty("java.io.tmpdir") + "/baseFile";
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost");
+		QueryMemoryTracker tracker = budget.newTracker("query");
+		QueryMemoryTracker.setCurrent(tracker);
+		CachedSearchResult csResult;
+		try
+		{
+			csResult = CachedSearchResult.createCachedSearchResult(
+					"metric4", tempFile, dataPointFactory, true);
+		}
+		finally
+		{
+			QueryMemoryTracker.setCurrent(null);
+		}
+
+		QueryCallback.DataPointWriter dataPointWriter = csResult.startDataPointSet(LegacyDataPointFactory.DATASTORE_TYPE, Collections.<String, String>emptySortedMap());
+
+		long now = System.currentTimeMillis();
+		dataPointWriter.addDataPoint(new LegacyLongDataPoint(now, 42));
+		assertThat(tracker.getUsed(), equalTo(1024L * QueryMemoryTracker.DATA_POINT_MEMORY));
+
+		for (int i = 1; i < 1500; i++)
+		{
+			dataPointWriter.addDataPoint(new LegacyLongDataPoint(now + i, 42));
+		}
+		assertThat(tracker.getUsed(), equalTo(2048L * QueryMemoryTracker.DATA_POINT_MEMORY));
+
+		dataPointWriter.close();
+		assertThat(tracker.getUsed(), equalTo(0L));
+		assertThat(budget.getUsed(), equalTo(0L));
+	}
+
 	private void assertValues(DataPointRow dataPoints, Number... numbers)
 	{
 		int count = 0;
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.datapoints.LegacyDataPointFactory;
+import org.kairosdb.core.datapoints.LegacyDoubleDataPoint;
+import org.kairosdb.core.datapoints.LegacyLongDataPoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HybridSearchResultTest
+{
+	private static KairosDataPointFactory dataPointFactory = new TestDataPointFactory();
+	private static final String BASE_FILE = System.getProperty("java.io.tmpdir") + "/hybridBaseFile";
+
+	private static void writeRows(SearchResult result) throws IOException
+	{
+		for (int row = 0; row < 3; row++)
+		{
+			SortedMap<String, String> tags = new TreeMap<>();
+			tags.put("host", "host" + row);
+			QueryCallback.DataPointWriter writer = result.startDataPointSet(LegacyDataPointFactory.DATASTORE_TYPE, tags);
+
+			for (int I = 0; I < 10; I++)
+			{
+				if (I % 2 == 0)
+					writer.addDataPoint(new LegacyLongDataPoint(1000L + I, row * 100 + I));
+				else
+					writer.addDataPoint(new LegacyDoubleDataPoint(1000L + I, row * 100 + I + 0.5));
+			}
+
+			writer.close();
+		}
+	}
+
+	private static List<String> readRows(SearchResult result)
+	{
+		List<String> ret = new ArrayList<>();
+		for (DataPointRow row : result.getRows())
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append(row.getName()).append(row.getTagValue("host")).append(row.getDataPointCount());
+			while (row.hasNext())
+			{
+				DataPoint dp = row.next();
+				sb.append(',').append(dp.getTimestamp()).append('=');
+				if (dp.isLong())
+					sb.append(dp.getLongValue());
+				else
+					sb.append(dp.getDoubleValue());
+			}
+			row.close();
+			ret.add(sb.toString());
+		}
+
+		return ret;
+	}
+
+	/**
+	 Size in memory of the rows written by writeRows
+	 */
+	private static long resultSize() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, Long.MAX_VALUE);
+		writeRows(result);
+		return result.getMemoryBytes();
+	}
+
+	private static List<String> expectedRows() throws IOException
+	{
+		CachedSearchResult cached = CachedSearchResult.createCachedSearchResult("metric",
+				BASE_FILE + "Cached", dataPointFactory, false);
+		writeRows(cached);
+		return readRows(cached);
+	}
+
+	@Test
+	public void test_belowThreshold_staysInMemory() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, resultSize() + 1);
+		writeRows(result);
+
+		assertThat(result.isSpilled(), equalTo(false));
+		assertThat(new File(BASE_FILE + ".data").exists(), equalTo(false));
+		assertThat(readRows(result), equalTo(expectedRows()));
+	}
+
+	@Test
+	public void test_atThreshold_staysInMemory() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, resultSize());
+		writeRows(result);
+
+		assertThat(result.isSpilled(), equalTo(false));
+		assertThat(readRows(result), equalTo(expectedRows()));
+	}
+
+	@Test
+	public void test_aboveThreshold_spillsToFile() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, resultSize() - 1);
+		writeRows(result);
+
+		assertThat(result.isSpilled(), equalTo(true));
+		assertThat(result.getMemoryBytes(), equalTo(0L));
+		assertThat(readRows(result), equalTo(expectedRows()));
+
+		//Closing every row removes the file
+		assertThat(new File(BASE_FILE + ".data").exists(), equalTo(false));
+	}
+
+	@Test
+	public void test_zeroThreshold_alwaysUsesFile() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, 0);
+		writeRows(result);
+
+		assertThat(result.isSpilled(), equalTo(true));
+		assertThat(readRows(result), equalTo(expectedRows()));
+	}
+
+	@Test
+	public void test_overMemoryBudget_spillsToFile() throws IOException
+	{
+		//Room for a writer's reservation and about half of the rows
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost", 16 * 1024 + resultSize() / 2, 0L);
+		QueryMemoryTracker tracker = budget.newTracker("query");
+		QueryMemoryTracker.setCurrent(tracker);
+		HybridSearchResult result;
+		try
+		{
+			result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, Long.MAX_VALUE);
+		}
+		finally
+		{
+			QueryMemoryTracker.setCurrent(null);
+		}
+		writeRows(result);
+
+		assertThat(result.isSpilled(), equalTo(true));
+		assertThat(tracker.getUsed(), equalTo(0L));
+		assertThat(readRows(result), equalTo(expectedRows()));
+		result.discard();
+	}
+
+	@Test
+	public void test_discard_removesSpilledFile() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, resultSize() - 1);
+		writeRows(result);
+		assertThat(new File(BASE_FILE + ".data").exists(), equalTo(true));
+
+		result.discard();
+
+		assertThat(new File(BASE_FILE + ".data").exists(), equalTo(false));
+		assertThat(new File(BASE_FILE + ".index").exists(), equalTo(false));
+	}
+
+	@Test
+	public void test_retainBeforeSpill_keepsFileOpen() throws IOException
+	{
+		HybridSearchResult result = new HybridSearchResult("metric", BASE_FILE, dataPointFactory, resultSize() - 1);
+		result.retain();
+		writeRows(result);
+
+		List<String> expected = expectedRows();
+		assertThat(readRows(result), equalTo(expected));
+
+		//Still retained so a second reader sees the same rows
+		assertThat(readRows(result), equalTo(expected));
+		result.release();
+	}
+}
@@ -92,6 +92,86 @@ public class KairosDatastoreTest
 		dq.close();
 	}
 
+	@Test
+	public void test_query_onlyProfiledQueriesAreWrapped() throws KairosDBException
+	{
+		TestDatastore testds = new TestDatastore();
+		KairosDatastore datastore = new KairosDatastore(testds, new QueryQueuingManager(1, "hostname"),
+				new TestDataPointFactory(), false);
+		datastore.init();
+
+		QueryMetric metric = new QueryMetric(1L, 1, "metric1");
+		metric.addAggregator(aggFactory.createFeatureProcessor("sum"));
+		DatastoreQuery dq = datastore.createQuery(metric);
+		assertFalse(dq.execute().get(0) instanceof ProfiledDataPointGroup);
+		dq.close();
+
+		metric = new QueryMetric(1L, 1, "metric1");
+		metric.addAggregator(aggFactory.createFeatureProcessor("sum"));
+		metric.setProfile(true);
+		dq = datastore.createQuery(metric);
+		assertTrue(dq.execute().get(0) instanceof ProfiledDataPointGroup);
+		dq.close();
+
+		datastore.setLogSlowQueries(true);
+		metric = new QueryMetric(1L, 1, "metric1");
+		metric.addAggregator(aggFactory.createFeatureProcessor("sum"));
+		dq = datastore.createQuery(metric);
+		assertTrue(dq.execute().get(0) instanceof ProfiledDataPointGroup);
+		dq.close();
+	}
+
+	@Test
+	public void test_query_coalescedResultMemoryHeldUntilFollowerCloses() throws KairosDBException
+	{
+		TestDatastore testds = new TestDatastore();
+		KairosDatastore datastore = new KairosDatastore(testds, new QueryQueuingManager(1, "hostname"),
+				new TestDataPointFactory(), false);
+		datastore.init();
+		QueryMemoryBudget budget = new QueryMemoryBudget("hostname", 0L, 0L);
+		datastore.setMemoryBudget(budget);
+
+		//Without a cache time the result is held in memory
+		DatastoreQuery leader = datastore.createQuery(new QueryMetric(1L, 0, "metric1"));
+		DatastoreQuery follower = datastore.createQuery(new QueryMetric(1L, 0, "metric1"));
+
+		leader.execute();
+		follower.execute();
+		long used = budget.getUsed();
+		assertTrue(used > 0);
+
+		//The follower still reads the result the leader read
+		leader.close();
+		assertThat(budget.getUsed(), equalTo(used));
+
+		follower.close();
+		assertThat(budget.getUsed(), equalTo(0L));
+	}
+
+	@Test(expected = QueryCancelledException.class)
+	public void test_query_cancelled() throws KairosDBException
+	{
+		TestDatastore testds = new TestDatastore();
+		KairosDatastore datastore = new KairosDatastore(testds, new QueryQueuingManager(1, "hostname"),
+				new TestDataPointFactory(), false);
+		datastore.init();
+
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.cancel("Client disconnected");
+		QueryMetric metric = new QueryMetric(1L, 1, "metric1");
+		metric.setCancellation(cancellation);
+
+		DatastoreQuery dq = datastore.createQuery(metric);
+		try
+		{
+			dq.execute();
+		}
+		finally
+		{
+			dq.close();
+		}
+	}
+
 	@Test
 	public void test_query_noAggregator() throws KairosDBException
 	{
@@ -166,6 +246,40 @@ public class KairosDatastoreTest
 		dq.close();
 	}
 
+	@Test
+	public void test_calculateFilenameHash_rowChangingProperties() throws Exception
+	{
+		QueryMetric metric = new QueryMetric(1L, 10L, 0, "metric");
+		metric.setCacheString("1:10:metric:");
+		String hash = KairosDatastore.calculateFilenameHash(metric);
+
+		QueryMetric same = new QueryMetric(1L, 10L, 0, "metric");
+		same.setCacheString("1:10:metric:");
+		assertThat(KairosDatastore.calculateFilenameHash(same), equalTo(hash));
+
+		QueryMetric limited = new QueryMetric(1L, 10L, 0, "metric");
+		limited.setCacheString("1:10:metric:");
+		limited.setLimit(10);
+		assertFalse(KairosDatastore.calculateFilenameHash(limited).equals(hash));
+
+		QueryMetric descending = new QueryMetric(1L, 10L, 0, "metric");
+		descending.setCacheString("1:10:metric:");
+		descending.setOrder(Order.DESC);
+		assertFalse(KairosDatastore.calculateFilenameHash(descending).equals(hash));
+
+		QueryMetric excludeTags = new QueryMetric(1L, 10L, 0, "metric");
+		excludeTags.setCacheString("1:10:metric:");
+		excludeTags.setExcludeTags(true);
+		assertFalse(KairosDatastore.calculateFilenameHash(excludeTags).equals(hash));
+
+		//Plugins are never shared, not even with the same plugins
+		QueryMetric plugin = new QueryMetric(1L, 10L, 0, "metric");
+		plugin.setCacheString("1:10:metric:");
+		plugin.addPlugin(() -> "plugin");
+		assertFalse(KairosDatastore.calculateFilenameHash(plugin).equals(hash));
+		assertFalse(KairosDatastore.calculateFilenameHash(plugin).equals(KairosDatastore.calculateFilenameHash(plugin)));
+	}
+
 	@SuppressWarnings({"ResultOfMethodCallIgnored", "ConstantConditions"})
 	@Test
 	public void test_cleanCacheDir() throws IOException, DatastoreException
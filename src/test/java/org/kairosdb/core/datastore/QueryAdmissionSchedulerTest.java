@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPointSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class QueryAdmissionSchedulerTest
+{
+	private QueryAdmissionScheduler scheduler;
+	private List<String> admitted;
+	private List<Thread> threads;
+
+	@Before
+	public void setup()
+	{
+		scheduler = new QueryAdmissionScheduler(1, "hostname");
+		admitted = Collections.synchronizedList(new ArrayList<String>());
+		threads = new ArrayList<Thread>();
+	}
+
+	/**
+	 Queues a query and waits until it is either admitted or waiting for a
+	 permit.  Once admitted
+	 the query records its name and releases the permit.
+	 */
+	private void queue(final String name, final QueryClass queryClass, final String clientId, final long cost)
+			throws InterruptedException
+	{
+		int waiting = scheduler.getQueueLength();
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					QueryAdmissionScheduler.Ticket ticket = scheduler.acquire(queryClass, clientId, cost);
+					admitted.add(name);
+					scheduler.release(ticket);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		thread.start();
+		threads.add(thread);
+
+		while (scheduler.getQueueLength() == waiting && !admitted.contains(name))
+			Thread.sleep(1);
+	}
+
+	private void releaseAndJoin(QueryAdmissionScheduler.Ticket ticket) throws InterruptedException
+	{
+		scheduler.release(ticket);
+		for (Thread thread : threads)
+			thread.join();
+	}
+
+	@Test(timeout = 3000)
+	public void test_cheapQueriesGoFirst() throws InterruptedException
+	{
+		QueryAdmissionScheduler.Ticket running = scheduler.acquire(QueryClass.INTERACTIVE, "a", 1);
+
+		queue("expensive", QueryClass.INTERACTIVE, "b", 100);
+		queue("cheap", QueryClass.INTERACTIVE, "c", 1);
+
+		releaseAndJoin(running);
+
+		assertThat(admitted, equalTo(Arrays.asList("cheap", "expensive")));
+	}
+
+	@Test(timeout = 3000)
+	public void test_clientBatchQueuesBehindItself() throws InterruptedException
+	{
+		QueryAdmissionScheduler.Ticket running = scheduler.acquire(QueryClass.INTERACTIVE, "other", 1);
+
+		queue("batch1", QueryClass.INTERACTIVE, "batch", 10);
+		queue("batch2", QueryClass.INTERACTIVE, "batch", 10);
+		queue("batch3", QueryClass.INTERACTIVE, "batch", 10);
+		queue("dashboard", QueryClass.INTERACTIVE, "dashboard", 10);
+
+		releaseAndJoin(running);
+
+		assertThat(admitted, equalTo(Arrays.asList("batch1", "dashboard", "batch2", "batch3")));
+	}
+
+	@Test(timeout = 3000)
+	public void test_classWeights() throws InterruptedException
+	{
+		QueryAdmissionScheduler.Ticket running = scheduler.acquire(QueryClass.INTERACTIVE, null, 1);
+
+		queue("export", QueryClass.EXPORT, null, 10);
+		queue("rollup", QueryClass.ROLLUP, null, 10);
+		queue("interactive", QueryClass.INTERACTIVE, null, 10);
+		queue("health", QueryClass.HEALTH, null, 10);
+
+		releaseAndJoin(running);
+
+		assertThat(admitted, equalTo(Arrays.asList("health", "interactive", "rollup", "export")));
+	}
+
+	@Test(timeout = 3000)
+	public void test_maxQueriesPerClient() throws InterruptedException
+	{
+		scheduler = new QueryAdmissionScheduler(2, "hostname");
+		scheduler.setMaxQueriesPerClient(1);
+
+		QueryAdmissionScheduler.Ticket running = scheduler.acquire(QueryClass.INTERACTIVE, "greedy", 1);
+
+		//A permit is free but the client is at its limit
+		queue("greedy", QueryClass.INTERACTIVE, "greedy", 1);
+		assertThat(scheduler.getAvailablePermits(), equalTo(1));
+		assertThat(admitted.size(), equalTo(0));
+
+		queue("other", QueryClass.INTERACTIVE, "other", 100);
+		while (admitted.size() == 0)
+			Thread.sleep(1);
+		assertThat(admitted, equalTo(Collections.singletonList("other")));
+
+		releaseAndJoin(running);
+
+		assertThat(admitted, equalTo(Arrays.asList("other", "greedy")));
+		assertThat(scheduler.getAvailablePermits(), equalTo(2));
+	}
+
+	@Test
+	public void test_releaseTwice() throws InterruptedException
+	{
+		scheduler = new QueryAdmissionScheduler(2, "hostname");
+		QueryAdmissionScheduler.Ticket ticket = scheduler.acquire(QueryClass.INTERACTIVE, "a", 1);
+
+		scheduler.release(ticket);
+		scheduler.release(ticket);
+
+		assertThat(scheduler.getAvailablePermits(), equalTo(2));
+	}
+
+	@Test
+	public void test_getMetrics() throws InterruptedException
+	{
+		scheduler.release(scheduler.acquire(QueryClass.ROLLUP, null, 1));
+		scheduler.release(scheduler.acquire(QueryClass.ROLLUP, null, 1));
+
+		List<DataPointSet> metrics = scheduler.getMetrics(System.currentTimeMillis());
+
+		assertThat(metrics.size(), equalTo(2));
+		assertThat(metrics.get(0).getName(), equalTo(QueryAdmissionScheduler.ADMISSION_WAIT_METRIC_NAME));
+		assertThat(metrics.get(0).getTags().get("query_class"), equalTo("rollup"));
+		assertThat(metrics.get(1).getName(), equalTo(QueryAdmissionScheduler.ADMISSION_COUNT_METRIC_NAME));
+		assertThat(metrics.get(1).getDataPoints().get(0).getLongValue(), equalTo(2L));
+
+		assertThat(scheduler.getMetrics(System.currentTimeMillis()).size(), equalTo(0));
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class QueryCancellationTest
+{
+	@Test
+	public void test_noDeadline_neverCancelled()
+	{
+		QueryCancellation cancellation = new QueryCancellation();
+
+		assertThat(cancellation.isCancelled(), equalTo(false));
+		assertThat(cancellation.getRemainingMillis(), equalTo(Long.MAX_VALUE));
+		cancellation.checkCancelled();
+	}
+
+	@Test
+	public void test_pastDeadline_cancelsAndRunsListeners()
+	{
+		AtomicInteger calls = new AtomicInteger();
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.addListener(calls::incrementAndGet);
+		cancellation.setDeadline(System.currentTimeMillis() - 1);
+
+		assertThat(cancellation.isCancelled(), equalTo(true));
+		assertThat(cancellation.getRemainingMillis(), equalTo(0L));
+		assertThat(cancellation.isCancelled(), equalTo(true));
+		assertThat(calls.get(), equalTo(1));
+	}
+
+	@Test
+	public void test_cancel_keepsFirstReason()
+	{
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.cancel("Client disconnected");
+		cancellation.cancel("Query exceeded its deadline");
+
+		assertThat(cancellation.getReason(), equalTo("Client disconnected"));
+	}
+
+	@Test(expected = QueryCancelledException.class)
+	public void test_checkCancelled_throws()
+	{
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.cancel("Client disconnected");
+
+		cancellation.checkCancelled();
+	}
+
+	@Test
+	public void test_addListener_afterCancel_runsRightAway()
+	{
+		AtomicInteger calls = new AtomicInteger();
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.cancel("Client disconnected");
+		cancellation.addListener(calls::incrementAndGet);
+
+		assertThat(calls.get(), equalTo(1));
+	}
+
+	@Test
+	public void test_removeListener_notRun()
+	{
+		AtomicInteger calls = new AtomicInteger();
+		Runnable listener = calls::incrementAndGet;
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.addListener(listener);
+		cancellation.removeListener(listener);
+		cancellation.cancel("Client disconnected");
+
+		assertThat(calls.get(), equalTo(0));
+	}
+}
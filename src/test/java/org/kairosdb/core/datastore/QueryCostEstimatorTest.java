@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class QueryCostEstimatorTest
+{
+	private static final long SLICE = QueryCostEstimator.SLICE_WIDTH;
+
+	@Test
+	public void test_unknownMetric()
+	{
+		QueryCostEstimator estimator = new QueryCostEstimator();
+
+		assertThat(estimator.estimate(new QueryMetric(0, SLICE - 1, 0, "metric")), equalTo(1L));
+		assertThat(estimator.estimate(new QueryMetric(0, (3 * SLICE) - 1, 0, "metric")), equalTo(3L));
+	}
+
+	@Test
+	public void test_scalesWithRowCountAndRange()
+	{
+		QueryCostEstimator estimator = new QueryCostEstimator();
+		estimator.record(new QueryMetric(0, SLICE - 1, 0, "metric"), 50);
+
+		assertThat(estimator.estimate(new QueryMetric(0, SLICE - 1, 0, "metric")), equalTo(50L));
+		assertThat(estimator.estimate(new QueryMetric(0, (4 * SLICE) - 1, 0, "metric")), equalTo(200L));
+		assertThat(estimator.estimate(new QueryMetric(0, SLICE - 1, 0, "other")), equalTo(1L));
+	}
+
+	@Test
+	public void test_filteredQueryDoesNotLowerEstimate()
+	{
+		QueryCostEstimator estimator = new QueryCostEstimator();
+		estimator.record(new QueryMetric(0, SLICE - 1, 0, "metric"), 50);
+
+		QueryMetric filtered = new QueryMetric(0, SLICE - 1, 0, "metric");
+		filtered.addTag("host", "a");
+		estimator.record(filtered, 1);
+
+		assertThat(estimator.estimate(filtered), equalTo(50L));
+	}
+}
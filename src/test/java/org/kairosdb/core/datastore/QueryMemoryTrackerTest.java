@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueryMemoryTrackerTest
+{
+	@Test
+	public void test_reserveAndRelease_updatesQueryAndTotal()
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost", 0L, 0L);
+		QueryMemoryTracker tracker = budget.newTracker("query");
+
+		tracker.reserve(100);
+		tracker.reserve(50);
+		tracker.release(120);
+
+		assertThat(tracker.getUsed(), equalTo(30L));
+		assertThat(tracker.getPeak(), equalTo(150L));
+		assertThat(budget.getUsed(), equalTo(30L));
+	}
+
+	@Test
+	public void test_overQueryBudget_throws()
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost", 100L, 0L);
+		QueryMemoryTracker tracker = budget.newTracker("query");
+		tracker.reserve(80);
+
+		try
+		{
+			tracker.reserve(30);
+			fail("Expected QueryMemoryException");
+		}
+		catch (QueryMemoryException e)
+		{
+			assertThat(e.isTotalBudget(), equalTo(false));
+		}
+
+		assertThat(tracker.getUsed(), equalTo(80L));
+		assertThat(budget.getUsed(), equalTo(80L));
+	}
+
+	@Test
+	public void test_overTotalBudget_throws()
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost", 100L, 150L);
+		QueryMemoryTracker first = budget.newTracker("first");
+		QueryMemoryTracker second = budget.newTracker("second");
+		first.reserve(100);
+
+		try
+		{
+			second.reserve(60);
+			fail("Expected QueryMemoryException");
+		}
+		catch (QueryMemoryException e)
+		{
+			assertThat(e.isTotalBudget(), equalTo(true));
+		}
+
+		assertThat(second.getUsed(), equalTo(0L));
+		assertThat(budget.getUsed(), equalTo(100L));
+	}
+
+	@Test
+	public void test_tryReserve_returnsFalseWhenOverBudget()
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost", 100L, 0L);
+		QueryMemoryTracker tracker = budget.newTracker("query");
+
+		assertThat(tracker.tryReserve(60), equalTo(true));
+		assertThat(tracker.tryReserve(60), equalTo(false));
+		assertThat(tracker.getUsed(), equalTo(60L));
+	}
+
+	@Test
+	public void test_close_releasesEverything()
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("localhost", 0L, 0L);
+		QueryMemoryTracker tracker = budget.newTracker("query");
+		tracker.reserve(100);
+
+		assertThat(budget.getTrackers().size(), equalTo(1));
+
+		tracker.close();
+		//Buffers closed after the query are already accounted for
+		tracker.release(100);
+
+		assertThat(budget.getUsed(), equalTo(0L));
+		assertThat(budget.getTrackers().size(), equalTo(0));
+	}
+}
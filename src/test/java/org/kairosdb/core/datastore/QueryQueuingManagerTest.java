@@ -8,17 +8,22 @@ package org.kairosdb.core.datastore;
 import org.junit.Before;
 import org.junit.Test;
 import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.DatastoreException;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsSame.sameInstance;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 public class QueryQueuingManagerTest
 {
@@ -128,6 +133,182 @@ public class QueryQueuingManagerTest
 		assertThat(manager.getQueryWaitingCount(), equalTo(0));
 	}
 
+	@Test(timeout = 3000)
+	public void test_joinOrRun_identicalQueriesShareResult() throws InterruptedException, DatastoreException
+	{
+		QueryQueuingManager manager = new QueryQueuingManager(3, "hostname");
+		CountingSearchResult result = new CountingSearchResult();
+
+		QueryQueuingManager.SharedQuery leader = manager.joinOrRun("1");
+		assertTrue(leader.isLeader());
+
+		List<Follower> followers = new ArrayList<Follower>();
+		for (int i = 0; i < 4; i++)
+			followers.add(new Follower(manager, "1"));
+		for (Follower follower : followers)
+			follower.start();
+		for (Follower follower : followers)
+			follower.attached.await();
+
+		leader.setResult(result);
+		leader.done();
+
+		for (Follower follower : followers)
+			follower.join();
+
+		for (Follower follower : followers)
+		{
+			assertFalse(follower.leader);
+			assertThat(follower.result, sameInstance((SearchResult) result));
+		}
+
+		assertThat(result.retained.get(), equalTo(1));
+		assertThat(result.released.get(), equalTo(1));
+		assertThat(manager.getAvailableThreads(), equalTo(3));
+
+		List<DataPointSet> metrics = manager.getMetrics(System.currentTimeMillis());
+		assertThat(metrics.get(1).getName(), equalTo(QueryQueuingManager.QUERY_COALESCED_METRIC_NAME));
+		assertThat(metrics.get(1).getDataPoints().get(0).getLongValue(), equalTo(4L));
+	}
+
+	@Test(timeout = 3000)
+	public void test_joinOrRun_leaderFailureIsSharedWithFollowers() throws InterruptedException
+	{
+		QueryQueuingManager manager = new QueryQueuingManager(1, "hostname");
+
+		QueryQueuingManager.SharedQuery leader = manager.joinOrRun("1");
+		Follower follower = new Follower(manager, "1");
+		follower.start();
+		follower.attached.await();
+
+		leader.setFailure(new DatastoreException("failed"));
+		leader.done();
+		follower.join();
+
+		assertTrue(follower.failure instanceof DatastoreException);
+		assertThat(manager.getAvailableThreads(), equalTo(1));
+	}
+
+	@Test(timeout = 3000)
+	public void test_joinOrRun_runsAgainAfterLastParticipantIsDone() throws InterruptedException, DatastoreException
+	{
+		QueryQueuingManager manager = new QueryQueuingManager(1, "hostname");
+
+		QueryQueuingManager.SharedQuery first = manager.joinOrRun("1");
+		first.setResult(new CountingSearchResult());
+		first.done();
+
+		QueryQueuingManager.SharedQuery second = manager.joinOrRun("1");
+		assertTrue(second.isLeader());
+		second.done();
+	}
+
+	@Test(timeout = 3000)
+	public void test_joinOrRun_abandonedLeaderLetsFollowersRunAgain() throws InterruptedException, DatastoreException
+	{
+		QueryQueuingManager manager = new QueryQueuingManager(1, "hostname");
+
+		QueryQueuingManager.SharedQuery leader = manager.joinOrRun("1");
+		Follower follower = new Follower(manager, "1");
+		follower.start();
+		follower.attached.await();
+
+		leader.abandon();
+		follower.join();
+
+		assertThat(follower.result, nullValue());
+		assertThat(follower.failure, nullValue());
+
+		leader.done();
+		QueryQueuingManager.SharedQuery retry = manager.joinOrRun("1");
+		assertTrue(retry.isLeader());
+		retry.done();
+		assertThat(manager.getAvailableThreads(), equalTo(1));
+	}
+
+	@Test(timeout = 3000, expected = QueryCancelledException.class)
+	public void test_getResult_boundedByFollowerDeadline() throws InterruptedException, DatastoreException
+	{
+		QueryQueuingManager manager = new QueryQueuingManager(1, "hostname");
+
+		QueryQueuingManager.SharedQuery leader = manager.joinOrRun("1");
+		QueryQueuingManager.SharedQuery follower = manager.joinOrRun("1");
+		assertFalse(follower.isLeader());
+
+		QueryCancellation cancellation = new QueryCancellation();
+		cancellation.setDeadline(System.currentTimeMillis() + 100);
+		try
+		{
+			follower.getResult(cancellation);
+		}
+		finally
+		{
+			follower.done();
+			leader.done();
+		}
+	}
+
+	private class Follower extends Thread
+	{
+		private final QueryQueuingManager manager;
+		private final String hash;
+		private final CountDownLatch attached = new CountDownLatch(1);
+		private boolean leader;
+		private SearchResult result;
+		private Exception failure;
+
+		private Follower(QueryQueuingManager manager, String hash)
+		{
+			this.manager = manager;
+			this.hash = hash;
+		}
+
+		@Override
+		public void run()
+		{
+			QueryQueuingManager.SharedQuery query = null;
+			try
+			{
+				query = manager.joinOrRun(hash);
+				leader = query.isLeader();
+				attached.countDown();
+				result = query.getResult();
+			}
+			catch (Exception e)
+			{
+				failure = e;
+			}
+			finally
+			{
+				if (query != null)
+					query.done();
+			}
+		}
+	}
+
+	private static class CountingSearchResult extends MemorySearchResult
+	{
+		private final AtomicInteger retained = new AtomicInteger();
+		private final AtomicInteger released = new AtomicInteger();
+
+		private CountingSearchResult()
+		{
+			super("metric");
+		}
+
+		@Override
+		public void retain()
+		{
+			retained.incrementAndGet();
+		}
+
+		@Override
+		public void release()
+		{
+			released.incrementAndGet();
+		}
+	}
+
 	private class Query extends Thread
 	{
 		private QueryQueuingManager manager;
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.events.DataPointEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class QueryResultCacheTest
+{
+	private static final long BUCKET = 1000L;
+	private static final long NOW = 100000L;
+
+	private TestDataPointFactory m_factory;
+	private RangeDatastore m_datastore;
+	private QueryResultCache m_cache;
+
+	@Before
+	public void setup()
+	{
+		m_factory = new TestDataPointFactory();
+		m_datastore = new RangeDatastore();
+		m_cache = new QueryResultCache("hostname", BUCKET, 1024 * 1024, 0);
+
+		for (long time = 0; time < NOW; time += 100)
+		{
+			m_datastore.add("host", "A", new LongDataPoint(time, time));
+			m_datastore.add("host", "B", new LongDataPoint(time + 50, -time));
+		}
+	}
+
+	private QueryMetric newQuery(long start, long end)
+	{
+		return new QueryMetric(start, end, 0, "metric");
+	}
+
+	private static List<Long> readTimestamps(List<DataPointRow> rows)
+	{
+		List<Long> ret = new ArrayList<>();
+		for (DataPointRow row : rows)
+		{
+			while (row.hasNext())
+				ret.add(row.next().getTimestamp());
+		}
+		return ret;
+	}
+
+	private List<Long> expectedTimestamps(QueryMetric query) throws DatastoreException
+	{
+		MemorySearchResult result = new MemorySearchResult("metric");
+		m_datastore.queryDatabase(query, result);
+
+		List<Long> ret = new ArrayList<>();
+		for (DataPointRow row : result.getRows())
+		{
+			while (row.hasNext())
+				ret.add(row.next().getTimestamp());
+		}
+		return ret;
+	}
+
+	@Test
+	public void test_query_sameResultsAsDatastore() throws DatastoreException
+	{
+		QueryMetric query = newQuery(2350, 9420);
+
+		List<Long> expected = expectedTimestamps(query);
+		m_datastore.m_queries.clear();
+
+		assertThat(readTimestamps(m_cache.query(m_datastore, query, m_factory, NOW).getRows()), equalTo(expected));
+		assertThat(readTimestamps(m_cache.query(m_datastore, query, m_factory, NOW).getRows()), equalTo(expected));
+		assertThat(m_datastore.m_queries.size(), equalTo(1));
+	}
+
+	@Test
+	public void test_query_onlyOpenBucketIsRefetched() throws DatastoreException
+	{
+		long now = 9500;
+		QueryMetric query = newQuery(2350, now);
+
+		m_cache.query(m_datastore, query, m_factory, now);
+		assertThat(m_datastore.m_queries.size(), equalTo(1));
+		assertThat(m_datastore.m_queries.get(0), equalTo(new long[]{2000, now}));
+
+		//Refresh a little later, only the bucket that is still open is read
+		now = 9800;
+		m_datastore.m_queries.clear();
+		query = newQuery(2350, now);
+		List<Long> timestamps = readTimestamps(m_cache.query(m_datastore, query, m_factory, now).getRows());
+
+		assertThat(m_datastore.m_queries.size(), equalTo(1));
+		assertThat(m_datastore.m_queries.get(0), equalTo(new long[]{9000, now}));
+		assertThat(timestamps, equalTo(expectedTimestamps(query)));
+	}
+
+	@Test
+	public void test_query_descendingOrder() throws DatastoreException
+	{
+		QueryMetric query = newQuery(1000, 3999);
+		query.setOrder(Order.DESC);
+
+		m_cache.query(m_datastore, query, m_factory, NOW);
+		List<DataPointRow> rows = m_cache.query(m_datastore, query, m_factory, NOW).getRows();
+
+		for (DataPointRow row : rows)
+		{
+			long last = Long.MAX_VALUE;
+			int count = 0;
+			while (row.hasNext())
+			{
+				long timestamp = row.next().getTimestamp();
+				assertTrue(timestamp < last);
+				last = timestamp;
+				count++;
+			}
+			assertThat(count, equalTo(row.getDataPointCount()));
+			assertThat(count, equalTo(30));
+		}
+	}
+
+	@Test
+	public void test_query_rowsKeepTags() throws DatastoreException
+	{
+		QueryMetric query = newQuery(0, 1999);
+		query.addTag("host", "B");
+
+		List<DataPointRow> rows = m_cache.query(m_datastore, query, m_factory, NOW).getRows();
+
+		assertThat(rows.size(), equalTo(1));
+		assertThat(rows.get(0).getTagValue("host"), equalTo("B"));
+		assertThat(rows.get(0).next().getLongValue(), equalTo(0L));
+		assertThat(rows.get(0).next().getLongValue(), equalTo(-100L));
+	}
+
+	@Test
+	public void test_evictsToStayUnderMaxBytes() throws DatastoreException
+	{
+		m_cache = new QueryResultCache("hostname", BUCKET, 4096, 0);
+
+		for (long start = 0; start < 50000; start += 5000)
+			m_cache.query(m_datastore, newQuery(start, start + 4999), m_factory, NOW);
+
+		assertTrue(m_cache.getBytes() <= 4096);
+		assertTrue(m_cache.getBucketCount() > 0);
+		assertTrue(m_cache.getBucketCount() < 50);
+	}
+
+	@Test
+	public void test_query_seriesWrittenTwiceOutOfOrder() throws DatastoreException
+	{
+		RangeDatastore datastore = new RangeDatastore()
+		{
+			@Override
+			public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback) throws DatastoreException
+			{
+				try
+				{
+					SortedMap<String, String> tags = new TreeMap<>();
+					tags.put("host", "A");
+
+					QueryCallback.DataPointWriter writer = queryCallback.startDataPointSet(LongDataPointFactoryImpl.DST_LONG, tags);
+					writer.addDataPoint(new LongDataPoint(1500, 3));
+					writer.addDataPoint(new LongDataPoint(1200, 2));
+					writer.close();
+
+					writer = queryCallback.startDataPointSet(LongDataPointFactoryImpl.DST_LONG, tags);
+					writer.addDataPoint(new LongDataPoint(1100, 1));
+					writer.close();
+				}
+				catch (IOException e)
+				{
+					throw new DatastoreException(e);
+				}
+			}
+		};
+
+		List<DataPointRow> rows = m_cache.query(datastore, newQuery(1000, 1999), m_factory, NOW).getRows();
+		assertThat(rows.size(), equalTo(1));
+
+		List<Long> values = new ArrayList<>();
+		List<Long> timestamps = new ArrayList<>();
+		while (rows.get(0).hasNext())
+		{
+			DataPoint dataPoint = rows.get(0).next();
+			timestamps.add(dataPoint.getTimestamp());
+			values.add(dataPoint.getLongValue());
+		}
+		assertThat(timestamps, equalTo(Arrays.asList(1100L, 1200L, 1500L)));
+		assertThat(values, equalTo(Arrays.asList(1L, 2L, 3L)));
+	}
+
+	@Test
+	public void test_rangeLargerThanMaxBytes_notCached() throws DatastoreException
+	{
+		m_cache = new QueryResultCache("hostname", BUCKET, 4096, 0);
+
+		assertThat(m_cache.query(m_datastore, newQuery(0, 50000), m_factory, NOW), nullValue());
+		assertThat(m_cache.getBucketCount(), equalTo(0));
+	}
+
+	@Test
+	public void test_rangeLargerThanQueryBudget_notCachedAndReleased() throws DatastoreException
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("hostname", 2048, 0);
+		QueryMemoryTracker tracker = budget.newTracker("metric");
+		QueryMemoryTracker.setCurrent(tracker);
+		try
+		{
+			assertThat(m_cache.query(m_datastore, newQuery(0, 50000), m_factory, NOW), nullValue());
+		}
+		finally
+		{
+			QueryMemoryTracker.setCurrent(null);
+		}
+
+		assertThat(m_cache.getBucketCount(), equalTo(0));
+		assertThat(tracker.getUsed(), equalTo(0L));
+		assertThat(budget.getUsed(), equalTo(0L));
+	}
+
+	@Test
+	public void test_query_reservesFromQueryBudget() throws DatastoreException
+	{
+		QueryMemoryBudget budget = new QueryMemoryBudget("hostname", 0, 0);
+		QueryMemoryTracker tracker = budget.newTracker("metric");
+		QueryMemoryTracker.setCurrent(tracker);
+		try
+		{
+			QueryMetric query = newQuery(2350, 9420);
+			assertThat(readTimestamps(m_cache.query(m_datastore, query, m_factory, NOW).getRows()),
+					equalTo(expectedTimestamps(query)));
+		}
+		finally
+		{
+			QueryMemoryTracker.setCurrent(null);
+		}
+
+		assertTrue(tracker.getUsed() > 0);
+		tracker.close();
+		assertThat(budget.getUsed(), equalTo(0L));
+	}
+
+	@Test
+	public void test_lateDataInvalidatesBucket() throws DatastoreException
+	{
+		QueryMetric query = newQuery(0, 2999);
+		m_cache.query(m_datastore, query, m_factory, NOW);
+		assertThat(m_cache.getBucketCount(), equalTo(3));
+
+		DataPoint late = new LongDataPoint(1010, 42);
+		m_datastore.add("host", "A", late);
+		m_cache.dataPoint(new DataPointEvent("metric", ImmutableSortedMap.of("host", "A"), late));
+		assertThat(m_cache.getBucketCount(), equalTo(2));
+
+		m_datastore.m_queries.clear();
+		assertThat(readTimestamps(m_cache.query(m_datastore, query, m_factory, NOW).getRows()), equalTo(expectedTimestamps(query)));
+		assertThat(m_datastore.m_queries.get(0), equalTo(new long[]{1000, 1999}));
+	}
+
+	@Test
+	public void test_invalidateLate_afterWriteDropsBucketCachedBeforeWrite() throws DatastoreException
+	{
+		QueryMetric query = newQuery(0, 2999);
+		DataPoint late = new LongDataPoint(1010, 42);
+
+		//The event arrives and a query caches the bucket before the point is written
+		m_cache.dataPoint(new DataPointEvent("metric", ImmutableSortedMap.of("host", "A"), late));
+		m_cache.query(m_datastore, query, m_factory, NOW);
+		assertThat(m_cache.getBucketCount(), equalTo(3));
+
+		m_datastore.add("host", "A", late);
+		m_cache.invalidateLate("metric", late.getTimestamp());
+		assertThat(m_cache.getBucketCount(), equalTo(2));
+
+		assertThat(readTimestamps(m_cache.query(m_datastore, query, m_factory, NOW).getRows()), equalTo(expectedTimestamps(query)));
+	}
+
+	@Test
+	public void test_invalidateMetric() throws DatastoreException
+	{
+		m_cache.query(m_datastore, newQuery(0, 2999), m_factory, NOW);
+		m_cache.invalidate("metric");
+
+		assertThat(m_cache.getBucketCount(), equalTo(0));
+		assertThat(m_cache.getBytes(), equalTo(0L));
+	}
+
+	@Test
+	public void test_canCache()
+	{
+		assertTrue(m_cache.canCache(newQuery(0, 2999), NOW));
+
+		//Nothing settled yet
+		assertFalse(m_cache.canCache(newQuery(NOW - 500, NOW - 10), NOW - 10));
+
+		QueryMetric limited = newQuery(0, 2999);
+		limited.setLimit(10);
+		assertFalse(m_cache.canCache(limited, NOW));
+
+		assertFalse(new QueryResultCache("hostname").canCache(newQuery(0, 2999), NOW));
+	}
+
+	@Test
+	public void test_getMetrics() throws DatastoreException
+	{
+		QueryMetric query = newQuery(0, 2999);
+		m_cache.query(m_datastore, query, m_factory, NOW);
+		m_cache.query(m_datastore, query, m_factory, NOW);
+
+		List<DataPointSet> metrics = m_cache.getMetrics(NOW);
+
+		assertThat(metrics.get(0).getName(), equalTo(QueryResultCache.HITS_METRIC_NAME));
+		assertThat(metrics.get(0).getDataPoints().get(0).getLongValue(), equalTo(3L));
+		assertThat(metrics.get(1).getName(), equalTo(QueryResultCache.MISSES_METRIC_NAME));
+		assertThat(metrics.get(1).getDataPoints().get(0).getLongValue(), equalTo(3L));
+		assertThat(metrics.get(2).getName(), equalTo(QueryResultCache.HIT_RATIO_METRIC_NAME));
+		assertThat(metrics.get(2).getDataPoints().get(0).getDoubleValue(), equalTo(0.5));
+	}
+
+	/**
+	 Keeps one sorted list of data points per host tag and records the
+	 range of each query it answers.
+	 */
+	private static class RangeDatastore implements Datastore
+	{
+		private final Map<String, List<DataPoint>> m_series = new TreeMap<>();
+		private final List<long[]> m_queries = new ArrayList<>();
+
+		private void add(String tagName, String tagValue, DataPoint dataPoint)
+		{
+			List<DataPoint> dataPoints = m_series.computeIfAbsent(tagName + "=" + tagValue, k -> new ArrayList<>());
+			dataPoints.add(dataPoint);
+			dataPoints.sort((o1, o2) -> Long.compare(o1.getTimestamp(), o2.getTimestamp()));
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public Iterable<String> getMetricNames(String prefix)
+		{
+			return null;
+		}
+
+		@Override
+		public Iterable<String> getTagNames()
+		{
+			return null;
+		}
+
+		@Override
+		public Iterable<String> getTagValues()
+		{
+			return null;
+		}
+
+		@Override
+		public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback) throws DatastoreException
+		{
+			m_queries.add(new long[]{query.getStartTime(), query.getEndTime()});
+
+			try
+			{
+				for (Map.Entry<String, List<DataPoint>> series : m_series.entrySet())
+				{
+					String[] tag = series.getKey().split("=");
+					if (!query.getTags().isEmpty() && !query.getTags().containsEntry(tag[0], tag[1]))
+						continue;
+
+					SortedMap<String, String> tags = new TreeMap<>();
+					tags.put(tag[0], tag[1]);
+
+					QueryCallback.DataPointWriter writer = queryCallback.startDataPointSet(LongDataPointFactoryImpl.DST_LONG, tags);
+					for (DataPoint dataPoint : series.getValue())
+					{
+						if (dataPoint.getTimestamp() >= query.getStartTime() && dataPoint.getTimestamp() <= query.getEndTime())
+							writer.addDataPoint(dataPoint);
+					}
+					writer.close();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new DatastoreException(e);
+			}
+		}
+
+		@Override
+		public void deleteDataPoints(DatastoreMetricQuery deleteQuery)
+		{
+		}
+
+		@Override
+		public TagSet queryMetricTags(DatastoreMetricQuery query)
+		{
+			return null;
+		}
+	}
+}
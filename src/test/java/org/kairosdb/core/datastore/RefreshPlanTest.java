@@ -0,0 +1,344 @@
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.aggregator.AvgAggregator;
+import org.kairosdb.core.aggregator.MaxAggregator;
+import org.kairosdb.core.aggregator.RangeAggregator;
+import org.kairosdb.core.aggregator.Sampling;
+import org.kairosdb.core.aggregator.SumAggregator;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.Aggregator;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RefreshPlanTest
+{
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+	private static final long LATE_ARRIVAL = MINUTE;
+
+	//2026-10-18T10:15:07.250Z
+	private static final long PREVIOUS_END = 1792318507250L;
+	private static final long PREVIOUS_START = PREVIOUS_END - DAY;
+
+	private interface AggregatorChain
+	{
+		List<RangeAggregator> create() throws KairosDBException;
+	}
+
+	private static final AggregatorChain NO_AGGREGATORS = new AggregatorChain()
+	{
+		@Override
+		public List<RangeAggregator> create()
+		{
+			return new ArrayList<>();
+		}
+	};
+
+	private static final AggregatorChain AVG_MINUTE = new AggregatorChain()
+	{
+		@Override
+		public List<RangeAggregator> create() throws KairosDBException
+		{
+			List<RangeAggregator> ret = new ArrayList<>();
+			ret.add(range(new AvgAggregator(new DoubleDataPointFactoryImpl()), 1, TimeUnit.MINUTES));
+			return ret;
+		}
+	};
+
+	private static final AggregatorChain SUM_START_MAX_END = new AggregatorChain()
+	{
+		@Override
+		public List<RangeAggregator> create()
+		{
+			List<RangeAggregator> ret = new ArrayList<>();
+			RangeAggregator sum = range(new SumAggregator(new DoubleDataPointFactoryImpl()), 1, TimeUnit.MINUTES);
+			sum.setAlignStartTime(true);
+			ret.add(sum);
+			RangeAggregator max = range(new MaxAggregator(new DoubleDataPointFactoryImpl()), 5, TimeUnit.MINUTES);
+			max.setAlignEndTime(true);
+			ret.add(max);
+			return ret;
+		}
+	};
+
+	private static final AggregatorChain SUM_END_AVG_MINUTE = new AggregatorChain()
+	{
+		@Override
+		public List<RangeAggregator> create() throws KairosDBException
+		{
+			List<RangeAggregator> ret = new ArrayList<>();
+			RangeAggregator sum = range(new SumAggregator(new DoubleDataPointFactoryImpl()), 10, TimeUnit.SECONDS);
+			sum.setAlignEndTime(true);
+			ret.add(sum);
+			ret.add(range(new AvgAggregator(new DoubleDataPointFactoryImpl()), 1, TimeUnit.MINUTES));
+			return ret;
+		}
+	};
+
+	//Ranges of the first aggregator cross the ranges of the second
+	private static final AggregatorChain SUM_UNEVEN_AVG = new AggregatorChain()
+	{
+		@Override
+		public List<RangeAggregator> create() throws KairosDBException
+		{
+			List<RangeAggregator> ret = new ArrayList<>();
+			RangeAggregator sum = range(new SumAggregator(new DoubleDataPointFactoryImpl()), 7, TimeUnit.SECONDS);
+			sum.setAlignStartTime(true);
+			ret.add(sum);
+			RangeAggregator avg = range(new AvgAggregator(new DoubleDataPointFactoryImpl()), 2, TimeUnit.MINUTES);
+			avg.setAlignEndTime(true);
+			ret.add(avg);
+			return ret;
+		}
+	};
+
+	private static RangeAggregator range(RangeAggregator aggregator, int value, TimeUnit unit)
+	{
+		aggregator.setSampling(new Sampling(value, unit));
+		aggregator.setAlignSampling(true);
+		return aggregator;
+	}
+
+	/**
+	 Data points one to ten seconds apart from start to end
+	 */
+	private static List<DataPoint> createDataPoints(long start, long end)
+	{
+		Random random = new Random(42);
+		List<DataPoint> dataPoints = new ArrayList<>();
+		for (long timestamp = start; timestamp <= end; timestamp += 1000 + random.nextInt(9000))
+			dataPoints.add(new LongDataPoint(timestamp, random.nextInt(1000)));
+
+		return dataPoints;
+	}
+
+	private static QueryMetric createQuery(AggregatorChain chain, long startTime, long endTime)
+			throws KairosDBException
+	{
+		QueryMetric query = new QueryMetric(startTime, endTime, 0, "metric");
+		for (RangeAggregator aggregator : chain.create())
+		{
+			aggregator.setStartTime(startTime);
+			aggregator.setEndTime(endTime);
+			query.addAggregator(aggregator);
+		}
+
+		return query;
+	}
+
+	/**
+	 Runs the aggregators of the query over the data points between the
+	 start and end, inclusive, and returns the results between from and to.
+	 */
+	private static List<String> run(QueryMetric query, List<DataPoint> dataPoints,
+			long start, long end, long from, long to)
+	{
+		ListDataPointGroup group = new ListDataPointGroup("metric");
+		for (DataPoint dataPoint : dataPoints)
+		{
+			if (dataPoint.getTimestamp() >= start && dataPoint.getTimestamp() <= end)
+				group.addDataPoint(dataPoint);
+		}
+
+		DataPointGroup results = group;
+		for (Aggregator aggregator : query.getAggregators())
+			results = aggregator.aggregate(results);
+
+		results = new TimeRangeDataPointGroup(results, from, to);
+		List<String> ret = new ArrayList<>();
+		while (results.hasNext())
+		{
+			DataPoint dataPoint = results.next();
+			ret.add(dataPoint.getTimestamp() + "=" + (dataPoint.isLong() ? dataPoint.getLongValue() : dataPoint.getDoubleValue()));
+		}
+
+		return ret;
+	}
+
+	private static List<String> run(QueryMetric query, List<DataPoint> dataPoints)
+	{
+		return run(query, dataPoints, query.getStartTime(), query.getEndTime(), Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	private static List<DataPoint> writtenBefore(List<DataPoint> dataPoints, long time)
+	{
+		List<DataPoint> ret = new ArrayList<>();
+		for (DataPoint dataPoint : dataPoints)
+		{
+			if (dataPoint.getTimestamp() < time)
+				ret.add(dataPoint);
+		}
+
+		return ret;
+	}
+
+	/**
+	 Runs the query at the previous times, refreshes it with the plan and
+	 checks the merged results are the results of running the whole query.
+	 Data points in the late arrival window before the previous end are only
+	 written after the previous run.
+	 */
+	private static void assertRefreshMatchesFullRun(AggregatorChain chain, long startTime, long endTime)
+			throws KairosDBException
+	{
+		List<DataPoint> dataPoints = createDataPoints(PREVIOUS_START - HOUR, endTime + MINUTE);
+		List<DataPoint> previousDataPoints = writtenBefore(dataPoints, PREVIOUS_END - LATE_ARRIVAL / 2);
+
+		List<String> previous = run(createQuery(chain, PREVIOUS_START, PREVIOUS_END), previousDataPoints);
+		List<String> expected = run(createQuery(chain, startTime, endTime), dataPoints);
+
+		QueryMetric query = createQuery(chain, startTime, endTime);
+		RefreshPlan plan = RefreshPlan.create(query, endTime, PREVIOUS_START, PREVIOUS_END, LATE_ARRIVAL);
+		assertThat(plan, notNullValue());
+
+		List<String> merged = new ArrayList<>();
+		if (plan.hasHead())
+			merged.addAll(run(query, dataPoints, startTime, plan.getHeadReadEnd() - 1, Long.MIN_VALUE, plan.getHeadEnd()));
+
+		for (String value : previous)
+		{
+			long timestamp = Long.parseLong(value.substring(0, value.indexOf('=')));
+			if (timestamp >= plan.getHeadEnd() && timestamp < plan.getTailStart())
+				merged.add(value);
+		}
+
+		merged.addAll(run(query, dataPoints, plan.getTailReadStart(), endTime, plan.getTailStart(), Long.MAX_VALUE));
+
+		assertThat(merged, equalTo(expected));
+
+		//Only the ends of the query are read again
+		assertTrue(plan.getHeadReadEnd() - startTime < 2 * HOUR);
+		assertTrue(endTime - plan.getTailReadStart() < 2 * HOUR);
+	}
+
+	@Test
+	public void test_noAggregators()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + 90500;
+		assertRefreshMatchesFullRun(NO_AGGREGATORS, endTime - DAY, endTime);
+	}
+
+	@Test
+	public void test_firstDataPointTime()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + 90500;
+		assertRefreshMatchesFullRun(AVG_MINUTE, endTime - DAY, endTime);
+	}
+
+	@Test
+	public void test_chained_alignStartThenEnd()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + 7 * MINUTE + 3;
+		assertRefreshMatchesFullRun(SUM_START_MAX_END, endTime - DAY, endTime);
+	}
+
+	@Test
+	public void test_chained_alignEndThenFirstDataPoint()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + 30000;
+		assertRefreshMatchesFullRun(SUM_END_AVG_MINUTE, endTime - DAY, endTime);
+	}
+
+	@Test
+	public void test_chained_unevenRanges()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + 90500;
+		assertRefreshMatchesFullRun(SUM_UNEVEN_AVG, endTime - DAY, endTime);
+	}
+
+	@Test
+	public void test_startNotMoved()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + 3 * MINUTE;
+		assertRefreshMatchesFullRun(SUM_START_MAX_END, PREVIOUS_START, endTime);
+
+		QueryMetric query = createQuery(SUM_START_MAX_END, PREVIOUS_START, endTime);
+		RefreshPlan plan = RefreshPlan.create(query, endTime, PREVIOUS_START, PREVIOUS_END, LATE_ARRIVAL);
+		assertThat(plan.hasHead(), equalTo(false));
+		assertThat(plan.getHeadEnd(), equalTo(PREVIOUS_START));
+	}
+
+	@Test
+	public void test_refreshedTwice()
+			throws KairosDBException
+	{
+		//The end of the previous run doesn't have to be aligned to anything
+		long endTime = PREVIOUS_END + 1;
+		assertRefreshMatchesFullRun(AVG_MINUTE, endTime - DAY, endTime);
+	}
+
+	@Test
+	public void test_create_withoutAlignSampling_null()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + MINUTE;
+		QueryMetric query = createQuery(AVG_MINUTE, endTime - DAY, endTime);
+		((RangeAggregator) query.getAggregators().get(0)).setAlignSampling(false);
+
+		assertThat(RefreshPlan.canRefresh(query), equalTo(false));
+		assertThat(RefreshPlan.create(query, endTime, PREVIOUS_START, PREVIOUS_END, LATE_ARRIVAL), nullValue());
+	}
+
+	@Test
+	public void test_create_limit_null()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + MINUTE;
+		QueryMetric query = createQuery(AVG_MINUTE, endTime - DAY, endTime);
+		query.setLimit(10);
+
+		assertThat(RefreshPlan.create(query, endTime, PREVIOUS_START, PREVIOUS_END, LATE_ARRIVAL), nullValue());
+	}
+
+	@Test
+	public void test_create_rangesMoved_null()
+			throws KairosDBException
+	{
+		//Ranges are aligned to the start of the day the query starts on
+		long previousStart = 1792281540000L; //2026-10-17T23:59:00Z
+		long startTime = previousStart + 2 * MINUTE;
+		long endTime = startTime + DAY;
+		QueryMetric query = createQuery(SUM_START_MAX_END, startTime, endTime);
+
+		assertThat(RefreshPlan.create(query, endTime, previousStart, previousStart + DAY, LATE_ARRIVAL), nullValue());
+	}
+
+	@Test
+	public void test_create_movedBack_null()
+			throws KairosDBException
+	{
+		QueryMetric query = createQuery(AVG_MINUTE, PREVIOUS_START - MINUTE, PREVIOUS_END);
+
+		assertThat(RefreshPlan.create(query, PREVIOUS_END, PREVIOUS_START, PREVIOUS_END, LATE_ARRIVAL), nullValue());
+	}
+
+	@Test
+	public void test_create_previousRunTooOld_null()
+			throws KairosDBException
+	{
+		long endTime = PREVIOUS_END + DAY;
+		QueryMetric query = createQuery(AVG_MINUTE, endTime - DAY, endTime);
+
+		assertThat(RefreshPlan.create(query, endTime, PREVIOUS_START, PREVIOUS_END, LATE_ARRIVAL), nullValue());
+	}
+}
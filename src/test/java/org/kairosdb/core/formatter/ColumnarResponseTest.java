@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.formatter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.NullDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.groupby.ValueGroupBy;
+import org.kairosdb.testing.ColumnarResponseReader;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ColumnarResponseTest
+{
+	private ByteArrayOutputStream bytes;
+	private ColumnarResponse response;
+
+	@Before
+	public void setup()
+	{
+		bytes = new ByteArrayOutputStream();
+		response = new ColumnarResponse(bytes);
+	}
+
+	@Test
+	public void test_emptyResponse() throws IOException, FormatterException
+	{
+		response.begin();
+		response.end();
+
+		assertThat(read().size(), equalTo(0));
+	}
+
+	@Test
+	public void test_groupHeader() throws IOException, FormatterException
+	{
+		ValueGroupBy groupBy = new ValueGroupBy(10);
+		ListDataPointGroup group = new ListDataPointGroup("metric\u00e9");
+		group.addTag("host", "server1");
+		group.addTag("host", "server2");
+		group.addTag("dc", "\u65e5\u672c");
+		group.addGroupByResult(groupBy.getGroupByResult(1));
+
+		response.begin();
+		response.formatQuery(Collections.<DataPointGroup>singletonList(group), false, -1, null);
+		response.end();
+
+		List<ColumnarResponseReader.Query> queries = read();
+		assertThat(queries.size(), equalTo(1));
+		assertThat(queries.get(0).getSampleSize(), equalTo(-1));
+
+		ColumnarResponseReader.Group result = queries.get(0).getGroups().get(0);
+		assertThat(result.getName(), equalTo("metric\u00e9"));
+		assertThat(result.getGroupBys(), equalTo(Collections.singletonList(groupBy.getGroupByResult(1).toJson())));
+		assertThat(result.getTags().get("host"), equalTo(Arrays.asList("server1", "server2")));
+		assertThat(result.getTags().get("dc"), equalTo(Collections.singletonList("\u65e5\u672c")));
+		assertThat(result.getTimestamps().size(), equalTo(0));
+	}
+
+	@Test
+	public void test_excludeTags() throws IOException, FormatterException
+	{
+		ListDataPointGroup group = new ListDataPointGroup("metric1");
+		group.addTag("host", "server1");
+
+		response.begin();
+		response.formatQuery(Collections.<DataPointGroup>singletonList(group), true, 0, null);
+		response.end();
+
+		assertThat(read().get(0).getGroups().get(0).getTags().size(), equalTo(0));
+	}
+
+	@Test
+	public void test_longValues() throws IOException, FormatterException
+	{
+		List<Long> timestamps = Arrays.asList(-5L, 0L, 1000L, 1000L, Long.MAX_VALUE);
+		List<Object> values = Arrays.<Object>asList(0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 42L);
+
+		ListDataPointGroup group = new ListDataPointGroup("metric1");
+		for (int I = 0; I < timestamps.size(); I++)
+			group.addDataPoint(new LongDataPoint(timestamps.get(I), (Long) values.get(I)));
+
+		ColumnarResponseReader.Group result = writeAndRead(group);
+
+		assertThat(result.getTimestamps(), equalTo(timestamps));
+		assertThat(result.getValues(), equalTo(values));
+	}
+
+	@Test
+	public void test_doubleValues() throws IOException, FormatterException
+	{
+		List<Object> values = Arrays.<Object>asList(1.5, 1.5, -0.0, 0.0, Double.NaN,
+				Double.POSITIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE, 2.9);
+
+		ListDataPointGroup group = new ListDataPointGroup("metric1");
+		for (int I = 0; I < values.size(); I++)
+			group.addDataPoint(new DoubleDataPoint(I * 10, (Double) values.get(I)));
+
+		ColumnarResponseReader.Group result = writeAndRead(group);
+
+		//Double.equals compares the bits so -0.0 and NaN are checked exactly
+		assertThat(result.getValues(), equalTo(values));
+	}
+
+	@Test
+	public void test_mixedTypes() throws IOException, FormatterException
+	{
+		ListDataPointGroup group = new ListDataPointGroup("metric1");
+		group.addDataPoint(new LongDataPoint(1, 1));
+		group.addDataPoint(new LongDataPoint(2, 2));
+		group.addDataPoint(new DoubleDataPoint(3, 3.5));
+		group.addDataPoint(new StringDataPoint(4, "a \"string\""));
+		group.addDataPoint(new NullDataPoint(5));
+		group.addDataPoint(new LongDataPoint(6, 6));
+
+		ColumnarResponseReader.Group result = writeAndRead(group);
+
+		assertThat(result.getTimestamps(), equalTo(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L)));
+		assertThat(result.getValues(), equalTo(Arrays.<Object>asList(1L, 2L, 3.5, "\"a \\\"string\\\"\"", "null", 6L)));
+	}
+
+	@Test
+	public void test_multipleBlocks() throws IOException, FormatterException
+	{
+		int count = ColumnarResponse.BLOCK_SIZE * 2 + 10;
+		List<Long> timestamps = new ArrayList<>();
+		List<Object> values = new ArrayList<>();
+
+		ListDataPointGroup group = new ListDataPointGroup("metric1");
+		for (int I = 0; I < count; I++)
+		{
+			long timestamp = 1500000000000L + I * 1000L;
+			double value = Math.sin(I) * 100;
+			group.addDataPoint(new DoubleDataPoint(timestamp, value));
+			timestamps.add(timestamp);
+			values.add(value);
+		}
+
+		ColumnarResponseReader.Group result = writeAndRead(group);
+
+		assertThat(result.getTimestamps(), equalTo(timestamps));
+		assertThat(result.getValues(), equalTo(values));
+	}
+
+	@Test
+	public void test_multipleQueries() throws IOException, FormatterException
+	{
+		ListDataPointGroup group1 = new ListDataPointGroup("metric1");
+		group1.addDataPoint(new LongDataPoint(1, 10));
+		ListDataPointGroup group2 = new ListDataPointGroup("metric2");
+		group2.addDataPoint(new LongDataPoint(2, 20));
+		ListDataPointGroup group3 = new ListDataPointGroup("metric3");
+		group3.addDataPoint(new LongDataPoint(3, 30));
+
+		response.begin();
+		response.formatQuery(Arrays.<DataPointGroup>asList(group1, group2), false, 2, null);
+		response.formatQuery(Collections.<DataPointGroup>singletonList(group3), false, 1, null);
+		response.end();
+
+		List<ColumnarResponseReader.Query> queries = read();
+		assertThat(queries.size(), equalTo(2));
+		assertThat(queries.get(0).getSampleSize(), equalTo(2));
+		assertThat(queries.get(0).getGroups().size(), equalTo(2));
+		assertThat(queries.get(0).getGroups().get(1).getName(), equalTo("metric2"));
+		assertThat(queries.get(0).getGroups().get(1).getTimestamps(), equalTo(Collections.singletonList(2L)));
+		assertThat(queries.get(1).getGroups().get(0).getValues(), equalTo(Collections.<Object>singletonList(30L)));
+	}
+
+	@Test
+	public void test_isAccepted()
+	{
+		assertThat(ColumnarResponse.isAccepted(null), equalTo(false));
+		assertThat(ColumnarResponse.isAccepted("application/json"), equalTo(false));
+		assertThat(ColumnarResponse.isAccepted("*/*"), equalTo(false));
+		assertThat(ColumnarResponse.isAccepted(ColumnarResponse.MEDIA_TYPE), equalTo(true));
+		assertThat(ColumnarResponse.isAccepted("application/json;q=0.5, Application/Vnd.KairosDB.Columnar; q=1"), equalTo(true));
+	}
+
+	private ColumnarResponseReader.Group writeAndRead(DataPointGroup group) throws IOException, FormatterException
+	{
+		response.begin();
+		response.formatQuery(Collections.singletonList(group), false, 0, null);
+		response.end();
+
+		return read().get(0).getGroups().get(0);
+	}
+
+	private List<ColumnarResponseReader.Query> read() throws IOException
+	{
+		return new ColumnarResponseReader(new ByteArrayInputStream(bytes.toByteArray())).read();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.formatter;
+
+import com.google.common.io.ByteStreams;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.testing.ListDataPointGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Compares writing query responses through JSONWriter with writing them through
+ Utf8JsonWriter.  The shapes are a few large series and many small ones, with
+ long values, doubles with a couple of decimal places like raw gauges and
+ full precision doubles like the output of avg.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.formatter.JsonResponseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonResponseBenchmark
+{
+	public enum ValueType
+	{
+		LONG, SHORT_DOUBLE, FULL_DOUBLE
+	}
+
+	//series x data points per series
+	@Param({"4x250000", "10000x100"})
+	public String shape;
+
+	@Param({"LONG", "SHORT_DOUBLE", "FULL_DOUBLE"})
+	public ValueType valueType;
+
+	private DataPoint[][] m_series;
+
+	@Setup
+	public void setup()
+	{
+		String[] split = shape.split("x");
+		int seriesCount = Integer.parseInt(split[0]);
+		int pointsPerSeries = Integer.parseInt(split[1]);
+		Random random = new Random(42);
+		long start = 1500000000000L;
+
+		m_series = new DataPoint[seriesCount][pointsPerSeries];
+		for (int series = 0; series < seriesCount; series++)
+		{
+			for (int I = 0; I < pointsPerSeries; I++)
+			{
+				long timestamp = start + I * 10000L;
+				switch (valueType)
+				{
+					case LONG:
+						m_series[series][I] = new LongDataPoint(timestamp, random.nextInt(100000));
+						break;
+					case SHORT_DOUBLE:
+						m_series[series][I] = new DoubleDataPoint(timestamp, random.nextInt(1000000) / 100.0);
+						break;
+					default:
+						m_series[series][I] = new DoubleDataPoint(timestamp, random.nextDouble() * 1000);
+				}
+			}
+		}
+	}
+
+	private List<DataPointGroup> createGroups()
+	{
+		List<DataPointGroup> groups = new ArrayList<>();
+		for (int series = 0; series < m_series.length; series++)
+		{
+			ListDataPointGroup group = new ListDataPointGroup("benchmark.metric");
+			group.addTag("host", "server" + series);
+			for (DataPoint dataPoint : m_series[series])
+				group.addDataPoint(dataPoint);
+			groups.add(group);
+		}
+
+		return groups;
+	}
+
+	private void writeResponse(Writer writer) throws FormatterException, IOException
+	{
+		JsonResponse response = new JsonResponse(writer);
+		response.begin();
+		response.formatQuery(createGroups(), false, -1);
+		response.end();
+		writer.flush();
+	}
+
+	@Benchmark
+	public void jsonWriter() throws FormatterException, IOException
+	{
+		writeResponse(new BufferedWriter(new OutputStreamWriter(ByteStreams.nullOutputStream(), "UTF-8")));
+	}
+
+	@Benchmark
+	public void utf8JsonWriter() throws FormatterException, IOException
+	{
+		writeResponse(new Utf8JsonWriter(ByteStreams.nullOutputStream()));
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(JsonResponseBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
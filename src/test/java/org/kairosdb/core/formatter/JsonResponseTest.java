@@ -24,13 +24,18 @@ import org.junit.Test;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.datapoints.DoubleDataPoint;
 import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.NullDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
 import org.kairosdb.core.datastore.DataPointGroup;
 import org.kairosdb.core.groupby.ValueGroupBy;
+import org.kairosdb.core.reporting.QueryProfile;
 import org.kairosdb.testing.ListDataPointGroup;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -138,6 +143,80 @@ public class JsonResponseTest
 		response.end();
 	}
 
+	@Test
+	public void test_profile() throws FormatterException
+	{
+		List<DataPointGroup> groups = new ArrayList<DataPointGroup>();
+		ListDataPointGroup group1 = new ListDataPointGroup("metric1");
+		group1.addDataPoint(new LongDataPoint(12345, 1));
+		group1.addDataPoint(new LongDataPoint(56789, 2));
+		groups.add(group1);
+
+		QueryProfile profile = new QueryProfile("metric1", true);
+
+		response.begin();
+		response.formatQuery(groups, true, -1, profile);
+		response.end();
+
+		JsonObject query = ((JsonObject) parser.parse(writer.toString())).getAsJsonArray("queries").get(0).getAsJsonObject();
+		JsonObject format = query.getAsJsonObject("profile").getAsJsonObject("phases").getAsJsonObject("format");
+
+		assertThat(format.get("data_points").getAsLong(), equalTo(2L));
+		assertThat(profile.getDataPoints(QueryProfile.Phase.FORMAT), equalTo(2L));
+	}
+
+	@Test
+	public void test_profile_notRequested() throws FormatterException
+	{
+		List<DataPointGroup> groups = new ArrayList<DataPointGroup>();
+		ListDataPointGroup group1 = new ListDataPointGroup("metric1");
+		group1.addDataPoint(new LongDataPoint(12345, 1));
+		groups.add(group1);
+
+		QueryProfile profile = new QueryProfile("metric1", false);
+
+		response.begin();
+		response.formatQuery(groups, true, -1, profile);
+		response.end();
+
+		JsonObject query = ((JsonObject) parser.parse(writer.toString())).getAsJsonArray("queries").get(0).getAsJsonObject();
+
+		assertThat(query.has("profile"), equalTo(false));
+		assertThat(profile.getDataPoints(QueryProfile.Phase.FORMAT), equalTo(1L));
+	}
+
+	@Test
+	public void test_utf8Writer_sameOutput() throws IOException, FormatterException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8JsonWriter utf8Writer = new Utf8JsonWriter(bytes, 16);
+		JsonResponse utf8Response = new JsonResponse(utf8Writer);
+
+		for (JsonResponse jsonResponse : Arrays.asList(response, utf8Response))
+		{
+			ValueGroupBy groupBy = new ValueGroupBy(10);
+			ListDataPointGroup group1 = new ListDataPointGroup("metric\u00e9");
+			group1.addTag("host", "\u65e5\u672c");
+			group1.addGroupByResult(groupBy.getGroupByResult(0));
+			group1.addDataPoint(new LongDataPoint(12345, -1));
+			group1.addDataPoint(new LongDataPoint(56789, Long.MAX_VALUE));
+			group1.addDataPoint(new DoubleDataPoint(98765, 2.9));
+			group1.addDataPoint(new DoubleDataPoint(98766, 1e21));
+			group1.addDataPoint(new DoubleDataPoint(98767, -0.0001));
+			group1.addDataPoint(new StringDataPoint(98768, "a \"string\""));
+			group1.addDataPoint(new NullDataPoint(98769));
+
+			ListDataPointGroup group2 = new ListDataPointGroup("metric2");
+
+			jsonResponse.begin();
+			jsonResponse.formatQuery(Arrays.<DataPointGroup>asList(group1, group2), false, 7);
+			jsonResponse.end();
+		}
+		utf8Writer.flush();
+
+		assertThat(new String(bytes.toByteArray(), Charsets.UTF_8), equalTo(writer.toString()));
+	}
+
 	private void assertJson(String actual, String expected)
 	{
 		JsonObject expectedObject = (JsonObject) parser.parse(expected);
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.formatter;
+
+import com.google.common.base.Charsets;
+import org.json.JSONWriter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class Utf8JsonWriterTest
+{
+	private ByteArrayOutputStream m_bytes;
+	private Utf8JsonWriter m_writer;
+
+	@Before
+	public void setup()
+	{
+		m_bytes = new ByteArrayOutputStream();
+		//Small buffer so values are split across flushes
+		m_writer = new Utf8JsonWriter(m_bytes, 8);
+	}
+
+	private String written() throws IOException
+	{
+		m_writer.flush();
+		String ret = new String(m_bytes.toByteArray(), Charsets.UTF_8);
+		m_bytes.reset();
+		return ret;
+	}
+
+	private static String jsonWriterValue(double value)
+	{
+		StringWriter writer = new StringWriter();
+		new JSONWriter(writer).array().value(value).endArray();
+		String json = writer.toString();
+		return json.substring(1, json.length() - 1);
+	}
+
+	private void assertDouble(double value) throws IOException
+	{
+		m_writer.writeDouble(value);
+		assertThat("value " + value, written(), equalTo(jsonWriterValue(value)));
+	}
+
+	@Test
+	public void test_writeLong() throws IOException
+	{
+		long[] values = {0, 1, -1, 9, 10, 99, 100, 1234567890123L, -987654321L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+		for (long value : values)
+		{
+			m_writer.writeLong(value);
+			assertThat(written(), equalTo(Long.toString(value)));
+		}
+	}
+
+	@Test
+	public void test_writeDouble_specialValues() throws IOException
+	{
+		double[] values = {0.0, -0.0, 1.0, -1.0, 0.5, 2.9, 7.9, 0.1, 0.2, 0.3, 1.0 / 3, 100.25,
+				0.001, 0.000999, 0.0001, 9999999.0, 1e7, 1.5e7, 1e21, 1e-7, 123456.789012,
+				Double.MAX_VALUE, Double.MIN_VALUE, Double.MIN_NORMAL, Long.MAX_VALUE, 4.35, 0.07, 1.005};
+
+		for (double value : values)
+		{
+			assertDouble(value);
+			assertDouble(-value);
+		}
+	}
+
+	@Test
+	public void test_writeDouble_random() throws IOException
+	{
+		Random random = new Random(1234);
+
+		for (int I = 0; I < 100000; I++)
+		{
+			//Mix of short decimals, which take the fast path, and full doubles
+			int decimals = random.nextInt(9);
+			double value = Math.round(random.nextDouble() * 1e8) / Math.pow(10, decimals);
+			assertDouble(value);
+			assertDouble(random.nextDouble() * Math.pow(10, random.nextInt(20) - 10));
+
+			double bits = Double.longBitsToDouble(random.nextLong());
+			if (!Double.isNaN(bits) && !Double.isInfinite(bits))
+				assertDouble(bits);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_writeDouble_nan() throws IOException
+	{
+		m_writer.writeDouble(Double.NaN);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_writeDouble_infinite() throws IOException
+	{
+		m_writer.writeDouble(Double.NEGATIVE_INFINITY);
+	}
+
+	@Test
+	public void test_write_utf8() throws IOException
+	{
+		String value = "ascii \u00e9\u00df \u65e5\u672c\u8a9e \ud83d\ude00 end";
+
+		m_writer.write(value);
+		m_writer.write(value.toCharArray(), 6, 5);
+		m_writer.write('\u00e9');
+
+		assertThat(written(), equalTo(value + value.substring(6, 11) + "\u00e9"));
+	}
+
+	@Test
+	public void test_write_unpairedSurrogate() throws IOException
+	{
+		m_writer.write("a\ud83db");
+		m_writer.write("\ude00c");
+
+		assertThat(written(), equalTo("a?b?c"));
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.groupby;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.Duration;
+import org.kairosdb.plugin.GroupBy;
+import org.kairosdb.testing.ListDataPointGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Groups series by value ranges and by time of day and reads the groups
+ back.  Grouper writes each group to a cache file, so this includes the file
+ I/O a query with a value or time group by does.  The input groups are built
+ from arrays each invocation since grouping consumes them.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.groupby.GrouperBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrouperBenchmark
+{
+	public enum GroupByType
+	{
+		VALUE, TIME
+	}
+
+	//series x data points per series
+	@Param({"4x100000", "1000x100"})
+	public String shape;
+
+	@Param({"VALUE", "TIME"})
+	public GroupByType groupByType;
+
+	private static final long START = 1500000000000L;
+
+	private final Grouper m_grouper = new Grouper(new TestDataPointFactory());
+	private DataPoint[][] m_series;
+
+	@Setup
+	public void setup()
+	{
+		String[] split = shape.split("x");
+		int seriesCount = Integer.parseInt(split[0]);
+		int pointsPerSeries = Integer.parseInt(split[1]);
+		Random random = new Random(42);
+
+		m_series = new DataPoint[seriesCount][pointsPerSeries];
+		for (int series = 0; series < seriesCount; series++)
+		{
+			for (int I = 0; I < pointsPerSeries; I++)
+				m_series[series][I] = new LongDataPoint(START + I * 10000L, random.nextInt(100000));
+		}
+	}
+
+	private GroupBy createGroupBy()
+	{
+		if (groupByType == GroupByType.VALUE)
+			return new ValueGroupBy(10000);
+
+		TimeGroupBy groupBy = new TimeGroupBy(new Duration(1, org.kairosdb.core.datastore.TimeUnit.HOURS), 24);
+		groupBy.setStartDate(START);
+		return groupBy;
+	}
+
+	@Benchmark
+	public void group(Blackhole blackhole) throws IOException
+	{
+		List<DataPointGroup> input = new ArrayList<>();
+		for (int series = 0; series < m_series.length; series++)
+		{
+			ListDataPointGroup group = new ListDataPointGroup("benchmark.metric");
+			group.addTag("host", "server" + series);
+			for (DataPoint dataPoint : m_series[series])
+				group.addDataPoint(dataPoint);
+			input.add(group);
+		}
+
+		List<DataPointGroup> groups = m_grouper.group(Collections.singletonList(createGroupBy()), input);
+		for (DataPointGroup group : groups)
+		{
+			while (group.hasNext())
+				blackhole.consume(group.next());
+			group.close();
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(GrouperBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
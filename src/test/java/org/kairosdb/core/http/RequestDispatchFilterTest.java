@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.http.RequestDispatchFilter.RequestPool;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RequestDispatchFilterTest
+{
+	private static final String QUERY_URI = "/api/v1/datapoints/query";
+
+	private RequestDispatchFilter filter;
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private AsyncContext asyncContext;
+	private FilterChain filterChain;
+	private ThreadPoolExecutor executor;
+	private StringWriter body;
+
+	@Before
+	public void setup() throws IOException
+	{
+		filter = new RequestDispatchFilter("hostname");
+		request = mock(HttpServletRequest.class);
+		response = mock(HttpServletResponse.class);
+		asyncContext = mock(AsyncContext.class);
+		filterChain = mock(FilterChain.class);
+		executor = mock(ThreadPoolExecutor.class);
+		body = new StringWriter();
+
+		when(request.getRequestURI()).thenReturn(QUERY_URI);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		when(asyncContext.getRequest()).thenReturn(request);
+		when(asyncContext.getResponse()).thenReturn(response);
+		when(response.getWriter()).thenReturn(new PrintWriter(body, true));
+	}
+
+	@Test
+	public void test_doFilter_saturatedPoolReturns503() throws IOException, ServletException
+	{
+		doThrow(new RejectedExecutionException()).when(executor).execute(any(Runnable.class));
+		filter.setExecutor(RequestPool.QUERY, executor);
+
+		filter.doFilter(request, response, filterChain);
+
+		verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		verify(response).setContentType("application/json");
+		assertThat(body.toString(), equalTo("{\"errors\":[\"Server is too busy, try again later\"]}"));
+		verify(asyncContext).complete();
+		verify(filterChain, never()).doFilter(any(), any());
+	}
+
+	@Test
+	public void test_doFilter_exceptionReturns500() throws IOException, ServletException
+	{
+		//Run the request right away instead of on a pool thread
+		doAnswer(invocation ->
+		{
+			((Runnable) invocation.getArgument(0)).run();
+			return null;
+		}).when(executor).execute(any(Runnable.class));
+		filter.setExecutor(RequestPool.QUERY, executor);
+		doThrow(new ServletException("Query failed")).when(filterChain).doFilter(request, response);
+
+		filter.doFilter(request, response, filterChain);
+
+		verify(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		verify(asyncContext).complete();
+	}
+
+	@Test
+	public void test_doFilter_noThreadsRunsOnCallingThread() throws IOException, ServletException
+	{
+		filter.createExecutor(RequestPool.QUERY, 0, 100);
+		AtomicReference<Thread> requestThread = new AtomicReference<>();
+
+		filter.doFilter(request, response, (servletRequest, servletResponse) ->
+				requestThread.set(Thread.currentThread()));
+
+		assertThat(requestThread.get(), equalTo(Thread.currentThread()));
+		verify(request, never()).startAsync(any(), any());
+	}
+
+	@Test
+	public void test_getRequestPool_ingest()
+	{
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/datapoints"), equalTo(RequestPool.INGEST));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/datapoints/"), equalTo(RequestPool.INGEST));
+	}
+
+	@Test
+	public void test_getRequestPool_query()
+	{
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/datapoints/query"), equalTo(RequestPool.QUERY));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/datapoints/query/tags"), equalTo(RequestPool.QUERY));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/datapoints/delete"), equalTo(RequestPool.QUERY));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/metric/foo"), equalTo(RequestPool.QUERY));
+	}
+
+	@Test
+	public void test_getRequestPool_metadata()
+	{
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/metricnames"), equalTo(RequestPool.METADATA));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/metadata/service"), equalTo(RequestPool.METADATA));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/rollups"), equalTo(RequestPool.METADATA));
+	}
+
+	@Test
+	public void test_getRequestPool_healthRunsOnJettyThread()
+	{
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/health/check"), equalTo(RequestPool.NONE));
+		assertThat(RequestDispatchFilter.getRequestPool("/api/v1/version"), equalTo(RequestPool.NONE));
+		assertThat(RequestDispatchFilter.getRequestPool("/index.html"), equalTo(RequestPool.NONE));
+	}
+}
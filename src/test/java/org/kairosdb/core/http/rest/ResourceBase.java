@@ -29,6 +29,7 @@ import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.plugin.Aggregator;
 import org.kairosdb.plugin.GroupBy;
 import org.kairosdb.testing.Client;
+import org.kairosdb.util.HistogramRegistry;
 import org.kairosdb.util.SimpleStatsReporter;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
@@ -88,6 +89,7 @@ public abstract class ResourceBase
                 bind(KairosDataPointFactory.class).to(GuiceKairosDataPointFactory.class);
                 bind(QueryPluginFactory.class).to(TestQueryPluginFactory.class);
                 bind(SimpleStatsReporter.class);
+                bind(HistogramRegistry.class).in(Singleton.class);
                 bind(String.class).annotatedWith(Names.named("kairosdb.server.type")).toInstance("ALL");
 
                 KairosRootConfig props = new KairosRootConfig();
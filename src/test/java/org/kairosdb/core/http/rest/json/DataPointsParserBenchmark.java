@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http.rest.json;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import org.kairosdb.core.KairosDataPointFactory;
+import org.kairosdb.core.KairosRootConfig;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.eventbus.EventBusConfiguration;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ Parses /datapoints payloads the way MetricsResource does, plain and gzip.
+ The shapes are many metrics with a single data point like a collector
+ flushing gauges, and a few metrics with many data points like a backfill.
+ Events are posted to an event bus with no subscribers.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.http.rest.json.DataPointsParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataPointsParserBenchmark
+{
+	//metrics x data points per metric
+	@Param({"1000x1", "10x1000"})
+	public String shape;
+
+	@Param({"false", "true"})
+	public boolean gzip;
+
+	private final KairosDataPointFactory m_dataPointFactory = new TestDataPointFactory();
+	private final Gson m_gson = new Gson();
+	private Publisher<DataPointEvent> m_publisher;
+	private byte[] m_payload;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		FilterEventBus eventBus = new FilterEventBus(new EventBusConfiguration(new KairosRootConfig()));
+		m_publisher = eventBus.createPublisher(DataPointEvent.class);
+
+		String[] split = shape.split("x");
+		int metricCount = Integer.parseInt(split[0]);
+		int pointsPerMetric = Integer.parseInt(split[1]);
+		Random random = new Random(42);
+		long start = 1500000000000L;
+
+		StringBuilder json = new StringBuilder("[");
+		for (int metric = 0; metric < metricCount; metric++)
+		{
+			if (metric != 0)
+				json.append(',');
+
+			json.append("{\"name\":\"benchmark.metric").append(metric % 50)
+					.append("\",\"tags\":{\"host\":\"server").append(metric)
+					.append("\",\"dc\":\"dc").append(metric % 3).append("\"},\"datapoints\":[");
+
+			for (int I = 0; I < pointsPerMetric; I++)
+			{
+				if (I != 0)
+					json.append(',');
+
+				json.append('[').append(start + I * 10000L).append(',');
+				if (I % 2 == 0)
+					json.append(random.nextInt(100000));
+				else
+					json.append(random.nextInt(1000000) / 100.0);
+				json.append(']');
+			}
+
+			json.append("]}");
+		}
+		json.append(']');
+
+		m_payload = json.toString().getBytes(Charsets.UTF_8);
+		if (gzip)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(bytes))
+			{
+				gzipOutputStream.write(m_payload);
+			}
+			m_payload = bytes.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public ValidationErrors parse() throws IOException, DatastoreException
+	{
+		InputStream inputStream = new ByteArrayInputStream(m_payload);
+		if (gzip)
+			inputStream = new GZIPInputStream(inputStream);
+
+		DataPointsParser parser = new DataPointsParser(m_publisher,
+				new InputStreamReader(inputStream, "UTF-8"), m_gson, m_dataPointFactory);
+
+		return parser.parse();
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(DataPointsParserBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -93,6 +93,34 @@ public class QueryParserTest
 		assertThat(queryMetric.getGroupBys().size(), equalTo(2));
 	}
 
+	@Test
+	public void test_maxPoints() throws Exception
+	{
+		String json = Resources.toString(Resources.getResource("query-metric-max-points.json"), Charsets.UTF_8);
+
+		List<QueryMetric> results = parser.parseQueryMetric(json).getQueryMetrics();
+
+		assertThat(results.size(), equalTo(2));
+
+		//No aggregator so m4 is added, four points per range
+		List<Aggregator> aggregators = results.get(0).getAggregators();
+		assertThat(aggregators.size(), equalTo(1));
+		M4Aggregator m4 = (M4Aggregator) aggregators.get(0);
+		assertThat(m4.isAlignSampling(), equalTo(true));
+		assertThat(m4.getSampling().getValue(), equalTo(1L));
+		assertThat(m4.getSampling().getUnit(), equalTo(TimeUnit.WEEKS));
+
+		//Only the aggregator without a sampling gets one picked
+		aggregators = results.get(1).getAggregators();
+		assertThat(aggregators.size(), equalTo(2));
+		RangeAggregator avg = (RangeAggregator) aggregators.get(0);
+		assertThat(avg.getSampling().getValue(), equalTo(12L));
+		assertThat(avg.getSampling().getUnit(), equalTo(TimeUnit.HOURS));
+		RangeAggregator max = (RangeAggregator) aggregators.get(1);
+		assertThat(max.getSampling().getValue(), equalTo(1L));
+		assertThat(max.getSampling().getUnit(), equalTo(TimeUnit.HOURS));
+	}
+
 	@Test
 	public void test_underscoreConverter()
 	{
@@ -0,0 +1,60 @@
+package org.kairosdb.core.http.rest.json;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RefreshTokenTest
+{
+	private static JsonObject parse(String json)
+	{
+		return new JsonParser().parse(json).getAsJsonObject();
+	}
+
+	@Test
+	public void test_encode_decode()
+	{
+		RefreshToken token = new RefreshToken(-1234567890123L);
+		token.addQuery(1000L, 2000L);
+		token.addQuery(3000L, Long.MAX_VALUE);
+
+		RefreshToken decoded = RefreshToken.decode(token.encode());
+
+		assertThat(decoded.getQueryHash(), equalTo(-1234567890123L));
+		assertThat(decoded.getQueryCount(), equalTo(2));
+		assertThat(decoded.getStartTime(0), equalTo(1000L));
+		assertThat(decoded.getEndTime(0), equalTo(2000L));
+		assertThat(decoded.getStartTime(1), equalTo(3000L));
+		assertThat(decoded.getEndTime(1), equalTo(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void test_decode_invalid_null()
+	{
+		RefreshToken token = new RefreshToken(42L);
+		token.addQuery(1000L, 2000L);
+		String encoded = token.encode();
+
+		assertThat(RefreshToken.decode(""), nullValue());
+		assertThat(RefreshToken.decode("not a token!"), nullValue());
+		assertThat(RefreshToken.decode(encoded.substring(0, encoded.length() - 4)), nullValue());
+		assertThat(RefreshToken.decode(encoded + "AAAA"), nullValue());
+	}
+
+	@Test
+	public void test_hashQuery_ignoresTimesAndToken()
+	{
+		long hash = RefreshToken.hashQuery(parse("{\"start_relative\":{\"value\":1,\"unit\":\"days\"}," +
+				"\"refresh_token\":\"\",\"metrics\":[{\"name\":\"cpu\"}]}"));
+
+		assertThat(RefreshToken.hashQuery(parse("{\"start_absolute\":1000,\"end_absolute\":2000," +
+				"\"refresh_token\":\"abc\",\"metrics\":[{\"name\":\"cpu\"}]}")), equalTo(hash));
+		assertThat(RefreshToken.hashQuery(parse("{\"start_relative\":{\"value\":1,\"unit\":\"days\"}," +
+				"\"refresh_token\":\"\",\"metrics\":[{\"name\":\"memory\"}]}")), not(equalTo(hash)));
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.queue;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.TestDataPointFactory;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.events.DataPointEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ Serializes events the way the file queue stores them and reads them back.
+ Scores are per event.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.queue.DataPointEventSerializerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataPointEventSerializerBenchmark
+{
+	private static final int EVENT_COUNT = 1000;
+
+	@Param({"1", "10"})
+	public int tagCount;
+
+	private final DataPointEventSerializer m_serializer = new DataPointEventSerializer(new TestDataPointFactory());
+	private DataPointEvent[] m_events;
+	private byte[][] m_serialized;
+
+	@Setup
+	public void setup()
+	{
+		long start = 1500000000000L;
+		m_events = new DataPointEvent[EVENT_COUNT];
+		m_serialized = new byte[EVENT_COUNT][];
+
+		for (int I = 0; I < EVENT_COUNT; I++)
+		{
+			ImmutableSortedMap.Builder<String, String> tags = ImmutableSortedMap.naturalOrder();
+			tags.put("host", "server" + I);
+			for (int tag = 1; tag < tagCount; tag++)
+				tags.put("tag" + tag, "value" + (I % (tag + 2)));
+
+			long timestamp = start + I * 10000L;
+			m_events[I] = new DataPointEvent("benchmark.metric" + (I % 50), tags.build(),
+					(I % 2 == 0) ? new LongDataPoint(timestamp, I) : new DoubleDataPoint(timestamp, I / 100.0));
+			m_serialized[I] = m_serializer.serializeEvent(m_events[I]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENT_COUNT)
+	public void serialize(Blackhole blackhole)
+	{
+		for (DataPointEvent event : m_events)
+			blackhole.consume(m_serializer.serializeEvent(event));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENT_COUNT)
+	public void deserialize(Blackhole blackhole)
+	{
+		for (byte[] bytes : m_serialized)
+			blackhole.consume(m_serializer.deserializeEvent(bytes));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENT_COUNT)
+	public void roundTrip(Blackhole blackhole)
+	{
+		for (DataPointEvent event : m_events)
+			blackhole.consume(m_serializer.deserializeEvent(m_serializer.serializeEvent(event)));
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(DataPointEventSerializerBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,85 @@
+package org.kairosdb.core.queue;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.events.DataPointEvent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PartitionBatcherTest
+{
+	private static final ImmutableSortedMap<String, String> HOST_A = ImmutableSortedMap.of("host", "A");
+	private static final ImmutableSortedMap<String, String> HOST_B = ImmutableSortedMap.of("host", "B");
+
+	private static DataPointEvent event(String metric, ImmutableSortedMap<String, String> tags,
+			long timestamp, long value)
+	{
+		return new DataPointEvent(metric, tags, new LongDataPoint(timestamp, value));
+	}
+
+	@Test
+	public void test_emptyAndSingle()
+	{
+		List<DataPointEvent> empty = Collections.emptyList();
+		assertThat(PartitionBatcher.groupBySeries(empty), sameInstance(empty));
+
+		List<DataPointEvent> single = Collections.singletonList(event("m1", HOST_A, 1, 1));
+		assertThat(PartitionBatcher.groupBySeries(single), sameInstance(single));
+	}
+
+	@Test
+	public void test_allDifferentSeries_unchanged()
+	{
+		List<DataPointEvent> events = Arrays.asList(
+				event("m1", HOST_A, 1, 1),
+				event("m1", HOST_B, 1, 1),
+				event("m2", HOST_A, 1, 1));
+
+		assertThat(PartitionBatcher.groupBySeries(events), sameInstance(events));
+	}
+
+	@Test
+	public void test_groupsSeriesInFirstSeenOrder()
+	{
+		DataPointEvent a1 = event("m1", HOST_A, 1, 1);
+		DataPointEvent b1 = event("m1", HOST_B, 1, 2);
+		DataPointEvent a2 = event("m1", HOST_A, 2, 3);
+		DataPointEvent c1 = event("m2", HOST_A, 1, 4);
+		DataPointEvent b2 = event("m1", HOST_B, 2, 5);
+
+		List<DataPointEvent> grouped = PartitionBatcher.groupBySeries(Arrays.asList(a1, b1, a2, c1, b2));
+
+		assertThat(grouped, equalTo(Arrays.asList(a1, a2, b1, b2, c1)));
+	}
+
+	@Test
+	public void test_mergesWritesToSameCell()
+	{
+		DataPointEvent first = event("m1", HOST_A, 1, 1);
+		DataPointEvent other = event("m1", HOST_A, 2, 2);
+		DataPointEvent last = event("m1", HOST_A, 1, 3);
+
+		List<DataPointEvent> grouped = PartitionBatcher.groupBySeries(Arrays.asList(first, other, last));
+
+		assertThat(grouped, equalTo(Arrays.asList(other, last)));
+	}
+
+	@Test
+	public void test_differentDataTypesNotMerged()
+	{
+		DataPointEvent longEvent = event("m1", HOST_A, 1, 1);
+		DataPointEvent doubleEvent = new DataPointEvent("m1", HOST_A, new DoubleDataPoint(1, 1.5));
+
+		List<DataPointEvent> grouped = PartitionBatcher.groupBySeries(Arrays.asList(longEvent, doubleEvent));
+
+		assertThat(grouped, equalTo(Arrays.asList(longEvent, doubleEvent)));
+	}
+}
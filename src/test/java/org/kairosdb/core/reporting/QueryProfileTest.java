@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.reporting;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class QueryProfileTest
+{
+	@After
+	public void tearDown()
+	{
+		QueryProfile.setCurrent(null);
+	}
+
+	@Test
+	public void test_current()
+	{
+		QueryProfile profile = new QueryProfile("metric", false);
+		assertThat(QueryProfile.current(), nullValue());
+
+		QueryProfile.setCurrent(profile);
+		assertThat(QueryProfile.current(), equalTo(profile));
+
+		QueryProfile.setCurrent(null);
+		assertThat(QueryProfile.current(), nullValue());
+	}
+
+	@Test
+	public void test_current_otherThread() throws InterruptedException
+	{
+		QueryProfile.setCurrent(new QueryProfile("metric", false));
+
+		final QueryProfile[] otherThreadProfile = new QueryProfile[1];
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				otherThreadProfile[0] = QueryProfile.current();
+			}
+		});
+		thread.start();
+		thread.join();
+
+		assertThat(otherThreadProfile[0], nullValue());
+	}
+
+	@Test
+	public void test_counters()
+	{
+		QueryProfile profile = new QueryProfile("metric", false);
+
+		profile.addTime(QueryProfile.Phase.DECODE, 5);
+		profile.addTime(QueryProfile.Phase.DECODE, 7);
+		profile.addDataPoints(QueryProfile.Phase.DECODE, 100);
+		profile.addBytes(QueryProfile.Phase.DECODE, 1200);
+		profile.addRows(QueryProfile.Phase.DECODE, 2);
+		profile.addRoundTrips(QueryProfile.Phase.CQL_FETCH, 2);
+
+		assertThat(profile.getTime(QueryProfile.Phase.DECODE), equalTo(12L));
+		assertThat(profile.getDataPoints(QueryProfile.Phase.DECODE), equalTo(100L));
+		assertThat(profile.getBytes(QueryProfile.Phase.DECODE), equalTo(1200L));
+		assertThat(profile.getRows(QueryProfile.Phase.DECODE), equalTo(2L));
+		assertThat(profile.getRoundTrips(QueryProfile.Phase.CQL_FETCH), equalTo(2L));
+		assertThat(profile.getRoundTrips(QueryProfile.Phase.DECODE), equalTo(0L));
+	}
+
+	@Test
+	public void test_finish() throws InterruptedException
+	{
+		QueryProfile profile = new QueryProfile("metric", false);
+		profile.finish();
+		long total = profile.getTotalTimeMillis();
+
+		Thread.sleep(20);
+		profile.finish();
+
+		assertThat(profile.getTotalTimeMillis(), equalTo(total));
+	}
+
+	@Test
+	public void test_toJson()
+	{
+		QueryProfile profile = new QueryProfile("metric", true);
+		profile.addTime(QueryProfile.Phase.INDEX_LOOKUP, TimeUnit.MILLISECONDS.toNanos(15));
+		profile.addRows(QueryProfile.Phase.INDEX_LOOKUP, 3);
+		profile.finish();
+
+		JsonObject json = (JsonObject) new JsonParser().parse(profile.toJson());
+		JsonObject phases = json.getAsJsonObject("phases");
+
+		assertThat(phases.entrySet().size(), equalTo(QueryProfile.Phase.values().length));
+		assertThat(phases.getAsJsonObject("index_lookup").get("time_ms").getAsLong(), equalTo(15L));
+		assertThat(phases.getAsJsonObject("index_lookup").get("rows").getAsLong(), equalTo(3L));
+		assertThat(phases.getAsJsonObject("format").get("rows").getAsLong(), equalTo(0L));
+		assertThat(json.get("total_ms").getAsLong(), equalTo(profile.getTotalTimeMillis()));
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.kairosdb.core.KairosRootConfig;
+import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
+import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.eventbus.EventBusConfiguration;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.util.ValidationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Measures the telnet ingest path after framing: splitting a line into words
+ and turning the words into a data point event with PutCommand.  Scores are
+ per line.  Events are posted to an event bus with no subscribers.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.core.telnet.PutCommandBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutCommandBenchmark
+{
+	private static final int LINE_COUNT = 1000;
+
+	private String[] m_lines;
+	private PutCommand m_command;
+
+	@Setup
+	public void setup()
+	{
+		FilterEventBus eventBus = new FilterEventBus(new EventBusConfiguration(new KairosRootConfig()));
+		m_command = new PutCommand(eventBus, "benchmark", new LongDataPointFactoryImpl(),
+				new DoubleDataPointFactoryImpl());
+
+		Random random = new Random(42);
+		long start = 1500000000000L;
+		m_lines = new String[LINE_COUNT];
+		for (int I = 0; I < LINE_COUNT; I++)
+		{
+			String value = (I % 2 == 0) ? Integer.toString(random.nextInt(100000)) :
+					Double.toString(random.nextInt(1000000) / 100.0);
+
+			m_lines[I] = "put benchmark.metric" + (I % 50) + " " + (start + I * 10000L) + " " + value +
+					" host=server" + I + " dc=dc" + (I % 3) + " service=api\n";
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINE_COUNT)
+	public void splitWords(Blackhole blackhole)
+	{
+		for (String line : m_lines)
+			blackhole.consume(WordSplitter.splitString(line));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINE_COUNT)
+	public void splitAndPut() throws DatastoreException, ValidationException
+	{
+		for (String line : m_lines)
+		{
+			List<String> words = WordSplitter.splitString(line);
+			m_command.execute(null, words);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(PutCommandBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedId;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.KairosRootConfig;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.QueryResultCache;
+import org.kairosdb.core.queue.PartitionBatcher;
+import org.kairosdb.eventbus.EventBusConfiguration;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.events.DataPointEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ Turns a batch of events into CQL statements with BatchHandler and CQLBatch.
+ The ClusterConnection is a stub that returns completed futures, so this
+ measures row key building, caching and statement binding without a
+ cluster.  newRowKeys starts every batch with empty row key and metric name
+ caches so row key index writes are included, otherwise the caches are
+ warmed up first like a node that has been running for a while.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.datastore.cassandra.BatchHandlerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchHandlerBenchmark
+{
+	//number of series x data points per series in a batch
+	@Param({"200x1", "20x10"})
+	public String shape;
+
+	@Param({"false", "true"})
+	public boolean newRowKeys;
+
+	@Param({"false", "true"})
+	public boolean groupBySeries;
+
+	private List<DataPointEvent> m_events;
+	private CassandraConfiguration m_configuration;
+	private FilterEventBus m_eventBus;
+	private RowKeyFingerprintSet m_rowKeySet;
+	private StringDictionary m_stringDictionary;
+	private QueryResultCache m_resultCache;
+	private CassandraModule.CQLBatchFactory m_cqlBatchFactory;
+	private DataCache<DataPointsRowKey> m_rowKeyCache;
+	private DataCache<String> m_metricNameCache;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		String[] split = shape.split("x");
+		int seriesCount = Integer.parseInt(split[0]);
+		int pointsPerSeries = Integer.parseInt(split[1]);
+		Random random = new Random(42);
+		long start = 1500000000000L;
+
+		//Events arrive interleaved, one data point for each series at a time
+		m_events = new ArrayList<>();
+		for (int I = 0; I < pointsPerSeries; I++)
+		{
+			for (int series = 0; series < seriesCount; series++)
+			{
+				ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of(
+						"host", "server" + series, "dc", "dc" + (series % 3));
+				long timestamp = start + I * 10000L;
+				m_events.add(new DataPointEvent("benchmark.metric" + (series % 10), tags,
+						(series % 2 == 0) ? new LongDataPoint(timestamp, random.nextInt(100000)) :
+								new DoubleDataPoint(timestamp, random.nextDouble() * 1000)));
+			}
+		}
+
+		KairosRootConfig config = new KairosRootConfig();
+		config.load(ImmutableMap.of("kairosdb.datastore.cassandra.write_cluster.keyspace", "kairosdb"));
+		m_configuration = new CassandraConfiguration(config);
+
+		m_eventBus = new FilterEventBus(new EventBusConfiguration(new KairosRootConfig()));
+		m_rowKeySet = new RowKeyFingerprintSet(false, 0, 64, 0);
+		m_stringDictionary = new StringDictionary();
+		m_resultCache = new QueryResultCache("hostname");
+
+		ClusterConnection connection = createStubConnection();
+		BatchStats batchStats = new BatchStats();
+		m_cqlBatchFactory = () -> new CQLBatch(ConsistencyLevel.QUORUM, connection, batchStats,
+				m_stringDictionary);
+
+		m_rowKeyCache = new DataCache<>(1024);
+		m_metricNameCache = new DataCache<>(1024);
+		writeBatch();
+	}
+
+	/**
+	 Prepared statements are mocked with the bind variable types of the real
+	 statements so BoundStatement encodes values the same way.
+	 */
+	private static ClusterConnection createStubConnection() throws Exception
+	{
+		ClusterConnection connection = mock(ClusterConnection.class);
+		connection.psDataPointsInsert = preparedStatement(DataType.blob(), DataType.blob(), DataType.blob(),
+				DataType.cint(), DataType.bigint());
+		connection.psDataPointsDelete = preparedStatement(DataType.blob(), DataType.blob());
+		connection.psRowKeyTimeInsert = preparedStatement(DataType.text(), DataType.timestamp(), DataType.cint());
+		connection.psRowKeyInsert = preparedStatement(DataType.text(), DataType.timestamp(), DataType.text(),
+				DataType.map(DataType.text(), DataType.text()), DataType.cint());
+		connection.psStringIndexInsert = preparedStatement(DataType.blob(), DataType.text());
+
+		ResultSetFuture future = mock(ResultSetFuture.class);
+		when(connection.executeAsync(any(Statement.class))).thenReturn(future);
+
+		return connection;
+	}
+
+	private static PreparedStatement preparedStatement(DataType... types) throws Exception
+	{
+		ColumnDefinitions variables = mock(ColumnDefinitions.class);
+		when(variables.size()).thenReturn(types.length);
+		for (int I = 0; I < types.length; I++)
+			when(variables.getType(I)).thenReturn(types[I]);
+
+		//The protocol version is only set by the driver when preparing
+		PreparedId preparedId = mock(PreparedId.class);
+		Field protocolVersion = PreparedId.class.getDeclaredField("protocolVersion");
+		protocolVersion.setAccessible(true);
+		protocolVersion.set(preparedId, ProtocolVersion.NEWEST_SUPPORTED);
+
+		PreparedStatement statement = mock(PreparedStatement.class);
+		when(statement.getVariables()).thenReturn(variables);
+		when(statement.getPreparedId()).thenReturn(preparedId);
+		when(statement.getCodecRegistry()).thenReturn(CodecRegistry.DEFAULT_INSTANCE);
+
+		return statement;
+	}
+
+	private void writeBatch() throws Exception
+	{
+		List<DataPointEvent> events = m_events;
+		if (groupBySeries)
+			events = PartitionBatcher.groupBySeries(events);
+
+		DataCache<DataPointsRowKey> rowKeyCache = m_rowKeyCache;
+		DataCache<String> metricNameCache = m_metricNameCache;
+		if (newRowKeys)
+		{
+			rowKeyCache = new DataCache<>(1024);
+			metricNameCache = new DataCache<>(1024);
+		}
+
+		BatchHandler batchHandler = new BatchHandler(events, () -> {}, m_configuration,
+				rowKeyCache, metricNameCache, m_rowKeySet, m_eventBus, m_cqlBatchFactory, m_stringDictionary,
+				m_resultCache);
+
+		batchHandler.retryCall();
+	}
+
+	@Benchmark
+	public void loadAndSubmit() throws Exception
+	{
+		writeBatch();
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(BatchHandlerBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
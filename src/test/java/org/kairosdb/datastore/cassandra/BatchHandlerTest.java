@@ -0,0 +1,104 @@
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosRootConfig;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.QueryResultCache;
+import org.kairosdb.eventbus.EventBusConfiguration;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.events.DataPointEvent;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_WIDTH;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.calculateRowTime;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class BatchHandlerTest
+{
+	private CassandraConfiguration m_configuration;
+	private FilterEventBus m_eventBus;
+	private RowKeyFingerprintSet m_rowKeySet;
+	private StringDictionary m_stringDictionary;
+	private CQLBatch m_batch;
+
+	private DataPointEvent m_event;
+	private DataPointsRowKey m_rowKey;
+	private int m_rowKeyTtl;
+
+	@Before
+	public void setup() throws Exception
+	{
+		KairosRootConfig config = new KairosRootConfig();
+		config.load(ImmutableMap.of("kairosdb.datastore.cassandra.write_cluster.keyspace", "kairosdb"));
+		m_configuration = new CassandraConfiguration(config);
+
+		m_eventBus = new FilterEventBus(new EventBusConfiguration(new KairosRootConfig()));
+		m_rowKeySet = new RowKeyFingerprintSet(true, 1024 * 1024, 64, 0);
+		m_stringDictionary = new StringDictionary();
+		m_batch = mock(CQLBatch.class);
+
+		long timestamp = System.currentTimeMillis();
+		ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "server1");
+		m_event = new DataPointEvent("metric", tags, new LongDataPoint(timestamp, 42));
+		m_rowKey = new DataPointsRowKey("metric", m_configuration.getWriteCluster().getClusterName(),
+				calculateRowTime(timestamp), m_event.getDataPoint().getDataStoreDataType(), tags);
+
+		int ttl = m_configuration.getDatapointTtl();
+		m_rowKeyTtl = (ttl == 0) ? 0 : ttl + ((int) (ROW_WIDTH / 1000));
+	}
+
+	private void writeEvent(DataCache<DataPointsRowKey> rowKeyCache) throws Exception
+	{
+		BatchHandler batchHandler = new BatchHandler(Collections.singletonList(m_event), () -> {},
+				m_configuration, rowKeyCache, new DataCache<>(1024), m_rowKeySet, m_eventBus,
+				() -> m_batch, m_stringDictionary, new QueryResultCache("hostname"));
+
+		batchHandler.retryCall();
+	}
+
+	@Test
+	public void test_newRowKey_writtenAndRemembered() throws Exception
+	{
+		writeEvent(new DataCache<>(1024));
+
+		verify(m_batch).addRowKey(eq("metric"), eq(m_rowKey), anyInt());
+		verify(m_batch).addDataPoint(eq(m_rowKey), anyInt(), any(DataPoint.class), anyInt());
+		assertThat(m_rowKeySet.contains(m_rowKey, m_rowKeyTtl), equalTo(true));
+	}
+
+	@Test
+	public void test_rowKeyCacheMiss_fingerprintSetHit_writesDataPoint() throws Exception
+	{
+		m_rowKeySet.add(m_rowKey, m_rowKeyTtl);
+
+		writeEvent(new DataCache<>(1024));
+
+		verify(m_batch, never()).addRowKey(anyString(), any(DataPointsRowKey.class), anyInt());
+		verify(m_batch).addDataPoint(eq(m_rowKey), anyInt(), any(DataPoint.class), anyInt());
+	}
+
+	@Test
+	public void test_rowKeyCacheHit_writesDataPoint() throws Exception
+	{
+		DataCache<DataPointsRowKey> rowKeyCache = new DataCache<>(1024);
+		rowKeyCache.cacheItem(m_rowKey);
+
+		writeEvent(rowKeyCache);
+
+		verify(m_batch, never()).addRowKey(anyString(), any(DataPointsRowKey.class), anyInt());
+		verify(m_batch).addDataPoint(eq(m_rowKey), anyInt(), any(DataPoint.class), anyInt());
+	}
+}
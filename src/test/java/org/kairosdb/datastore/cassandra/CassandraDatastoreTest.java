@@ -256,13 +256,17 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 		DataCache<DataPointsRowKey> rowKeyCache = new DataCache<>(1024);
 		DataCache<String> metricNameCache = new DataCache<>(1024);
 
+		RowKeyFingerprintSet rowKeySet = new RowKeyFingerprintSet(false, 0, 64, 0);
+		QueryResultCache resultCache = new QueryResultCache("hostname");
+
+		StringDictionary stringDictionary = new StringDictionary();
 		CassandraModule.CQLBatchFactory cqlBatchFactory = new CassandraModule.CQLBatchFactory()
 		{
 			@Override
 			public CQLBatch create()
 			{
 				return new CQLBatch(ConsistencyLevel.QUORUM, m_clusterConnection,
-						batchStats, client.getWriteLoadBalancingPolicy());
+						batchStats, stringDictionary);
 			}
 		};
 
@@ -280,8 +284,8 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 					public BatchHandler create(List<DataPointEvent> events, EventCompletionCallBack callBack, boolean fullBatch)
 					{
 						return new BatchHandler(events, callBack,
-								configuration, rowKeyCache, metricNameCache,
-								s_eventBus, cqlBatchFactory);
+								configuration, rowKeyCache, metricNameCache, rowKeySet,
+								s_eventBus, cqlBatchFactory, stringDictionary, resultCache);
 					}
 				},
 				new CassandraModule.DeleteBatchHandlerFactory()
@@ -304,7 +308,8 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 						return new CQLFilteredRowKeyIterator(cluster, metricName,
 								startTime, endTime, filterTags, "");
 					}
-				});
+				},
+				new SeriesCatalog());
 
 		DatastoreTestHelper.s_datastore = new KairosDatastore(s_datastore,
 				new QueryQueuingManager(1, "hostname"),
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Serializes row keys for writes and parses them back as the row key index is
+ read for a query.  A row key keeps its serialized buffer, so serialize
+ creates a new key each time like BatchHandler does.  Scores are per key.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.datastore.cassandra.DataPointsRowKeySerializerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataPointsRowKeySerializerBenchmark
+{
+	private static final int KEY_COUNT = 1000;
+	private static final String CLUSTER_NAME = "benchmark";
+
+	@Param({"1", "10"})
+	public int tagCount;
+
+	@Param({"false", "true"})
+	public boolean poolStrings;
+
+	private DataPointsRowKeySerializer m_serializer;
+	private String[] m_metricNames;
+	private ImmutableSortedMap<String, String>[] m_tags;
+	private ByteBuffer[] m_serialized;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup()
+	{
+		m_serializer = new DataPointsRowKeySerializer(poolStrings);
+		m_metricNames = new String[KEY_COUNT];
+		m_tags = new ImmutableSortedMap[KEY_COUNT];
+		m_serialized = new ByteBuffer[KEY_COUNT];
+
+		for (int I = 0; I < KEY_COUNT; I++)
+		{
+			ImmutableSortedMap.Builder<String, String> tags = ImmutableSortedMap.naturalOrder();
+			tags.put("host", "server" + I);
+			for (int tag = 1; tag < tagCount; tag++)
+				tags.put("tag" + tag, "value" + (I % (tag + 2)));
+
+			m_metricNames[I] = "benchmark.metric" + (I % 50);
+			m_tags[I] = tags.build();
+			m_serialized[I] = m_serializer.toByteBuffer(createKey(I));
+		}
+	}
+
+	private DataPointsRowKey createKey(int index)
+	{
+		return new DataPointsRowKey(m_metricNames[index], CLUSTER_NAME, 1500000000000L,
+				"kairos_long", m_tags[index]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(KEY_COUNT)
+	public void serialize(Blackhole blackhole)
+	{
+		for (int I = 0; I < KEY_COUNT; I++)
+			blackhole.consume(m_serializer.toByteBuffer(createKey(I)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(KEY_COUNT)
+	public void deserialize(Blackhole blackhole)
+	{
+		for (ByteBuffer buffer : m_serialized)
+			blackhole.consume(m_serializer.fromByteBuffer(buffer.duplicate(), CLUSTER_NAME));
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(DataPointsRowKeySerializerBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
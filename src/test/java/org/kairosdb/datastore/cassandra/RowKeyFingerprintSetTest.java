@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeMap;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_WIDTH;
+
+public class RowKeyFingerprintSetTest
+{
+	private static final long NOW = ROW_WIDTH * 100 + 1000;
+	private static final long CURRENT_ROW = ROW_WIDTH * 100;
+	private static final long PREVIOUS_ROW = ROW_WIDTH * 99;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void test_disabled()
+	{
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(false, 1024, 64, 0);
+		set.add(rowKey("host1", CURRENT_ROW), 0, NOW);
+
+		assertThat(set.contains(rowKey("host1", CURRENT_ROW), 0, NOW), equalTo(false));
+		assertThat(set.size(), equalTo(0L));
+	}
+
+	@Test
+	public void test_addAndContains()
+	{
+		for (int bits : new int[]{32, 64})
+		{
+			RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 1024 * 1024, bits, 0);
+			for (int I = 0; I < 1000; I++)
+				set.add(rowKey("host" + I, CURRENT_ROW), 0, NOW);
+
+			for (int I = 0; I < 1000; I++)
+			{
+				assertThat(set.contains(rowKey("host" + I, CURRENT_ROW), 0, NOW), equalTo(true));
+				assertThat(set.contains(rowKey("other" + I, CURRENT_ROW), 0, NOW), equalTo(false));
+			}
+
+			//Adding again doesn't add a new fingerprint
+			set.add(rowKey("host1", CURRENT_ROW), 0, NOW);
+			assertThat(set.size(), equalTo(1000L));
+		}
+	}
+
+	@Test
+	public void test_keyFields()
+	{
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 1024 * 1024, 64, 0);
+		set.add(rowKey("host1", CURRENT_ROW), 0, NOW);
+
+		assertThat(set.contains(new DataPointsRowKey("metric2", "cluster", CURRENT_ROW, "kairos_long",
+				tags("host1")), 0, NOW), equalTo(false));
+		assertThat(set.contains(new DataPointsRowKey("metric", "cluster", CURRENT_ROW, "kairos_double",
+				tags("host1")), 0, NOW), equalTo(false));
+		assertThat(set.contains(new DataPointsRowKey("metric", "cluster", CURRENT_ROW, "kairos_long",
+				new TreeMap<String, String>()), 0, NOW), equalTo(false));
+	}
+
+	@Test
+	public void test_onlyCurrentAndPreviousRows()
+	{
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 1024 * 1024, 64, 0);
+		set.add(rowKey("host1", CURRENT_ROW), 0, NOW);
+		set.add(rowKey("host1", PREVIOUS_ROW), 0, NOW);
+		set.add(rowKey("host1", PREVIOUS_ROW - ROW_WIDTH), 0, NOW);
+		set.add(rowKey("host1", CURRENT_ROW + ROW_WIDTH), 0, NOW);
+
+		assertThat(set.contains(rowKey("host1", CURRENT_ROW), 0, NOW), equalTo(true));
+		assertThat(set.contains(rowKey("host1", PREVIOUS_ROW), 0, NOW), equalTo(true));
+		assertThat(set.contains(rowKey("host1", PREVIOUS_ROW - ROW_WIDTH), 0, NOW), equalTo(false));
+		assertThat(set.contains(rowKey("host1", CURRENT_ROW + ROW_WIDTH), 0, NOW), equalTo(false));
+		assertThat(set.size(), equalTo(2L));
+
+		//Moving into the next row drops the oldest
+		long later = NOW + ROW_WIDTH;
+		assertThat(set.contains(rowKey("host1", CURRENT_ROW), 0, later), equalTo(true));
+		assertThat(set.contains(rowKey("host1", PREVIOUS_ROW), 0, later), equalTo(false));
+		assertThat(set.size(), equalTo(1L));
+	}
+
+	@Test
+	public void test_shortTtlNotTracked()
+	{
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 1024 * 1024, 64, 0);
+		int shortTtl = (int) (ROW_WIDTH / 1000) + 3600;
+		int longTtl = (int) (ROW_WIDTH * 2 / 1000);
+
+		set.add(rowKey("host1", CURRENT_ROW), shortTtl, NOW);
+		set.add(rowKey("host2", CURRENT_ROW), longTtl, NOW);
+
+		assertThat(set.contains(rowKey("host1", CURRENT_ROW), shortTtl, NOW), equalTo(false));
+		assertThat(set.contains(rowKey("host2", CURRENT_ROW), longTtl, NOW), equalTo(true));
+	}
+
+	@Test
+	public void test_full()
+	{
+		//16 slots per row, 12 can be used
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 256, 64, 0);
+		for (int I = 0; I < 20; I++)
+			set.add(rowKey("host" + I, CURRENT_ROW), 0, NOW);
+
+		assertThat(set.size(), equalTo(12L));
+		assertThat(set.contains(rowKey("host19", CURRENT_ROW), 0, NOW), equalTo(false));
+	}
+
+	@Test
+	public void test_rewriteRatio()
+	{
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 1024 * 1024, 64, 1.0);
+		set.add(rowKey("host1", CURRENT_ROW), 0, NOW);
+
+		assertThat(set.contains(rowKey("host1", CURRENT_ROW), 0, NOW), equalTo(false));
+		assertThat(set.size(), equalTo(1L));
+	}
+
+	@Test
+	public void test_snapshot() throws IOException
+	{
+		File snapshot = new File(temporaryFolder.getRoot(), "row_key_set.snapshot");
+
+		RowKeyFingerprintSet set = new RowKeyFingerprintSet(true, 64 * 1024, 32, 0);
+		for (int I = 0; I < 100; I++)
+		{
+			set.add(rowKey("host" + I, CURRENT_ROW), 0, NOW);
+			set.add(rowKey("host" + I, PREVIOUS_ROW), 0, NOW);
+		}
+		set.writeSnapshot(snapshot);
+
+		RowKeyFingerprintSet loaded = new RowKeyFingerprintSet(true, 64 * 1024, 32, 0);
+		loaded.readSnapshot(snapshot, NOW);
+		assertThat(loaded.size(), equalTo(200L));
+		for (int I = 0; I < 100; I++)
+		{
+			assertThat(loaded.contains(rowKey("host" + I, CURRENT_ROW), 0, NOW), equalTo(true));
+			assertThat(loaded.contains(rowKey("host" + I, PREVIOUS_ROW), 0, NOW), equalTo(true));
+		}
+
+		//Only the rows that are still current are loaded
+		loaded = new RowKeyFingerprintSet(true, 64 * 1024, 32, 0);
+		loaded.readSnapshot(snapshot, NOW + ROW_WIDTH);
+		assertThat(loaded.size(), equalTo(100L));
+		assertThat(loaded.contains(rowKey("host1", CURRENT_ROW), 0, NOW + ROW_WIDTH), equalTo(true));
+
+		//Different settings ignore the snapshot
+		loaded = new RowKeyFingerprintSet(true, 128 * 1024, 32, 0);
+		loaded.readSnapshot(snapshot, NOW);
+		assertThat(loaded.size(), equalTo(0L));
+	}
+
+	private static DataPointsRowKey rowKey(String host, long rowTime)
+	{
+		return new DataPointsRowKey("metric", "cluster", rowTime, "kairos_long", tags(host));
+	}
+
+	private static TreeMap<String, String> tags(String host)
+	{
+		TreeMap<String, String> tags = new TreeMap<>();
+		tags.put("host", host);
+		return tags;
+	}
+}
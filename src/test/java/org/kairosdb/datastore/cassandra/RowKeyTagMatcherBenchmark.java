@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.SetMultimap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Filters the row keys of a high cardinality metric the way a query reads the
+ row key index.  parseAndFilter parses every key and then checks the tags,
+ as the index was read before RowKeyTagMatcher, matchInPlace only parses the
+ keys that match.  The filter selects 1% of the hosts.  Scores are per key
+ read from the index.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.datastore.cassandra.RowKeyTagMatcherBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowKeyTagMatcherBenchmark
+{
+	private static final int KEY_COUNT = 100000;
+	private static final String CLUSTER_NAME = "benchmark";
+
+	@Param({"3", "8"})
+	public int tagCount;
+
+	private DataPointsRowKeySerializer m_serializer;
+	private ByteBuffer[] m_serialized;
+	private SetMultimap<String, String> m_filterTags;
+	private RowKeyTagMatcher m_matcher;
+
+	@Setup
+	public void setup()
+	{
+		m_serializer = new DataPointsRowKeySerializer();
+		m_serialized = new ByteBuffer[KEY_COUNT];
+		m_filterTags = HashMultimap.create();
+
+		for (int I = 0; I < KEY_COUNT; I++)
+		{
+			ImmutableSortedMap.Builder<String, String> tags = ImmutableSortedMap.naturalOrder();
+			tags.put("host", "server" + I);
+			for (int tag = 1; tag < tagCount; tag++)
+				tags.put("tag" + tag, "value" + (I % (tag + 2)));
+
+			m_serialized[I] = m_serializer.toByteBuffer(new DataPointsRowKey("benchmark.metric",
+					CLUSTER_NAME, 1500000000000L, "kairos_long", tags.build()));
+
+			if (I % 100 == 0)
+				m_filterTags.put("host", "server" + I);
+		}
+
+		m_matcher = new RowKeyTagMatcher(m_filterTags, "");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(KEY_COUNT)
+	public void parseAndFilter(Blackhole blackhole)
+	{
+		for (ByteBuffer buffer : m_serialized)
+		{
+			DataPointsRowKey rowKey = m_serializer.fromByteBuffer(buffer.duplicate(), CLUSTER_NAME);
+
+			boolean matches = true;
+			Map<String, String> keyTags = rowKey.getTags();
+			for (String tag : m_filterTags.keySet())
+			{
+				Set<String> values = m_filterTags.get(tag);
+				String value = keyTags.get(tag);
+				if (value == null || !values.contains(value))
+				{
+					matches = false;
+					break;
+				}
+			}
+
+			if (matches)
+				blackhole.consume(rowKey);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(KEY_COUNT)
+	public void matchInPlace(Blackhole blackhole)
+	{
+		for (ByteBuffer buffer : m_serialized)
+		{
+			if (m_matcher.matchesRowKey(buffer))
+				blackhole.consume(m_serializer.fromByteBuffer(buffer.duplicate(), CLUSTER_NAME));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(RowKeyTagMatcherBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,125 @@
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.SetMultimap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowKeyTagMatcherTest
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final DataPointsRowKeySerializer SERIALIZER = new DataPointsRowKeySerializer();
+
+	private static RowKeyTagMatcher createMatcher(String... tags)
+	{
+		SetMultimap<String, String> filterTags = HashMultimap.create();
+		for (int I = 0; I < tags.length; I += 2)
+			filterTags.put(tags[I], tags[I + 1]);
+
+		return new RowKeyTagMatcher(filterTags, "regex:");
+	}
+
+	private static ByteBuffer serializeRowKey(String dataType, SortedMap<String, String> tags)
+	{
+		return SERIALIZER.toByteBuffer(new DataPointsRowKey("metric.name", "cluster", 1500000000000L, dataType, tags));
+	}
+
+	/**
+	 Tags map as serialized by the driver for the row_keys table
+	 */
+	private static ByteBuffer serializeTagMap(SortedMap<String, String> tags)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		buffer.putInt(tags.size());
+		for (Map.Entry<String, String> entry : tags.entrySet())
+		{
+			byte[] name = entry.getKey().getBytes(UTF_8);
+			byte[] value = entry.getValue().getBytes(UTF_8);
+			buffer.putInt(name.length).put(name);
+			buffer.putInt(value.length).put(value);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void assertMatches(RowKeyTagMatcher matcher, boolean expected, SortedMap<String, String> tags)
+	{
+		ByteBuffer rowKey = serializeRowKey("kairos_long", tags);
+		ByteBuffer legacyRowKey = serializeRowKey("", tags);
+		ByteBuffer tagMap = serializeTagMap(tags);
+
+		assertTrue(matcher.matchesRowKey(rowKey) == expected);
+		assertTrue(matcher.matchesRowKey(legacyRowKey) == expected);
+		assertTrue(matcher.matchesTagMap(tagMap) == expected);
+
+		//Matching doesn't move the buffers
+		assertTrue(SERIALIZER.fromByteBuffer(rowKey, "cluster").getTags().equals(tags));
+		assertTrue(tagMap.remaining() > 0);
+	}
+
+	@Test
+	public void test_noFilter_matchesAll()
+	{
+		RowKeyTagMatcher matcher = createMatcher();
+
+		assertTrue(matcher.isEmpty());
+		assertMatches(matcher, true, ImmutableSortedMap.of("host", "server1"));
+		assertMatches(matcher, true, ImmutableSortedMap.<String, String>of());
+	}
+
+	@Test
+	public void test_exactValues()
+	{
+		RowKeyTagMatcher matcher = createMatcher("host", "server1", "host", "server2", "dc", "east");
+
+		assertMatches(matcher, true, ImmutableSortedMap.of("dc", "east", "host", "server2", "rack", "r1"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("dc", "east", "host", "server3"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("dc", "west", "host", "server1"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("host", "server1"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("dc", "east", "host", "server10"));
+	}
+
+	@Test
+	public void test_escapedCharacters()
+	{
+		RowKeyTagMatcher matcher = createMatcher("url:path", "a=b:c", "k=v", "x");
+
+		assertMatches(matcher, true, ImmutableSortedMap.of("url:path", "a=b:c", "k=v", "x"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("url:path", "a=b", "k=v", "x"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("url", "a=b:c", "k=v", "x"));
+	}
+
+	@Test
+	public void test_regex()
+	{
+		RowKeyTagMatcher matcher = createMatcher("host", "regex:web[0-9]+", "host", "db1");
+
+		assertMatches(matcher, true, ImmutableSortedMap.of("host", "web12"));
+		assertMatches(matcher, true, ImmutableSortedMap.of("host", "db1"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("host", "web"));
+		assertMatches(createMatcher("path", "regex:/a=.*"), true, ImmutableSortedMap.of("path", "/a=b:c"));
+	}
+
+	@Test
+	public void test_multiByteValues()
+	{
+		RowKeyTagMatcher matcher = createMatcher("city", "K\u00f8benhavn");
+
+		assertMatches(matcher, true, ImmutableSortedMap.of("city", "K\u00f8benhavn"));
+		assertMatches(matcher, false, ImmutableSortedMap.of("city", "Kobenhavn"));
+	}
+
+	@Test
+	public void test_nullTagMap()
+	{
+		assertFalse(createMatcher("host", "server1").matchesTagMap(null));
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.SetMultimap;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kairosdb.core.datastore.TagSet;
+import org.kairosdb.events.RowKeyEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_WIDTH;
+
+public class SeriesCatalogTest
+{
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private SeriesCatalog catalog;
+
+	@Before
+	public void setup()
+	{
+		catalog = new SeriesCatalog("regex:");
+
+		catalog.addSeries("cpu", ImmutableSortedMap.of("host", "server1", "dc", "east"), 0, 0);
+		catalog.addSeries("cpu", ImmutableSortedMap.of("host", "server2", "dc", "east"), 0, 0);
+		catalog.addSeries("cpu", ImmutableSortedMap.of("host", "server3", "dc", "west"), ROW_WIDTH * 2, 0);
+		catalog.addSeries("cpu.idle", ImmutableSortedMap.of("host", "server1"), 0, 0);
+		catalog.addSeries("memory", ImmutableSortedMap.of("host", "server1", "type", "heap"), 0, 0);
+	}
+
+	@Test
+	public void test_metricNames()
+	{
+		assertThat(catalog.getMetricNames(null), equalTo(Arrays.asList("cpu", "cpu.idle", "memory")));
+		assertThat(catalog.getMetricNames("cpu"), equalTo(Arrays.asList("cpu", "cpu.idle")));
+		assertThat(catalog.getMetricNames("cpu."), equalTo(Collections.singletonList("cpu.idle")));
+		assertThat(catalog.getMetricNames("disk"), equalTo(Collections.<String>emptyList()));
+	}
+
+	@Test
+	public void test_tagNamesAndValues()
+	{
+		assertThat(catalog.getTagNames(), equalTo(Arrays.asList("dc", "host", "type")));
+		assertThat(catalog.getTagValues(), equalTo(Arrays.asList("east", "heap", "server1", "server2", "server3", "west")));
+	}
+
+	@Test
+	public void test_duplicateSeries()
+	{
+		catalog.addSeries("cpu", ImmutableSortedMap.of("host", "server1", "dc", "east"), ROW_WIDTH, 0);
+
+		assertThat(catalog.getSeriesCount(), equalTo(5L));
+	}
+
+	@Test
+	public void test_rowKeyEvent()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("disk", "cluster", 0, "kairos_long",
+				new TreeMap<>(ImmutableSortedMap.of("host", "server4")));
+		catalog.rowKey(new RowKeyEvent("disk", rowKey, 0));
+
+		assertThat(catalog.getMetricNames("disk"), equalTo(Collections.singletonList("disk")));
+		assertThat(catalog.getSeriesCount(), equalTo(6L));
+	}
+
+	@Test
+	public void test_queryMetricTags_noFilter()
+	{
+		TagSet tags = catalog.queryMetricTags("cpu", 0, ROW_WIDTH * 3, HashMultimap.<String, String>create());
+
+		assertThat(tags.getTagNames(), equalTo(set("dc", "host")));
+		assertThat(tags.getTagValues("host"), equalTo(set("server1", "server2", "server3")));
+		assertThat(tags.getTagValues("dc"), equalTo(set("east", "west")));
+	}
+
+	@Test
+	public void test_queryMetricTags_unknownMetric()
+	{
+		TagSet tags = catalog.queryMetricTags("disk", 0, ROW_WIDTH * 3, HashMultimap.<String, String>create());
+
+		assertThat(tags.getTagNames().size(), equalTo(0));
+	}
+
+	@Test
+	public void test_queryMetricTags_filter()
+	{
+		SetMultimap<String, String> filter = HashMultimap.create();
+		filter.put("dc", "east");
+
+		TagSet tags = catalog.queryMetricTags("cpu", 0, ROW_WIDTH * 3, filter);
+
+		assertThat(tags.getTagValues("host"), equalTo(set("server1", "server2")));
+		assertThat(tags.getTagValues("dc"), equalTo(set("east")));
+	}
+
+	@Test
+	public void test_queryMetricTags_multipleValuesAndTags()
+	{
+		SetMultimap<String, String> filter = HashMultimap.create();
+		filter.put("host", "server1");
+		filter.put("host", "server3");
+		filter.put("dc", "west");
+
+		TagSet tags = catalog.queryMetricTags("cpu", 0, ROW_WIDTH * 3, filter);
+
+		assertThat(tags.getTagValues("host"), equalTo(set("server3")));
+	}
+
+	@Test
+	public void test_queryMetricTags_missingTag()
+	{
+		SetMultimap<String, String> filter = HashMultimap.create();
+		filter.put("type", "heap");
+
+		TagSet tags = catalog.queryMetricTags("cpu", 0, ROW_WIDTH * 3, filter);
+
+		assertThat(tags.getTagNames().size(), equalTo(0));
+	}
+
+	@Test
+	public void test_queryMetricTags_regex()
+	{
+		SetMultimap<String, String> filter = HashMultimap.create();
+		filter.put("host", "regex:server[12]");
+
+		TagSet tags = catalog.queryMetricTags("cpu", 0, ROW_WIDTH * 3, filter);
+
+		assertThat(tags.getTagValues("host"), equalTo(set("server1", "server2")));
+	}
+
+	@Test
+	public void test_queryMetricTags_timeRange()
+	{
+		TagSet tags = catalog.queryMetricTags("cpu", ROW_WIDTH * 2 + 10, ROW_WIDTH * 3, HashMultimap.<String, String>create());
+		assertThat(tags.getTagValues("host"), equalTo(set("server3")));
+
+		tags = catalog.queryMetricTags("cpu", 0, ROW_WIDTH, HashMultimap.<String, String>create());
+		assertThat(tags.getTagValues("host"), equalTo(set("server1", "server2")));
+	}
+
+	@Test
+	public void test_queryMetricTags_expired()
+	{
+		catalog.addSeries("disk", ImmutableSortedMap.of("host", "server1"), 0, 1);
+		catalog.addSeries("disk", ImmutableSortedMap.of("host", "server2"), 0, 0);
+		catalog.addSeries("disk", ImmutableSortedMap.of("host", "server3"), 0, -1);
+
+		TagSet tags = catalog.queryMetricTags("disk", 0, ROW_WIDTH, HashMultimap.<String, String>create());
+
+		assertThat(tags.getTagValues("host"), equalTo(set("server1", "server2")));
+	}
+
+	@Test
+	public void test_snapshot() throws IOException
+	{
+		File snapshot = new File(temporaryFolder.getRoot(), "catalog/series_catalog.snapshot");
+		catalog.writeSnapshot(snapshot);
+
+		SeriesCatalog loaded = new SeriesCatalog("regex:");
+		loaded.addSeries("disk", ImmutableSortedMap.of("host", "server4"), 0, 0);
+		loaded.readSnapshot(snapshot);
+
+		assertThat(loaded.getSeriesCount(), equalTo(6L));
+		assertThat(loaded.getMetricNames(null), equalTo(Arrays.asList("cpu", "cpu.idle", "disk", "memory")));
+		assertThat(loaded.getTagValues(), equalTo(Arrays.asList("east", "heap", "server1", "server2", "server3", "server4", "west")));
+
+		SetMultimap<String, String> filter = HashMultimap.create();
+		filter.put("dc", "east");
+		TagSet tags = loaded.queryMetricTags("cpu", 0, ROW_WIDTH * 3, filter);
+		assertThat(tags.getTagValues("host"), equalTo(set("server1", "server2")));
+
+		tags = loaded.queryMetricTags("cpu", ROW_WIDTH * 2, ROW_WIDTH * 3, HashMultimap.<String, String>create());
+		assertThat(tags.getTagValues("host"), equalTo(set("server3")));
+	}
+
+	@Test
+	public void test_removeRows_wholeSeries()
+	{
+		catalog.removeRows("memory", ImmutableSortedMap.of("host", "server1", "type", "heap"), 0, ROW_WIDTH - 1);
+
+		assertThat(catalog.getSeriesCount(), equalTo(4L));
+		assertThat(catalog.getMetricNames(null), equalTo(Arrays.asList("cpu", "cpu.idle")));
+		assertThat(catalog.getTagNames(), equalTo(Arrays.asList("dc", "host")));
+		assertThat(catalog.queryMetricTags("memory", 0, ROW_WIDTH, HashMultimap.<String, String>create()).getTagNames().isEmpty(),
+				equalTo(true));
+
+		//Written again after the delete
+		catalog.addSeries("memory", ImmutableSortedMap.of("host", "server1", "type", "heap"), ROW_WIDTH, 0);
+		assertThat(catalog.getSeriesCount(), equalTo(5L));
+		assertThat(catalog.getMetricNames("mem"), equalTo(Collections.singletonList("memory")));
+	}
+
+	@Test
+	public void test_removeRows_partialRowIsKept()
+	{
+		catalog.removeRows("cpu.idle", ImmutableSortedMap.of("host", "server1"), 10, ROW_WIDTH - 1);
+
+		assertThat(catalog.getSeriesCount(), equalTo(5L));
+		assertThat(catalog.getMetricNames("cpu.idle"), equalTo(Collections.singletonList("cpu.idle")));
+	}
+
+	@Test
+	public void test_removeRows_shrinksRowTimes()
+	{
+		ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "server1");
+		catalog.addSeries("disk", tags, 0, 0);
+		catalog.addSeries("disk", tags, ROW_WIDTH * 4, 0);
+
+		catalog.removeRows("disk", tags, 0, ROW_WIDTH * 2 - 1);
+
+		TagSet early = catalog.queryMetricTags("disk", 0, ROW_WIDTH - 1, HashMultimap.<String, String>create());
+		assertThat(early.getTagNames().isEmpty(), equalTo(true));
+		TagSet late = catalog.queryMetricTags("disk", ROW_WIDTH * 4, ROW_WIDTH * 5, HashMultimap.<String, String>create());
+		assertThat(late.getTagValues("host"), equalTo(set("server1")));
+	}
+
+	@Test
+	public void test_removeMetric() throws IOException
+	{
+		catalog.removeMetric("cpu");
+
+		assertThat(catalog.getSeriesCount(), equalTo(2L));
+		assertThat(catalog.getMetricNames(null), equalTo(Arrays.asList("cpu.idle", "memory")));
+		assertThat(catalog.getTagValues(), equalTo(Arrays.asList("heap", "server1")));
+
+		File snapshot = new File(temporaryFolder.getRoot(), "series_catalog.snapshot");
+		catalog.writeSnapshot(snapshot);
+		SeriesCatalog loaded = new SeriesCatalog("regex:");
+		loaded.readSnapshot(snapshot);
+		assertThat(loaded.getSeriesCount(), equalTo(2L));
+		assertThat(loaded.getMetricNames(null), equalTo(Arrays.asList("cpu.idle", "memory")));
+	}
+
+	private static TreeSet<String> set(String... values)
+	{
+		return new TreeSet<>(Arrays.asList(values));
+	}
+}
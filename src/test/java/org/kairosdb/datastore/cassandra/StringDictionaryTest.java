@@ -0,0 +1,131 @@
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DictionaryStringDataPoint;
+import org.kairosdb.core.datapoints.DictionaryStringDataPointFactory;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StringDictionaryTest
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private StringDictionary m_dictionary;
+
+	@Before
+	public void setup()
+	{
+		m_dictionary = new StringDictionary();
+		m_dictionary.setMetrics("status\\..*");
+	}
+
+	@Test
+	public void test_toDictionaryDataPoint_matchingMetric()
+	{
+		DataPoint dataPoint = m_dictionary.toDictionaryDataPoint("status.service",
+				new StringDataPoint(123L, "running"));
+
+		assertThat(dataPoint, instanceOf(DictionaryStringDataPoint.class));
+		assertThat(dataPoint.getDataStoreDataType(), equalTo(DictionaryStringDataPointFactory.DST_DICTIONARY_STRING));
+		assertThat(dataPoint.getTimestamp(), equalTo(123L));
+		assertThat(((StringDataPoint) dataPoint).getValue(), equalTo("running"));
+	}
+
+	@Test
+	public void test_toDictionaryDataPoint_otherMetricOrType_unchanged()
+	{
+		DataPoint stringDataPoint = new StringDataPoint(123L, "running");
+		DataPoint longDataPoint = new LongDataPoint(123L, 42);
+
+		assertThat(m_dictionary.toDictionaryDataPoint("cpu.load", stringDataPoint), sameInstance(stringDataPoint));
+		assertThat(m_dictionary.toDictionaryDataPoint("status.service", longDataPoint), sameInstance(longDataPoint));
+	}
+
+	@Test
+	public void test_toDictionaryDataPoint_noMetricsConfigured_unchanged()
+	{
+		StringDictionary dictionary = new StringDictionary();
+		DataPoint dataPoint = new StringDataPoint(123L, "running");
+
+		assertThat(dictionary.toDictionaryDataPoint("status.service", dataPoint), sameInstance(dataPoint));
+	}
+
+	@Test
+	public void test_dictionaryColumn_sortsAfterDataColumns()
+	{
+		long id = StringDictionary.getId("running");
+		ByteBuffer column = StringDictionary.getDictionaryColumn(id);
+
+		assertTrue(StringDictionary.isDictionaryColumn(column));
+		assertThat(StringDictionary.getColumnId(column), equalTo(id));
+		assertThat(StringDictionary.getId("running"), equalTo(id));
+
+		ByteBuffer dataColumn = ByteBuffer.allocate(4);
+		dataColumn.putInt(0x7FFFFFFF);
+		dataColumn.rewind();
+		assertFalse(StringDictionary.isDictionaryColumn(dataColumn));
+
+		//Cassandra compares blobs as unsigned bytes
+		Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+		assertTrue(comparator.compare(dataColumn.array(), column.array()) < 0);
+		assertTrue(comparator.compare(column.array(), StringDictionary.getEndOfRow().array()) < 0);
+	}
+
+	@Test
+	public void test_getValue_interned()
+	{
+		long id = StringDictionary.getId("running");
+
+		String first = m_dictionary.getValue(id, ByteBuffer.wrap("running".getBytes(UTF_8)));
+		String second = new StringDictionary().getValue(id, ByteBuffer.wrap("running".getBytes(UTF_8)));
+
+		assertThat(first, equalTo("running"));
+		assertThat(second, sameInstance(first));
+	}
+
+	@Test
+	public void test_needsWrite_onlyUntilWritten()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("status.service", "cluster", 0L,
+				DictionaryStringDataPointFactory.DST_DICTIONARY_STRING);
+		DataPointsRowKey nextRowKey = new DataPointsRowKey("status.service", "cluster", 1814400000L,
+				DictionaryStringDataPointFactory.DST_DICTIONARY_STRING);
+		long id = StringDictionary.getId("running");
+
+		assertTrue(StringDictionary.isDictionaryRow(rowKey));
+		assertTrue(m_dictionary.needsWrite(rowKey, id));
+
+		m_dictionary.written(rowKey, id);
+
+		assertFalse(m_dictionary.needsWrite(rowKey, id));
+		assertTrue(m_dictionary.needsWrite(rowKey, StringDictionary.getId("stopped")));
+		assertTrue(m_dictionary.needsWrite(nextRowKey, id));
+	}
+
+	@Test
+	public void test_clearWritten()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("status.service", "cluster", 0L,
+				DictionaryStringDataPointFactory.DST_DICTIONARY_STRING);
+		long id = StringDictionary.getId("running");
+
+		m_dictionary.written(rowKey, id);
+		m_dictionary.clearWritten();
+
+		assertTrue(m_dictionary.needsWrite(rowKey, id));
+	}
+}
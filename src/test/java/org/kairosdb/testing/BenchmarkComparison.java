@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.testing;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ Prints two JMH result files (-rf json) side by side.  Scores are compared
+ for benchmarks with the same name and parameters.  A change is marked with
+ a * when it is larger than the two error margins added together.  When the
+ runs were made with -prof gc the allocated bytes per operation are shown
+ as well.
+
+ java -cp <test classpath> org.kairosdb.testing.BenchmarkComparison base.json head.json
+ */
+public class BenchmarkComparison
+{
+	private static final String ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm";
+
+	private static class Result
+	{
+		private double m_score;
+		private double m_error;
+		private String m_unit;
+		private double m_allocated = Double.NaN;
+	}
+
+	private static Map<String, Result> readResults(File file) throws IOException
+	{
+		Map<String, Result> ret = new LinkedHashMap<>();
+
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8))
+		{
+			JsonArray runs = new JsonParser().parse(reader).getAsJsonArray();
+			for (JsonElement element : runs)
+			{
+				JsonObject run = element.getAsJsonObject();
+
+				StringBuilder name = new StringBuilder(run.get("benchmark").getAsString());
+				if (run.has("params"))
+				{
+					for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet())
+						name.append(' ').append(param.getKey()).append('=').append(param.getValue().getAsString());
+				}
+
+				JsonObject primary = run.getAsJsonObject("primaryMetric");
+				Result result = new Result();
+				result.m_score = primary.get("score").getAsDouble();
+				result.m_error = getDouble(primary.get("scoreError"));
+				result.m_unit = primary.get("scoreUnit").getAsString();
+
+				JsonObject secondary = run.getAsJsonObject("secondaryMetrics");
+				if (secondary != null && secondary.has(ALLOCATION_METRIC))
+					result.m_allocated = secondary.getAsJsonObject(ALLOCATION_METRIC).get("score").getAsDouble();
+
+				ret.put(name.toString(), result);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 JMH writes "NaN" when there were too few iterations for an error
+	 */
+	private static double getDouble(JsonElement element)
+	{
+		double value = element.getAsDouble();
+		return Double.isNaN(value) ? 0 : value;
+	}
+
+	private static String formatAllocated(double allocated)
+	{
+		return Double.isNaN(allocated) ? "-" : String.format("%.0f", allocated);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2)
+		{
+			System.err.println("Usage: BenchmarkComparison <base results> <head results>");
+			System.exit(1);
+		}
+
+		Map<String, Result> base = readResults(new File(args[0]));
+		Map<String, Result> head = readResults(new File(args[1]));
+
+		int nameWidth = 9;
+		for (String name : head.keySet())
+			nameWidth = Math.max(nameWidth, name.length());
+
+		String format = "%-" + nameWidth + "s %15s %15s %9s %12s %12s%n";
+		System.out.printf(format, "Benchmark", "Base", "Head", "Change", "Base B/op", "Head B/op");
+
+		for (Map.Entry<String, Result> entry : head.entrySet())
+		{
+			Result headResult = entry.getValue();
+			Result baseResult = base.get(entry.getKey());
+
+			if (baseResult == null)
+			{
+				System.out.printf(format, entry.getKey(), "-", String.format("%.3f", headResult.m_score),
+						"new", "-", formatAllocated(headResult.m_allocated));
+				continue;
+			}
+
+			double diff = headResult.m_score - baseResult.m_score;
+			String change = String.format("%+.1f%%", diff * 100 / baseResult.m_score);
+			if (Math.abs(diff) > baseResult.m_error + headResult.m_error)
+				change += "*";
+
+			System.out.printf(format, entry.getKey(), String.format("%.3f", baseResult.m_score),
+					String.format("%.3f", headResult.m_score), change,
+					formatAllocated(baseResult.m_allocated), formatAllocated(headResult.m_allocated));
+		}
+
+		for (String name : base.keySet())
+		{
+			if (!head.containsKey(name))
+				System.out.printf(format, name, String.format("%.3f", base.get(name).m_score), "-",
+						"removed", formatAllocated(base.get(name).m_allocated), "-");
+		}
+
+		if (!head.isEmpty())
+			System.out.println("Scores are " + head.values().iterator().next().m_unit +
+					", * marks changes larger than the error margins");
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.testing;
+
+import com.google.common.base.Charsets;
+import org.kairosdb.core.formatter.ColumnarResponse;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.kairosdb.util.Util.unpackLong;
+import static org.kairosdb.util.Util.unpackUnsignedLong;
+
+/**
+ Client side reader for responses written by ColumnarResponse.  Long values
+ are returned as Long, doubles as Double and any other type as the JSON text
+ of the value.
+ */
+public class ColumnarResponseReader
+{
+	public static class Query
+	{
+		private final int m_sampleSize;
+		private final List<Group> m_groups = new ArrayList<>();
+
+		public Query(int sampleSize)
+		{
+			m_sampleSize = sampleSize;
+		}
+
+		public int getSampleSize()
+		{
+			return m_sampleSize;
+		}
+
+		public List<Group> getGroups()
+		{
+			return m_groups;
+		}
+	}
+
+	public static class Group
+	{
+		private final String m_name;
+		private final List<String> m_groupBys = new ArrayList<>();
+		private final Map<String, List<String>> m_tags = new LinkedHashMap<>();
+		private final List<Long> m_timestamps = new ArrayList<>();
+		private final List<Object> m_values = new ArrayList<>();
+
+		public Group(String name)
+		{
+			m_name = name;
+		}
+
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/**
+		 Group by results as JSON, the same as in a JSON response.
+		 */
+		public List<String> getGroupBys()
+		{
+			return m_groupBys;
+		}
+
+		public Map<String, List<String>> getTags()
+		{
+			return m_tags;
+		}
+
+		public List<Long> getTimestamps()
+		{
+			return m_timestamps;
+		}
+
+		public List<Object> getValues()
+		{
+			return m_values;
+		}
+	}
+
+	private final DataInputStream m_input;
+
+	public ColumnarResponseReader(InputStream inputStream)
+	{
+		m_input = new DataInputStream(inputStream);
+	}
+
+	public List<Query> read() throws IOException
+	{
+		byte[] magic = new byte[ColumnarResponse.MAGIC.length];
+		m_input.readFully(magic);
+		if (!Arrays.equals(magic, ColumnarResponse.MAGIC))
+			throw new IOException("Not a columnar response");
+
+		byte version = m_input.readByte();
+		if (version != ColumnarResponse.VERSION)
+			throw new IOException("Unsupported version " + version);
+
+		List<Query> queries = new ArrayList<>();
+		Query query = null;
+
+		while (true)
+		{
+			byte marker = m_input.readByte();
+			if (marker == ColumnarResponse.END)
+				return queries;
+			else if (marker == ColumnarResponse.QUERY)
+			{
+				query = new Query(m_input.readInt());
+				queries.add(query);
+			}
+			else if (marker == ColumnarResponse.GROUP && query != null)
+				query.getGroups().add(readGroup());
+			else
+				throw new IOException("Unexpected marker " + marker);
+		}
+	}
+
+	private Group readGroup() throws IOException
+	{
+		Group group = new Group(readString());
+
+		long groupByCount = unpackUnsignedLong(m_input);
+		for (long I = 0; I < groupByCount; I++)
+			group.getGroupBys().add(readString());
+
+		long tagCount = unpackUnsignedLong(m_input);
+		for (long I = 0; I < tagCount; I++)
+		{
+			String name = readString();
+			List<String> values = new ArrayList<>();
+			long valueCount = unpackUnsignedLong(m_input);
+			for (long J = 0; J < valueCount; J++)
+				values.add(readString());
+			group.getTags().put(name, values);
+		}
+
+		long timestamp = 0;
+		int count;
+		while ((count = (int) unpackUnsignedLong(m_input)) != 0)
+		{
+			byte type = m_input.readByte();
+
+			for (int I = 0; I < count; I++)
+			{
+				timestamp += unpackLong(m_input);
+				group.getTimestamps().add(timestamp);
+			}
+
+			long previous = 0;
+			for (int I = 0; I < count; I++)
+			{
+				if (type == ColumnarResponse.TYPE_LONG)
+					group.getValues().add(unpackLong(m_input));
+				else if (type == ColumnarResponse.TYPE_DOUBLE)
+				{
+					previous ^= readXor();
+					group.getValues().add(Double.longBitsToDouble(previous));
+				}
+				else if (type == ColumnarResponse.TYPE_JSON)
+					group.getValues().add(readString());
+				else
+					throw new IOException("Unknown value type " + type);
+			}
+		}
+
+		return group;
+	}
+
+	private long readXor() throws IOException
+	{
+		int header = m_input.readUnsignedByte();
+		int leading = header >> 4;
+		int trailing = header & 0x0F;
+
+		long xor = 0;
+		for (int I = 0; I < 8 - leading - trailing; I++)
+			xor = (xor << 8) | m_input.readUnsignedByte();
+
+		return xor << (trailing * 8);
+	}
+
+	private String readString() throws IOException
+	{
+		byte[] bytes = new byte[(int) unpackUnsignedLong(m_input)];
+		m_input.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+}
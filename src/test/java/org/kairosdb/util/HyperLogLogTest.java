@@ -0,0 +1,87 @@
+package org.kairosdb.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest
+{
+	private static HyperLogLog createSketch(int precision, int start, int count)
+	{
+		HyperLogLog sketch = new HyperLogLog(precision);
+		for (int I = start; I < start + count; I++)
+			sketch.offer("value" + I);
+
+		return sketch;
+	}
+
+	private static void assertWithin(long expected, long actual, double error)
+	{
+		assertTrue("expected " + expected + " but was " + actual,
+				Math.abs(actual - expected) <= expected * error);
+	}
+
+	@Test
+	public void test_estimate_small()
+	{
+		HyperLogLog sketch = createSketch(12, 0, 10);
+		sketch.offer("value1");
+		sketch.offer("value2");
+
+		assertThat(sketch.estimate(), equalTo(10L));
+		assertThat(new HyperLogLog().estimate(), equalTo(0L));
+	}
+
+	@Test
+	public void test_estimate_large()
+	{
+		assertWithin(100000, createSketch(12, 0, 100000).estimate(), 0.05);
+		assertWithin(1000000, createSketch(14, 0, 1000000).estimate(), 0.03);
+	}
+
+	@Test
+	public void test_merge_overlapping()
+	{
+		HyperLogLog sketch = createSketch(12, 0, 60000);
+		sketch.merge(createSketch(12, 40000, 60000));
+
+		assertWithin(100000, sketch.estimate(), 0.05);
+	}
+
+	@Test
+	public void test_merge_differentPrecision()
+	{
+		HyperLogLog sketch = createSketch(14, 0, 60000);
+		sketch.merge(createSketch(10, 40000, 60000));
+
+		assertThat(sketch.getPrecision(), equalTo(10));
+		assertThat(sketch, equalTo(createSketch(10, 0, 100000)));
+	}
+
+	@Test
+	public void test_serialization() throws IOException
+	{
+		HyperLogLog sparse = createSketch(12, 0, 20);
+		HyperLogLog dense = createSketch(12, 0, 20000);
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		sparse.write(out);
+		int sparseSize = buffer.size();
+		dense.write(out);
+
+		assertTrue(sparseSize < 100);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+		assertThat(HyperLogLog.read(in), equalTo(sparse));
+		assertThat(HyperLogLog.read(in), equalTo(dense));
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LogLinearHistogramTest
+{
+	@Test
+	public void test_smallValuesExact()
+	{
+		LogLinearHistogram histogram = new LogLinearHistogram();
+		for (int I = 1; I <= 100; I++)
+			histogram.addValue(I);
+
+		LogLinearHistogram.Data data = histogram.getAndClear();
+
+		assertThat(data.getCount(), equalTo(100L));
+		assertThat(data.getValueAtPercentile(50), equalTo(50L));
+		assertThat(data.getValueAtPercentile(99), equalTo(99L));
+		assertThat(data.getValueAtPercentile(100), equalTo(100L));
+		assertThat(data.getMax(), equalTo(100L));
+	}
+
+	@Test
+	public void test_largeValuesWithinOnePercent()
+	{
+		long[] values = {128, 1000, 123456, 98765432L, Long.MAX_VALUE / 3};
+		for (long value : values)
+		{
+			LogLinearHistogram histogram = new LogLinearHistogram();
+			histogram.addValue(value);
+			histogram.addValue(0);
+
+			long recorded = histogram.getAndClear().getValueAtPercentile(100);
+			assertThat(recorded, greaterThanOrEqualTo((long)(value * 0.99)));
+			assertThat(recorded, lessThanOrEqualTo(value));
+		}
+	}
+
+	@Test
+	public void test_bucketIndexIsMonotonic()
+	{
+		int last = -1;
+		for (long value = 0; value < 1000000; value += 7)
+		{
+			int index = LogLinearHistogram.getBucketIndex(value);
+			assertThat(index, greaterThanOrEqualTo(last));
+			assertThat(LogLinearHistogram.getHighestValue(index), greaterThanOrEqualTo(value));
+			last = index;
+		}
+
+		assertThat(LogLinearHistogram.getHighestValue(LogLinearHistogram.getBucketIndex(Long.MAX_VALUE)),
+				equalTo(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void test_getAndClear()
+	{
+		LogLinearHistogram histogram = new LogLinearHistogram();
+		histogram.addValue(5);
+		histogram.getAndClear();
+
+		LogLinearHistogram.Data data = histogram.getAndClear();
+		assertThat(data.getCount(), equalTo(0L));
+		assertThat(data.getValueAtPercentile(99), equalTo(0L));
+		assertThat(data.getMax(), equalTo(0L));
+	}
+
+	@Test
+	public void test_add()
+	{
+		LogLinearHistogram histogram = new LogLinearHistogram();
+		histogram.addValue(10);
+		LogLinearHistogram.Data total = histogram.getAndClear();
+
+		histogram.addValue(20);
+		total.add(histogram.getAndClear());
+
+		assertThat(total.getCount(), equalTo(2L));
+		assertThat(total.getMax(), equalTo(20L));
+		assertThat(total.getMean(), equalTo(15.0));
+		assertThat(total.getValueAtPercentile(50), equalTo(10L));
+	}
+
+	@Test
+	public void test_minAndSumExact()
+	{
+		LogLinearHistogram histogram = new LogLinearHistogram();
+		histogram.addValue(1000003);
+		histogram.addValue(500);
+
+		LogLinearHistogram.Data data = histogram.getAndClear();
+		assertThat(data.getMin(), equalTo(500L));
+		assertThat(data.getMax(), equalTo(1000003L));
+		assertThat(data.getSum(), equalTo(1000503L));
+	}
+
+	@Test
+	public void test_lastIntervalAndTotal()
+	{
+		LogLinearHistogram histogram = new LogLinearHistogram();
+		histogram.addValue(10);
+		histogram.addValue(20);
+		histogram.getAndClear();
+
+		histogram.addValue(30);
+
+		LogLinearHistogram.Data last = histogram.getLastInterval();
+		assertThat(last.getCount(), equalTo(2L));
+		assertThat(last.getMax(), equalTo(20L));
+
+		//Reading the total does not clear the current interval
+		LogLinearHistogram.Data total = histogram.getTotal();
+		assertThat(total.getCount(), equalTo(3L));
+		assertThat(total.getMin(), equalTo(10L));
+		assertThat(total.getMax(), equalTo(30L));
+		assertThat(histogram.getAndClear().getCount(), equalTo(1L));
+		assertThat(histogram.getTotal().getCount(), equalTo(3L));
+	}
+}
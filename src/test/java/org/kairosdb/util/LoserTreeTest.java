@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import org.junit.Test;
+import org.kairosdb.core.datastore.Order;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LoserTreeTest
+{
+	private static class RowData
+	{
+		private long m_ts;
+		private int m_value;
+
+		public RowData(long ts, int value)
+		{
+			m_ts = ts;
+			m_value = value;
+		}
+
+		public long getTimeStamp()
+		{
+			return (m_ts);
+		}
+
+		public int getValue()
+		{
+			return (m_value);
+		}
+	}
+
+	private static Iterator<RowData> rows(int value, long... timestamps)
+	{
+		List<RowData> list = new ArrayList<>();
+		for (long timestamp : timestamps)
+			list.add(new RowData(timestamp, value));
+
+		return list.iterator();
+	}
+
+	private static LoserTree<RowData> createTree(Order order)
+	{
+		return new LoserTree<>(RowData::getTimeStamp, order);
+	}
+
+	@Test
+	public void testNoIterators()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+
+		assertFalse(tree.hasNext());
+		assertNull(tree.nextElement());
+	}
+
+	@Test
+	public void testEmptyIterators()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		tree.addIterator(rows(0));
+		tree.addIterator(rows(1, 4));
+		tree.addIterator(rows(2));
+
+		assertEquals(4, tree.nextElement().getTimeStamp());
+		assertFalse(tree.hasNext());
+		assertNull(tree.nextElement());
+	}
+
+	@Test
+	public void testTwoIterators()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		tree.addIterator(rows(0, 1, 2, 3, 4));
+		tree.addIterator(rows(0, 5, 6, 7, 8));
+		tree.addIterator(rows(0, 9, 10, 11, 12));
+
+		for (long I = 1; I <= 12; I++)
+			assertEquals(I, tree.nextElement().getTimeStamp());
+
+		assertFalse(tree.hasNext());
+		assertNull(tree.nextElement());
+	}
+
+	@Test
+	public void testTwoIteratorsSameData()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		tree.addIterator(rows(0, 1, 3, 5, 7));
+		tree.addIterator(rows(1, 1, 3, 5, 7));
+
+		for (long I = 1; I <= 7; I += 2)
+		{
+			//Ties come out in the order the iterators were added
+			RowData first = tree.nextElement();
+			RowData second = tree.nextElement();
+			assertEquals(I, first.getTimeStamp());
+			assertEquals(0, first.getValue());
+			assertEquals(I, second.getTimeStamp());
+			assertEquals(1, second.getValue());
+		}
+
+		assertFalse(tree.hasNext());
+		assertNull(tree.nextElement());
+	}
+
+	@Test
+	public void testThreeIterators()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		tree.addIterator(rows(0, 1, 3, 5, 7));
+		tree.addIterator(rows(1, 1, 2, 3, 4));
+		tree.addIterator(rows(2, 2, 4, 6, 8));
+
+		long[] expected = {1, 1, 2, 2, 3, 3, 4, 4, 5, 6, 7, 8};
+		int[] expectedValues = {0, 1, 1, 2, 0, 1, 1, 2, 0, 2, 0, 2};
+		for (int I = 0; I < expected.length; I++)
+		{
+			RowData row = tree.nextElement();
+			assertEquals(expected[I], row.getTimeStamp());
+			assertEquals(expectedValues[I], row.getValue());
+		}
+
+		assertFalse(tree.hasNext());
+		assertNull(tree.nextElement());
+	}
+
+	@Test
+	public void testDescending()
+	{
+		LoserTree<RowData> tree = createTree(Order.DESC);
+		tree.addIterator(rows(0, 7, 5, 3, 1));
+		tree.addIterator(rows(1, 4, 3, 2, 1));
+		tree.addIterator(rows(2, 8, 6, 4, 2));
+
+		long[] expected = {8, 7, 6, 5, 4, 4, 3, 3, 2, 2, 1, 1};
+		int[] expectedValues = {2, 0, 2, 0, 1, 2, 0, 1, 1, 2, 0, 1};
+		for (int I = 0; I < expected.length; I++)
+		{
+			RowData row = tree.nextElement();
+			assertEquals(expected[I], row.getTimeStamp());
+			assertEquals(expectedValues[I], row.getValue());
+		}
+
+		assertFalse(tree.hasNext());
+	}
+
+	@Test
+	public void testTieBreaker()
+	{
+		Comparator<RowData> byValue = (row1, row2) -> Integer.compare(row1.getValue(), row2.getValue());
+		LoserTree<RowData> tree = new LoserTree<>(RowData::getTimeStamp, byValue, Order.ASC);
+		tree.addIterator(rows(5, 1, 2));
+		tree.addIterator(rows(3, 1));
+		tree.addIterator(rows(3, 2));
+
+		RowData row = tree.nextElement();
+		assertEquals(1, row.getTimeStamp());
+		assertEquals(3, row.getValue());
+		row = tree.nextElement();
+		assertEquals(1, row.getTimeStamp());
+		assertEquals(5, row.getValue());
+		row = tree.nextElement();
+		assertEquals(2, row.getTimeStamp());
+		assertEquals(3, row.getValue());
+		row = tree.nextElement();
+		assertEquals(2, row.getTimeStamp());
+		assertEquals(5, row.getValue());
+		assertFalse(tree.hasNext());
+
+		tree = new LoserTree<>(RowData::getTimeStamp, byValue, Order.DESC);
+		tree.addIterator(rows(3, 1));
+		tree.addIterator(rows(5, 1));
+
+		assertEquals(5, tree.nextElement().getValue());
+		assertEquals(3, tree.nextElement().getValue());
+	}
+
+	@Test
+	public void testAddIteratorAfterReading()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		tree.addIterator(rows(0, 1, 4, 6));
+
+		assertEquals(1, tree.nextElement().getTimeStamp());
+
+		tree.addIterator(rows(1, 2, 5));
+		tree.addIterator(rows(2, 3));
+
+		assertEquals(2, tree.nextElement().getTimeStamp());
+		assertEquals(3, tree.nextElement().getTimeStamp());
+		assertEquals(4, tree.nextElement().getTimeStamp());
+		assertEquals(5, tree.nextElement().getTimeStamp());
+		assertEquals(6, tree.nextElement().getTimeStamp());
+		assertFalse(tree.hasNext());
+	}
+
+	@Test
+	public void testIteratorsNotReadUntilRead()
+	{
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		Iterator<RowData> iterator = rows(0, 1, 2);
+		tree.addIterator(iterator);
+
+		//Nothing has been taken from the iterator yet
+		assertEquals(1, iterator.next().getTimeStamp());
+	}
+
+	@Test
+	public void testManyIterators()
+	{
+		Random random = new Random(42);
+		LoserTree<RowData> tree = createTree(Order.ASC);
+		List<Long> expected = new ArrayList<>();
+
+		//Not a power of two so the tree is padded
+		for (int source = 0; source < 37; source++)
+		{
+			long[] timestamps = new long[random.nextInt(50)];
+			for (int I = 0; I < timestamps.length; I++)
+			{
+				timestamps[I] = random.nextInt(1000);
+				expected.add(timestamps[I]);
+			}
+
+			Arrays.sort(timestamps);
+			tree.addIterator(rows(source, timestamps));
+		}
+
+		Collections.sort(expected);
+
+		List<Long> actual = new ArrayList<>();
+		RowData last = null;
+		while (tree.hasNext())
+		{
+			RowData row = tree.nextElement();
+			if (last != null && last.getTimeStamp() == row.getTimeStamp())
+				assertTrue(last.getValue() <= row.getValue());
+
+			actual.add(row.getTimeStamp());
+			last = row;
+		}
+
+		assertEquals(expected, actual);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 KairosDB Authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datastore.Order;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Compares merging series with TournamentTree and LoserTree.  The scenarios
+ follow TournamentTreeTest: series that don't overlap, series with the same
+ timestamps and series that interleave.
+
+ Run with the test classpath:
+ java -cp <test classpath> org.kairosdb.util.MergeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark
+{
+	public enum Scenario
+	{
+		DISJOINT, SAME_DATA, INTERLEAVED
+	}
+
+	@Param({"3", "100", "10000"})
+	public int seriesCount;
+
+	@Param({"DISJOINT", "SAME_DATA", "INTERLEAVED"})
+	public Scenario scenario;
+
+	@Param({"ASC", "DESC"})
+	public Order order;
+
+	private static final int TOTAL_POINTS = 200000;
+
+	private DataPoint[][] m_series;
+
+	@Setup
+	public void setup()
+	{
+		int pointsPerSeries = Math.max(1, TOTAL_POINTS / seriesCount);
+		m_series = new DataPoint[seriesCount][];
+
+		for (int series = 0; series < seriesCount; series++)
+		{
+			DataPoint[] dataPoints = new DataPoint[pointsPerSeries];
+			for (int I = 0; I < pointsPerSeries; I++)
+			{
+				long timestamp;
+				switch (scenario)
+				{
+					case DISJOINT:
+						timestamp = (long) series * pointsPerSeries + I;
+						break;
+					case SAME_DATA:
+						timestamp = I * 10L;
+						break;
+					default:
+						timestamp = (long) I * seriesCount + series;
+				}
+
+				dataPoints[I] = new DoubleDataPoint(timestamp, I);
+			}
+
+			if (order == Order.DESC)
+				reverse(dataPoints);
+
+			m_series[series] = dataPoints;
+		}
+	}
+
+	private static void reverse(DataPoint[] dataPoints)
+	{
+		for (int I = 0; I < dataPoints.length / 2; I++)
+		{
+			DataPoint temp = dataPoints[I];
+			dataPoints[I] = dataPoints[dataPoints.length - 1 - I];
+			dataPoints[dataPoints.length - 1 - I] = temp;
+		}
+	}
+
+	@Benchmark
+	public void tournamentTree(Blackhole blackhole)
+	{
+		TournamentTree<DataPoint> tree = new TournamentTree<>(new DataPointComparator(), order);
+		for (DataPoint[] series : m_series)
+			tree.addIterator(Arrays.asList(series).iterator());
+
+		while (tree.hasNext())
+			blackhole.consume(tree.nextElement());
+	}
+
+	@Benchmark
+	public void loserTree(Blackhole blackhole)
+	{
+		LoserTree<DataPoint> tree = new LoserTree<>(DataPoint::getTimestamp,
+				(point1, point2) -> Double.compare(point1.getDoubleValue(), point2.getDoubleValue()), order);
+		for (DataPoint[] series : m_series)
+			tree.addIterator(Arrays.asList(series).iterator());
+
+		while (tree.hasNext())
+			blackhole.consume(tree.nextElement());
+	}
+
+	/**
+	 The comparator SortingDataPointGroup used with TournamentTree.
+	 */
+	private static class DataPointComparator implements Comparator<DataPoint>
+	{
+		@Override
+		public int compare(DataPoint point1, DataPoint point2)
+		{
+			long ret = point1.getTimestamp() - point2.getTimestamp();
+
+			if (ret == 0L)
+				ret = Double.compare(point1.getDoubleValue(), point2.getDoubleValue());
+
+			if (ret == 0L)
+				ret = System.identityHashCode(point1) - System.identityHashCode(point2);
+
+			return (ret < 0L ? -1 : 1);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder()
+				.include(MergeBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}